@@ -20,6 +20,7 @@
 package org.apache.directory.server.core.api;
 
 
+import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.List;
 import java.util.Set;
@@ -44,6 +45,8 @@ import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.server.core.api.changelog.LogChange;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 
 
 /**
@@ -799,4 +802,67 @@ public interface CoreSession
      * @param pwdMustChange
      */
     void setPwdMustChange( boolean pwdMustChange );
+
+
+    /**
+     * @return true if this session is running a transaction : the updates done through this
+     * session share one write transaction per partition, which are all committed or aborted
+     * when the session transaction ends.
+     */
+    boolean isTransacted();
+
+
+    /**
+     * Starts a session transaction. The caller must hold the OperationManager write lock
+     * until the transaction ends.
+     */
+    void beginSessionTransaction();
+
+
+    /**
+     * Registers a task to run once the session transaction has been committed, like notifying
+     * the listeners of a change. The task is discarded if the transaction is aborted.
+     *
+     * @param task The task to run after the commit
+     */
+    void addCommitTask( Runnable task );
+
+
+    /**
+     * Registers a task to run once the session transaction has been aborted, like invalidating
+     * a cache which has seen the aborted changes. The task is discarded if the transaction is
+     * committed.
+     *
+     * @param task The task to run after the abort
+     */
+    void addAbortTask( Runnable task );
+
+
+    /**
+     * Ends the session transaction, committing or aborting the partition transactions
+     * started by the updates done since the session transaction has been started. The
+     * commit or abort tasks are run afterwards.
+     *
+     * @param commit true to commit the changes, false to abort them
+     * @throws IOException If one of the partition transactions can't be committed or aborted
+     */
+    void endSessionTransaction( boolean commit ) throws IOException;
+
+
+    /**
+     * Gets the write transaction started on a partition during the session transaction
+     *
+     * @param partition The partition
+     * @return The partition transaction, or null if the partition hasn't been updated yet
+     */
+    PartitionTxn getTransaction( Partition partition );
+
+
+    /**
+     * Stores the write transaction started on a partition during the session transaction
+     *
+     * @param partition The partition
+     * @param transaction The partition transaction
+     */
+    void addTransaction( Partition partition, PartitionTxn transaction );
 }
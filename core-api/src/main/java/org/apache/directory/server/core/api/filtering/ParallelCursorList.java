@@ -0,0 +1,517 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.core.api.filtering;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.ClosureMonitor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor reading a list of {@link EntryFilteringCursor}s in parallel. Each inner cursor is
+ * read by a task running in the given executor, and the entries are streamed to the consumer
+ * through a bounded queue, in no specific order. This is used to merge the results of a
+ * search done on many partitions.
+ *
+ * This cursor can only be read forward.
+ *
+ * WARN this is only used internally !
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelCursorList extends AbstractCursor<Entry> implements EntryFilteringCursor
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ParallelCursorList.class );
+
+    /** The marker pushed by a task when its cursor has been fully read */
+    private static final Object END_OF_CURSOR = new Object();
+
+    /** The time we wait before checking if the cursor has been closed, in ms */
+    private static final long POLL_DELAY = 100L;
+
+    /** The inner cursors */
+    private final List<EntryFilteringCursor> list;
+
+    /** The executor used to read the inner cursors */
+    private final ExecutorService executor;
+
+    /** The queue the entries are pushed into */
+    private final BlockingQueue<Object> queue;
+
+    /** The running tasks */
+    private final List<Future<?>> futures;
+
+    /** The number of cursors which have been fully read */
+    private int nbEnded;
+
+    /** The current entry */
+    private Entry current;
+
+    /** Tells if the tasks have been started */
+    private boolean started;
+
+    /** the operation context */
+    private SearchOperationContext searchContext;
+
+    /** flag to detect the closed cursor */
+    private volatile boolean closed;
+
+
+    /**
+     * Creates a new ParallelCursorList instance.
+     *
+     * @param list The cursors to read
+     * @param executor The executor used to read the cursors
+     * @param queueSize The maximum number of entries read in advance
+     * @param searchContext The search operation context
+     */
+    public ParallelCursorList( List<EntryFilteringCursor> list, ExecutorService executor, int queueSize,
+        SearchOperationContext searchContext )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating ParallelCursorList {}", this );
+        }
+
+        this.list = list;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<Object>( queueSize );
+        this.futures = new ArrayList<Future<?>>( list.size() );
+        this.searchContext = searchContext;
+    }
+
+
+    /**
+     * Starts one task per inner cursor
+     */
+    private void start()
+    {
+        started = true;
+
+        for ( final EntryFilteringCursor cursor : list )
+        {
+            futures.add( executor.submit( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Object result = END_OF_CURSOR;
+
+                    try
+                    {
+                        while ( !closed && cursor.next() )
+                        {
+                            push( cursor.get() );
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        result = e;
+                    }
+
+                    push( result );
+                }
+            } ) );
+        }
+    }
+
+
+    /**
+     * Pushes an element in the queue, waiting for some room
+     */
+    private void push( Object element )
+    {
+        try
+        {
+            while ( !closed )
+            {
+                if ( queue.offer( element, POLL_DELAY, TimeUnit.MILLISECONDS ) )
+                {
+                    return;
+                }
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean available()
+    {
+        return current != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void before( Entry element ) throws LdapException, CursorException
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void after( Entry element ) throws LdapException, CursorException
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        if ( started )
+        {
+            throw new UnsupportedOperationException( "ParallelCursorList can't be rewinded" );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isFirst()
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isLast()
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isAfterLast()
+    {
+        return started && ( nbEnded == list.size() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isBeforeFirst()
+    {
+        return !started;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        if ( closed )
+        {
+            return false;
+        }
+
+        if ( !started )
+        {
+            start();
+        }
+
+        current = null;
+
+        try
+        {
+            while ( nbEnded < list.size() )
+            {
+                Object element = queue.poll( POLL_DELAY, TimeUnit.MILLISECONDS );
+
+                if ( element == null )
+                {
+                    if ( searchContext.isAbandoned() )
+                    {
+                        close();
+
+                        return false;
+                    }
+                }
+                else if ( element == END_OF_CURSOR )
+                {
+                    nbEnded++;
+                }
+                else if ( element instanceof Entry )
+                {
+                    current = ( Entry ) element;
+
+                    return true;
+                }
+                else
+                {
+                    // One of the cursors has failed
+                    nbEnded = list.size();
+                    Exception e = ( Exception ) element;
+
+                    if ( e instanceof LdapException )
+                    {
+                        throw ( LdapException ) e;
+                    }
+                    else if ( e instanceof CursorException )
+                    {
+                        throw ( CursorException ) e;
+                    }
+
+                    throw new LdapOtherException( e.getMessage(), e );
+                }
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new CursorException( ie.getMessage(), ie );
+        }
+
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry get() throws CursorException
+    {
+        if ( current == null )
+        {
+            throw new InvalidCursorPositionException();
+        }
+
+        return current;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean addEntryFilter( EntryFilter filter )
+    {
+        for ( EntryFilteringCursor efc : list )
+        {
+            efc.addEntryFilter( filter );
+        }
+
+        // returning hard coded value, shouldn't be a problem
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<EntryFilter> getEntryFilters()
+    {
+        throw new UnsupportedOperationException( "ParallelCursorList doesn't support this operation" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SearchOperationContext getOperationContext()
+    {
+        return searchContext;
+    }
+
+
+    public boolean isAbandoned()
+    {
+        return searchContext.isAbandoned();
+    }
+
+
+    public void setAbandoned( boolean abandoned )
+    {
+        searchContext.setAbandoned( abandoned );
+
+        if ( abandoned )
+        {
+            LOG.info( "Cursor has been abandoned." );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close()
+    {
+        close( null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close( Exception reason )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing ParallelCursorList {}", this );
+        }
+
+        if ( closed )
+        {
+            return;
+        }
+
+        closed = true;
+
+        // Wait for the tasks to stop before closing the cursors they are reading
+        for ( Future<?> future : futures )
+        {
+            try
+            {
+                future.get();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to stop the cursor reader" );
+            }
+        }
+
+        queue.clear();
+
+        for ( EntryFilteringCursor cursor : list )
+        {
+            try
+            {
+                if ( reason != null )
+                {
+                    cursor.close( reason );
+                }
+                else
+                {
+                    cursor.close();
+                }
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to close the cursor" );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    public Iterator<Entry> iterator()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setClosureMonitor( ClosureMonitor monitor )
+    {
+        for ( EntryFilteringCursor c : list )
+        {
+            c.setClosureMonitor( monitor );
+        }
+    }
+}
@@ -20,8 +20,10 @@
 package org.apache.directory.server.core.api.partition;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.naming.InvalidNameException;
 
@@ -29,6 +31,8 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
@@ -327,4 +331,26 @@ public abstract class AbstractPartition implements Partition
     {
         // Do nothing by default
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackSupported()
+    {
+        // The changes are applied as they are done by default
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void backup( File backupDirectory, ReadWriteLock rwLock ) throws LdapException
+    {
+        throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+            "The partition " + id + " does not support online backups" );
+    }
 }
@@ -20,9 +20,11 @@
 package org.apache.directory.server.core.api.partition;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -68,6 +70,16 @@ public interface Partition
      * Start a write transaction
      */
     PartitionWriteTxn beginWriteTransaction();
+
+
+    /**
+     * Tells if aborting a write transaction undoes the changes done since it has been started.
+     * The partitions which can't roll back a transaction can't be updated in a session
+     * transaction.
+     *
+     * @return true if the aborted write transactions are rolled back
+     */
+    boolean isRollbackSupported();
     
 
     // -----------------------------------------------------------------------
@@ -167,6 +179,19 @@ public interface Partition
     void sync() throws LdapException;
 
 
+    /**
+     * Copies the partition files into a directory while the partition is still online. The
+     * readers are never blocked, and the writers are only blocked while the last modified
+     * blocks are copied.
+     *
+     * @param backupDirectory The directory where the partition files will be copied
+     * @param rwLock The lock the writers hold while modifying the partition, usually the
+     * OperationManager lock. Its read lock is held while the last modified blocks are copied.
+     * @throws LdapException If the partition can't be backed up
+     */
+    void backup( File backupDirectory, ReadWriteLock rwLock ) throws LdapException;
+
+
     /**
      * Deletes a leaf entry from this ContextPartition: non-leaf entries cannot be
      * deleted until this operation has been applied to their children.
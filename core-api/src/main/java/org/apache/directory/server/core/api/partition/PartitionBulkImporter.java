@@ -0,0 +1,636 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.ObjectClass;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.UsageEnum;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Loads a LDIF stream into an empty partition, bypassing most of the interceptor chain. The
+ * entries are read in batches. Each batch is normalized and checked against the schema (MUST,
+ * MAY and single valued attributes) by a pool of threads, sorted so that the parents come before
+ * their children, and written in the partition using a single write transaction. The missing
+ * operational attributes (entryUUID, entryCSN, creatorsName and createTimestamp) are added.
+ *
+ * The interceptors whose work is done by the importer, or which are useless for an administrator
+ * loading an empty partition (normalization, authentication, authorization, referral, exception,
+ * schema and operational attributes), as well as the ones notifying the changes (event, trigger,
+ * change log and journal), are skipped. All the others are still applied to each entry : the
+ * subentry, administrative point and collective attribute interceptors, so that the subentry
+ * operational attributes are computed, and any other configured interceptor, like the password
+ * hashing one.
+ *
+ * An entry which parent has not been loaded yet is kept aside until its parent is added, so the
+ * LDIF does not have to be sorted, but the memory used grows with the number of such entries.
+ *
+ * Each batch is written while holding the OperationManager write lock, so the server can stay
+ * online : the other clients see the entries appear batch after batch. As the interceptor chain
+ * is bypassed, no event is sent for the imported entries, and they are not replicated.
+ *
+ * If the import fails, the batches already written are kept : the partition has to be cleared
+ * before the import is started again.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionBulkImporter
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PartitionBulkImporter.class );
+
+    /** The default number of entries written in one transaction */
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+
+    /** The interceptors skipped by the import */
+    private static final Set<String> SKIPPED_INTERCEPTORS = new HashSet<String>();
+
+    static
+    {
+        for ( InterceptorEnum interceptor : new InterceptorEnum[]
+            {
+                InterceptorEnum.NORMALIZATION_INTERCEPTOR,
+                InterceptorEnum.AUTHENTICATION_INTERCEPTOR,
+                InterceptorEnum.REFERRAL_INTERCEPTOR,
+                InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR,
+                InterceptorEnum.DEFAULT_AUTHORIZATION_INTERCEPTOR,
+                InterceptorEnum.EXCEPTION_INTERCEPTOR,
+                InterceptorEnum.OPERATIONAL_ATTRIBUTE_INTERCEPTOR,
+                InterceptorEnum.SCHEMA_INTERCEPTOR,
+                InterceptorEnum.EVENT_INTERCEPTOR,
+                InterceptorEnum.TRIGGER_INTERCEPTOR,
+                InterceptorEnum.CHANGE_LOG_INTERCEPTOR,
+                InterceptorEnum.JOURNAL_INTERCEPTOR
+        } )
+        {
+            SKIPPED_INTERCEPTORS.add( interceptor.getName() );
+        }
+    }
+
+    /** The DirectoryService */
+    private final DirectoryService directoryService;
+
+    /** The partition to load */
+    private final Partition partition;
+
+    /** The schema manager */
+    private final SchemaManager schemaManager;
+
+    /** The number of threads checking the entries */
+    private int nbThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of entries written in one transaction */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** The entries waiting for their parent, per parent normalized DN */
+    private Map<String, List<Entry>> orphans = new HashMap<String, List<Entry>>();
+
+    /** The number of entries waiting for their parent */
+    private int nbOrphans;
+
+    /** The number of imported entries */
+    private long nbImported;
+
+    /** The interceptors applied to the imported entries */
+    private final List<String> interceptors = new ArrayList<String>();
+
+
+    /**
+     * Creates a new PartitionBulkImporter instance
+     *
+     * @param directoryService The DirectoryService
+     * @param partition The partition to load. It must be empty.
+     */
+    public PartitionBulkImporter( DirectoryService directoryService, Partition partition )
+    {
+        this.directoryService = directoryService;
+        this.partition = partition;
+        this.schemaManager = directoryService.getSchemaManager();
+
+        for ( String interceptor : directoryService.getInterceptors( OperationEnum.ADD ) )
+        {
+            if ( !SKIPPED_INTERCEPTORS.contains( interceptor ) )
+            {
+                interceptors.add( interceptor );
+            }
+        }
+    }
+
+
+    /**
+     * Imports the entries read from a LDIF stream.
+     *
+     * @param ldif The LDIF content
+     * @return The number of imported entries
+     * @throws LdapException If the partition is not empty, or if an entry can't be imported
+     */
+    public long importLdif( Reader ldif ) throws LdapException
+    {
+        checkEmpty();
+
+        long t0 = System.currentTimeMillis();
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool( nbThreads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "bulk-import-" + partition.getId() + "-"
+                    + threadNumber.incrementAndGet() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+
+        try ( LdifReader reader = new LdifReader( ldif ) )
+        {
+            List<LdifEntry> batch = new ArrayList<LdifEntry>( batchSize );
+
+            for ( LdifEntry ldifEntry : reader )
+            {
+                if ( !ldifEntry.isEntry() )
+                {
+                    throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                        "Only entries can be imported, not changes : " + ldifEntry.getDn() );
+                }
+
+                batch.add( ldifEntry );
+
+                if ( batch.size() == batchSize )
+                {
+                    write( check( executor, batch ) );
+                    batch = new ArrayList<LdifEntry>( batchSize );
+                }
+            }
+
+            if ( !batch.isEmpty() )
+            {
+                write( check( executor, batch ) );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( nbOrphans > 0 )
+        {
+            String parentDn = orphans.keySet().iterator().next();
+
+            throw new LdapNoSuchObjectException( nbOrphans + " entries have not been imported, their parent "
+                + "is missing, for instance " + parentDn );
+        }
+
+        LOG.info( "Imported {} entries in the partition {} in {}ms", nbImported, partition.getId(),
+            System.currentTimeMillis() - t0 );
+
+        return nbImported;
+    }
+
+
+    /**
+     * Checks that the partition does not contain any entry
+     */
+    private void checkEmpty() throws LdapException
+    {
+        HasEntryOperationContext hasEntryContext = new HasEntryOperationContext( directoryService.getAdminSession(),
+            partition.getSuffixDn() );
+        PartitionTxn transaction = partition.beginReadTransaction();
+        hasEntryContext.setTransaction( transaction );
+
+        try
+        {
+            if ( partition.hasEntry( hasEntryContext ) )
+            {
+                throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                    "The partition " + partition.getId() + " is not empty" );
+            }
+        }
+        finally
+        {
+            try
+            {
+                transaction.close();
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+    }
+
+
+    /**
+     * Normalizes and checks the entries of a batch, using the pool, and sorts them so that
+     * the parents come first.
+     */
+    private List<Entry> check( ExecutorService executor, List<LdifEntry> batch ) throws LdapException
+    {
+        int chunkSize = ( batch.size() + nbThreads - 1 ) / nbThreads;
+        List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>( nbThreads );
+
+        for ( int start = 0; start < batch.size(); start += chunkSize )
+        {
+            final List<LdifEntry> chunk = batch.subList( start, Math.min( start + chunkSize, batch.size() ) );
+
+            Callable<List<Entry>> task = new Callable<List<Entry>>()
+            {
+                @Override
+                public List<Entry> call() throws LdapException
+                {
+                    List<Entry> entries = new ArrayList<Entry>( chunk.size() );
+
+                    for ( LdifEntry ldifEntry : chunk )
+                    {
+                        entries.add( prepare( ldifEntry ) );
+                    }
+
+                    return entries;
+                }
+            };
+
+            futures.add( executor.submit( task ) );
+        }
+
+        List<Entry> entries = new ArrayList<Entry>( batch.size() );
+
+        try
+        {
+            for ( Future<List<Entry>> future : futures )
+            {
+                entries.addAll( future.get() );
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new LdapOtherException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            if ( ee.getCause() instanceof LdapException )
+            {
+                throw ( LdapException ) ee.getCause();
+            }
+
+            throw new LdapOtherException( ee.getMessage(), ee.getCause() );
+        }
+
+        // The parents must be added before their children
+        Collections.sort( entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry entry1, Entry entry2 )
+            {
+                return Integer.compare( entry1.getDn().size(), entry2.getDn().size() );
+            }
+        } );
+
+        return entries;
+    }
+
+
+    /**
+     * Normalizes an entry, checks it against the schema, and adds the missing operational attributes
+     */
+    private Entry prepare( LdifEntry ldifEntry ) throws LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager, ldifEntry.getEntry() );
+        Dn dn = entry.getDn();
+
+        if ( !dn.isSchemaAware() )
+        {
+            dn = new Dn( schemaManager, dn );
+            entry.setDn( dn );
+        }
+
+        if ( !dn.isDescendantOf( partition.getSuffixDn() ) && !dn.equals( partition.getSuffixDn() ) )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The entry " + dn + " is not in the partition " + partition.getId() );
+        }
+
+        checkObjectClasses( entry );
+
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+        {
+            entry.put( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.ENTRY_CSN_AT ) )
+        {
+            entry.put( SchemaConstants.ENTRY_CSN_AT, directoryService.getCSN().toString() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATORS_NAME_AT ) )
+        {
+            entry.put( SchemaConstants.CREATORS_NAME_AT,
+                directoryService.getAdminSession().getAuthenticatedPrincipal().getDn().getName() );
+        }
+
+        if ( !entry.containsAttribute( SchemaConstants.CREATE_TIMESTAMP_AT ) )
+        {
+            entry.put( SchemaConstants.CREATE_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Checks that the entry has a known structural object class, all the attributes required
+     * by its object classes and their superiors, and only the attributes they allow.
+     */
+    private void checkObjectClasses( Entry entry ) throws LdapException
+    {
+        Attribute objectClasses = entry.get( SchemaConstants.OBJECT_CLASS_AT );
+
+        if ( ( objectClasses == null ) || ( objectClasses.size() == 0 ) )
+        {
+            throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION,
+                "The entry " + entry.getDn() + " has no objectClass" );
+        }
+
+        Set<String> seen = new HashSet<String>();
+        Set<String> allowed = new HashSet<String>();
+        Deque<ObjectClass> toCheck = new ArrayDeque<ObjectClass>();
+        boolean hasStructural = false;
+        boolean extensible = false;
+
+        for ( Value value : objectClasses )
+        {
+            toCheck.push( schemaManager.lookupObjectClassRegistry( value.getValue() ) );
+        }
+
+        while ( !toCheck.isEmpty() )
+        {
+            ObjectClass objectClass = toCheck.pop();
+
+            if ( !seen.add( objectClass.getOid() ) )
+            {
+                continue;
+            }
+
+            hasStructural |= objectClass.isStructural();
+            extensible |= SchemaConstants.EXTENSIBLE_OBJECT_OC_OID.equals( objectClass.getOid() );
+
+            for ( AttributeType must : objectClass.getMustAttributeTypes() )
+            {
+                if ( !entry.containsAttribute( must ) )
+                {
+                    throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, "The entry "
+                        + entry.getDn() + " has no " + must.getName() + " attribute, required by "
+                        + objectClass.getName() );
+                }
+
+                allowed.add( must.getOid() );
+            }
+
+            for ( AttributeType may : objectClass.getMayAttributeTypes() )
+            {
+                allowed.add( may.getOid() );
+            }
+
+            for ( ObjectClass superior : objectClass.getSuperiors() )
+            {
+                toCheck.push( superior );
+            }
+        }
+
+        if ( !hasStructural )
+        {
+            throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION,
+                "The entry " + entry.getDn() + " has no structural objectClass" );
+        }
+
+        for ( Attribute attribute : entry )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+
+            // The collective attributes are checked by the collective attribute interceptor
+            if ( !extensible && !attributeType.isCollective()
+                && ( attributeType.getUsage() == UsageEnum.USER_APPLICATIONS )
+                && !allowed.contains( attributeType.getOid() ) )
+            {
+                throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, "The attribute "
+                    + attribute.getUpId() + " is not allowed in the entry " + entry.getDn() );
+            }
+
+            if ( attributeType.isSingleValued() && ( attribute.size() > 1 ) )
+            {
+                throw new LdapInvalidAttributeValueException( ResultCodeEnum.CONSTRAINT_VIOLATION, "The attribute "
+                    + attribute.getUpId() + " of the entry " + entry.getDn() + " is single valued" );
+            }
+        }
+    }
+
+
+    /**
+     * Writes a batch of entries in one transaction, keeping aside the entries which parent
+     * has not been written yet.
+     */
+    private void write( List<Entry> entries ) throws LdapException
+    {
+        CoreSession adminSession = directoryService.getAdminSession();
+        directoryService.getOperationManager().lockWrite();
+
+        PartitionTxn transaction = null;
+
+        try
+        {
+            transaction = partition.beginWriteTransaction();
+
+            for ( Entry entry : entries )
+            {
+                Deque<Entry> toAdd = new ArrayDeque<Entry>();
+                toAdd.push( entry );
+
+                while ( !toAdd.isEmpty() )
+                {
+                    Entry current = toAdd.pop();
+
+                    if ( !add( adminSession, transaction, current ) )
+                    {
+                        continue;
+                    }
+
+                    // The children which were waiting for this entry can now be added
+                    List<Entry> children = orphans.remove( current.getDn().getNormName() );
+
+                    if ( children != null )
+                    {
+                        nbOrphans -= children.size();
+
+                        for ( Entry child : children )
+                        {
+                            toAdd.push( child );
+                        }
+                    }
+                }
+            }
+
+            transaction.commit();
+            transaction = null;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            try
+            {
+                if ( transaction != null )
+                {
+                    transaction.abort();
+                }
+            }
+            catch ( IOException ioe )
+            {
+                LOG.error( "Failed to abort the import transaction : {}", ioe.getMessage() );
+            }
+            finally
+            {
+                directoryService.getOperationManager().unlockWrite();
+            }
+        }
+    }
+
+
+    /**
+     * Adds an entry in the partition.
+     *
+     * @return false if the parent does not exist yet, and the entry has been kept aside
+     */
+    private boolean add( CoreSession adminSession, PartitionTxn transaction, Entry entry ) throws LdapException
+    {
+        AddOperationContext addContext = new AddOperationContext( adminSession, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( transaction );
+        addContext.setInterceptors( interceptors );
+
+        try
+        {
+            if ( interceptors.isEmpty() )
+            {
+                partition.add( addContext );
+            }
+            else
+            {
+                // The last interceptor writes the entry in the partition, through the nexus
+                Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
+                head.add( addContext );
+            }
+
+            nbImported++;
+
+            return true;
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            String parentDn = entry.getDn().getParent().getNormName();
+            List<Entry> children = orphans.get( parentDn );
+
+            if ( children == null )
+            {
+                children = new ArrayList<Entry>();
+                orphans.put( parentDn, children );
+            }
+
+            children.add( entry );
+            nbOrphans++;
+
+            return false;
+        }
+    }
+
+
+    /**
+     * @param nbThreads The number of threads checking the entries
+     */
+    public void setNbThreads( int nbThreads )
+    {
+        this.nbThreads = Math.max( 1, nbThreads );
+    }
+
+
+    /**
+     * @param batchSize The number of entries written in one transaction
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = Math.max( 1, batchSize );
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Copies the files of a partition while it's still being used. The copy is done in two passes :
+ * <ul>
+ *   <li>{@link #copy()} copies all the files while the partition is being modified. The result
+ *   is not consistent, but it's done without blocking anyone</li>
+ *   <li>{@link #copyChanges()} must be called once the writers have been quiesced and the partition
+ *   flushed on disk. It only rewrites the blocks which have been modified since the first pass,
+ *   for the files which have been modified.</li>
+ * </ul>
+ * The resulting copy is crash-consistent, and can be restored with {@link #restore(File, File)}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionHotCopy
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PartitionHotCopy.class );
+
+    /** The size of the blocks we compare and copy */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /** The partition directory */
+    private File sourceDirectory;
+
+    /** The backup directory */
+    private File targetDirectory;
+
+    /** The size and last modification date of each file when it was copied */
+    private Map<String, long[]> copiedFiles = new HashMap<>();
+
+
+    /**
+     * Creates a new PartitionHotCopy instance
+     *
+     * @param sourceDirectory The partition directory
+     * @param targetDirectory The backup directory. It will be created if needed.
+     */
+    public PartitionHotCopy( File sourceDirectory, File targetDirectory )
+    {
+        this.sourceDirectory = sourceDirectory;
+        this.targetDirectory = targetDirectory;
+    }
+
+
+    /**
+     * Copies all the partition files in the backup directory, without any lock.
+     *
+     * @throws IOException If the copy failed
+     */
+    public void copy() throws IOException
+    {
+        if ( !targetDirectory.exists() && !targetDirectory.mkdirs() )
+        {
+            throw new IOException( "Cannot create the backup directory " + targetDirectory );
+        }
+
+        File[] files = sourceDirectory.listFiles();
+
+        if ( files == null )
+        {
+            throw new IOException( "Cannot read the partition directory " + sourceDirectory );
+        }
+
+        for ( File file : files )
+        {
+            if ( file.isFile() )
+            {
+                // Get the file state *before* the copy, so that a modification done while copying is caught
+                long[] state = new long[]
+                    { file.length(), file.lastModified() };
+
+                Files.copy( file.toPath(), new File( targetDirectory, file.getName() ).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING );
+                copiedFiles.put( file.getName(), state );
+            }
+        }
+    }
+
+
+    /**
+     * Updates the copy with the modifications done since {@link #copy()} was called. The partition
+     * must not be modified while this method is running.
+     *
+     * @return The number of rewritten blocks
+     * @throws IOException If the copy failed
+     */
+    public long copyChanges() throws IOException
+    {
+        long nbBlocks = 0L;
+        File[] files = sourceDirectory.listFiles();
+
+        if ( files == null )
+        {
+            throw new IOException( "Cannot read the partition directory " + sourceDirectory );
+        }
+
+        Map<String, long[]> removedFiles = new HashMap<>( copiedFiles );
+
+        for ( File file : files )
+        {
+            if ( !file.isFile() )
+            {
+                continue;
+            }
+
+            long[] state = removedFiles.remove( file.getName() );
+            File target = new File( targetDirectory, file.getName() );
+
+            if ( state == null )
+            {
+                // A new file
+                Files.copy( file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                nbBlocks += ( file.length() + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+            }
+            else if ( ( state[0] != file.length() ) || ( state[1] != file.lastModified() ) )
+            {
+                nbBlocks += copyModifiedBlocks( file, target );
+            }
+        }
+
+        // Remove the files which have been deleted in the meantime
+        for ( String removed : removedFiles.keySet() )
+        {
+            Files.deleteIfExists( new File( targetDirectory, removed ).toPath() );
+        }
+
+        LOG.debug( "Rewrote {} blocks of {} bytes in {}", nbBlocks, BLOCK_SIZE, targetDirectory );
+
+        return nbBlocks;
+    }
+
+
+    /**
+     * Compares the two files block per block, and rewrite the blocks which are different
+     */
+    private long copyModifiedBlocks( File source, File target ) throws IOException
+    {
+        long nbBlocks = 0L;
+
+        try ( RandomAccessFile sourceFile = new RandomAccessFile( source, "r" );
+            RandomAccessFile targetFile = new RandomAccessFile( target, "rw" ) )
+        {
+            FileChannel sourceChannel = sourceFile.getChannel();
+            FileChannel targetChannel = targetFile.getChannel();
+            ByteBuffer sourceBuffer = ByteBuffer.allocate( BLOCK_SIZE );
+            ByteBuffer targetBuffer = ByteBuffer.allocate( BLOCK_SIZE );
+            long length = sourceChannel.size();
+
+            for ( long position = 0L; position < length; position += BLOCK_SIZE )
+            {
+                sourceBuffer.clear();
+                targetBuffer.clear();
+                readFully( sourceChannel, sourceBuffer, position );
+                readFully( targetChannel, targetBuffer, position );
+
+                if ( ( sourceBuffer.position() != targetBuffer.position() )
+                    || !Arrays.equals( sourceBuffer.array(), targetBuffer.array() ) )
+                {
+                    sourceBuffer.flip();
+
+                    while ( sourceBuffer.hasRemaining() )
+                    {
+                        targetChannel.write( sourceBuffer, position + sourceBuffer.position() );
+                    }
+
+                    nbBlocks++;
+                }
+            }
+
+            targetChannel.truncate( length );
+            targetChannel.force( true );
+        }
+
+        return nbBlocks;
+    }
+
+
+    private void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            int nbRead = channel.read( buffer, position + buffer.position() );
+
+            if ( nbRead < 0 )
+            {
+                // Clear the end of the buffer, so that comparisons are not polluted by a previous block
+                int end = buffer.position();
+                Arrays.fill( buffer.array(), end, buffer.capacity(), ( byte ) 0 );
+
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Replaces the content of a partition directory with a backup. The partition must be offline.
+     * The backup is first copied in a temporary directory, which is then swapped with the partition
+     * directory, so that a failed copy leaves the partition untouched. The current partition
+     * directory is not deleted, it's renamed with a '.before-restore' suffix and the current time.
+     *
+     * @param backupDirectory The directory containing the backup
+     * @param partitionDirectory The partition directory
+     * @return The directory where the previous partition files have been moved, or null if there
+     * were no such files
+     * @throws IOException If the restoration failed
+     */
+    public static File restore( File backupDirectory, File partitionDirectory ) throws IOException
+    {
+        File[] files = backupDirectory.listFiles();
+
+        if ( files == null )
+        {
+            throw new IOException( "Cannot read the backup directory " + backupDirectory );
+        }
+
+        // Restore in a temporary directory, then swap it in place
+        File restored = new File( partitionDirectory.getPath() + ".restoring" );
+
+        // A leftover from a previously failed restoration
+        deleteDirectory( restored );
+
+        if ( !restored.mkdirs() )
+        {
+            throw new IOException( "Cannot create the directory " + restored );
+        }
+
+        try
+        {
+            for ( File file : files )
+            {
+                if ( file.isFile() )
+                {
+                    Files.copy( file.toPath(), new File( restored, file.getName() ).toPath() );
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            deleteDirectory( restored );
+
+            throw ioe;
+        }
+
+        File previous = null;
+
+        if ( partitionDirectory.exists() )
+        {
+            previous = new File( partitionDirectory.getPath() + ".before-restore." + System.currentTimeMillis() );
+            Files.move( partitionDirectory.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        }
+
+        try
+        {
+            Files.move( restored.toPath(), partitionDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException ioe )
+        {
+            // Put the previous partition files back in place
+            if ( previous != null )
+            {
+                Files.move( previous.toPath(), partitionDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            }
+
+            throw ioe;
+        }
+
+        return previous;
+    }
+
+
+    /**
+     * Deletes a directory containing only files, if it exists
+     */
+    private static void deleteDirectory( File directory ) throws IOException
+    {
+        File[] files = directory.listFiles();
+
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( File file : files )
+        {
+            Files.delete( file.toPath() );
+        }
+
+        Files.delete( directory.toPath() );
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests the PartitionHotCopy class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionHotCopyTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    private byte[] randomBytes( int size )
+    {
+        byte[] bytes = new byte[size];
+        new Random( size ).nextBytes( bytes );
+
+        return bytes;
+    }
+
+
+    @Test
+    public void testCopyChanges() throws Exception
+    {
+        File partitionDir = folder.newFolder( "partition" );
+        File backupDir = new File( folder.getRoot(), "backup" );
+        File master = new File( partitionDir, "master.db" );
+        File index = new File( partitionDir, "cn.db" );
+
+        Files.write( master.toPath(), randomBytes( 1024 * 1024 ) );
+        Files.write( index.toPath(), randomBytes( 100 ) );
+
+        PartitionHotCopy hotCopy = new PartitionHotCopy( partitionDir, backupDir );
+        hotCopy.copy();
+
+        // Modify one page, grow the file, remove a file and add a new one
+        try ( RandomAccessFile file = new RandomAccessFile( master, "rw" ) )
+        {
+            file.seek( 200000 );
+            file.write( randomBytes( 10 ) );
+            file.seek( file.length() );
+            file.write( randomBytes( 50 ) );
+        }
+
+        master.setLastModified( master.lastModified() + 2000L );
+        Files.delete( index.toPath() );
+        File newIndex = new File( partitionDir, "sn.db" );
+        Files.write( newIndex.toPath(), randomBytes( 70 ) );
+
+        long nbBlocks = hotCopy.copyChanges();
+
+        // The modified block, the new last block, and the new file
+        assertEquals( 3L, nbBlocks );
+        assertArrayEquals( Files.readAllBytes( master.toPath() ),
+            Files.readAllBytes( new File( backupDir, "master.db" ).toPath() ) );
+        assertArrayEquals( Files.readAllBytes( newIndex.toPath() ),
+            Files.readAllBytes( new File( backupDir, "sn.db" ).toPath() ) );
+        assertFalse( new File( backupDir, "cn.db" ).exists() );
+    }
+
+
+    @Test
+    public void testCopyShrinkedFile() throws Exception
+    {
+        File partitionDir = folder.newFolder( "partition" );
+        File backupDir = new File( folder.getRoot(), "backup" );
+        File master = new File( partitionDir, "master.db" );
+
+        Files.write( master.toPath(), randomBytes( 300000 ) );
+
+        PartitionHotCopy hotCopy = new PartitionHotCopy( partitionDir, backupDir );
+        hotCopy.copy();
+
+        try ( RandomAccessFile file = new RandomAccessFile( master, "rw" ) )
+        {
+            file.setLength( 1000 );
+        }
+
+        hotCopy.copyChanges();
+
+        assertArrayEquals( Files.readAllBytes( master.toPath() ),
+            Files.readAllBytes( new File( backupDir, "master.db" ).toPath() ) );
+    }
+
+
+    @Test
+    public void testRestore() throws Exception
+    {
+        File partitionDir = folder.newFolder( "partition" );
+        File backupDir = folder.newFolder( "backup" );
+        Files.write( new File( partitionDir, "master.db" ).toPath(), randomBytes( 10 ) );
+        Files.write( new File( backupDir, "master.db" ).toPath(), randomBytes( 20 ) );
+
+        File previous = PartitionHotCopy.restore( backupDir, partitionDir );
+
+        assertNotNull( previous );
+        assertTrue( new File( previous, "master.db" ).exists() );
+        assertEquals( 20L, new File( partitionDir, "master.db" ).length() );
+    }
+
+
+    @Test
+    public void testRestoreOverFailedRestoration() throws Exception
+    {
+        File partitionDir = folder.newFolder( "partition" );
+        File backupDir = folder.newFolder( "backup" );
+        Files.write( new File( partitionDir, "master.db" ).toPath(), randomBytes( 10 ) );
+        Files.write( new File( backupDir, "master.db" ).toPath(), randomBytes( 20 ) );
+
+        // The leftover of a restoration which failed while copying the files
+        File restoring = folder.newFolder( "partition.restoring" );
+        Files.write( new File( restoring, "cn.db" ).toPath(), randomBytes( 5 ) );
+
+        PartitionHotCopy.restore( backupDir, partitionDir );
+
+        assertEquals( 20L, new File( partitionDir, "master.db" ).length() );
+        assertFalse( new File( partitionDir, "cn.db" ).exists() );
+        assertFalse( restoring.exists() );
+    }
+
+
+    @Test
+    public void testRestoreFailureKeepsThePartition() throws Exception
+    {
+        File partitionDir = folder.newFolder( "partition" );
+        Files.write( new File( partitionDir, "master.db" ).toPath(), randomBytes( 10 ) );
+
+        try
+        {
+            PartitionHotCopy.restore( new File( folder.getRoot(), "missing" ), partitionDir );
+            fail();
+        }
+        catch ( IOException ioe )
+        {
+            // Expected
+        }
+
+        assertEquals( 10L, new File( partitionDir, "master.db" ).length() );
+    }
+}
@@ -155,8 +155,8 @@ public class AvlSingletonOrOrderedSetCursor<K, V> extends AbstractCursor<Tuple<K
 
         if ( position == Position.ON_NODE )
         {
-            returnedTuple.setKey( node.key );
-            returnedTuple.setValue( node.value );
+            returnedTuple.setKey( node.getKey() );
+            returnedTuple.setValue( node.getValue() );
             return returnedTuple;
         }
 
@@ -204,7 +204,7 @@ public class AvlSingletonOrOrderedSetCursor<K, V> extends AbstractCursor<Tuple<K
 
             case ON_NODE:
             case AFTER_NODE:
-                node = node.next;
+                node = node.getNext();
 
                 if ( node == null )
                 {
@@ -241,7 +241,7 @@ public class AvlSingletonOrOrderedSetCursor<K, V> extends AbstractCursor<Tuple<K
 
             case BEFORE_NODE:
             case ON_NODE:
-                node = node.previous;
+                node = node.getPrevious();
                 if ( node == null )
                 {
                     beforeFirst();
@@ -0,0 +1,1109 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.avltree;
+
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * An in memory B+tree implementation of the {@link AvlTreeMap} interface. The keys and
+ * the values are stored in arrays local to each node, and the leaves are linked together.
+ * A lookup or a scan reads a few contiguous arrays, instead of following one object per
+ * key like the {@link AvlTreeMapImpl} does, which is a lot more cache friendly and uses
+ * less memory.
+ * <p>
+ * When duplicate keys are allowed, the values of a key having more than one value are
+ * stored in an {@link AvlTree}. The values can't be {@link SingletonOrOrderedSet}s in
+ * this case.
+ * <p>
+ * The {@link LinkedAvlMapNode}s returned by this map are views on a key : they have no
+ * left or right child, but they can be used to move to the next and previous keys. They
+ * remain usable when the map is modified, the next and previous keys being then looked
+ * up again.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BPlusTreeMap<K, V> implements AvlTreeMap<K, V>
+{
+    /** The default maximum number of keys in a node */
+    public static final int DEFAULT_ORDER = 64;
+
+    /** The Comparator used for comparing the keys */
+    private Comparator<K> keyComparator;
+
+    /** The Comparator used for comparing the values */
+    private Comparator<V> valueComparator;
+
+    /** flag to allow storing duplicate keys */
+    private boolean allowDuplicates;
+
+    /** The maximum number of keys in a node */
+    private final int order;
+
+    /** The minimum number of keys in a node, except the root */
+    private final int minKeys;
+
+    /** The root of the tree */
+    private Node root;
+
+    /** The leftmost leaf */
+    private Leaf first;
+
+    /** The rightmost leaf */
+    private Leaf last;
+
+    /** The number of keys in the map */
+    private int size;
+
+    /** Incremented each time a key or a value is added, replaced or removed, to detect stale node views */
+    private int modCount;
+
+
+    /**
+     * A node of the tree. The node can temporarily hold one more key than the order
+     * before it gets split.
+     */
+    private static class Node
+    {
+        /** The keys */
+        Object[] keys;
+
+        /** The number of keys */
+        int nbKeys;
+
+
+        Node( int order )
+        {
+            keys = new Object[order + 1];
+        }
+    }
+
+
+    /**
+     * A leaf, holding the values
+     */
+    private static final class Leaf extends Node
+    {
+        /** The values, either a V or a SingletonOrOrderedSet for duplicate values */
+        Object[] values;
+
+        /** The next leaf */
+        Leaf next;
+
+        /** The previous leaf */
+        Leaf previous;
+
+
+        Leaf( int order )
+        {
+            super( order );
+            values = new Object[order + 1];
+        }
+    }
+
+
+    /**
+     * An inner node. The keys of children[i] are lower than keys[i], which is lower
+     * or equal to the keys of children[i + 1]
+     */
+    private static final class Inner extends Node
+    {
+        /** The children */
+        Node[] children;
+
+
+        Inner( int order )
+        {
+            super( order );
+            children = new Node[order + 2];
+        }
+    }
+
+
+    /**
+     * A view on a key stored in a leaf. The value is read from the leaf, so that a view
+     * sees the values added to or removed from its key after it has been created.
+     */
+    private final class NodeView extends LinkedAvlMapNode<K, V>
+    {
+        /** The leaf containing the key */
+        private final Leaf leaf;
+
+        /** The key position in the leaf */
+        private final int pos;
+
+        /** The map modCount when this view has been created */
+        private final int expectedModCount;
+
+
+        @SuppressWarnings("unchecked")
+        NodeView( Leaf leaf, int pos )
+        {
+            super( ( K ) leaf.keys[pos], BPlusTreeMap.<V> toSingletonOrOrderedSet( leaf.values[pos] ) );
+            this.leaf = leaf;
+            this.pos = pos;
+            expectedModCount = modCount;
+        }
+
+
+        @Override
+        public SingletonOrOrderedSet<V> getValue()
+        {
+            if ( expectedModCount == modCount )
+            {
+                return toSingletonOrOrderedSet( leaf.values[pos] );
+            }
+
+            // The key may have moved, look it up again
+            LinkedAvlMapNode<K, V> current = find( key );
+
+            if ( current == null )
+            {
+                // The key has been removed, return the last known value
+                return value;
+            }
+
+            return current.getValue();
+        }
+
+
+        @Override
+        public LinkedAvlMapNode<K, V> getNext()
+        {
+            if ( expectedModCount != modCount )
+            {
+                return findGreater( key );
+            }
+
+            if ( pos + 1 < leaf.nbKeys )
+            {
+                return new NodeView( leaf, pos + 1 );
+            }
+
+            if ( leaf.next == null )
+            {
+                return null;
+            }
+
+            return new NodeView( leaf.next, 0 );
+        }
+
+
+        @Override
+        public LinkedAvlMapNode<K, V> getPrevious()
+        {
+            if ( expectedModCount != modCount )
+            {
+                return findLess( key );
+            }
+
+            if ( pos > 0 )
+            {
+                return new NodeView( leaf, pos - 1 );
+            }
+
+            if ( leaf.previous == null )
+            {
+                return null;
+            }
+
+            return new NodeView( leaf.previous, leaf.previous.nbKeys - 1 );
+        }
+    }
+
+
+    /**
+     * Creates a new instance of BPlusTreeMap without support for duplicate keys.
+     *
+     * @param keyComparator the comparator to be used for comparing keys
+     * @param valueComparator the comparator to be used for comparing values
+     */
+    public BPlusTreeMap( Comparator<K> keyComparator, Comparator<V> valueComparator )
+    {
+        this( keyComparator, valueComparator, false );
+    }
+
+
+    /**
+     * Creates a new instance of BPlusTreeMap, using the default order.
+     *
+     * @param keyComparator the comparator to be used for comparing keys
+     * @param valueComparator the comparator to be used for comparing values
+     * @param allowDuplicates are duplicates keys allowed or not
+     */
+    public BPlusTreeMap( Comparator<K> keyComparator, Comparator<V> valueComparator, boolean allowDuplicates )
+    {
+        this( keyComparator, valueComparator, allowDuplicates, DEFAULT_ORDER );
+    }
+
+
+    /**
+     * Creates a new instance of BPlusTreeMap.
+     *
+     * @param keyComparator the comparator to be used for comparing keys
+     * @param valueComparator the comparator to be used for comparing values
+     * @param allowDuplicates are duplicates keys allowed or not
+     * @param order the maximum number of keys in a node, at least 4
+     */
+    public BPlusTreeMap( Comparator<K> keyComparator, Comparator<V> valueComparator, boolean allowDuplicates,
+        int order )
+    {
+        if ( order < 4 )
+        {
+            throw new IllegalArgumentException( "The order must be at least 4 : " + order );
+        }
+
+        this.keyComparator = keyComparator;
+        this.valueComparator = valueComparator;
+        this.allowDuplicates = allowDuplicates;
+        this.order = order;
+        minKeys = order / 2;
+        removeAll();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Comparator<K> getKeyComparator()
+    {
+        return keyComparator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Comparator<V> getValueComparator()
+    {
+        return valueComparator;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static <V> SingletonOrOrderedSet<V> toSingletonOrOrderedSet( Object value )
+    {
+        if ( value instanceof SingletonOrOrderedSet )
+        {
+            return ( SingletonOrOrderedSet<V> ) value;
+        }
+
+        return new SingletonOrOrderedSet<V>( ( V ) value );
+    }
+
+
+    /**
+     * Searches a key in a node.
+     *
+     * @return the key position if found, (-(insertion point) - 1) otherwise
+     */
+    @SuppressWarnings("unchecked")
+    private int search( Node node, K key )
+    {
+        int low = 0;
+        int high = node.nbKeys - 1;
+
+        while ( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int c = keyComparator.compare( ( K ) node.keys[mid], key );
+
+            if ( c < 0 )
+            {
+                low = mid + 1;
+            }
+            else if ( c > 0 )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+
+        return -( low + 1 );
+    }
+
+
+    /**
+     * @return the position of the child of an inner node which may contain the key
+     */
+    private int childIndex( Inner inner, K key )
+    {
+        int pos = search( inner, key );
+
+        return pos >= 0 ? pos + 1 : -( pos + 1 );
+    }
+
+
+    /**
+     * @return the leaf which may contain the key
+     */
+    private Leaf findLeaf( K key )
+    {
+        Node node = root;
+
+        while ( node instanceof Inner )
+        {
+            Inner inner = ( Inner ) node;
+            node = inner.children[childIndex( inner, key )];
+        }
+
+        return ( Leaf ) node;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public V insert( K key, V value )
+    {
+        V result = insert( root, key, value );
+
+        if ( root.nbKeys > order )
+        {
+            Inner newRoot = new Inner( order );
+            newRoot.children[0] = root;
+            root = newRoot;
+            split( newRoot, 0 );
+        }
+
+        return result;
+    }
+
+
+    private V insert( Node node, K key, V value )
+    {
+        if ( node instanceof Leaf )
+        {
+            return insert( ( Leaf ) node, key, value );
+        }
+
+        Inner inner = ( Inner ) node;
+        int pos = childIndex( inner, key );
+        Node child = inner.children[pos];
+        V result = insert( child, key, value );
+
+        if ( child.nbKeys > order )
+        {
+            split( inner, pos );
+        }
+
+        return result;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private V insert( Leaf leaf, K key, V value )
+    {
+        int pos = search( leaf, key );
+
+        if ( pos >= 0 )
+        {
+            Object existing = leaf.values[pos];
+
+            if ( !allowDuplicates )
+            {
+                // replace the existing value with the new value
+                leaf.values[pos] = value;
+                modCount++;
+
+                return ( V ) existing;
+            }
+
+            if ( existing instanceof SingletonOrOrderedSet )
+            {
+                AvlTree<V> dupsTree = ( ( SingletonOrOrderedSet<V> ) existing ).getOrderedSet();
+
+                if ( dupsTree.find( value ) != null )
+                {
+                    return value;
+                }
+
+                dupsTree.insert( value );
+                modCount++;
+
+                return null;
+            }
+
+            if ( valueComparator.compare( ( V ) existing, value ) == 0 )
+            {
+                return value;
+            }
+
+            AvlTree<V> dupsTree = new AvlTreeImpl<V>( valueComparator );
+            dupsTree.insert( ( V ) existing );
+            dupsTree.insert( value );
+            leaf.values[pos] = new SingletonOrOrderedSet<V>( dupsTree );
+            modCount++;
+
+            return null;
+        }
+
+        pos = -( pos + 1 );
+        int nbMoved = leaf.nbKeys - pos;
+        System.arraycopy( leaf.keys, pos, leaf.keys, pos + 1, nbMoved );
+        System.arraycopy( leaf.values, pos, leaf.values, pos + 1, nbMoved );
+        leaf.keys[pos] = key;
+        leaf.values[pos] = value;
+        leaf.nbKeys++;
+        size++;
+        modCount++;
+
+        return null;
+    }
+
+
+    /**
+     * Splits the overflowing child of an inner node in two.
+     */
+    private void split( Inner parent, int pos )
+    {
+        Node child = parent.children[pos];
+        int middle = child.nbKeys / 2;
+        Node sibling;
+        Object separator;
+
+        if ( child instanceof Leaf )
+        {
+            Leaf leaf = ( Leaf ) child;
+            Leaf right = new Leaf( order );
+            int nbMoved = leaf.nbKeys - middle;
+
+            System.arraycopy( leaf.keys, middle, right.keys, 0, nbMoved );
+            System.arraycopy( leaf.values, middle, right.values, 0, nbMoved );
+            clear( leaf.keys, middle, leaf.nbKeys );
+            clear( leaf.values, middle, leaf.nbKeys );
+            right.nbKeys = nbMoved;
+            leaf.nbKeys = middle;
+
+            right.next = leaf.next;
+            right.previous = leaf;
+
+            if ( leaf.next == null )
+            {
+                last = right;
+            }
+            else
+            {
+                leaf.next.previous = right;
+            }
+
+            leaf.next = right;
+            separator = right.keys[0];
+            sibling = right;
+        }
+        else
+        {
+            Inner inner = ( Inner ) child;
+            Inner right = new Inner( order );
+            int nbMoved = inner.nbKeys - middle - 1;
+
+            separator = inner.keys[middle];
+            System.arraycopy( inner.keys, middle + 1, right.keys, 0, nbMoved );
+            System.arraycopy( inner.children, middle + 1, right.children, 0, nbMoved + 1 );
+            clear( inner.keys, middle, inner.nbKeys );
+            clear( inner.children, middle + 1, inner.nbKeys + 1 );
+            right.nbKeys = nbMoved;
+            inner.nbKeys = middle;
+            sibling = right;
+        }
+
+        int nbMoved = parent.nbKeys - pos;
+        System.arraycopy( parent.keys, pos, parent.keys, pos + 1, nbMoved );
+        System.arraycopy( parent.children, pos + 1, parent.children, pos + 2, nbMoved );
+        parent.keys[pos] = separator;
+        parent.children[pos + 1] = sibling;
+        parent.nbKeys++;
+    }
+
+
+    private static void clear( Object[] array, int from, int to )
+    {
+        for ( int i = from; i < to; i++ )
+        {
+            array[i] = null;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public SingletonOrOrderedSet<V> remove( K key )
+    {
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "key cannot be null" );
+        }
+
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        if ( pos < 0 )
+        {
+            return null;
+        }
+
+        SingletonOrOrderedSet<V> removed = toSingletonOrOrderedSet( leaf.values[pos] );
+        delete( key );
+
+        return removed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public V remove( K key, V value )
+    {
+        if ( key == null || value == null )
+        {
+            throw new IllegalArgumentException( "key or value cannot be null" );
+        }
+
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        if ( pos < 0 )
+        {
+            return null;
+        }
+
+        if ( allowDuplicates )
+        {
+            Object existing = leaf.values[pos];
+
+            if ( existing instanceof SingletonOrOrderedSet )
+            {
+                AvlTree<V> dupsTree = ( ( SingletonOrOrderedSet<V> ) existing ).getOrderedSet();
+                V removed = dupsTree.remove( value );
+
+                if ( removed == null )
+                {
+                    return null;
+                }
+
+                if ( dupsTree.getSize() == 1 )
+                {
+                    // Go back to a singleton
+                    leaf.values[pos] = dupsTree.getFirst().getKey();
+                }
+
+                modCount++;
+
+                return removed;
+            }
+
+            if ( valueComparator.compare( ( V ) existing, value ) != 0 )
+            {
+                return null;
+            }
+        }
+
+        delete( key );
+
+        return value;
+    }
+
+
+    /**
+     * Removes an existing key from the tree.
+     */
+    private void delete( K key )
+    {
+        delete( root, key );
+
+        if ( ( root.nbKeys == 0 ) && ( root instanceof Inner ) )
+        {
+            root = ( ( Inner ) root ).children[0];
+        }
+
+        size--;
+        modCount++;
+    }
+
+
+    private void delete( Node node, K key )
+    {
+        if ( node instanceof Leaf )
+        {
+            Leaf leaf = ( Leaf ) node;
+            int pos = search( leaf, key );
+            int nbMoved = leaf.nbKeys - pos - 1;
+
+            System.arraycopy( leaf.keys, pos + 1, leaf.keys, pos, nbMoved );
+            System.arraycopy( leaf.values, pos + 1, leaf.values, pos, nbMoved );
+            leaf.nbKeys--;
+            leaf.keys[leaf.nbKeys] = null;
+            leaf.values[leaf.nbKeys] = null;
+
+            return;
+        }
+
+        Inner inner = ( Inner ) node;
+        int pos = childIndex( inner, key );
+        Node child = inner.children[pos];
+
+        delete( child, key );
+
+        if ( child.nbKeys < minKeys )
+        {
+            rebalance( inner, pos );
+        }
+    }
+
+
+    /**
+     * Refills an underflowing child of an inner node, borrowing a key from one of
+     * its siblings, or merging it with one of them.
+     */
+    private void rebalance( Inner parent, int pos )
+    {
+        Node child = parent.children[pos];
+        Node left = pos > 0 ? parent.children[pos - 1] : null;
+        Node right = pos < parent.nbKeys ? parent.children[pos + 1] : null;
+
+        if ( ( left != null ) && ( left.nbKeys > minKeys ) )
+        {
+            borrowFromLeft( parent, pos, left, child );
+        }
+        else if ( ( right != null ) && ( right.nbKeys > minKeys ) )
+        {
+            borrowFromRight( parent, pos, child, right );
+        }
+        else if ( left != null )
+        {
+            merge( parent, pos - 1 );
+        }
+        else
+        {
+            merge( parent, pos );
+        }
+    }
+
+
+    private void borrowFromLeft( Inner parent, int pos, Node left, Node child )
+    {
+        System.arraycopy( child.keys, 0, child.keys, 1, child.nbKeys );
+
+        if ( child instanceof Leaf )
+        {
+            Leaf leftLeaf = ( Leaf ) left;
+            Leaf childLeaf = ( Leaf ) child;
+
+            System.arraycopy( childLeaf.values, 0, childLeaf.values, 1, child.nbKeys );
+            childLeaf.keys[0] = leftLeaf.keys[left.nbKeys - 1];
+            childLeaf.values[0] = leftLeaf.values[left.nbKeys - 1];
+            leftLeaf.values[left.nbKeys - 1] = null;
+            parent.keys[pos - 1] = childLeaf.keys[0];
+        }
+        else
+        {
+            Inner leftInner = ( Inner ) left;
+            Inner childInner = ( Inner ) child;
+
+            System.arraycopy( childInner.children, 0, childInner.children, 1, child.nbKeys + 1 );
+            childInner.keys[0] = parent.keys[pos - 1];
+            childInner.children[0] = leftInner.children[left.nbKeys];
+            leftInner.children[left.nbKeys] = null;
+            parent.keys[pos - 1] = leftInner.keys[left.nbKeys - 1];
+        }
+
+        left.keys[left.nbKeys - 1] = null;
+        left.nbKeys--;
+        child.nbKeys++;
+    }
+
+
+    private void borrowFromRight( Inner parent, int pos, Node child, Node right )
+    {
+        if ( child instanceof Leaf )
+        {
+            Leaf childLeaf = ( Leaf ) child;
+            Leaf rightLeaf = ( Leaf ) right;
+
+            childLeaf.keys[child.nbKeys] = rightLeaf.keys[0];
+            childLeaf.values[child.nbKeys] = rightLeaf.values[0];
+            System.arraycopy( rightLeaf.keys, 1, rightLeaf.keys, 0, right.nbKeys - 1 );
+            System.arraycopy( rightLeaf.values, 1, rightLeaf.values, 0, right.nbKeys - 1 );
+            rightLeaf.values[right.nbKeys - 1] = null;
+            parent.keys[pos] = rightLeaf.keys[0];
+        }
+        else
+        {
+            Inner childInner = ( Inner ) child;
+            Inner rightInner = ( Inner ) right;
+
+            childInner.keys[child.nbKeys] = parent.keys[pos];
+            childInner.children[child.nbKeys + 1] = rightInner.children[0];
+            parent.keys[pos] = rightInner.keys[0];
+            System.arraycopy( rightInner.keys, 1, rightInner.keys, 0, right.nbKeys - 1 );
+            System.arraycopy( rightInner.children, 1, rightInner.children, 0, right.nbKeys );
+            rightInner.children[right.nbKeys] = null;
+        }
+
+        right.keys[right.nbKeys - 1] = null;
+        right.nbKeys--;
+        child.nbKeys++;
+    }
+
+
+    /**
+     * Merges the children at position pos and pos + 1 of an inner node.
+     */
+    private void merge( Inner parent, int pos )
+    {
+        Node left = parent.children[pos];
+        Node right = parent.children[pos + 1];
+
+        if ( left instanceof Leaf )
+        {
+            Leaf leftLeaf = ( Leaf ) left;
+            Leaf rightLeaf = ( Leaf ) right;
+
+            System.arraycopy( rightLeaf.keys, 0, leftLeaf.keys, left.nbKeys, right.nbKeys );
+            System.arraycopy( rightLeaf.values, 0, leftLeaf.values, left.nbKeys, right.nbKeys );
+            left.nbKeys += right.nbKeys;
+            leftLeaf.next = rightLeaf.next;
+
+            if ( rightLeaf.next == null )
+            {
+                last = leftLeaf;
+            }
+            else
+            {
+                rightLeaf.next.previous = leftLeaf;
+            }
+        }
+        else
+        {
+            Inner leftInner = ( Inner ) left;
+            Inner rightInner = ( Inner ) right;
+
+            leftInner.keys[left.nbKeys] = parent.keys[pos];
+            System.arraycopy( rightInner.keys, 0, leftInner.keys, left.nbKeys + 1, right.nbKeys );
+            System.arraycopy( rightInner.children, 0, leftInner.children, left.nbKeys + 1, right.nbKeys + 1 );
+            left.nbKeys += right.nbKeys + 1;
+        }
+
+        int nbMoved = parent.nbKeys - pos - 1;
+        System.arraycopy( parent.keys, pos + 1, parent.keys, pos, nbMoved );
+        System.arraycopy( parent.children, pos + 2, parent.children, pos + 1, nbMoved );
+        parent.nbKeys--;
+        parent.keys[parent.nbKeys] = null;
+        parent.children[parent.nbKeys + 1] = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * A B+tree has no root in the binary tree sense : this returns a view on the first
+     * key of the map, with no children, or null if the map is empty.
+     */
+    public LinkedAvlMapNode<K, V> getRoot()
+    {
+        return getFirst();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public List<K> getKeys()
+    {
+        List<K> keys = new ArrayList<K>( size );
+
+        for ( Leaf leaf = first; leaf != null; leaf = leaf.next )
+        {
+            for ( int i = 0; i < leaf.nbKeys; i++ )
+            {
+                keys.add( ( K ) leaf.keys[i] );
+            }
+        }
+
+        return keys;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void printTree()
+    {
+        if ( isEmpty() )
+        {
+            System.out.println( "Tree is empty" );
+            return;
+        }
+
+        List<Node> level = new ArrayList<Node>();
+        level.add( root );
+
+        while ( !level.isEmpty() )
+        {
+            List<Node> children = new ArrayList<Node>();
+            StringBuilder sb = new StringBuilder();
+
+            for ( Node node : level )
+            {
+                sb.append( '[' );
+
+                for ( int i = 0; i < node.nbKeys; i++ )
+                {
+                    if ( i > 0 )
+                    {
+                        sb.append( ',' );
+                    }
+
+                    sb.append( node.keys[i] );
+                }
+
+                sb.append( "] " );
+
+                if ( node instanceof Inner )
+                {
+                    for ( int i = 0; i <= node.nbKeys; i++ )
+                    {
+                        children.add( ( ( Inner ) node ).children[i] );
+                    }
+                }
+            }
+
+            System.out.println( sb );
+            level = children;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> getFirst()
+    {
+        if ( size == 0 )
+        {
+            return null;
+        }
+
+        return new NodeView( first, 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> getLast()
+    {
+        if ( size == 0 )
+        {
+            return null;
+        }
+
+        return new NodeView( last, last.nbKeys - 1 );
+    }
+
+
+    /**
+     * @return a view on the key at the given position in a leaf, moving to the
+     * next leaf if the position is after the last key of the leaf
+     */
+    private LinkedAvlMapNode<K, V> viewAtOrAfter( Leaf leaf, int pos )
+    {
+        if ( pos < leaf.nbKeys )
+        {
+            return new NodeView( leaf, pos );
+        }
+
+        if ( leaf.next == null )
+        {
+            return null;
+        }
+
+        return new NodeView( leaf.next, 0 );
+    }
+
+
+    /**
+     * @return a view on the key at the given position in a leaf, moving to the
+     * previous leaf if the position is before the first key of the leaf
+     */
+    private LinkedAvlMapNode<K, V> viewAtOrBefore( Leaf leaf, int pos )
+    {
+        if ( pos >= 0 )
+        {
+            return new NodeView( leaf, pos );
+        }
+
+        if ( leaf.previous == null )
+        {
+            return null;
+        }
+
+        return new NodeView( leaf.previous, leaf.previous.nbKeys - 1 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> findGreater( K key )
+    {
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        return viewAtOrAfter( leaf, pos >= 0 ? pos + 1 : -( pos + 1 ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> findGreaterOrEqual( K key )
+    {
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        return viewAtOrAfter( leaf, pos >= 0 ? pos : -( pos + 1 ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> findLess( K key )
+    {
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        return viewAtOrBefore( leaf, pos >= 0 ? pos - 1 : -( pos + 1 ) - 1 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> findLessOrEqual( K key )
+    {
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        return viewAtOrBefore( leaf, pos >= 0 ? pos : -( pos + 1 ) - 1 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public LinkedAvlMapNode<K, V> find( K key )
+    {
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        if ( pos < 0 )
+        {
+            return null;
+        }
+
+        return new NodeView( leaf, pos );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public LinkedAvlMapNode<K, V> find( K key, V value )
+    {
+        if ( key == null || value == null )
+        {
+            return null;
+        }
+
+        Leaf leaf = findLeaf( key );
+        int pos = search( leaf, key );
+
+        if ( pos < 0 )
+        {
+            return null;
+        }
+
+        Object existing = leaf.values[pos];
+
+        if ( allowDuplicates && ( existing instanceof SingletonOrOrderedSet ) )
+        {
+            if ( ( ( SingletonOrOrderedSet<V> ) existing ).getOrderedSet().find( value ) == null )
+            {
+                return null;
+            }
+        }
+        else if ( valueComparator.compare( ( V ) existing, value ) != 0 )
+        {
+            return null;
+        }
+
+        return new NodeView( leaf, pos );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isDupsAllowed()
+    {
+        return allowDuplicates;
+    }
+
+
+    /**
+     * removes all the keys from the tree
+     */
+    public void removeAll()
+    {
+        first = new Leaf( order );
+        last = first;
+        root = first;
+        size = 0;
+        modCount++;
+    }
+}
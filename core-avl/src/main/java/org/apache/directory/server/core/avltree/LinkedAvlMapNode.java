@@ -66,6 +66,19 @@ public class LinkedAvlMapNode<K, V>
     }
 
 
+    /**
+     * Creates a new instance of LinkedAvlMapNode, containing a given set of values.
+     *
+     * @param theKey the stored key
+     * @param theValue the stored values
+     */
+    LinkedAvlMapNode( K theKey, SingletonOrOrderedSet<V> theValue )
+    {
+        key = theKey;
+        value = theValue;
+    }
+
+
     public void setLeft( LinkedAvlMapNode<K, V> left )
     {
         this.left = left;
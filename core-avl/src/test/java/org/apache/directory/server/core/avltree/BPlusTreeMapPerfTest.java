@@ -0,0 +1,145 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.avltree;
+
+
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+
+/**
+ * Compares the insertion, lookup and scan performances of the BPlusTreeMap and of
+ * the AvlTreeMapImpl.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BPlusTreeMapPerfTest
+{
+    int numKeys = 200000;
+
+    int[] keys;
+
+    long start, end;
+
+    Comparator<Integer> comparator = new Comparator<Integer>()
+    {
+        public int compare( Integer i1, Integer i2 )
+        {
+            return i1.compareTo( i2 );
+        }
+
+    };
+
+
+    @Before
+    public void createKeys()
+    {
+        Random random = new Random( 0L );
+        keys = new int[numKeys];
+
+        for ( int i = 0; i < numKeys; i++ )
+        {
+            keys[i] = random.nextInt();
+        }
+    }
+
+
+    private AvlTreeMap<Integer, Integer> insert( AvlTreeMap<Integer, Integer> map )
+    {
+        start = System.nanoTime();
+
+        for ( int key : keys )
+        {
+            map.insert( key, key );
+        }
+
+        end = System.nanoTime();
+
+        System.out.println( "total time for inserting " + numKeys + " items into the "
+            + map.getClass().getSimpleName() + "-->" + getTime( start, end ) );
+
+        return map;
+    }
+
+
+    private void lookup( AvlTreeMap<Integer, Integer> map )
+    {
+        start = System.nanoTime();
+
+        for ( int key : keys )
+        {
+            map.findGreaterOrEqual( key );
+        }
+
+        end = System.nanoTime();
+
+        System.out.println( "total time for seeking " + numKeys + " items in the "
+            + map.getClass().getSimpleName() + "-->" + getTime( start, end ) );
+    }
+
+
+    private void scan( AvlTreeMap<Integer, Integer> map )
+    {
+        start = System.nanoTime();
+        int count = 0;
+
+        for ( LinkedAvlMapNode<Integer, Integer> node = map.getFirst(); node != null; node = node.getNext() )
+        {
+            count++;
+        }
+
+        end = System.nanoTime();
+
+        System.out.println( "total time for scanning " + count + " items in the "
+            + map.getClass().getSimpleName() + "-->" + getTime( start, end ) );
+    }
+
+
+    @Test
+    @Ignore
+    public void testAvlTreeMapPerf()
+    {
+        AvlTreeMap<Integer, Integer> map = insert( new AvlTreeMapImpl<Integer, Integer>( comparator, comparator,
+            true ) );
+        lookup( map );
+        scan( map );
+    }
+
+
+    @Test
+    @Ignore
+    public void testBPlusTreeMapPerf()
+    {
+        AvlTreeMap<Integer, Integer> map = insert( new BPlusTreeMap<Integer, Integer>( comparator, comparator,
+            true ) );
+        lookup( map );
+        scan( map );
+    }
+
+
+    private String getTime( long start, long end )
+    {
+        return ( end - start ) / 1000 + " microsec";
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.avltree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.junit.Test;
+
+
+/**
+ * Tests the BPlusTreeMap.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BPlusTreeMapTest
+{
+    Comparator<Integer> comparator = new Comparator<Integer>()
+    {
+
+        public int compare( Integer i1, Integer i2 )
+        {
+            return i1.compareTo( i2 );
+        }
+
+    };
+
+
+    private void assertSameValues( NavigableSet<Integer> expected, SingletonOrOrderedSet<Integer> value )
+    {
+        if ( expected == null )
+        {
+            assertNull( value );
+        }
+        else if ( expected.size() == 1 )
+        {
+            assertNotNull( value );
+            assertTrue( value.isSingleton() );
+            assertEquals( expected.first(), value.getSingleton() );
+        }
+        else
+        {
+            assertNotNull( value );
+            assertTrue( value.isOrderedSet() );
+            assertEquals( new ArrayList<Integer>( expected ), value.getOrderedSet().getKeys() );
+        }
+    }
+
+
+    private void assertSameNode( Map.Entry<Integer, NavigableSet<Integer>> expected,
+        LinkedAvlMapNode<Integer, Integer> node )
+    {
+        if ( expected == null )
+        {
+            assertNull( node );
+        }
+        else
+        {
+            assertNotNull( node );
+            assertEquals( expected.getKey(), node.getKey() );
+            assertSameValues( expected.getValue(), node.getValue() );
+        }
+    }
+
+
+    private void assertSameMaps( NavigableMap<Integer, NavigableSet<Integer>> expected,
+        AvlTreeMap<Integer, Integer> map )
+    {
+        assertEquals( expected.size(), map.getSize() );
+        assertEquals( expected.isEmpty(), map.isEmpty() );
+        assertEquals( new ArrayList<Integer>( expected.keySet() ), map.getKeys() );
+        assertSameNode( expected.firstEntry(), map.getFirst() );
+        assertSameNode( expected.lastEntry(), map.getLast() );
+
+        // Walk the map in both directions
+        LinkedAvlMapNode<Integer, Integer> node = map.getFirst();
+
+        for ( Map.Entry<Integer, NavigableSet<Integer>> entry : expected.entrySet() )
+        {
+            assertSameNode( entry, node );
+            node = node.getNext();
+        }
+
+        assertNull( node );
+
+        node = map.getLast();
+
+        for ( Map.Entry<Integer, NavigableSet<Integer>> entry : expected.descendingMap().entrySet() )
+        {
+            assertSameNode( entry, node );
+            node = node.getPrevious();
+        }
+
+        assertNull( node );
+    }
+
+
+    /**
+     * Applies random operations on a BPlusTreeMap and on a TreeMap holding the same data,
+     * and checks that the results are identical.
+     */
+    private void checkRandomOperations( boolean allowDuplicates, int order, long seed )
+    {
+        NavigableMap<Integer, NavigableSet<Integer>> expected = new TreeMap<Integer, NavigableSet<Integer>>();
+        AvlTreeMap<Integer, Integer> map = new BPlusTreeMap<Integer, Integer>( comparator, comparator,
+            allowDuplicates, order );
+        Random random = new Random( seed );
+
+        for ( int i = 0; i < 20000; i++ )
+        {
+            int key = random.nextInt( 500 );
+            int value = random.nextInt( 4 );
+            int operation = random.nextInt( 10 );
+            NavigableSet<Integer> values = expected.get( key );
+
+            if ( operation < 5 )
+            {
+                Integer result = map.insert( key, value );
+
+                if ( values == null )
+                {
+                    assertNull( result );
+                    values = new TreeSet<Integer>();
+                    expected.put( key, values );
+                }
+                else if ( allowDuplicates )
+                {
+                    assertEquals( values.contains( value ) ? Integer.valueOf( value ) : null, result );
+                }
+                else
+                {
+                    assertEquals( values.first(), result );
+                    values.clear();
+                }
+
+                values.add( value );
+            }
+            else if ( operation < 8 )
+            {
+                Integer result = map.remove( key, value );
+
+                if ( ( values == null ) || ( allowDuplicates && !values.contains( value ) ) )
+                {
+                    assertNull( result );
+                }
+                else
+                {
+                    assertEquals( value, result.intValue() );
+                    values.remove( value );
+
+                    if ( values.isEmpty() || !allowDuplicates )
+                    {
+                        expected.remove( key );
+                    }
+                }
+            }
+            else if ( operation < 9 )
+            {
+                assertSameValues( expected.remove( key ), map.remove( key ) );
+            }
+            else
+            {
+                assertSameNode( values == null ? null : expected.floorEntry( key ), map.find( key ) );
+                assertSameNode( ( values == null ) || !values.contains( value ) ? null : expected.floorEntry( key ),
+                    map.find( key, value ) );
+                assertSameNode( expected.higherEntry( key ), map.findGreater( key ) );
+                assertSameNode( expected.ceilingEntry( key ), map.findGreaterOrEqual( key ) );
+                assertSameNode( expected.lowerEntry( key ), map.findLess( key ) );
+                assertSameNode( expected.floorEntry( key ), map.findLessOrEqual( key ) );
+            }
+
+            if ( i % 1000 == 0 )
+            {
+                assertSameMaps( expected, map );
+            }
+        }
+
+        assertSameMaps( expected, map );
+
+        // Empty the map
+        for ( Integer key : new ArrayList<Integer>( expected.keySet() ) )
+        {
+            assertSameValues( expected.remove( key ), map.remove( key ) );
+        }
+
+        assertTrue( map.isEmpty() );
+        assertNull( map.getFirst() );
+        assertNull( map.getLast() );
+        assertNull( map.findGreaterOrEqual( 0 ) );
+        assertNull( map.findLessOrEqual( 1000 ) );
+    }
+
+
+    @Test
+    public void testRandomOperations()
+    {
+        checkRandomOperations( false, 4, 1L );
+        checkRandomOperations( false, 5, 2L );
+        checkRandomOperations( false, BPlusTreeMap.DEFAULT_ORDER, 3L );
+    }
+
+
+    @Test
+    public void testRandomOperationsWithDuplicates()
+    {
+        checkRandomOperations( true, 4, 4L );
+        checkRandomOperations( true, 7, 5L );
+        checkRandomOperations( true, BPlusTreeMap.DEFAULT_ORDER, 6L );
+    }
+
+
+    @Test
+    public void testDuplicates()
+    {
+        BPlusTreeMap<Integer, Integer> map = new BPlusTreeMap<Integer, Integer>( comparator, comparator, true );
+
+        assertNull( map.insert( 3, 1 ) );
+        assertNull( map.insert( 3, 2 ) );
+        assertEquals( 2, map.insert( 3, 2 ).intValue() );
+        assertEquals( 1, map.getSize() );
+
+        SingletonOrOrderedSet<Integer> values = map.find( 3 ).getValue();
+        assertTrue( values.isOrderedSet() );
+        assertEquals( 2, values.getOrderedSet().getSize() );
+
+        assertEquals( 1, map.remove( 3, 1 ).intValue() );
+        assertTrue( map.find( 3 ).getValue().isSingleton() );
+        assertNull( map.remove( 3, 1 ) );
+        assertEquals( 2, map.remove( 3, 2 ).intValue() );
+        assertTrue( map.isEmpty() );
+    }
+
+
+    @Test
+    public void testViewsAfterModification()
+    {
+        BPlusTreeMap<Integer, Integer> map = new BPlusTreeMap<Integer, Integer>( comparator, comparator, false, 4 );
+
+        for ( int i = 0; i < 100; i += 2 )
+        {
+            map.insert( i, i );
+        }
+
+        LinkedAvlMapNode<Integer, Integer> node = map.find( 50 );
+
+        // Remove the following keys, and add a key before the node
+        map.remove( 52 );
+        map.remove( 54 );
+        map.insert( 49, 49 );
+
+        assertEquals( 56, node.getNext().getKey().intValue() );
+        assertEquals( 49, node.getPrevious().getKey().intValue() );
+
+        // The node key itself can be removed
+        map.remove( 50 );
+        assertEquals( 56, node.getNext().getKey().intValue() );
+        assertEquals( 49, node.getPrevious().getKey().intValue() );
+
+        map.removeAll();
+        assertNull( node.getNext() );
+        assertTrue( map.isEmpty() );
+    }
+
+
+    @Test
+    public void testViewsSeeValueChanges()
+    {
+        BPlusTreeMap<Integer, Integer> map = new BPlusTreeMap<Integer, Integer>( comparator, comparator, true, 4 );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            map.insert( i, i );
+        }
+
+        LinkedAvlMapNode<Integer, Integer> node = map.find( 10 );
+        assertTrue( node.getValue().isSingleton() );
+
+        // Adding a duplicate value must be visible from the existing view
+        map.insert( 10, 100 );
+        assertTrue( node.getValue().isOrderedSet() );
+        assertEquals( 2, node.getValue().getOrderedSet().getSize() );
+
+        // And so does removing it
+        map.remove( 10, 10 );
+        assertEquals( 100, node.getValue().getSingleton().intValue() );
+        assertEquals( 11, node.getNext().getKey().intValue() );
+
+        // Without duplicates, a replaced value is visible too
+        BPlusTreeMap<Integer, Integer> single = new BPlusTreeMap<Integer, Integer>( comparator, comparator, false, 4 );
+        single.insert( 5, 5 );
+        LinkedAvlMapNode<Integer, Integer> singleNode = single.find( 5 );
+        single.insert( 5, 6 );
+        assertEquals( 6, singleNode.getValue().getSingleton().intValue() );
+    }
+
+
+    @Test
+    public void testCursor() throws Exception
+    {
+        BPlusTreeMap<Integer, Integer> map = new BPlusTreeMap<Integer, Integer>( comparator, comparator, false, 4 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            map.insert( i, i * 2 );
+        }
+
+        AvlSingletonOrOrderedSetCursor<Integer, Integer> cursor = new AvlSingletonOrOrderedSetCursor<Integer, Integer>(
+            map );
+
+        int expected = 0;
+
+        while ( cursor.next() )
+        {
+            Tuple<Integer, SingletonOrOrderedSet<Integer>> tuple = cursor.get();
+            assertEquals( expected, tuple.getKey().intValue() );
+            assertEquals( expected * 2, tuple.getValue().getSingleton().intValue() );
+            expected++;
+        }
+
+        assertEquals( 100, expected );
+
+        cursor.afterKey( 49 );
+
+        while ( cursor.previous() )
+        {
+            expected = cursor.get().getKey();
+        }
+
+        assertEquals( 0, expected );
+        assertFalse( cursor.previous() );
+        cursor.close();
+    }
+}
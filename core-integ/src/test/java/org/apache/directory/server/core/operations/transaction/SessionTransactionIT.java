@@ -0,0 +1,208 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.operations.transaction;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the session transactions used by the LDAP transactions
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "SessionTransactionIT")
+public class SessionTransactionIT extends AbstractLdapTestUnit
+{
+    /**
+     * A listener counting the added entries
+     */
+    private static class AddCounter extends DirectoryListenerAdapter
+    {
+        private final AtomicInteger nbAdded = new AtomicInteger();
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            nbAdded.incrementAndGet();
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            return true;
+        }
+    }
+
+
+    private CoreSession getAdminSession() throws Exception
+    {
+        return getService().getSession( new Dn( getService().getSchemaManager(), "uid=admin,ou=system" ),
+            Strings.getBytesUtf8( "secret" ) );
+    }
+
+
+    private void add( CoreSession session, Dn dn ) throws Exception
+    {
+        SchemaManager schemaManager = getService().getSchemaManager();
+
+        session.add( new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "cn", dn.getRdn().getValue(),
+            "sn: test" ) );
+    }
+
+
+    @Test
+    public void testAbortRollsBackTheChanges() throws Exception
+    {
+        CoreSession session = getAdminSession();
+        OperationManager operationManager = getService().getOperationManager();
+        Dn dn = new Dn( getService().getSchemaManager(), "cn=aborted,ou=system" );
+
+        operationManager.lockWrite();
+
+        try
+        {
+            session.beginSessionTransaction();
+            add( session, dn );
+
+            // The entry is visible before the end of the transaction
+            assertTrue( session.exists( dn ) );
+
+            session.endSessionTransaction( false );
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+
+        // And gone once it has been aborted, caches included
+        assertFalse( getService().getAdminSession().exists( dn ) );
+    }
+
+
+    @Test
+    public void testListenersNotifiedOnCommit() throws Exception
+    {
+        CoreSession session = getAdminSession();
+        OperationManager operationManager = getService().getOperationManager();
+        SchemaManager schemaManager = getService().getSchemaManager();
+        AddCounter listener = new AddCounter();
+
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( new Dn( schemaManager, "ou=system" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+        criteria.setFilter( new PresenceNode( getService().getAtProvider().getObjectClass() ) );
+        getService().getEventService().addListener( listener, criteria );
+
+        try
+        {
+            operationManager.lockWrite();
+
+            try
+            {
+                session.beginSessionTransaction();
+                add( session, new Dn( schemaManager, "cn=aborted2,ou=system" ) );
+                session.endSessionTransaction( false );
+
+                session.beginSessionTransaction();
+                add( session, new Dn( schemaManager, "cn=committed,ou=system" ) );
+
+                // Nothing is notified before the commit
+                assertEquals( 0, listener.nbAdded.get() );
+
+                session.endSessionTransaction( true );
+            }
+            finally
+            {
+                operationManager.unlockWrite();
+            }
+
+            // Only the committed entry has been notified
+            assertEquals( 1, listener.nbAdded.get() );
+            assertTrue( getService().getAdminSession().exists( "cn=committed,ou=system" ) );
+        }
+        finally
+        {
+            getService().getEventService().removeListener( listener );
+        }
+    }
+
+
+    @Test
+    public void testPartitionWithoutRollbackIsRejected() throws Exception
+    {
+        CoreSession session = getAdminSession();
+        OperationManager operationManager = getService().getOperationManager();
+
+        operationManager.lockWrite();
+
+        try
+        {
+            session.beginSessionTransaction();
+
+            // The schema partition can't roll back its changes
+            session.modify( new Dn( getService().getSchemaManager(), "cn=nis,ou=schema" ),
+                new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "description", "test" ) );
+            fail();
+        }
+        catch ( LdapUnwillingToPerformException lutpe )
+        {
+            // Expected
+        }
+        finally
+        {
+            session.endSessionTransaction( false );
+            operationManager.unlockWrite();
+        }
+    }
+}
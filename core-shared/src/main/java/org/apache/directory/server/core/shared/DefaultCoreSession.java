@@ -26,7 +26,9 @@ import java.net.SocketAddress;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import jdbm.recman.BaseRecordManager;
@@ -89,6 +91,8 @@ import org.apache.directory.server.core.api.interceptor.context.OperationContext
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
@@ -129,6 +133,15 @@ public class DefaultCoreSession implements CoreSession
     /** flag to indicate if the password must be changed */
     private boolean pwdMustChange;
 
+    /** The partition transactions started during the session transaction, null if there is none */
+    private volatile Map<Partition, PartitionTxn> transactions;
+
+    /** The tasks to run once the session transaction has been committed */
+    private List<Runnable> commitTasks;
+
+    /** The tasks to run once the session transaction has been aborted */
+    private List<Runnable> abortTasks;
+
     /**
      * Creates a new instance of a DefaultCoreSession
      * @param principal The principal to use to process operation for this session
@@ -1470,4 +1483,136 @@ public class DefaultCoreSession implements CoreSession
     {
         this.pwdMustChange = pwdMustChange;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTransacted()
+    {
+        return transactions != null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beginSessionTransaction()
+    {
+        commitTasks = new ArrayList<Runnable>();
+        abortTasks = new ArrayList<Runnable>();
+        transactions = new LinkedHashMap<Partition, PartitionTxn>();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addCommitTask( Runnable task )
+    {
+        commitTasks.add( task );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addAbortTask( Runnable task )
+    {
+        abortTasks.add( task );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSessionTransaction( boolean commit ) throws IOException
+    {
+        Map<Partition, PartitionTxn> sessionTransactions = transactions;
+        List<Runnable> tasksAfterCommit = commitTasks;
+        List<Runnable> tasksAfterAbort = abortTasks;
+        transactions = null;
+        commitTasks = null;
+        abortTasks = null;
+
+        if ( sessionTransactions == null )
+        {
+            return;
+        }
+
+        IOException error = null;
+
+        for ( PartitionTxn transaction : sessionTransactions.values() )
+        {
+            try
+            {
+                if ( commit )
+                {
+                    transaction.commit();
+                }
+                else
+                {
+                    transaction.abort();
+                }
+            }
+            catch ( IOException ioe )
+            {
+                error = ioe;
+            }
+        }
+
+        // The changes are only visible once all the partitions have been committed
+        runTasks( ( commit && ( error == null ) ) ? tasksAfterCommit : tasksAfterAbort );
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+
+    /**
+     * Runs the tasks registered for the end of a session transaction
+     */
+    private void runTasks( List<Runnable> tasks )
+    {
+        for ( Runnable task : tasks )
+        {
+            try
+            {
+                task.run();
+            }
+            catch ( RuntimeException re )
+            {
+                LOG.error( "Failed to run a task after the end of the session transaction", re );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PartitionTxn getTransaction( Partition partition )
+    {
+        Map<Partition, PartitionTxn> sessionTransactions = transactions;
+
+        return sessionTransactions == null ? null : sessionTransactions.get( partition );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTransaction( Partition partition, PartitionTxn transaction )
+    {
+        transactions.put( partition, transaction );
+    }
 }
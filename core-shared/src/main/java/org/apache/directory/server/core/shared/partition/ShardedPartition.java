@@ -0,0 +1,1207 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared.partition;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.naming.InvalidNameException;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapContextNotEmptyException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Ava;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.ParallelCursorList;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.AbstractPartition;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.api.partition.Subordinates;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Partition spreading the entries of one naming context across many child partitions,
+ * the shards. All the shards share the suffix of this partition.
+ * <br>
+ * The entries which are less than <em>shardingDepth</em> RDNs below the suffix (the suffix
+ * itself, and the containers right below it) are replicated in every shard. The entries
+ * at <em>shardingDepth</em> are the shard roots : each one of them, and all its descendants,
+ * belong to one single shard. The shard is selected by :
+ * <ul>
+ *   <li>the configured branches, mapping a shard root Dn to a shard index, or</li>
+ *   <li>a hash of the shard root RDN. If a hash attribute is configured, only the value of
+ *   this attribute in the RDN is hashed.</li>
+ * </ul>
+ * Operations on an entry are routed to the shard owning it, modifications of a replicated
+ * entry are applied on all the shards. Subtree searches based on a replicated entry are
+ * done on all the shards in parallel, and the results are streamed back as soon as they
+ * are found, in no specific order.
+ * <br>
+ * The hash depends on the number of shards : adding a shard requires a reload of the data.
+ * Aliases are dereferenced in the shard they are stored into only.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ShardedPartition extends AbstractPartition
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ShardedPartition.class );
+
+    /** The shard index returned for entries stored in all the shards */
+    public static final int REPLICATED = -1;
+
+    /** The default number of entries read in advance during a parallel search */
+    public static final int DEFAULT_SEARCH_QUEUE_SIZE = 1024;
+
+    /** The shards */
+    private List<Partition> shards = new ArrayList<Partition>();
+
+    /** The depth, below the suffix, of the shard roots */
+    private int shardingDepth = 1;
+
+    /** The attribute used to compute the hash of a shard root RDN */
+    private String hashAttribute;
+
+    /** The hash AttributeType */
+    private AttributeType hashAttributeType;
+
+    /** The configured branches */
+    private Map<Dn, Integer> branches = new HashMap<Dn, Integer>();
+
+    /** The configured branches, using their normalized name as a key */
+    private Map<String, Integer> normBranches = new HashMap<String, Integer>();
+
+    /** The number of threads used to search the shards in parallel */
+    private int searchThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of entries read in advance during a parallel search */
+    private int searchQueueSize = DEFAULT_SEARCH_QUEUE_SIZE;
+
+    /** The executor used to search the shards in parallel */
+    private ExecutorService searchExecutor;
+
+    /** The filter removing the replicated entries from the results of the secondary shards */
+    private final EntryFilter replicatedEntryFilter = new EntryFilter()
+    {
+        @Override
+        public boolean accept( SearchOperationContext operation, Entry result ) throws LdapException
+        {
+            return getShardIndex( result.getDn() ) != REPLICATED;
+        }
+
+
+        @Override
+        public String toString( String tabs )
+        {
+            return tabs + "ReplicatedEntryFilter";
+        }
+    };
+
+
+    /**
+     * Creates a new ShardedPartition instance.
+     */
+    public ShardedPartition()
+    {
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doInit() throws InvalidNameException, LdapException
+    {
+        if ( shards.isEmpty() )
+        {
+            throw new LdapOtherException( "The sharded partition " + id + " has no shard" );
+        }
+
+        if ( shardingDepth < 1 )
+        {
+            throw new LdapOtherException( "The sharding depth must be above 0" );
+        }
+
+        if ( hashAttribute != null )
+        {
+            hashAttributeType = schemaManager.lookupAttributeTypeRegistry( hashAttribute );
+        }
+
+        for ( Map.Entry<Dn, Integer> branch : branches.entrySet() )
+        {
+            Dn branchDn = branch.getKey().isSchemaAware() ? branch.getKey() : new Dn( schemaManager,
+                branch.getKey() );
+
+            if ( !branchDn.isDescendantOf( suffixDn ) || ( branchDn.size() - suffixDn.size() != shardingDepth ) )
+            {
+                throw new LdapOtherException( "The branch " + branchDn + " must be " + shardingDepth
+                    + " level(s) below " + suffixDn );
+            }
+
+            if ( ( branch.getValue() < 0 ) || ( branch.getValue() >= shards.size() ) )
+            {
+                throw new LdapOtherException( "Invalid shard index " + branch.getValue() + " for the branch "
+                    + branchDn );
+            }
+
+            normBranches.put( branchDn.getNormName(), branch.getValue() );
+        }
+
+        for ( Partition shard : shards )
+        {
+            shard.setSchemaManager( schemaManager );
+            shard.setCacheService( cacheService );
+            shard.setSuffixDn( suffixDn );
+            shard.initialize();
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        searchExecutor = Executors.newFixedThreadPool( searchThreads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, id + "-search-" + threadNumber.incrementAndGet() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doDestroy( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( searchExecutor != null )
+        {
+            searchExecutor.shutdownNow();
+            searchExecutor = null;
+        }
+
+        LdapException error = null;
+
+        for ( Partition shard : shards )
+        {
+            try
+            {
+                shard.destroy( shard.beginReadTransaction() );
+            }
+            catch ( LdapException le )
+            {
+                LOG.error( "Failed to destroy the shard {}", shard.getId(), le );
+                error = le;
+            }
+        }
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doRepair() throws LdapException
+    {
+        for ( Partition shard : shards )
+        {
+            try
+            {
+                shard.repair();
+            }
+            catch ( LdapException le )
+            {
+                throw le;
+            }
+            catch ( Exception e )
+            {
+                throw new LdapOtherException( e.getMessage(), e );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void repair() throws LdapException
+    {
+        doRepair();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PartitionReadTxn beginReadTransaction()
+    {
+        return new ShardedPartitionReadTxn( shards );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PartitionWriteTxn beginWriteTransaction()
+    {
+        return new ShardedPartitionWriteTxn( shards );
+    }
+
+
+    /**
+     * Computes the index of the shard owning an entry.
+     *
+     * @param dn The entry Dn
+     * @return The shard index, or {@link #REPLICATED} if the entry is stored in all the shards
+     */
+    public int getShardIndex( Dn dn )
+    {
+        int depth = dn.size() - suffixDn.size();
+
+        if ( depth < shardingDepth )
+        {
+            return REPLICATED;
+        }
+
+        if ( !normBranches.isEmpty() )
+        {
+            Dn shardRoot = dn;
+
+            for ( int i = shardingDepth; i < depth; i++ )
+            {
+                shardRoot = shardRoot.getParent();
+            }
+
+            Integer shardIndex = normBranches.get( shardRoot.getNormName() );
+
+            if ( shardIndex != null )
+            {
+                return shardIndex;
+            }
+        }
+
+        Rdn rdn = dn.getRdn( depth - shardingDepth );
+        String key = rdn.getNormName();
+
+        if ( hashAttributeType != null )
+        {
+            for ( Ava ava : rdn )
+            {
+                if ( hashAttributeType.getOid().equals( ava.getNormType() ) )
+                {
+                    key = ava.getValue().getNormalized();
+                    break;
+                }
+            }
+        }
+
+        return ( key.hashCode() & 0x7FFFFFFF ) % shards.size();
+    }
+
+
+    /**
+     * Gets the transaction to use on a shard. The shard transactions are started
+     * when a shard is first read or modified.
+     */
+    private PartitionTxn getShardTxn( PartitionTxn partitionTxn, int shardIndex )
+    {
+        if ( partitionTxn instanceof ShardedPartitionWriteTxn )
+        {
+            return ( ( ShardedPartitionWriteTxn ) partitionTxn ).getShardTxn( shardIndex );
+        }
+
+        if ( partitionTxn instanceof ShardedPartitionReadTxn )
+        {
+            return ( ( ShardedPartitionReadTxn ) partitionTxn ).getShardTxn( shardIndex );
+        }
+
+        if ( partitionTxn == null )
+        {
+            return shards.get( shardIndex ).beginReadTransaction();
+        }
+
+        // A transaction started by someone else, use it as is
+        return partitionTxn;
+    }
+
+
+    /**
+     * Associates the operation with a shard transaction, and returns the previous transaction
+     */
+    private PartitionTxn switchTxn( OperationContext opContext, int shardIndex )
+    {
+        PartitionTxn partitionTxn = opContext.getTransaction();
+        opContext.setTransaction( getShardTxn( partitionTxn, shardIndex ) );
+
+        return partitionTxn;
+    }
+
+
+    /**
+     * The shard to read a replicated entry from
+     */
+    private int readShard( int shardIndex )
+    {
+        return ( shardIndex == REPLICATED ) ? 0 : shardIndex;
+    }
+
+
+    /**
+     * Renaming or moving a replicated entry is only possible if its descendants remain
+     * in the same shards.
+     */
+    private void checkReplicatedModDn( Dn oldDn, Dn newDn ) throws LdapException
+    {
+        if ( newDn.size() != oldDn.size() )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "Cannot change the depth of the entry " + oldDn + " which is replicated on all the shards" );
+        }
+
+        for ( String branch : normBranches.keySet() )
+        {
+            if ( branch.equals( oldDn.getNormName() ) || branch.endsWith( "," + oldDn.getNormName() ) )
+            {
+                throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                    "Cannot rename the entry " + oldDn + ", the sharding branch " + branch + " depends on it" );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add( AddOperationContext addContext ) throws LdapException
+    {
+        int shardIndex = getShardIndex( addContext.getDn() );
+
+        if ( shardIndex == REPLICATED )
+        {
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                PartitionTxn partitionTxn = switchTxn( addContext, i );
+
+                try
+                {
+                    shards.get( i ).add( addContext );
+                }
+                finally
+                {
+                    addContext.setTransaction( partitionTxn );
+                }
+            }
+        }
+        else
+        {
+            PartitionTxn partitionTxn = switchTxn( addContext, shardIndex );
+
+            try
+            {
+                shards.get( shardIndex ).add( addContext );
+            }
+            finally
+            {
+                addContext.setTransaction( partitionTxn );
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        Dn dn = deleteContext.getDn();
+        int shardIndex = getShardIndex( dn );
+
+        if ( shardIndex != REPLICATED )
+        {
+            PartitionTxn partitionTxn = switchTxn( deleteContext, shardIndex );
+
+            try
+            {
+                return shards.get( shardIndex ).delete( deleteContext );
+            }
+            finally
+            {
+                deleteContext.setTransaction( partitionTxn );
+            }
+        }
+
+        // Check that no shard has some children before deleting anything
+        Entry entry = deleteContext.getEntry();
+
+        if ( entry == null )
+        {
+            LookupOperationContext lookupContext = new LookupOperationContext( deleteContext.getSession(), dn );
+            lookupContext.setTransaction( deleteContext.getTransaction() );
+            entry = lookup( lookupContext );
+
+            if ( entry == null )
+            {
+                throw new LdapNoSuchObjectException( "Cannot find the entry " + dn );
+            }
+        }
+
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            Subordinates subordinates = shards.get( i ).getSubordinates(
+                getShardTxn( deleteContext.getTransaction(), i ), entry );
+
+            if ( subordinates.getNbChildren() > 0 )
+            {
+                throw new LdapContextNotEmptyException( "The entry " + dn + " has some children in the shard "
+                    + shards.get( i ).getId() );
+            }
+        }
+
+        Entry deletedEntry = null;
+
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            PartitionTxn partitionTxn = switchTxn( deleteContext, i );
+
+            try
+            {
+                Entry deleted = shards.get( i ).delete( deleteContext );
+
+                if ( i == 0 )
+                {
+                    deletedEntry = deleted;
+                }
+            }
+            finally
+            {
+                deleteContext.setTransaction( partitionTxn );
+            }
+        }
+
+        return deletedEntry;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modify( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        int shardIndex = getShardIndex( modifyContext.getDn() );
+
+        if ( shardIndex != REPLICATED )
+        {
+            PartitionTxn partitionTxn = switchTxn( modifyContext, shardIndex );
+
+            try
+            {
+                shards.get( shardIndex ).modify( modifyContext );
+            }
+            finally
+            {
+                modifyContext.setTransaction( partitionTxn );
+            }
+
+            return;
+        }
+
+        // Apply the modifications on all the shards, the first shard gives the altered entry
+        Entry alteredEntry = null;
+
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            PartitionTxn partitionTxn = switchTxn( modifyContext, i );
+
+            try
+            {
+                shards.get( i ).modify( modifyContext );
+
+                if ( i == 0 )
+                {
+                    alteredEntry = modifyContext.getAlteredEntry();
+                }
+            }
+            finally
+            {
+                modifyContext.setTransaction( partitionTxn );
+            }
+        }
+
+        modifyContext.setAlteredEntry( alteredEntry );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+    {
+        Dn baseDn = searchContext.getDn();
+        int shardIndex = getShardIndex( baseDn );
+        SearchScope scope = searchContext.getScope();
+        int depth = baseDn.size() - suffixDn.size();
+
+        boolean fanOut = ( shardIndex == REPLICATED )
+            && ( ( scope == SearchScope.SUBTREE )
+            || ( ( scope == SearchScope.ONELEVEL ) && ( depth + 1 == shardingDepth ) ) );
+
+        if ( !fanOut || ( shards.size() == 1 ) )
+        {
+            int readShard = readShard( shardIndex );
+            PartitionTxn partitionTxn = switchTxn( searchContext, readShard );
+
+            try
+            {
+                return shards.get( readShard ).search( searchContext );
+            }
+            finally
+            {
+                searchContext.setTransaction( partitionTxn );
+            }
+        }
+
+        // Search all the shards. The replicated entries are only returned by the first one.
+        List<EntryFilteringCursor> cursors = new ArrayList<EntryFilteringCursor>( shards.size() );
+
+        try
+        {
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                PartitionTxn partitionTxn = switchTxn( searchContext, i );
+
+                try
+                {
+                    EntryFilteringCursor cursor = shards.get( i ).search( searchContext );
+
+                    if ( ( i > 0 ) && ( scope == SearchScope.SUBTREE ) )
+                    {
+                        cursor.addEntryFilter( replicatedEntryFilter );
+                    }
+
+                    cursors.add( cursor );
+                }
+                finally
+                {
+                    searchContext.setTransaction( partitionTxn );
+                }
+            }
+        }
+        catch ( LdapException le )
+        {
+            for ( EntryFilteringCursor cursor : cursors )
+            {
+                try
+                {
+                    cursor.close( le );
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to close a shard cursor", e );
+                }
+            }
+
+            throw le;
+        }
+
+        return new ParallelCursorList( cursors, searchExecutor, searchQueueSize, searchContext );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+    {
+        int shardIndex = readShard( getShardIndex( lookupContext.getDn() ) );
+        PartitionTxn partitionTxn = switchTxn( lookupContext, shardIndex );
+
+        try
+        {
+            return shards.get( shardIndex ).lookup( lookupContext );
+        }
+        finally
+        {
+            lookupContext.setTransaction( partitionTxn );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasEntry( HasEntryOperationContext hasEntryContext ) throws LdapException
+    {
+        int shardIndex = readShard( getShardIndex( hasEntryContext.getDn() ) );
+        PartitionTxn partitionTxn = switchTxn( hasEntryContext, shardIndex );
+
+        try
+        {
+            return shards.get( shardIndex ).hasEntry( hasEntryContext );
+        }
+        finally
+        {
+            hasEntryContext.setTransaction( partitionTxn );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        Dn oldDn = renameContext.getDn();
+        Dn newDn = renameContext.getNewDn();
+        int shardIndex = getShardIndex( oldDn );
+
+        if ( shardIndex == REPLICATED )
+        {
+            checkReplicatedModDn( oldDn, newDn );
+
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                PartitionTxn partitionTxn = switchTxn( renameContext, i );
+
+                try
+                {
+                    shards.get( i ).rename( renameContext );
+                }
+                finally
+                {
+                    renameContext.setTransaction( partitionTxn );
+                }
+            }
+
+            return;
+        }
+
+        int newShardIndex = getShardIndex( newDn );
+
+        if ( newShardIndex != shardIndex )
+        {
+            transfer( renameContext, shardIndex, newShardIndex, newDn );
+
+            return;
+        }
+
+        PartitionTxn partitionTxn = switchTxn( renameContext, shardIndex );
+
+        try
+        {
+            shards.get( shardIndex ).rename( renameContext );
+        }
+        finally
+        {
+            renameContext.setTransaction( partitionTxn );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        Dn oldDn = moveContext.getDn();
+        Dn newDn = moveContext.getNewDn();
+        int shardIndex = getShardIndex( oldDn );
+
+        if ( shardIndex == REPLICATED )
+        {
+            checkReplicatedModDn( oldDn, newDn );
+
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                PartitionTxn partitionTxn = switchTxn( moveContext, i );
+
+                try
+                {
+                    shards.get( i ).move( moveContext );
+                }
+                finally
+                {
+                    moveContext.setTransaction( partitionTxn );
+                }
+            }
+
+            return;
+        }
+
+        int newShardIndex = getShardIndex( newDn );
+
+        if ( newShardIndex != shardIndex )
+        {
+            transfer( moveContext, shardIndex, newShardIndex, newDn );
+
+            return;
+        }
+
+        PartitionTxn partitionTxn = switchTxn( moveContext, shardIndex );
+
+        try
+        {
+            shards.get( shardIndex ).move( moveContext );
+        }
+        finally
+        {
+            moveContext.setTransaction( partitionTxn );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        Dn oldDn = moveAndRenameContext.getDn();
+        Dn newDn = moveAndRenameContext.getNewDn();
+        int shardIndex = getShardIndex( oldDn );
+
+        if ( shardIndex == REPLICATED )
+        {
+            checkReplicatedModDn( oldDn, newDn );
+
+            for ( int i = 0; i < shards.size(); i++ )
+            {
+                PartitionTxn partitionTxn = switchTxn( moveAndRenameContext, i );
+
+                try
+                {
+                    shards.get( i ).moveAndRename( moveAndRenameContext );
+                }
+                finally
+                {
+                    moveAndRenameContext.setTransaction( partitionTxn );
+                }
+            }
+
+            return;
+        }
+
+        int newShardIndex = getShardIndex( newDn );
+
+        if ( newShardIndex != shardIndex )
+        {
+            transfer( moveAndRenameContext, shardIndex, newShardIndex, newDn );
+
+            return;
+        }
+
+        PartitionTxn partitionTxn = switchTxn( moveAndRenameContext, shardIndex );
+
+        try
+        {
+            shards.get( shardIndex ).moveAndRename( moveAndRenameContext );
+        }
+        finally
+        {
+            moveAndRenameContext.setTransaction( partitionTxn );
+        }
+    }
+
+
+    /**
+     * Moves an entry from one shard to another one. This is only possible for leaf entries,
+     * moving a whole subtree across shards is not supported.
+     */
+    private void transfer( AbstractChangeOperationContext modDnContext, int fromShard, int toShard, Dn newDn )
+        throws LdapException
+    {
+        Dn oldDn = modDnContext.getDn();
+        Entry modifiedEntry = modDnContext.getModifiedEntry();
+
+        if ( modifiedEntry == null )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "Cannot move the entry " + oldDn + " from the shard " + shards.get( fromShard ).getId()
+                    + " to the shard " + shards.get( toShard ).getId() );
+        }
+
+        LookupOperationContext lookupContext = new LookupOperationContext( modDnContext.getSession(), oldDn );
+        lookupContext.setTransaction( getShardTxn( modDnContext.getTransaction(), fromShard ) );
+        Entry entry = shards.get( fromShard ).lookup( lookupContext );
+
+        if ( entry == null )
+        {
+            throw new LdapNoSuchObjectException( "Cannot find the entry " + oldDn );
+        }
+
+        Subordinates subordinates = shards.get( fromShard ).getSubordinates( lookupContext.getTransaction(), entry );
+
+        if ( subordinates.getNbChildren() > 0 )
+        {
+            throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "Cannot move the entry " + oldDn + " and its descendants from the shard "
+                    + shards.get( fromShard ).getId() + " to the shard " + shards.get( toShard ).getId() );
+        }
+
+        // Add the entry to the target shard first : if this fails, the source shard is left untouched
+        Entry newEntry = modifiedEntry.clone();
+        newEntry.setDn( newDn );
+        AddOperationContext addContext = new AddOperationContext( modDnContext.getSession(), newEntry );
+        addContext.setTransaction( getShardTxn( modDnContext.getTransaction(), toShard ) );
+        shards.get( toShard ).add( addContext );
+
+        DeleteOperationContext deleteContext = new DeleteOperationContext( modDnContext.getSession(), oldDn );
+        deleteContext.setEntry( entry );
+        deleteContext.setTransaction( lookupContext.getTransaction() );
+
+        try
+        {
+            shards.get( fromShard ).delete( deleteContext );
+        }
+        catch ( LdapException le )
+        {
+            // Remove the copy, the entry stays in the source shard
+            DeleteOperationContext rollbackContext = new DeleteOperationContext( modDnContext.getSession(), newDn );
+            rollbackContext.setEntry( newEntry );
+            rollbackContext.setTransaction( addContext.getTransaction() );
+
+            try
+            {
+                shards.get( toShard ).delete( rollbackContext );
+            }
+            catch ( LdapException rollbackException )
+            {
+                LOG.error( "Cannot remove the entry {} from the shard {} after a failed move", newDn, toShard,
+                    rollbackException );
+            }
+
+            throw le;
+        }
+
+        LOG.debug( "Entry {} moved from shard {} to shard {} as {}", oldDn, fromShard, toShard, newDn );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void unbind( UnbindOperationContext unbindContext ) throws LdapException
+    {
+        for ( Partition shard : shards )
+        {
+            shard.unbind( unbindContext );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sync() throws LdapException
+    {
+        for ( Partition shard : shards )
+        {
+            shard.sync();
+        }
+    }
+
+
+    /**
+     * Backups each shard in a sub-directory named after the shard ID
+     */
+    @Override
+    public void backup( File backupDirectory, ReadWriteLock rwLock ) throws LdapException
+    {
+        for ( Partition shard : shards )
+        {
+            shard.backup( new File( backupDirectory, shard.getId() ), rwLock );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void dumpIndex( PartitionTxn partitionTxn, OutputStream stream, String name ) throws IOException
+    {
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            shards.get( i ).dumpIndex( getShardTxn( partitionTxn, i ), stream, name );
+        }
+    }
+
+
+    /**
+     * The context CSN is the highest context CSN of all the shards.
+     */
+    @Override
+    public String getContextCsn( PartitionTxn partitionTxn )
+    {
+        String contextCsn = null;
+
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            String shardCsn = shards.get( i ).getContextCsn( getShardTxn( partitionTxn, i ) );
+
+            if ( ( shardCsn != null ) && ( ( contextCsn == null ) || ( shardCsn.compareTo( contextCsn ) > 0 ) ) )
+            {
+                contextCsn = shardCsn;
+            }
+        }
+
+        return contextCsn;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveContextCsn( PartitionTxn partitionTxn ) throws LdapException
+    {
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            shards.get( i ).saveContextCsn( getShardTxn( partitionTxn, i ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The children of a replicated entry are either all replicated, or all spread across the shards.
+     */
+    @Override
+    public Subordinates getSubordinates( PartitionTxn partitionTxn, Entry entry ) throws LdapException
+    {
+        int shardIndex = getShardIndex( entry.getDn() );
+
+        if ( shardIndex != REPLICATED )
+        {
+            return shards.get( shardIndex ).getSubordinates( getShardTxn( partitionTxn, shardIndex ), entry );
+        }
+
+        Subordinates first = shards.get( 0 ).getSubordinates( getShardTxn( partitionTxn, 0 ), entry );
+        int depth = entry.getDn().size() - suffixDn.size();
+
+        if ( depth + 1 < shardingDepth )
+        {
+            // The children are replicated. The descendants of the shard roots are not counted
+            return first;
+        }
+
+        Subordinates subordinates = new Subordinates();
+        long nbChildren = first.getNbChildren();
+        long nbSubordinates = first.getNbSubordinates();
+
+        for ( int i = 1; i < shards.size(); i++ )
+        {
+            Subordinates shardSubordinates = shards.get( i ).getSubordinates( getShardTxn( partitionTxn, i ), entry );
+            nbChildren += shardSubordinates.getNbChildren();
+            nbSubordinates += shardSubordinates.getNbSubordinates();
+        }
+
+        subordinates.setNbChildren( nbChildren );
+        subordinates.setNbSubordinates( nbSubordinates );
+
+        return subordinates;
+    }
+
+
+    /**
+     * @return the shards
+     */
+    public List<Partition> getShards()
+    {
+        return shards;
+    }
+
+
+    /**
+     * @param shards the shards to set
+     */
+    public void setShards( List<Partition> shards )
+    {
+        checkInitialized( "shards" );
+        this.shards = new ArrayList<Partition>( shards );
+    }
+
+
+    /**
+     * Adds a shard. The shards must be added in the same order each time the server is started.
+     *
+     * @param shard the shard to add
+     */
+    public void addShard( Partition shard )
+    {
+        checkInitialized( "shards" );
+        shards.add( shard );
+    }
+
+
+    /**
+     * @return the depth, below the suffix, of the shard roots
+     */
+    public int getShardingDepth()
+    {
+        return shardingDepth;
+    }
+
+
+    /**
+     * @param shardingDepth the depth, below the suffix, of the shard roots
+     */
+    public void setShardingDepth( int shardingDepth )
+    {
+        checkInitialized( "shardingDepth" );
+        this.shardingDepth = shardingDepth;
+    }
+
+
+    /**
+     * @return the attribute whose value is hashed to select a shard
+     */
+    public String getHashAttribute()
+    {
+        return hashAttribute;
+    }
+
+
+    /**
+     * @param hashAttribute the attribute whose value is hashed to select a shard. If not set, or if
+     * the shard root RDN does not contain this attribute, the whole RDN is hashed.
+     */
+    public void setHashAttribute( String hashAttribute )
+    {
+        checkInitialized( "hashAttribute" );
+        this.hashAttribute = hashAttribute;
+    }
+
+
+    /**
+     * @return the configured branches
+     */
+    public Map<Dn, Integer> getBranches()
+    {
+        return branches;
+    }
+
+
+    /**
+     * Stores a shard root, and all its descendants, in a given shard.
+     *
+     * @param branchDn The shard root Dn
+     * @param shardIndex The shard index
+     */
+    public void addBranch( Dn branchDn, int shardIndex )
+    {
+        checkInitialized( "branches" );
+        branches.put( branchDn, shardIndex );
+    }
+
+
+    /**
+     * @return the number of threads used to search the shards in parallel
+     */
+    public int getSearchThreads()
+    {
+        return searchThreads;
+    }
+
+
+    /**
+     * @param searchThreads the number of threads used to search the shards in parallel
+     */
+    public void setSearchThreads( int searchThreads )
+    {
+        checkInitialized( "searchThreads" );
+        this.searchThreads = searchThreads;
+    }
+
+
+    /**
+     * @return the number of entries read in advance during a parallel search
+     */
+    public int getSearchQueueSize()
+    {
+        return searchQueueSize;
+    }
+
+
+    /**
+     * @param searchQueueSize the number of entries read in advance during a parallel search
+     */
+    public void setSearchQueueSize( int searchQueueSize )
+    {
+        checkInitialized( "searchQueueSize" );
+        this.searchQueueSize = searchQueueSize;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared.partition;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * A read transaction on a {@link ShardedPartition}. It starts a read transaction on
+ * each shard the first time this shard is read, and closes all of them together.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ShardedPartitionReadTxn extends PartitionReadTxn
+{
+    /** The shards */
+    private List<Partition> shards;
+
+    /** The transactions started on each shard */
+    private PartitionTxn[] shardTxns;
+
+    /** Tells if the transaction has been closed */
+    private boolean closed;
+
+
+    /**
+     * Creates a new ShardedPartitionReadTxn instance
+     *
+     * @param shards The shards
+     */
+    public ShardedPartitionReadTxn( List<Partition> shards )
+    {
+        this.shards = shards;
+        shardTxns = new PartitionTxn[shards.size()];
+    }
+
+
+    /**
+     * Gets the read transaction to use on a shard, starting it if needed
+     *
+     * @param shardIndex The shard index
+     * @return The shard read transaction
+     */
+    public PartitionTxn getShardTxn( int shardIndex )
+    {
+        if ( shardTxns[shardIndex] == null )
+        {
+            shardTxns[shardIndex] = shards.get( shardIndex ).beginReadTransaction();
+        }
+
+        return shardTxns[shardIndex];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() throws IOException
+    {
+        close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() throws IOException
+    {
+        IOException error = null;
+
+        for ( PartitionTxn shardTxn : shardTxns )
+        {
+            if ( shardTxn != null )
+            {
+                try
+                {
+                    shardTxn.abort();
+                }
+                catch ( IOException ioe )
+                {
+                    error = ioe;
+                }
+            }
+        }
+
+        closed = true;
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        IOException error = null;
+
+        for ( PartitionTxn shardTxn : shardTxns )
+        {
+            if ( shardTxn != null )
+            {
+                try
+                {
+                    shardTxn.close();
+                }
+                catch ( IOException ioe )
+                {
+                    error = ioe;
+                }
+            }
+        }
+
+        closed = true;
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.shared.partition;
+
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+
+
+/**
+ * A write transaction on a {@link ShardedPartition}. It starts a write transaction on
+ * each shard the first time this shard is modified, and commits or aborts all of them.
+ * Note that the shards are committed one after the other, the commit is not atomic.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ShardedPartitionWriteTxn extends PartitionWriteTxn
+{
+    /** The shards */
+    private List<Partition> shards;
+
+    /** The transactions started on each shard */
+    private PartitionTxn[] shardTxns;
+
+    /** Tells if the transaction has been committed or aborted */
+    private boolean closed;
+
+
+    /**
+     * Creates a new ShardedPartitionWriteTxn instance
+     *
+     * @param shards The shards
+     */
+    public ShardedPartitionWriteTxn( List<Partition> shards )
+    {
+        this.shards = shards;
+        shardTxns = new PartitionTxn[shards.size()];
+    }
+
+
+    /**
+     * Gets the write transaction to use on a shard, starting it if needed
+     *
+     * @param shardIndex The shard index
+     * @return The shard write transaction
+     */
+    public PartitionTxn getShardTxn( int shardIndex )
+    {
+        if ( shardTxns[shardIndex] == null )
+        {
+            shardTxns[shardIndex] = shards.get( shardIndex ).beginWriteTransaction();
+        }
+
+        return shardTxns[shardIndex];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() throws IOException
+    {
+        IOException error = null;
+
+        for ( PartitionTxn shardTxn : shardTxns )
+        {
+            if ( shardTxn != null )
+            {
+                try
+                {
+                    shardTxn.commit();
+                }
+                catch ( IOException ioe )
+                {
+                    error = ioe;
+                }
+            }
+        }
+
+        closed = true;
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() throws IOException
+    {
+        IOException error = null;
+
+        for ( PartitionTxn shardTxn : shardTxns )
+        {
+            if ( shardTxn != null )
+            {
+                try
+                {
+                    shardTxn.abort();
+                }
+                catch ( IOException ioe )
+                {
+                    error = ioe;
+                }
+            }
+        }
+
+        closed = true;
+
+        if ( error != null )
+        {
+            throw error;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( !closed )
+        {
+            commit();
+        }
+    }
+}
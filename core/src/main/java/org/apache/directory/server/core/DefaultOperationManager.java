@@ -40,6 +40,7 @@ import org.apache.directory.api.ldap.model.exception.LdapPartialResultException;
 import org.apache.directory.api.ldap.model.exception.LdapReferralException;
 import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -151,6 +152,76 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * Tells if an operation is part of a session transaction
+     */
+    private boolean isTransacted( OperationContext opContext )
+    {
+        CoreSession session = opContext.getSession();
+
+        return ( session != null ) && session.isTransacted();
+    }
+
+
+    /**
+     * Gets the write transaction to use for an operation. If the operation is part of a
+     * session transaction, the partition transaction is reused, or started and stored in
+     * the session, otherwise a new transaction is started. The partitions which can't roll
+     * back their changes are rejected from the session transactions.
+     */
+    private PartitionTxn beginWriteTransaction( OperationContext opContext, Partition partition )
+        throws LdapException
+    {
+        if ( isTransacted( opContext ) )
+        {
+            CoreSession session = opContext.getSession();
+            PartitionTxn transaction = session.getTransaction( partition );
+
+            if ( transaction == null )
+            {
+                if ( !partition.isRollbackSupported() )
+                {
+                    throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+                        "The partition " + partition.getId() + " can't roll back a transaction" );
+                }
+
+                transaction = partition.beginWriteTransaction();
+                session.addTransaction( partition, transaction );
+            }
+
+            return transaction;
+        }
+
+        return partition.beginWriteTransaction();
+    }
+
+
+    /**
+     * Commits the write transaction of an operation, unless it's part of a session
+     * transaction : it will be committed when the session transaction ends.
+     */
+    private void commit( OperationContext opContext, PartitionTxn transaction ) throws IOException
+    {
+        if ( !isTransacted( opContext ) )
+        {
+            transaction.commit();
+        }
+    }
+
+
+    /**
+     * Aborts the write transaction of an operation, unless it's part of a session
+     * transaction : it will be aborted when the session transaction ends.
+     */
+    private void abort( OperationContext opContext, PartitionTxn transaction ) throws IOException
+    {
+        if ( ( transaction != null ) && !isTransacted( opContext ) )
+        {
+            transaction.abort();
+        }
+    }
+
+
     /**
      * Eagerly populates fields of operation contexts so multiple Interceptors
      * in the processing pathway can reuse this value without performing a
@@ -413,11 +484,11 @@ public class DefaultOperationManager implements OperationManager
         
         try
         {
-            transaction = partition.beginWriteTransaction();
+            transaction = beginWriteTransaction( addContext, partition );
             addContext.setTransaction( transaction );
 
             head.add( addContext );
-            transaction.commit();
+            commit( addContext, transaction );
         }
         catch ( LdapException le )
         {
@@ -425,7 +496,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( addContext, transaction );
                 }
                 
                 throw le;
@@ -439,7 +510,7 @@ public class DefaultOperationManager implements OperationManager
         {
             try
             {
-                transaction.abort();
+                abort( addContext, transaction );
                 
                 throw new LdapOtherException( ioe.getMessage(), ioe );
             }
@@ -737,7 +808,7 @@ public class DefaultOperationManager implements OperationManager
         
         try
         {
-            transaction = partition.beginWriteTransaction();
+            transaction = beginWriteTransaction( deleteContext, partition );
             deleteContext.setTransaction( transaction );
 
             eagerlyPopulateFields( deleteContext );
@@ -747,7 +818,7 @@ public class DefaultOperationManager implements OperationManager
 
             head.delete( deleteContext );
 
-            transaction.commit();
+            commit( deleteContext, transaction );
         }
         catch ( LdapException le )
         {
@@ -755,7 +826,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( deleteContext, transaction );
                 }
                 
                 throw le;
@@ -771,7 +842,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( deleteContext, transaction );
                 }
                 
                 throw new LdapOtherException( ioe.getMessage(), ioe );
@@ -1089,7 +1160,7 @@ public class DefaultOperationManager implements OperationManager
 
         try
         {
-            partitionTxn = partition.beginWriteTransaction();
+            partitionTxn = beginWriteTransaction( modifyContext, partition );
             modifyContext.setTransaction( partitionTxn );
 
             // populate the context with the old entry
@@ -1099,7 +1170,7 @@ public class DefaultOperationManager implements OperationManager
             Interceptor head = directoryService.getInterceptor( modifyContext.getNextInterceptor() );
 
             head.modify( modifyContext );
-            partitionTxn.commit();
+            commit( modifyContext, partitionTxn );
         }
         catch ( LdapException le )
         {
@@ -1107,7 +1178,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( partitionTxn != null )
                 {
-                    partitionTxn.abort();
+                    abort( modifyContext, partitionTxn );
                 }
                 
                 throw le;
@@ -1121,7 +1192,7 @@ public class DefaultOperationManager implements OperationManager
         {
             try 
             {
-                partitionTxn.abort();
+                abort( modifyContext, partitionTxn );
                 
                 throw new LdapOtherException( ioe.getMessage(), ioe );
             }
@@ -1257,7 +1328,7 @@ public class DefaultOperationManager implements OperationManager
         
         try
         {
-            transaction = partition.beginWriteTransaction();
+            transaction = beginWriteTransaction( moveContext, partition );
             moveContext.setTransaction( transaction );
             Entry originalEntry = getOriginalEntry( moveContext );
 
@@ -1267,7 +1338,7 @@ public class DefaultOperationManager implements OperationManager
             Interceptor head = directoryService.getInterceptor( moveContext.getNextInterceptor() );
 
             head.move( moveContext );
-            transaction.commit();
+            commit( moveContext, transaction );
         }
         catch ( LdapException le )
         {
@@ -1275,7 +1346,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( moveContext, transaction );
                 }
                 
                 throw le;
@@ -1291,7 +1362,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( moveContext, transaction );
                 }
                 
                 throw new LdapOtherException( ioe.getMessage(), ioe );
@@ -1428,7 +1499,7 @@ public class DefaultOperationManager implements OperationManager
         
         try
         {
-            transaction = partition.beginWriteTransaction();
+            transaction = beginWriteTransaction( moveAndRenameContext, partition );
             moveAndRenameContext.setOriginalEntry( getOriginalEntry( moveAndRenameContext ) );
             moveAndRenameContext.setModifiedEntry( moveAndRenameContext.getOriginalEntry().clone() );
             moveAndRenameContext.setTransaction( transaction );
@@ -1438,7 +1509,7 @@ public class DefaultOperationManager implements OperationManager
 
             head.moveAndRename( moveAndRenameContext );
 
-            transaction.commit();
+            commit( moveAndRenameContext, transaction );
         }
         catch ( LdapException le )
         {
@@ -1446,7 +1517,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( moveAndRenameContext, transaction );
                 }
                 
                 throw le;
@@ -1462,7 +1533,7 @@ public class DefaultOperationManager implements OperationManager
             {
                 if ( transaction != null )
                 {
-                    transaction.abort();
+                    abort( moveAndRenameContext, transaction );
                 }
                 
                 throw new LdapOtherException( ioe.getMessage(), ioe );
@@ -1629,11 +1700,11 @@ public class DefaultOperationManager implements OperationManager
             
             try
             {
-                transaction = partition.beginWriteTransaction();
+                transaction = beginWriteTransaction( renameContext, partition );
                 renameContext.setTransaction( transaction );
 
                 head.rename( renameContext );
-                transaction.commit();
+                commit( renameContext, transaction );
             }
             catch ( LdapException le )
             {
@@ -1641,7 +1712,7 @@ public class DefaultOperationManager implements OperationManager
                 {
                     if ( transaction != null )
                     {
-                        transaction.abort();
+                        abort( renameContext, transaction );
                     }
                     
                     throw le;
@@ -1657,7 +1728,7 @@ public class DefaultOperationManager implements OperationManager
                 {
                     if ( transaction != null )
                     {
-                        transaction.abort();
+                        abort( renameContext, transaction );
                     }
                     
                     throw new LdapOtherException( ioe.getMessage(), ioe );
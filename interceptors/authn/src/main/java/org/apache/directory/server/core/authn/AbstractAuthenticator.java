@@ -32,6 +32,7 @@ import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchema
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -178,6 +179,28 @@ public abstract class AbstractAuthenticator implements Authenticator
     }
 
 
+    /**
+     * Evicts the entries cached for a Dn and all the Dns below it. This default only evicts
+     * the base Dn, subclasses with a cache must override it.
+     */
+    @Override
+    public void invalidateCacheSubtree( Dn baseDn )
+    {
+        invalidateCache( baseDn );
+    }
+
+
+    /**
+     * Applies some modifications to the entry cached for a single Dn. This default evicts
+     * the entry instead, subclasses able to update it in place can override it.
+     */
+    @Override
+    public void updateCache( Dn bindDn, List<Modification> modifications )
+    {
+        invalidateCache( bindDn );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -223,6 +246,9 @@ public abstract class AbstractAuthenticator implements Authenticator
             directoryService.getPartitionNexus().modify( modContext );
 
             partitionTxn.commit();
+
+            // The password policy state has changed
+            updateCache( modContext.getDn(), modContext.getModItems() );
         }
         catch ( LdapException le )
         {
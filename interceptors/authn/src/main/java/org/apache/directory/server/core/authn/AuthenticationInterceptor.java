@@ -66,6 +66,7 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoPermissionException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -485,6 +486,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
             directoryService.getPartitionNexus().modify( bindModCtx );
 
             partitionTxn.commit();
+
+            // The password policy state has changed
+            updateAuthenticatorCaches( bindModCtx.getDn(), bindModCtx.getModItems() );
         }
         catch ( LdapException le )
         {
@@ -590,6 +594,12 @@ public class AuthenticationInterceptor extends BaseInterceptor
             // authentication failed, try the next authenticator
             LOG.info( "Authenticator {} failed to authenticate: {}", authenticator, bindContext.getDn() );
         }
+        catch ( LdapServiceUnavailableException e )
+        {
+            // The server is too busy to verify the password : this is not a failed bind
+            LOG.info( "Authenticator {} is busy, rejecting the bind for {}", authenticator, bindContext.getDn() );
+            throw e;
+        }
         catch ( Exception e )
         {
             // Log other exceptions than LdapAuthenticationException
@@ -924,6 +934,30 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
     }
 
+
+    private void invalidateAuthenticatorCachesSubtree( Dn baseDn )
+    {
+        for ( AuthenticationLevel authMech : authenticatorsMapByType.keySet() )
+        {
+            for ( Authenticator authenticator : getAuthenticators( authMech ) )
+            {
+                authenticator.invalidateCacheSubtree( baseDn );
+            }
+        }
+    }
+
+
+    private void updateAuthenticatorCaches( Dn principalDn, List<Modification> modifications )
+    {
+        for ( AuthenticationLevel authMech : authenticatorsMapByType.keySet() )
+        {
+            for ( Authenticator authenticator : getAuthenticators( authMech ) )
+            {
+                authenticator.updateCache( principalDn, modifications );
+            }
+        }
+    }
+
     
     /**
      * {@inheritDoc}
@@ -956,19 +990,58 @@ public class AuthenticationInterceptor extends BaseInterceptor
     {
         next( modifyContext );
 
-        List<Modification> modifications = modifyContext.getModItems();
+        refreshAuthenticatorCaches( modifyContext );
+    }
+
+
+    /**
+     * Updates the credentials cached by the authenticators after a modification : they are
+     * invalidated if the password has been modified, and the password policy state
+     * modifications are applied to the cached entries. The other modifications don't
+     * affect the credentials.
+     */
+    private void refreshAuthenticatorCaches( ModifyOperationContext modifyContext )
+    {
+        CoreSession session = modifyContext.getSession();
+        final Dn dn = modifyContext.getDn();
+
+        if ( ( session != null ) && session.isTransacted() )
+        {
+            // The cached credentials must not survive an aborted transaction
+            session.addAbortTask( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    invalidateAuthenticatorCaches( dn );
+                }
+            } );
+        }
+
+        AttributeType userPasswordAT = directoryService.getAtProvider().getUserPassword();
+        boolean pwdPolicyStateModified = false;
 
-        for ( Modification modification : modifications )
+        for ( Modification modification : modifyContext.getModItems() )
         {
-            if ( directoryService.getAtProvider().getUserPassword()
-                .equals( modification.getAttribute().getAttributeType() ) )
+            AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+            if ( userPasswordAT.equals( attributeType ) )
             {
                 invalidateAuthenticatorCaches( modifyContext.getDn() );
-                break;
+
+                return;
+            }
+
+            if ( PWD_POLICY_STATE_ATTRIBUTE_TYPES.contains( attributeType ) )
+            {
+                pwdPolicyStateModified = true;
             }
         }
 
-        return;
+        if ( pwdPolicyStateModified )
+        {
+            updateAuthenticatorCaches( modifyContext.getDn(), modifyContext.getModItems() );
+        }
     }
 
     
@@ -986,6 +1059,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             // We can going on, the password attribute is not present in the Modifications.
             next( modifyContext );
+
+            // An administrator may have modified the password policy state (unlocking an account, ...)
+            refreshAuthenticatorCaches( modifyContext );
         }
         else
         {
@@ -1336,7 +1412,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( moveContext );
         checkPwdReset( moveContext );
         next( moveContext );
-        invalidateAuthenticatorCaches( moveContext.getDn() );
+        invalidateAuthenticatorCachesSubtree( moveContext.getDn() );
     }
 
 
@@ -1354,7 +1430,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( moveAndRenameContext );
         checkPwdReset( moveAndRenameContext );
         next( moveAndRenameContext );
-        invalidateAuthenticatorCaches( moveAndRenameContext.getDn() );
+        invalidateAuthenticatorCachesSubtree( moveAndRenameContext.getDn() );
     }
 
 
@@ -1372,7 +1448,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( renameContext );
         checkPwdReset( renameContext );
         next( renameContext );
-        invalidateAuthenticatorCaches( renameContext.getDn() );
+        invalidateAuthenticatorCachesSubtree( renameContext.getDn() );
     }
 
 
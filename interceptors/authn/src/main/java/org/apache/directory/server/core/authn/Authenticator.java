@@ -20,8 +20,10 @@
 package org.apache.directory.server.core.authn;
 
 
+import java.util.List;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -78,6 +80,26 @@ public interface Authenticator
     void invalidateCache( Dn bindDn );
 
 
+    /**
+     * Callback used when an entry is renamed or moved, invalidating the cached credentials
+     * of the entry and of all its descendants.
+     * 
+     * @param baseDn the already normalized distinguished name of the renamed or moved entry
+     */
+    void invalidateCacheSubtree( Dn baseDn );
+
+
+    /**
+     * Callback used when the password policy state of an entry has been modified, without
+     * any change to its password. The authenticator may apply the modifications to the
+     * cached entry rather than invalidating it, as this happens on each bind.
+     * 
+     * @param bindDn the already normalized distinguished name of the bind principal
+     * @param modifications the modifications done on the entry
+     */
+    void updateCache( Dn bindDn, List<Modification> modifications );
+
+
     /**
      * Performs authentication and returns the principal if succeeded.
      * 
@@ -0,0 +1,372 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+
+/**
+ * A bounded LRU cache of the credentials used to authenticate simple binds, keyed by
+ * the normalized Dn of the user entry. The cache is split in stripes, each one being
+ * a LRU map protected by its own lock, so that concurrent binds don't serialize on a
+ * single monitor.
+ * <p>
+ * A credential read from the backend must only be stored if no invalidation happened
+ * while it was read : the stamp returned by {@link #getStamp(String)} before the lookup is
+ * given back to {@link #put(String, Credentials, long)}, which ignores the credentials
+ * if the stripe they belong to has been invalidated since.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class CredentialCache
+{
+    /** The number of stripes */
+    private static final int NB_STRIPES = 16;
+
+    /** The stripes */
+    private final Stripe[] stripes;
+
+
+    /**
+     * The credentials stored for a user
+     */
+    static final class Credentials
+    {
+        /** The stored passwords */
+        private final byte[][] passwords;
+
+        /** The attribute the passwords have been read from */
+        private final String passwordAttribute;
+
+        /** The user entry, kept when the password policy is enabled */
+        private final Entry entry;
+
+
+        /**
+         * Creates a new Credentials instance
+         *
+         * @param passwords The stored passwords
+         * @param passwordAttribute The attribute the passwords have been read from
+         * @param entry The user entry, if needed
+         */
+        Credentials( byte[][] passwords, String passwordAttribute, Entry entry )
+        {
+            this.passwords = passwords;
+            this.passwordAttribute = passwordAttribute;
+            this.entry = entry;
+        }
+
+
+        /**
+         * @return the stored passwords
+         */
+        byte[][] getPasswords()
+        {
+            return passwords;
+        }
+
+
+        /**
+         * @return the attribute the passwords have been read from
+         */
+        String getPasswordAttribute()
+        {
+            return passwordAttribute;
+        }
+
+
+        /**
+         * @return the user entry, or null if it has not been kept
+         */
+        Entry getEntry()
+        {
+            return entry;
+        }
+    }
+
+
+    /**
+     * A LRU map, bounded to a maximum number of elements
+     */
+    private static final class Stripe extends LinkedHashMap<String, Credentials>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The maximum number of elements */
+        private final int maxSize;
+
+        /** Incremented each time some credentials of this stripe are invalidated or updated */
+        private long invalidations;
+
+
+        Stripe( int maxSize )
+        {
+            super( 16, 0.75f, true );
+            this.maxSize = maxSize;
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Credentials> eldest )
+        {
+            return size() > maxSize;
+        }
+    }
+
+
+    /**
+     * Creates a new CredentialCache instance
+     *
+     * @param maxSize The maximum number of cached credentials
+     */
+    CredentialCache( int maxSize )
+    {
+        int stripeSize = Math.max( 1, ( maxSize + NB_STRIPES - 1 ) / NB_STRIPES );
+        stripes = new Stripe[NB_STRIPES];
+
+        for ( int i = 0; i < NB_STRIPES; i++ )
+        {
+            stripes[i] = new Stripe( stripeSize );
+        }
+    }
+
+
+    private Stripe getStripe( String normName )
+    {
+        int hash = normName.hashCode();
+        hash ^= hash >>> 16;
+
+        return stripes[hash & ( NB_STRIPES - 1 )];
+    }
+
+
+    /**
+     * Gets the credentials of a user
+     *
+     * @param normName The normalized user Dn
+     * @return The cached credentials, or null
+     */
+    Credentials get( String normName )
+    {
+        Stripe stripe = getStripe( normName );
+
+        synchronized ( stripe )
+        {
+            return stripe.get( normName );
+        }
+    }
+
+
+    /**
+     * @param normName The normalized user Dn
+     * @return The stamp to give to {@link #put(String, Credentials, long)}, to be read before
+     * the credentials are looked up
+     */
+    long getStamp( String normName )
+    {
+        Stripe stripe = getStripe( normName );
+
+        synchronized ( stripe )
+        {
+            return stripe.invalidations;
+        }
+    }
+
+
+    /**
+     * Stores the credentials of a user, unless they have been invalidated since the
+     * stamp has been read.
+     *
+     * @param normName The normalized user Dn
+     * @param credentials The credentials to store
+     * @param stamp The stamp read before the credentials have been looked up
+     */
+    void put( String normName, Credentials credentials, long stamp )
+    {
+        Stripe stripe = getStripe( normName );
+
+        synchronized ( stripe )
+        {
+            if ( stripe.invalidations == stamp )
+            {
+                stripe.put( normName, credentials );
+            }
+        }
+    }
+
+
+    /**
+     * Removes the credentials of a user.
+     *
+     * @param normName The normalized Dn
+     */
+    void invalidate( String normName )
+    {
+        Stripe stripe = getStripe( normName );
+
+        synchronized ( stripe )
+        {
+            stripe.invalidations++;
+            stripe.remove( normName );
+        }
+    }
+
+
+    /**
+     * Removes the credentials of a user and of all its descendants, as a rename or a move
+     * changes the Dn of the whole subtree. All the cached credentials are checked.
+     *
+     * @param normName The normalized Dn
+     */
+    void invalidateSubtree( String normName )
+    {
+        String suffix = "," + normName;
+
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                stripe.invalidations++;
+                Iterator<String> keys = stripe.keySet().iterator();
+
+                while ( keys.hasNext() )
+                {
+                    String key = keys.next();
+
+                    if ( key.equals( normName ) || key.endsWith( suffix ) )
+                    {
+                        keys.remove();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Applies some modifications which don't change the passwords, typically the password
+     * policy state updated on each bind, to the cached user entry. The credentials are kept,
+     * unless the modifications can't be applied.
+     *
+     * @param normName The normalized user Dn
+     * @param modifications The modifications done on the user entry
+     */
+    void update( String normName, List<Modification> modifications )
+    {
+        Stripe stripe = getStripe( normName );
+
+        synchronized ( stripe )
+        {
+            // A concurrent lookup may have read the entry before it was modified
+            stripe.invalidations++;
+            Credentials credentials = stripe.get( normName );
+
+            if ( ( credentials == null ) || ( credentials.getEntry() == null ) )
+            {
+                return;
+            }
+
+            try
+            {
+                Entry entry = credentials.getEntry().clone();
+
+                for ( Modification modification : modifications )
+                {
+                    apply( entry, modification );
+                }
+
+                stripe.put( normName, new Credentials( credentials.getPasswords(),
+                    credentials.getPasswordAttribute(), entry ) );
+            }
+            catch ( LdapException le )
+            {
+                stripe.remove( normName );
+            }
+        }
+    }
+
+
+    private void apply( Entry entry, Modification modification ) throws LdapException
+    {
+        Attribute attribute = modification.getAttribute();
+
+        switch ( modification.getOperation() )
+        {
+            case ADD_ATTRIBUTE:
+                entry.add( attribute.clone() );
+                break;
+
+            case REMOVE_ATTRIBUTE:
+                if ( attribute.size() == 0 )
+                {
+                    entry.removeAttributes( attribute.getId() );
+                }
+                else
+                {
+                    entry.remove( attribute );
+                }
+
+                break;
+
+            case REPLACE_ATTRIBUTE:
+                if ( attribute.size() == 0 )
+                {
+                    entry.removeAttributes( attribute.getId() );
+                }
+                else
+                {
+                    entry.put( attribute.clone() );
+                }
+
+                break;
+
+            default:
+                throw new LdapException( "Unexpected modification operation " + modification.getOperation() );
+        }
+    }
+
+
+    /**
+     * @return The number of cached credentials
+     */
+    int size()
+    {
+        int size = 0;
+
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+}
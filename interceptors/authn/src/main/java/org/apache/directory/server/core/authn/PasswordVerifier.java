@@ -0,0 +1,473 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Compares the credentials given in a bind request with the stored passwords. The comparisons
+ * against passwords hashed with an expensive scheme (PKCS5S2, crypt, SHA-384 and SHA-512) are
+ * done by a dedicated pool of threads, so that a login storm can't use more CPU than this pool
+ * has threads. The pool has a bounded queue : when it's full, or when a comparison waits
+ * for too long, the bind fails immediately with a BUSY result code.
+ *
+ * The LDAP server hands the simple binds of the users having an expensive password over to this pool
+ * with {@link #execute(Runnable, Runnable)}, and the response is written by the pool thread : the
+ * network threads are released as soon as the request has been queued. The comparisons requested from a pool thread are then done inline.
+ * The other callers (embedded server, SASL, ...) still wait for the pool to do the comparison.
+ *
+ * The cheap comparisons are always done by the calling thread.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordVerifier
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordVerifier.class );
+
+    /** The default number of pending comparisons */
+    public static final int DEFAULT_QUEUE_SIZE = 128;
+
+    /** The default maximum time to wait for a comparison, in ms */
+    public static final long DEFAULT_TIMEOUT = 5000L;
+
+    /** The executor doing the comparisons */
+    private final ThreadPoolExecutor executor;
+
+    /** The maximum time to wait for a comparison, in ms */
+    private final long timeout;
+
+    /** The number of comparisons done by the pool */
+    private final AtomicLong nbVerifications = new AtomicLong();
+
+    /** The number of comparisons rejected because the pool was saturated */
+    private final AtomicLong nbRejected = new AtomicLong();
+
+    /** The number of tasks which have waited in the queue */
+    private final AtomicLong nbQueued = new AtomicLong();
+
+    /** The total time the tasks have been waiting in the queue, in ns */
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    /** The total time spent doing the comparisons, in ns */
+    private final AtomicLong totalVerificationTime = new AtomicLong();
+
+    /** The longest comparison, from submission to completion, in ns */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+
+    /**
+     * The threads of the pool, which know the verifier they belong to
+     */
+    private static final class VerifierThread extends Thread
+    {
+        /** The verifier owning this thread */
+        private final PasswordVerifier verifier;
+
+
+        private VerifierThread( PasswordVerifier verifier, Runnable runnable, String name )
+        {
+            super( runnable, name );
+            this.verifier = verifier;
+        }
+    }
+
+
+    /**
+     * Creates a new PasswordVerifier instance, with one thread per processor and the
+     * default queue size and timeout.
+     */
+    public PasswordVerifier()
+    {
+        this( Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT );
+    }
+
+
+    /**
+     * Creates a new PasswordVerifier instance.
+     *
+     * @param nbThreads The number of threads doing the comparisons
+     * @param queueSize The maximum number of comparisons waiting for a thread
+     * @param timeout The maximum time to wait for a comparison, in ms
+     */
+    public PasswordVerifier( int nbThreads, int queueSize, long timeout )
+    {
+        this.timeout = timeout;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor( nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>( queueSize ), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new VerifierThread( PasswordVerifier.this, runnable, "password-verifier-"
+                        + threadNumber.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+    }
+
+
+    /**
+     * Tells if comparing some credentials with a stored password is expensive
+     *
+     * @param storedPassword The stored password
+     * @return true if the comparison must be done by the pool
+     */
+    public static boolean isExpensive( byte[] storedPassword )
+    {
+        LdapSecurityConstants algorithm = PasswordUtil.findAlgorithm( storedPassword );
+
+        if ( algorithm == null )
+        {
+            // Plain text
+            return false;
+        }
+
+        switch ( algorithm )
+        {
+            case HASH_METHOD_MD5:
+            case HASH_METHOD_SMD5:
+            case HASH_METHOD_SHA:
+            case HASH_METHOD_SSHA:
+            case HASH_METHOD_SHA256:
+            case HASH_METHOD_SSHA256:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+
+    /**
+     * Compares the credentials with some stored passwords
+     *
+     * @param credentials The credentials given by the user
+     * @param storedPasswords The stored passwords
+     * @return true if the credentials match one of the stored passwords
+     * @throws LdapServiceUnavailableException If the pool is saturated
+     * @throws LdapException If the comparison failed
+     */
+    public boolean compareCredentials( final byte[] credentials, final byte[][] storedPasswords )
+        throws LdapException
+    {
+        boolean expensive = false;
+
+        for ( byte[] storedPassword : storedPasswords )
+        {
+            if ( isExpensive( storedPassword ) )
+            {
+                expensive = true;
+                break;
+            }
+        }
+
+        if ( !expensive )
+        {
+            return compare( credentials, storedPasswords );
+        }
+
+        if ( isPoolThread() )
+        {
+            // The whole operation is already run by the pool, no need to wait for another thread
+            long startTime = System.nanoTime();
+
+            try
+            {
+                return compare( credentials, storedPasswords );
+            }
+            finally
+            {
+                long endTime = System.nanoTime();
+                totalVerificationTime.addAndGet( endTime - startTime );
+                nbVerifications.incrementAndGet();
+            }
+        }
+
+        final long submitTime = System.nanoTime();
+        Future<Boolean> future;
+
+        try
+        {
+            future = executor.submit( new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    long startTime = System.nanoTime();
+                    totalWaitTime.addAndGet( startTime - submitTime );
+                    nbQueued.incrementAndGet();
+
+                    try
+                    {
+                        return compare( credentials, storedPasswords );
+                    }
+                    finally
+                    {
+                        long endTime = System.nanoTime();
+                        totalVerificationTime.addAndGet( endTime - startTime );
+                        nbVerifications.incrementAndGet();
+                        updateMaxLatency( endTime - submitTime );
+                    }
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            nbRejected.incrementAndGet();
+            LOG.warn( "The password verification pool is saturated, rejecting the bind" );
+
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY,
+                "Too many pending password verifications" );
+        }
+
+        try
+        {
+            return future.get( timeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException te )
+        {
+            future.cancel( true );
+            nbRejected.incrementAndGet();
+            LOG.warn( "The password verification took more than {}ms, rejecting the bind", timeout );
+
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY, "The password verification timed out" );
+        }
+        catch ( InterruptedException ie )
+        {
+            future.cancel( true );
+            Thread.currentThread().interrupt();
+
+            throw new LdapOtherException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new LdapOtherException( ee.getMessage(), ee.getCause() );
+        }
+    }
+
+
+    /**
+     * Runs an operation needing some password comparisons, typically a bind, in the pool. The
+     * comparisons are done inline by the pool thread, and the caller does not wait for the
+     * operation to complete. If the operation has waited in the queue for more than the timeout,
+     * the <code>expired</code> task is run instead.
+     *
+     * @param operation The operation to run
+     * @param expired The task to run if the operation has waited for too long
+     * @throws LdapServiceUnavailableException If the pool is saturated
+     */
+    public void execute( final Runnable operation, final Runnable expired ) throws LdapServiceUnavailableException
+    {
+        final long submitTime = System.nanoTime();
+
+        try
+        {
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long startTime = System.nanoTime();
+                    long waitTime = startTime - submitTime;
+                    totalWaitTime.addAndGet( waitTime );
+                    nbQueued.incrementAndGet();
+
+                    if ( waitTime > TimeUnit.MILLISECONDS.toNanos( timeout ) )
+                    {
+                        nbRejected.incrementAndGet();
+                        LOG.warn( "The operation waited for more than {}ms, rejecting it", timeout );
+                        expired.run();
+
+                        return;
+                    }
+
+                    try
+                    {
+                        operation.run();
+                    }
+                    finally
+                    {
+                        updateMaxLatency( System.nanoTime() - submitTime );
+                    }
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            nbRejected.incrementAndGet();
+            LOG.warn( "The password verification pool is saturated, rejecting the bind" );
+
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY,
+                "Too many pending password verifications" );
+        }
+    }
+
+
+    /**
+     * @return true if the current thread belongs to this verifier's pool
+     */
+    public boolean isPoolThread()
+    {
+        Thread thread = Thread.currentThread();
+
+        return ( thread instanceof VerifierThread ) && ( ( ( VerifierThread ) thread ).verifier == this );
+    }
+
+
+    private static boolean compare( byte[] credentials, byte[][] storedPasswords )
+    {
+        for ( byte[] storedPassword : storedPasswords )
+        {
+            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private void updateMaxLatency( long latency )
+    {
+        long max = maxLatency.get();
+
+        while ( ( latency > max ) && !maxLatency.compareAndSet( max, latency ) )
+        {
+            max = maxLatency.get();
+        }
+    }
+
+
+    /**
+     * Stops the threads
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * @return The number of comparisons done by the pool
+     */
+    public long getNbVerifications()
+    {
+        return nbVerifications.get();
+    }
+
+
+    /**
+     * @return The number of tasks, comparisons or whole binds, which have been run by the pool
+     */
+    public long getNbQueued()
+    {
+        return nbQueued.get();
+    }
+
+
+    /**
+     * @return The number of comparisons rejected because the pool was saturated or too slow
+     */
+    public long getNbRejected()
+    {
+        return nbRejected.get();
+    }
+
+
+    /**
+     * @return The number of comparisons waiting for a thread
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+
+    /**
+     * @return The average time a task, comparison or whole bind, waits for a thread, in microseconds
+     */
+    public long getAverageWaitTime()
+    {
+        long nb = nbQueued.get();
+
+        return nb == 0L ? 0L : totalWaitTime.get() / nb / 1000L;
+    }
+
+
+    /**
+     * @return The average time spent doing a comparison, in microseconds
+     */
+    public long getAverageVerificationTime()
+    {
+        long nb = nbVerifications.get();
+
+        return nb == 0L ? 0L : totalVerificationTime.get() / nb / 1000L;
+    }
+
+
+    /**
+     * @return The longest time between the submission and the completion of a comparison,
+     * in microseconds
+     */
+    public long getMaxLatency()
+    {
+        return maxLatency.get() / 1000L;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "PasswordVerifier[verifications=" + getNbVerifications() + ", rejected=" + getNbRejected()
+            + ", queued=" + getQueueSize() + ", avgWait=" + getAverageWaitTime() + "us, avgVerification="
+            + getAverageVerificationTime() + "us, maxLatency=" + getMaxLatency() + "us]";
+    }
+}
@@ -21,12 +21,13 @@ package org.apache.directory.server.core.authn;
 
 
 import java.net.SocketAddress;
+import java.util.List;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -70,16 +71,34 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * - in this cache.
      *
      * The update of the backend and partition cache is already correctly handled, so we will
-     * just have to offer an access to refresh the local cache.
+     * just have to offer an access to refresh the local cache. The AuthenticationInterceptor
+     * invalidates it each time the password of an entry is modified, or when the entry is
+     * deleted, moved or renamed. The password policy state modifications are applied to the
+     * cached entry instead, as they are done on each bind.
+     *
+     * When the password policy is enabled, the user entry is cached along with the passwords,
+     * as the policy state is read from its operational attributes.
      *
      * We need to be sure that frequently used passwords be always in cache, and not discarded.
      * We will use a LRU cache for this purpose.
      */
-    private final LRUMap credentialCache;
+    private final CredentialCache credentialCache;
 
     /** Declare a default for this cache. 100 entries seems to be enough */
     private static final int DEFAULT_CACHE_SIZE = 100;
 
+    /** The pool used to compare the credentials with the expensive password hashes */
+    private PasswordVerifier passwordVerifier;
+
+    /** The number of threads comparing the expensive password hashes, 0 for one per processor */
+    private int verifierThreads;
+
+    /** The maximum number of comparisons waiting for a thread */
+    private int verifierQueueSize = PasswordVerifier.DEFAULT_QUEUE_SIZE;
+
+    /** The maximum time a bind waits for its comparison, in ms */
+    private long verifierTimeout = PasswordVerifier.DEFAULT_TIMEOUT;
+
 
     /**
      * Creates a new instance.
@@ -87,7 +106,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator()
     {
         super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( DEFAULT_CACHE_SIZE );
     }
 
 
@@ -98,7 +117,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     public SimpleAuthenticator( Dn baseDn )
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( DEFAULT_CACHE_SIZE );
     }
 
 
@@ -110,7 +129,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     {
         super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
     }
 
 
@@ -122,7 +141,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
     }
 
 
@@ -134,51 +153,84 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
     {
-        LdapPrincipal principal = null;
+        String normName = bindContext.getDn().getNormName();
+        CredentialCache.Credentials credentials = getCachedCredentials( normName );
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
+        if ( credentials != null )
         {
-            synchronized ( credentialCache )
+            if ( credentials.getEntry() != null )
             {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
+                bindContext.setEntry( new ClonedServerEntry( credentials.getEntry() ) );
             }
         }
-
-        byte[][] storedPasswords;
-
-        if ( principal == null )
+        else
         {
             // Not found in the cache
             // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
+            long stamp = credentialCache.getStamp( normName );
+            credentials = lookupUserPassword( bindContext );
+            credentialCache.put( normName, credentials, stamp );
+        }
 
-            // Deal with the special case where the user didn't enter a password
-            // We will compare the empty array with the credentials. Sometime,
-            // a user does not set a password. This is bad, but there is nothing
-            // we can do against that, except education ...
-            if ( storedPasswords == null )
-            {
-                storedPasswords = new byte[][]
-                    {};
-            }
+        // Create a new principal for each bind, the cached credentials are shared
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( credentials.getPasswords() );
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+        return principal;
+    }
 
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
+
+    /**
+     * Gets the credentials from the cache, checking that they can be used with the current
+     * password policy configuration.
+     */
+    private CredentialCache.Credentials getCachedCredentials( String normName ) throws LdapException
+    {
+        CredentialCache.Credentials credentials = credentialCache.get( normName );
+
+        if ( credentials == null )
+        {
+            return null;
+        }
+
+        if ( getDirectoryService().isPwdPolicyEnabled() )
+        {
+            // The policy checks need the user entry, and the policy may have changed the
+            // password attribute since the credentials were cached
+            if ( ( credentials.getEntry() == null )
+                || !credentials.getPasswordAttribute().equals( getPasswordAttribute( credentials.getEntry() ) ) )
             {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
+                return null;
             }
         }
+        else if ( !SchemaConstants.USER_PASSWORD_AT.equals( credentials.getPasswordAttribute() ) )
+        {
+            return null;
+        }
 
-        return principal;
+        return credentials;
+    }
+
+
+    /**
+     * @return the attribute containing the user passwords, depending on the password policy
+     */
+    private String getPasswordAttribute( Entry userEntry ) throws LdapException
+    {
+        DirectoryService directoryService = getDirectoryService();
+
+        if ( directoryService.isPwdPolicyEnabled() )
+        {
+            AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) directoryService
+                .getInterceptor(
+                InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+            PasswordPolicyConfiguration pPolicyConfig = authenticationInterceptor.getPwdPolicy( userEntry );
+
+            return pPolicyConfig.getPwdAttribute();
+        }
+
+        return SchemaConstants.USER_PASSWORD_AT;
     }
 
 
@@ -226,23 +278,20 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         }
 
         // Now, compare the passwords.
-        for ( byte[] storedPassword : storedPasswords )
+        if ( compareCredentials( credentials, storedPasswords ) )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            if ( ppe != null ) 
+            {
+                LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
+                throw ppe;
+            }
+
+            if ( IS_DEBUG )
             {
-                if ( ppe != null ) 
-                {
-                    LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
-                    throw ppe;
-                }
-
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "{} Authenticated", bindContext.getDn() );
-                }
-
-                return principal;
+                LOG.debug( "{} Authenticated", bindContext.getDn() );
             }
+
+            return principal;
         }
 
         // Bad password ...
@@ -252,13 +301,38 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     }
 
 
+    /**
+     * Compares the credentials with the stored passwords, using the verification pool
+     * if it has been started.
+     */
+    private boolean compareCredentials( byte[] credentials, byte[][] storedPasswords ) throws LdapException
+    {
+        PasswordVerifier verifier = passwordVerifier;
+
+        if ( verifier != null )
+        {
+            return verifier.compareCredentials( credentials, storedPasswords );
+        }
+
+        for ( byte[] storedPassword : storedPasswords )
+        {
+            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Local function which request the password from the backend
      * @param bindContext the Bind operation context
      * @return the credentials from the backend
      * @throws Exception if there are problems accessing backend
      */
-    private byte[][] lookupUserPassword( BindOperationContext bindContext ) throws LdapException
+    private CredentialCache.Credentials lookupUserPassword( BindOperationContext bindContext ) throws LdapException
     {
         // ---- lookup the principal entry's userPassword attribute
         Entry userEntry;
@@ -297,28 +371,23 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             throw e;
         }
 
-        DirectoryService directoryService = getDirectoryService();
-        String userPasswordAttribute = SchemaConstants.USER_PASSWORD_AT;
-
-        if ( directoryService.isPwdPolicyEnabled() )
-        {
-            AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) directoryService
-                .getInterceptor(
-                InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
-            PasswordPolicyConfiguration pPolicyConfig = authenticationInterceptor.getPwdPolicy( userEntry );
-            userPasswordAttribute = pPolicyConfig.getPwdAttribute();
-
-        }
-
+        String userPasswordAttribute = getPasswordAttribute( userEntry );
         Attribute userPasswordAttr = userEntry.get( userPasswordAttribute );
 
         bindContext.setEntry( new ClonedServerEntry( userEntry ) );
 
+        // Keep the entry only if the password policy needs it
+        Entry cachedEntry = getDirectoryService().isPwdPolicyEnabled() ? userEntry.clone() : null;
+
         // ---- assert that credentials match
+        // Deal with the special case where the user didn't enter a password
+        // We will compare the empty array with the credentials. Sometime,
+        // a user does not set a password. This is bad, but there is nothing
+        // we can do against that, except education ...
         if ( userPasswordAttr == null )
         {
-            return new byte[][]
-                {};
+            return new CredentialCache.Credentials( new byte[][]
+                {}, userPasswordAttribute, cachedEntry );
         }
         else
         {
@@ -331,21 +400,143 @@ public class SimpleAuthenticator extends AbstractAuthenticator
                 pos++;
             }
 
-            return userPasswords;
+            return new CredentialCache.Credentials( userPasswords, userPasswordAttribute, cachedEntry );
         }
     }
 
 
     /**
-     * Remove the principal form the cache. This is used when the user changes
-     * his password.
+     * Remove the principal form the cache. This is used when the user changes his password,
+     * or when the entry is deleted.
      */
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
+        credentialCache.invalidate( bindDn.getNormName() );
+    }
+
+
+    /**
+     * Remove the principal form the cache, and the principals below it. This is used when
+     * the entry is moved or renamed.
+     */
+    @Override
+    public void invalidateCacheSubtree( Dn baseDn )
+    {
+        credentialCache.invalidateSubtree( baseDn.getNormName() );
+    }
+
+
+    /**
+     * Applies the password policy state modifications to the cached entry, so that the
+     * cache is still used when the password policy updates the entry on each bind.
+     */
+    @Override
+    public void updateCache( Dn bindDn, List<Modification> modifications )
+    {
+        credentialCache.update( bindDn.getNormName(), modifications );
+    }
+
+
+    /**
+     * Starts the pool used to compare the credentials with the expensive password hashes
+     */
+    @Override
+    protected void doInit()
+    {
+        int nbThreads = verifierThreads > 0 ? verifierThreads : Runtime.getRuntime().availableProcessors();
+        passwordVerifier = new PasswordVerifier( nbThreads, verifierQueueSize, verifierTimeout );
+    }
+
+
+    /**
+     * Stops the password verification pool
+     */
+    @Override
+    protected void doDestroy()
+    {
+        if ( passwordVerifier != null )
+        {
+            passwordVerifier.shutdown();
+            passwordVerifier = null;
+        }
+    }
+
+
+    /**
+     * @return The pool used to compare the credentials with the expensive password hashes,
+     * null if this authenticator has not been initialized
+     */
+    public PasswordVerifier getPasswordVerifier()
+    {
+        return passwordVerifier;
+    }
+
+
+    /**
+     * Tells if the bind of a user needs an expensive password comparison. A user whose
+     * credentials are not in the cache is considered expensive, as we don't know how
+     * his passwords are hashed until his entry has been read.
+     *
+     * @param bindDn The normalized Dn of the user
+     * @return true if the bind should be handed over to the password verification pool
+     * @throws LdapException If the cached credentials can't be checked
+     */
+    public boolean isExpensiveBind( Dn bindDn ) throws LdapException
+    {
+        CredentialCache.Credentials credentials = getCachedCredentials( bindDn.getNormName() );
+
+        if ( credentials == null )
         {
-            credentialCache.remove( bindDn.getNormName() );
+            return true;
         }
+
+        for ( byte[] storedPassword : credentials.getPasswords() )
+        {
+            if ( PasswordVerifier.isExpensive( storedPassword ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Sets the number of threads comparing the credentials with the expensive password hashes.
+     * Must be called before the authenticator is initialized.
+     *
+     * @param verifierThreads The number of threads, 0 for one per processor
+     */
+    public void setVerifierThreads( int verifierThreads )
+    {
+        this.verifierThreads = verifierThreads;
+    }
+
+
+    /**
+     * Sets the maximum number of comparisons waiting for a thread. The LDAP simple binds are
+     * entirely run by the pool, so they are all counted. When this limit is reached, the LDAP
+     * simple binds and the other binds using an expensive password hash are rejected with a BUSY
+     * result code.
+     *
+     * @param verifierQueueSize The queue size
+     */
+    public void setVerifierQueueSize( int verifierQueueSize )
+    {
+        this.verifierQueueSize = verifierQueueSize;
+    }
+
+
+    /**
+     * Sets the maximum time a bind waits for a pool thread before being rejected with
+     * a BUSY result code.
+     *
+     * @param verifierTimeout The timeout, in ms
+     */
+    public void setVerifierTimeout( long verifierTimeout )
+    {
+        this.verifierTimeout = verifierTimeout;
     }
 }
@@ -0,0 +1,175 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.junit.Test;
+
+
+/**
+ * Test the CredentialCache class
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    private CredentialCache.Credentials credentials( String password )
+    {
+        return new CredentialCache.Credentials( new byte[][]
+            { password.getBytes() }, "userPassword", null );
+    }
+
+
+    private void put( CredentialCache cache, String normName )
+    {
+        cache.put( normName, credentials( "secret" ), cache.getStamp( normName ) );
+    }
+
+
+    @Test
+    public void testPutAndGet()
+    {
+        CredentialCache cache = new CredentialCache( 100 );
+        CredentialCache.Credentials credentials = credentials( "secret" );
+
+        cache.put( "uid=user,ou=system", credentials, cache.getStamp( "uid=user,ou=system" ) );
+
+        assertSame( credentials, cache.get( "uid=user,ou=system" ) );
+        assertNull( cache.get( "uid=other,ou=system" ) );
+    }
+
+
+    @Test
+    public void testBounded()
+    {
+        CredentialCache cache = new CredentialCache( 160 );
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            put( cache, "uid=user" + i + ",ou=system" );
+        }
+
+        assertTrue( cache.size() <= 160 );
+
+        // The last used credentials are kept
+        assertNotNull( cache.get( "uid=user9999,ou=system" ) );
+    }
+
+
+    @Test
+    public void testStaleCredentialsAreNotStored()
+    {
+        CredentialCache cache = new CredentialCache( 100 );
+
+        // A bind reads the stamp, then the password is modified before the bind stores
+        // the credentials it has read
+        long stamp = cache.getStamp( "uid=user,ou=system" );
+        cache.invalidate( "uid=user,ou=system" );
+        cache.put( "uid=user,ou=system", credentials( "old" ), stamp );
+
+        assertNull( cache.get( "uid=user,ou=system" ) );
+
+        cache.put( "uid=user,ou=system", credentials( "new" ), cache.getStamp( "uid=user,ou=system" ) );
+        assertNotNull( cache.get( "uid=user,ou=system" ) );
+    }
+
+
+    @Test
+    public void testInvalidateSubtree()
+    {
+        CredentialCache cache = new CredentialCache( 100 );
+
+        put( cache, "ou=people,dc=example,dc=com" );
+        put( cache, "uid=user1,ou=people,dc=example,dc=com" );
+        put( cache, "uid=user2,ou=people,dc=example,dc=com" );
+        put( cache, "uid=user3,ou=groups,dc=example,dc=com" );
+        put( cache, "uid=user4,ou=otherpeople,dc=example,dc=com" );
+
+        cache.invalidateSubtree( "ou=people,dc=example,dc=com" );
+
+        assertNull( cache.get( "ou=people,dc=example,dc=com" ) );
+        assertNull( cache.get( "uid=user1,ou=people,dc=example,dc=com" ) );
+        assertNull( cache.get( "uid=user2,ou=people,dc=example,dc=com" ) );
+        assertNotNull( cache.get( "uid=user3,ou=groups,dc=example,dc=com" ) );
+        assertNotNull( cache.get( "uid=user4,ou=otherpeople,dc=example,dc=com" ) );
+        assertEquals( 2, cache.size() );
+    }
+
+
+    @Test
+    public void testInvalidateSingleEntry()
+    {
+        CredentialCache cache = new CredentialCache( 100 );
+
+        put( cache, "ou=people,dc=example,dc=com" );
+        put( cache, "uid=user1,ou=people,dc=example,dc=com" );
+
+        cache.invalidate( "ou=people,dc=example,dc=com" );
+
+        assertNull( cache.get( "ou=people,dc=example,dc=com" ) );
+        assertNotNull( cache.get( "uid=user1,ou=people,dc=example,dc=com" ) );
+    }
+
+
+    @Test
+    public void testUpdateKeepsTheCredentials() throws Exception
+    {
+        CredentialCache cache = new CredentialCache( 100 );
+        String normName = "uid=user,ou=system";
+        Entry entry = new DefaultEntry( normName, "objectClass: person", "cn: user", "sn: user" );
+        byte[][] passwords = new byte[][]
+            { "secret".getBytes() };
+        cache.put( normName, new CredentialCache.Credentials( passwords, "userPassword", entry ),
+            cache.getStamp( normName ) );
+
+        // A bind updates the password policy state of the entry
+        long stamp = cache.getStamp( normName );
+        cache.update( normName, Arrays.<Modification> asList(
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "pwdFailureTime", "20161019000000Z" ),
+            new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, "sn" ) ) );
+
+        CredentialCache.Credentials credentials = cache.get( normName );
+        assertNotNull( credentials );
+        assertSame( passwords, credentials.getPasswords() );
+        assertTrue( credentials.getEntry().contains( "pwdFailureTime", "20161019000000Z" ) );
+        assertFalse( credentials.getEntry().containsAttribute( "sn" ) );
+
+        // The cached entry is not modified in place
+        assertFalse( entry.containsAttribute( "pwdFailureTime" ) );
+
+        // An entry read before the update must not replace the updated one
+        cache.put( normName, new CredentialCache.Credentials( passwords, "userPassword", entry ), stamp );
+        assertTrue( cache.get( normName ).getEntry().containsAttribute( "pwdFailureTime" ) );
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
+import org.apache.directory.api.util.Strings;
+import org.junit.Test;
+
+
+/**
+ * Test the PasswordVerifier class
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordVerifierTest
+{
+    private static final byte[] SECRET = Strings.getBytesUtf8( "secret" );
+    private static final byte[] WRONG = Strings.getBytesUtf8( "wrong" );
+
+
+    @Test
+    public void testCheapHashesAreVerifiedInline() throws Exception
+    {
+        PasswordVerifier verifier = new PasswordVerifier( 1, 1, 1000L );
+
+        try
+        {
+            byte[][] stored = new byte[][]
+                {
+                    PasswordUtil.createStoredPassword( SECRET, LdapSecurityConstants.HASH_METHOD_SSHA ),
+                    SECRET
+                };
+
+            assertTrue( verifier.compareCredentials( SECRET, stored ) );
+            assertFalse( verifier.compareCredentials( WRONG, stored ) );
+            assertEquals( 0L, verifier.getNbVerifications() );
+        }
+        finally
+        {
+            verifier.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testExpensiveHashesAreVerifiedByThePool() throws Exception
+    {
+        PasswordVerifier verifier = new PasswordVerifier( 2, 10, 10000L );
+
+        try
+        {
+            byte[][] stored = new byte[][]
+                {
+                    PasswordUtil.createStoredPassword( SECRET, LdapSecurityConstants.HASH_METHOD_SSHA ),
+                    PasswordUtil.createStoredPassword( SECRET, LdapSecurityConstants.HASH_METHOD_PKCS5S2 )
+                };
+
+            assertTrue( PasswordVerifier.isExpensive( stored[1] ) );
+            assertFalse( PasswordVerifier.isExpensive( stored[0] ) );
+            assertTrue( verifier.compareCredentials( SECRET, stored ) );
+            assertFalse( verifier.compareCredentials( WRONG, stored ) );
+            assertEquals( 2L, verifier.getNbVerifications() );
+            assertEquals( 0L, verifier.getNbRejected() );
+        }
+        finally
+        {
+            verifier.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testRejectedWhenUnavailable() throws Exception
+    {
+        PasswordVerifier verifier = new PasswordVerifier( 1, 1, 1000L );
+        verifier.shutdown();
+
+        byte[][] stored = new byte[][]
+            { PasswordUtil.createStoredPassword( SECRET, LdapSecurityConstants.HASH_METHOD_SHA512 ) };
+
+        try
+        {
+            verifier.compareCredentials( SECRET, stored );
+            fail();
+        }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            assertEquals( ResultCodeEnum.BUSY, lsue.getResultCode() );
+        }
+
+        assertEquals( 1L, verifier.getNbRejected() );
+    }
+
+
+    @Test
+    public void testExecuteComparesInline() throws Exception
+    {
+        final PasswordVerifier verifier = new PasswordVerifier( 1, 1, 10000L );
+        final CountDownLatch done = new CountDownLatch( 1 );
+        final AtomicBoolean result = new AtomicBoolean();
+        final AtomicBoolean poolThread = new AtomicBoolean();
+
+        try
+        {
+            final byte[][] stored = new byte[][]
+                { PasswordUtil.createStoredPassword( SECRET, LdapSecurityConstants.HASH_METHOD_PKCS5S2 ) };
+
+            assertFalse( verifier.isPoolThread() );
+
+            verifier.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        poolThread.set( verifier.isPoolThread() );
+                        result.set( verifier.compareCredentials( SECRET, stored ) );
+                    }
+                    catch ( LdapException le )
+                    {
+                        result.set( false );
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, null );
+
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+            assertTrue( poolThread.get() );
+            assertTrue( result.get() );
+            assertEquals( 1L, verifier.getNbVerifications() );
+            assertEquals( 1L, verifier.getNbQueued() );
+        }
+        finally
+        {
+            verifier.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testExecuteRejectedWhenUnavailable() throws Exception
+    {
+        PasswordVerifier verifier = new PasswordVerifier( 1, 1, 1000L );
+        verifier.shutdown();
+
+        try
+        {
+            verifier.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    fail();
+                }
+            }, null );
+            fail();
+        }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            assertEquals( ResultCodeEnum.BUSY, lsue.getResultCode() );
+        }
+
+        assertEquals( 1L, verifier.getNbRejected() );
+    }
+}
@@ -119,9 +119,35 @@ public class EventInterceptor extends BaseInterceptor
 
 
     /**
-     * Call the listener passing it the context.
+     * Call the listener passing it the context. If the operation is part of a session
+     * transaction, the listener is only called once the transaction has been committed.
      */
-    private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
+    private void fire( final OperationContext opContext, final EventType type, final DirectoryListener listener )
+    {
+        CoreSession session = opContext.getSession();
+
+        if ( ( session != null ) && session.isTransacted() )
+        {
+            session.addCommitTask( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    dispatch( opContext, type, listener );
+                }
+            } );
+
+            return;
+        }
+
+        dispatch( opContext, type, listener );
+    }
+
+
+    /**
+     * Call the listener passing it the context, synchronously or not.
+     */
+    private void dispatch( final OperationContext opContext, EventType type, final DirectoryListener listener )
     {
         switch ( type )
         {
@@ -25,9 +25,9 @@ import org.apache.directory.server.i18n.I18n;
 
 
 /**
- * A wrapper around duplicate key values.  This class wraps either an AvlTree
- * or a BTreeRedirect.  The AvlTree and BTreeRedirect forms are used for the
- * two value persistence mechanisms used to implement duplicate keys over JDBM
+ * A wrapper around duplicate key values.  This class wraps either an AvlTree,
+ * a BTreeRedirect or a PostingListRedirect.  These forms are used for the
+ * three value persistence mechanisms used to implement duplicate keys over JDBM
  * btrees.  
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -36,12 +36,14 @@ public class DupsContainer<V>
 {
     private final ArrayTree<V> arrayTree;
     private final BTreeRedirect btreeRedirect;
+    private final PostingListRedirect postingListRedirect;
 
 
     DupsContainer( ArrayTree<V> arrayTree )
     {
         this.arrayTree = arrayTree;
         btreeRedirect = null;
+        postingListRedirect = null;
     }
 
 
@@ -49,6 +51,15 @@ public class DupsContainer<V>
     {
         arrayTree = null;
         this.btreeRedirect = btreeRedirect;
+        postingListRedirect = null;
+    }
+
+
+    DupsContainer( PostingListRedirect postingListRedirect )
+    {
+        arrayTree = null;
+        btreeRedirect = null;
+        this.postingListRedirect = postingListRedirect;
     }
 
 
@@ -64,6 +75,12 @@ public class DupsContainer<V>
     }
 
 
+    final boolean isPostingList()
+    {
+        return postingListRedirect != null;
+    }
+
+
     final ArrayTree<V> getArrayTree()
     {
         if ( arrayTree == null )
@@ -84,4 +101,15 @@ public class DupsContainer<V>
 
         return btreeRedirect;
     }
+
+
+    final PostingListRedirect getPostingListRedirect()
+    {
+        if ( postingListRedirect == null )
+        {
+            throw new IllegalStateException( "this is not a postingList container" );
+        }
+
+        return postingListRedirect;
+    }
 }
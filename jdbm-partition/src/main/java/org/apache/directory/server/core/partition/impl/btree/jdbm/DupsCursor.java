@@ -31,7 +31,6 @@ import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.server.core.avltree.ArrayTree;
 import org.apache.directory.server.core.avltree.ArrayTreeCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -125,25 +124,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         if ( containerCursor.next() )
         {
             containerTuple.setBoth( containerCursor.get() );
-            DupsContainer<V> values = containerTuple.getValue();
-
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<V>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<V>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            dupsCursor = getValuesCursor( containerTuple.getValue() );
 
             if ( value == null )
             {
@@ -207,25 +188,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         if ( containerCursor.next() )
         {
             containerTuple.setBoth( containerCursor.get() );
-            DupsContainer<V> values = containerTuple.getValue();
-
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<V>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<V>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            dupsCursor = getValuesCursor( containerTuple.getValue() );
 
             if ( value == null )
             {
@@ -305,24 +268,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         if ( containerCursor.first() )
         {
             containerTuple.setBoth( containerCursor.get() );
-            DupsContainer<V> values = containerTuple.getValue();
-
-            if ( containerTuple.getValue().isArrayTree() )
-            {
-                dupsCursor = new ArrayTreeCursor<V>( values.getArrayTree() );
-            }
-            else
-            {
-                try
-                {
-                    BTree bt = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<V>( bt, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            dupsCursor = getValuesCursor( containerTuple.getValue() );
 
             /*
              * Since only tables with duplicate keys enabled use this
@@ -353,25 +299,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
         if ( containerCursor.last() )
         {
             containerTuple.setBoth( containerCursor.get() );
-            DupsContainer<V> values = containerTuple.getValue();
-
-            if ( values.isArrayTree() )
-            {
-                ArrayTree<V> set = values.getArrayTree();
-                dupsCursor = new ArrayTreeCursor<V>( set );
-            }
-            else
-            {
-                try
-                {
-                    BTree tree = table.getBTree( values.getBTreeRedirect() );
-                    dupsCursor = new KeyBTreeCursor<V>( tree, table.getValueComparator() );
-                }
-                catch ( IOException e )
-                {
-                    throw new CursorException( e );
-                }
-            }
+            dupsCursor = getValuesCursor( containerTuple.getValue() );
 
             /*
              * Since only tables with duplicate keys enabled use this
@@ -390,6 +318,35 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
     }
 
 
+    /**
+     * Creates a Cursor over the values of a key, whatever the way they are stored.
+     */
+    @SuppressWarnings("unchecked")
+    private Cursor<V> getValuesCursor( DupsContainer<V> values ) throws CursorException
+    {
+        if ( values.isArrayTree() )
+        {
+            return new ArrayTreeCursor<V>( values.getArrayTree() );
+        }
+
+        try
+        {
+            if ( values.isPostingList() )
+            {
+                return ( Cursor ) table.getPostingList( values.getPostingListRedirect() ).cursor();
+            }
+
+            BTree tree = table.getBTree( values.getBTreeRedirect() );
+
+            return new KeyBTreeCursor<V>( tree, table.getValueComparator() );
+        }
+        catch ( IOException e )
+        {
+            throw new CursorException( e );
+        }
+    }
+
+
     private void clearValue()
     {
         returnedTuple.setKey( null );
@@ -430,25 +387,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             if ( containerCursor.previous() )
             {
                 containerTuple.setBoth( containerCursor.get() );
-                DupsContainer<V> values = containerTuple.getValue();
-
-                if ( values.isArrayTree() )
-                {
-                    ArrayTree<V> set = values.getArrayTree();
-                    dupsCursor = new ArrayTreeCursor<V>( set );
-                }
-                else
-                {
-                    try
-                    {
-                        BTree tree = table.getBTree( values.getBTreeRedirect() );
-                        dupsCursor = new KeyBTreeCursor<V>( tree, table.getValueComparator() );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new CursorException( e );
-                    }
-                }
+                dupsCursor = getValuesCursor( containerTuple.getValue() );
 
                 /*
                  * Since only tables with duplicate keys enabled use this
@@ -505,25 +444,7 @@ class DupsCursor<K, V> extends AbstractCursor<Tuple<K, V>>
             if ( containerCursor.next() )
             {
                 containerTuple.setBoth( containerCursor.get() );
-                DupsContainer<V> values = containerTuple.getValue();
-
-                if ( values.isArrayTree() )
-                {
-                    ArrayTree<V> set = values.getArrayTree();
-                    dupsCursor = new ArrayTreeCursor<V>( set );
-                }
-                else
-                {
-                    try
-                    {
-                        BTree tree = table.getBTree( values.getBTreeRedirect() );
-                        dupsCursor = new KeyBTreeCursor<V>( tree, table.getValueComparator() );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new CursorException( e );
-                    }
-                }
+                dupsCursor = getValuesCursor( containerTuple.getValue() );
 
                 /*
                  * Since only tables with duplicate keys enabled use this
@@ -91,6 +91,9 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
      */
     protected int numDupLimit = DEFAULT_DUPLICATE_LIMIT;
 
+    /** tells if the entry UUIDs over the duplicate limit are stored in compressed posting lists */
+    protected boolean postingListsEnabled;
+
     /** a custom working directory path when specified in configuration */
     protected File wkDirPath;
 
@@ -212,6 +215,8 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
                 comp, UuidComparator.INSTANCE, new ByteArraySerializer(), UuidSerializer.INSTANCE );
         }
 
+        forward.setPostingListsEnabled( postingListsEnabled );
+
         /*
          * Now the reverse map stores the primary key into the master table as
          * the key and the values of attributes as the value.  If an attribute
@@ -263,6 +268,30 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     }
 
 
+    /**
+     * @return <code>true</code> if the entry UUIDs of a key are stored in a compressed
+     * posting list, instead of a btree, when they go over the duplicate limit
+     */
+    public boolean isPostingListsEnabled()
+    {
+        return postingListsEnabled;
+    }
+
+
+    /**
+     * Stores the entry UUIDs of a key in a compressed posting list, instead of a btree,
+     * when they go over the duplicate limit. This makes the keys with a huge number of
+     * entries, like objectClass=person, much smaller on disk and faster to count.
+     *
+     * @param postingListsEnabled <code>true</code> to use compressed posting lists
+     */
+    public void setPostingListsEnabled( boolean postingListsEnabled )
+    {
+        protect( "postingListsEnabled" );
+        this.postingListsEnabled = postingListsEnabled;
+    }
+
+
     /**
      * Sets the working directory path to something other than the default. Sometimes more
      * performance is gained by locating indices on separate disk spindles.
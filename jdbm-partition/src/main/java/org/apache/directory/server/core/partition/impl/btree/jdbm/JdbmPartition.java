@@ -1022,6 +1022,32 @@ public class JdbmPartition extends AbstractBTreePartition
     @Override
     public PartitionWriteTxn beginWriteTransaction()
     {
-        return new JdbmPartitionWriteTxn( recMan, isSyncOnWrite() );
+        return new JdbmPartitionWriteTxn( recMan, isSyncOnWrite(), this );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackSupported()
+    {
+        // The record manager rolls back the changes, and the caches are cleared
+        return true;
+    }
+
+
+    /**
+     * Clears the entry cache too
+     */
+    @Override
+    protected void clearCaches()
+    {
+        super.clearCaches();
+
+        if ( entryCache != null )
+        {
+            entryCache.removeAll();
+        }
     }
 }
@@ -15,6 +15,9 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     
     /** A flag used to flush data immediately or not */
     private boolean syncOnWrite = false;
+
+    /** The partition which caches must be cleared when the transaction is aborted, if any */
+    private JdbmPartition partition;
     
     /**
      * 
@@ -26,6 +29,19 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
         this.recordManager = recordManager;
         this.syncOnWrite = syncOnWrite;
     }
+
+
+    /**
+     * 
+     * @param recordManager
+     * @param syncOnWrite
+     * @param partition The partition which caches must be cleared when the transaction is aborted
+     */
+    public JdbmPartitionWriteTxn( RecordManager recordManager, boolean syncOnWrite, JdbmPartition partition )
+    {
+        this( recordManager, syncOnWrite );
+        this.partition = partition;
+    }
     
     
     /**
@@ -63,6 +79,12 @@ public class JdbmPartitionWriteTxn extends PartitionWriteTxn
     public void abort() throws IOException
     {
         recordManager.rollback();
+
+        // The caches may contain some entries which have been rolled back
+        if ( partition != null )
+        {
+            partition.clearCaches();
+        }
     }
 
 
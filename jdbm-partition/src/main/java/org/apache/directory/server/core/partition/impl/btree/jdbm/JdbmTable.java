@@ -80,6 +80,12 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     /** A marshaller used to serialize/deserialize values stored in the Table */
     Marshaller<ArrayTree<V>> marshaller;
 
+    /** Tells if the duplicate UUIDs over the limit are stored in compressed posting lists */
+    private boolean postingListsEnabled;
+
+    /** Tells if the table has been modified, after which the posting lists can't be switched */
+    private boolean modified;
+
 
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R
@@ -237,6 +243,11 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return values.getArrayTree().size();
             }
 
+            if ( values.isPostingList() )
+            {
+                return values.getPostingListRedirect().getCount();
+            }
+
             return getBTree( values.getBTreeRedirect() ).size();
         }
         catch ( IOException ioe )
@@ -283,6 +294,11 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return set.getFirst();
             }
 
+            if ( values.isPostingList() )
+            {
+                return ( V ) getPostingList( values.getPostingListRedirect() ).first();
+            }
+
             // Handle values if they are stored in another BTree
             BTree tree = getBTree( values.getBTreeRedirect() );
 
@@ -327,6 +343,11 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return result != null;
             }
 
+            if ( values.isPostingList() )
+            {
+                return getPostingList( values.getPostingListRedirect() ).hasGreaterOrEqual( ( String ) val );
+            }
+
             // last option is to try a btree with BTreeRedirects
             BTree<K, V> tree = getBTree( values.getBTreeRedirect() );
 
@@ -366,6 +387,11 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return result != null;
             }
 
+            if ( values.isPostingList() )
+            {
+                return getPostingList( values.getPostingListRedirect() ).hasLessOrEqual( ( String ) val );
+            }
+
             // last option is to try a btree with BTreeRedirects
             BTree<K, V> tree = getBTree( values.getBTreeRedirect() );
 
@@ -489,6 +515,12 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return values.getArrayTree().find( value ) != null;
             }
 
+            if ( values.isPostingList() )
+            {
+                return PostingList.isCanonical( value )
+                    && getPostingList( values.getPostingListRedirect() ).contains( ( String ) value );
+            }
+
             return getBTree( values.getBTreeRedirect() ).find( value ) != null;
         }
         catch ( IOException ioe )
@@ -522,6 +554,8 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     @SuppressWarnings("unchecked")
     public synchronized void put( PartitionTxn transaction, K key, V value ) throws LdapException
     {
+        modified = true;
+
         try
         {
             if ( LOG.isDebugEnabled() )
@@ -565,9 +599,20 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                     return;
                 }
 
-                if ( set.size() > numDupLimit )
+                if ( ( set.size() > numDupLimit ) && postingListsEnabled && isCompressible( set ) )
+                {
+                    PostingList postingList = convertToPostingList( set );
+                    bt.insert( key, ( V ) PostingListRedirectMarshaller.INSTANCE.serialize( postingList.getRedirect() ),
+                        true );
+
+                    if ( LOG.isDebugEnabled() )
+                    {
+                        LOG.debug( "<--- Add new POSTING LIST {} = {}", name, key );
+                    }
+                }
+                else if ( set.size() > numDupLimit )
                 {
-                    BTree tree = convertToBTree( set );
+                    BTree tree = convertToBTree( new ArrayTreeCursor<V>( set ) );
                     BTreeRedirect redirect = new BTreeRedirect( tree.getRecordId() );
                     bt.insert( key, ( V ) BTreeRedirectMarshaller.INSTANCE.serialize( redirect ), true );
 
@@ -591,7 +636,40 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return;
             }
 
-            BTree tree = getBTree( values.getBTreeRedirect() );
+            BTree tree;
+
+            if ( values.isPostingList() )
+            {
+                PostingList postingList = getPostingList( values.getPostingListRedirect() );
+
+                if ( PostingList.isCanonical( value ) )
+                {
+                    if ( postingList.insert( ( String ) value ) )
+                    {
+                        bt.insert( key,
+                            ( V ) PostingListRedirectMarshaller.INSTANCE.serialize( postingList.getRedirect() ), true );
+                        count++;
+                    }
+
+                    if ( LOG.isDebugEnabled() )
+                    {
+                        LOG.debug( "<--- Add POSTING LIST {} = {}", name, key );
+                    }
+
+                    return;
+                }
+
+                // This value can't be compressed, switch to a BTree
+                tree = convertToBTree( ( Cursor ) postingList.cursor() );
+                BTreeRedirect redirect = new BTreeRedirect( tree.getRecordId() );
+                bt.insert( key, ( V ) BTreeRedirectMarshaller.INSTANCE.serialize( redirect ), true );
+                deletePostingList( postingList.getRecordId() );
+            }
+            else
+            {
+                tree = getBTree( values.getBTreeRedirect() );
+            }
+
             replaced = ( V ) tree.insert( value, Strings.EMPTY_BYTES, true );
 
             if ( replaced == null )
@@ -619,6 +697,8 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     @Override
     public synchronized void remove( PartitionTxn transaction, K key, V value ) throws LdapException
     {
+        modified = true;
+
         try
         {
             if ( LOG.isDebugEnabled() )
@@ -688,6 +768,36 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                 return;
             }
 
+            if ( values.isPostingList() )
+            {
+                PostingList postingList = getPostingList( values.getPostingListRedirect() );
+
+                if ( PostingList.isCanonical( value ) && postingList.remove( ( String ) value ) )
+                {
+                    // Revert to an ArrayTree if we drop below the duplicate limit
+                    if ( postingList.size() <= numDupLimit )
+                    {
+                        ArrayTree<V> arrayTree = convertToArrayTree( ( Cursor ) postingList.cursor() );
+                        bt.insert( key, ( V ) marshaller.serialize( arrayTree ), true );
+                        deletePostingList( postingList.getRecordId() );
+                    }
+                    else
+                    {
+                        bt.insert( key,
+                            ( V ) PostingListRedirectMarshaller.INSTANCE.serialize( postingList.getRedirect() ), true );
+                    }
+
+                    count--;
+
+                    if ( LOG.isDebugEnabled() )
+                    {
+                        LOG.debug( "<--- Remove POSTING LIST " + name + " = " + key + ", " + value );
+                    }
+                }
+
+                return;
+            }
+
             // if the number of duplicates falls below the numDupLimit value
             BTree tree = getBTree( values.getBTreeRedirect() );
 
@@ -699,7 +809,7 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
                  */
                 if ( tree.size() <= numDupLimit )
                 {
-                    ArrayTree<V> avlTree = convertToArrayTree( tree );
+                    ArrayTree<V> avlTree = convertToArrayTree( new KeyBTreeCursor<V>( tree, valueComparator ) );
                     bt.insert( key, ( V ) marshaller.serialize( avlTree ), true );
                     recMan.delete( tree.getRecordId() );
                 }
@@ -727,6 +837,8 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     @Override
     public synchronized void remove( PartitionTxn transaction, K key ) throws LdapException
     {
+        modified = true;
+
         try
         {
             if ( LOG.isDebugEnabled() )
@@ -765,6 +877,21 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
 
             byte[] serialized = ( byte[] ) returned;
 
+            if ( PostingListRedirectMarshaller.isRedirect( serialized ) )
+            {
+                PostingListRedirect redirect = PostingListRedirectMarshaller.INSTANCE.deserialize( serialized );
+                this.count -= redirect.getCount();
+
+                if ( LOG.isDebugEnabled() )
+                {
+                    LOG.debug( "<--- Remove POSTING LIST {} = {}", name, key );
+                }
+
+                deletePostingList( redirect.getRecId() );
+
+                return;
+            }
+
             if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
             {
                 BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
@@ -843,6 +970,13 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     
             byte[] serialized = ( byte[] ) raw;
     
+            if ( PostingListRedirectMarshaller.isRedirect( serialized ) )
+            {
+                PostingList postingList = getPostingList(
+                    PostingListRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+                return ( Cursor ) new KeyTuplePostingListCursor<K>( postingList, key );
+            }
+
             if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
             {
                 BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
@@ -888,6 +1022,13 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     
             byte[] serialized = ( byte[] ) raw;
     
+            if ( PostingListRedirectMarshaller.isRedirect( serialized ) )
+            {
+                PostingList postingList = getPostingList(
+                    PostingListRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+                return ( Cursor ) postingList.cursor();
+            }
+
             if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
             {
                 BTree tree = getBTree( BTreeRedirectMarshaller.INSTANCE.deserialize( serialized ) );
@@ -922,6 +1063,37 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
+    /**
+     * @return <code>true</code> if the duplicate values over the limit are stored in compressed posting lists
+     */
+    public boolean isPostingListsEnabled()
+    {
+        return postingListsEnabled;
+    }
+
+
+    /**
+     * Enables the storage of the duplicate values of a key in a compressed
+     * {@link PostingList} instead of a BTree when they go over the duplicate
+     * limit. This is only possible when the values are entry UUIDs : keys with
+     * values which are not in the canonical UUID form still use a BTree.
+     *
+     * This must be set before the table is first modified.
+     *
+     * @param postingListsEnabled <code>true</code> to use posting lists
+     * @throws IllegalStateException If the table has already been modified
+     */
+    public synchronized void setPostingListsEnabled( boolean postingListsEnabled )
+    {
+        if ( modified )
+        {
+            throw new IllegalStateException( I18n.err( I18n.ERR_575, "postingListsEnabled" ) );
+        }
+
+        this.postingListsEnabled = postingListsEnabled;
+    }
+
+
     // ------------------------------------------------------------------------
     // Private/Package Utility Methods 
     // ------------------------------------------------------------------------
@@ -953,6 +1125,26 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
+    /**
+     * Added to check that we actually switch from one data structure to a
+     * compressed posting list for duplicates that go beyond the threshold.
+     */
+    boolean isKeyUsingPostingList( K key ) throws Exception
+    {
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "key is null" );
+        }
+
+        if ( !allowsDuplicates )
+        {
+            return false;
+        }
+
+        return getDupsContainer( ( byte[] ) bt.find( key ) ).isPostingList();
+    }
+
+
     DupsContainer<V> getDupsContainer( byte[] serialized ) throws LdapException
     {
         if ( serialized == null )
@@ -960,6 +1152,18 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
             return new DupsContainer<V>( new ArrayTree<V>( valueComparator ) );
         }
 
+        if ( PostingListRedirectMarshaller.isRedirect( serialized ) )
+        {
+            try
+            {
+                return new DupsContainer<V>( PostingListRedirectMarshaller.INSTANCE.deserialize( serialized ) );
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage() );
+            }
+        }
+
         if ( BTreeRedirectMarshaller.isRedirect( serialized ) )
         {
             try
@@ -997,19 +1201,39 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
 
     BTree getBTree( BTreeRedirect redirect ) throws IOException
     {
-        if ( duplicateBtrees.containsKey( redirect.getRecId() ) )
+        return loadBTree( redirect.getRecId() );
+    }
+
+
+    @SuppressWarnings("unchecked")
+    PostingList getPostingList( PostingListRedirect redirect ) throws IOException
+    {
+        return new PostingList( loadBTree( redirect.getRecId() ), redirect.getCount() );
+    }
+
+
+    private BTree loadBTree( long recId ) throws IOException
+    {
+        if ( duplicateBtrees.containsKey( recId ) )
         {
-            return duplicateBtrees.get( redirect.getRecId() );
+            return duplicateBtrees.get( recId );
         }
 
-        BTree<K, V> tree = new BTree<K, V>().load( recMan, redirect.getRecId() );
+        BTree<K, V> tree = new BTree<K, V>().load( recMan, recId );
         ( ( SerializableComparator<K> ) tree.getComparator() ).setSchemaManager( schemaManager );
-        duplicateBtrees.put( redirect.getRecId(), tree );
+        duplicateBtrees.put( recId, tree );
 
         return tree;
     }
 
 
+    private void deletePostingList( long recId ) throws IOException
+    {
+        recMan.delete( recId );
+        duplicateBtrees.remove( recId );
+    }
+
+
     @SuppressWarnings("unchecked")
     private boolean btreeHas( BTree tree, V key, boolean isGreaterThan ) throws IOException
     {
@@ -1049,23 +1273,65 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
-    @SuppressWarnings("unchecked")
-    private ArrayTree<V> convertToArrayTree( BTree bTree ) throws IOException
+    private ArrayTree<V> convertToArrayTree( Cursor<V> values ) throws IOException, CursorException, LdapException
     {
         ArrayTree<V> avlTree = new ArrayTree<V>( valueComparator );
-        TupleBrowser browser = bTree.browse();
-        jdbm.helper.Tuple tuple = new jdbm.helper.Tuple();
+        values.beforeFirst();
 
-        while ( browser.getNext( tuple ) )
+        while ( values.next() )
         {
-            avlTree.insert( ( V ) tuple.getKey() );
+            avlTree.insert( values.get() );
         }
 
+        values.close();
+
         return avlTree;
     }
 
 
-    private BTree<V, K> convertToBTree( ArrayTree<V> arrayTree ) throws IOException, CursorException, LdapException
+    private boolean isCompressible( ArrayTree<V> arrayTree ) throws IOException, CursorException, LdapException
+    {
+        Cursor<V> values = new ArrayTreeCursor<V>( arrayTree );
+        values.beforeFirst();
+
+        try
+        {
+            while ( values.next() )
+            {
+                if ( !PostingList.isCanonical( values.get() ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            values.close();
+        }
+    }
+
+
+    private PostingList convertToPostingList( ArrayTree<V> arrayTree ) throws IOException, CursorException,
+        LdapException
+    {
+        PostingList postingList = new PostingList( recMan );
+        Cursor<V> values = new ArrayTreeCursor<V>( arrayTree );
+        values.beforeFirst();
+
+        while ( values.next() )
+        {
+            postingList.insert( ( String ) values.get() );
+        }
+
+        values.close();
+
+        return postingList;
+    }
+
+
+    private BTree<V, K> convertToBTree( Cursor<V> keys ) throws IOException, CursorException, LdapException
     {
         BTree<V, K> bTree;
 
@@ -1078,7 +1344,6 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
             bTree = new BTree<V, K>( recMan, valueComparator );
         }
 
-        Cursor<V> keys = new ArrayTreeCursor<V>( arrayTree );
         keys.beforeFirst();
 
         while ( keys.next() )
@@ -0,0 +1,644 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.ByteArraySerializer;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
+
+
+/**
+ * A compressed list of entry UUIDs, used by the {@link JdbmTable} to store the
+ * values of a key when they are too many to be stored in an ArrayTree.
+ * <p>
+ * The UUIDs are sorted and split into blocks of at most {@link #BLOCK_SIZE}
+ * values. Each block is stored as a single record, as the number of values,
+ * the first UUID on 16 bytes, and the difference between each UUID and the
+ * previous one, encoded as a variable length integer. The blocks are stored in
+ * a BTree using the last UUID of each block as a key, which act as skip pointers :
+ * a single <code>findGreaterOrEqual</code> gives the block containing a UUID.
+ * <p>
+ * Only the canonical (lower case) form of UUIDs can be stored, as their order
+ * must be the same when compared as Strings or as 128 bits numbers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PostingList
+{
+    /** The maximum number of UUIDs stored in a block */
+    static final int BLOCK_SIZE = 256;
+
+    /** The hexadecimal digits */
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    /** The BTree storing the blocks, using the last UUID of each block as a key */
+    private final BTree<String, byte[]> blocks;
+
+    /** The number of UUIDs in this list */
+    private long count;
+
+
+    /**
+     * Creates a new, empty, PostingList
+     *
+     * @param recMan The record manager to store the list in
+     * @throws IOException If the BTree can't be created
+     */
+    PostingList( RecordManager recMan ) throws IOException
+    {
+        blocks = new BTree<String, byte[]>( recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE,
+            new ByteArraySerializer() );
+        count = 0L;
+    }
+
+
+    /**
+     * Creates a PostingList on top of an existing BTree of blocks
+     *
+     * @param blocks The BTree holding the blocks
+     * @param count The number of UUIDs in the list
+     */
+    PostingList( BTree<String, byte[]> blocks, long count )
+    {
+        this.blocks = blocks;
+        this.count = count;
+    }
+
+
+    /**
+     * @return The record ID of the BTree holding the blocks
+     */
+    long getRecordId()
+    {
+        return blocks.getRecordId();
+    }
+
+
+    /**
+     * @return The number of UUIDs in this list
+     */
+    public long size()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return A redirect to this posting list, with its current size
+     */
+    PostingListRedirect getRedirect()
+    {
+        return new PostingListRedirect( blocks.getRecordId(), count );
+    }
+
+
+    /**
+     * Tells if a UUID is present in this list
+     *
+     * @param uuid The UUID to look for
+     * @return <code>true</code> if the UUID is present
+     * @throws IOException If the blocks can't be read
+     */
+    public boolean contains( String uuid ) throws IOException
+    {
+        long[] value = parse( uuid );
+
+        if ( value == null )
+        {
+            return false;
+        }
+
+        Tuple<String, byte[]> tuple = blocks.findGreaterOrEqual( uuid );
+
+        if ( tuple == null )
+        {
+            return false;
+        }
+
+        long[] ids = decode( tuple.getValue() );
+
+        return search( ids, value[0], value[1] ) >= 0;
+    }
+
+
+    /**
+     * @return The smallest UUID of this list, or null if it's empty
+     * @throws IOException If the blocks can't be read
+     */
+    public String first() throws IOException
+    {
+        Tuple<String, byte[]> tuple = new Tuple<String, byte[]>();
+
+        if ( !blocks.browse().getNext( tuple ) )
+        {
+            return null;
+        }
+
+        long[] ids = decode( tuple.getValue() );
+
+        return toString( ids[0], ids[1] );
+    }
+
+
+    /**
+     * Tells if the list contains a UUID greater or equal to the given one
+     *
+     * @param uuid The UUID to compare with
+     * @return <code>true</code> if such a UUID exists
+     * @throws IOException If the blocks can't be read
+     */
+    public boolean hasGreaterOrEqual( String uuid ) throws IOException
+    {
+        // The key of a block is its greatest UUID
+        return blocks.findGreaterOrEqual( uuid ) != null;
+    }
+
+
+    /**
+     * Tells if the list contains a UUID lower or equal to the given one
+     *
+     * @param uuid The UUID to compare with
+     * @return <code>true</code> if such a UUID exists
+     * @throws IOException If the blocks can't be read
+     */
+    public boolean hasLessOrEqual( String uuid ) throws IOException
+    {
+        String first = first();
+
+        return ( first != null ) && ( UuidComparator.INSTANCE.compare( first, uuid ) <= 0 );
+    }
+
+
+    /**
+     * Adds a UUID in the list.
+     *
+     * @param uuid The UUID to add, which must be in its canonical form
+     * @return <code>true</code> if the UUID was added, <code>false</code> if it was already present
+     * @throws IOException If the blocks can't be read or written
+     */
+    public boolean insert( String uuid ) throws IOException
+    {
+        long[] value = parse( uuid );
+
+        if ( value == null )
+        {
+            throw new IllegalArgumentException( "Not a canonical UUID : " + uuid );
+        }
+
+        Tuple<String, byte[]> tuple = blocks.findGreaterOrEqual( uuid );
+        long[] ids;
+        int pos;
+
+        if ( tuple == null )
+        {
+            // The UUID is greater than all the others : append it to the last block
+            tuple = new Tuple<String, byte[]>();
+
+            if ( !blocks.browse( null ).getPrevious( tuple ) )
+            {
+                blocks.insert( uuid, encode( value, 1 ), true );
+                count++;
+
+                return true;
+            }
+
+            ids = decode( tuple.getValue() );
+            pos = ids.length / 2;
+        }
+        else
+        {
+            ids = decode( tuple.getValue() );
+            pos = search( ids, value[0], value[1] );
+
+            if ( pos >= 0 )
+            {
+                return false;
+            }
+
+            pos = -( pos + 1 );
+        }
+
+        int size = ids.length / 2;
+        long[] newIds = new long[ids.length + 2];
+        System.arraycopy( ids, 0, newIds, 0, pos * 2 );
+        newIds[pos * 2] = value[0];
+        newIds[pos * 2 + 1] = value[1];
+        System.arraycopy( ids, pos * 2, newIds, pos * 2 + 2, ( size - pos ) * 2 );
+        size++;
+
+        if ( pos == size - 1 )
+        {
+            // The last UUID of the block has changed, so has its key
+            blocks.remove( tuple.getKey() );
+        }
+
+        if ( size > BLOCK_SIZE )
+        {
+            // Split the block in two
+            int lowerSize = size / 2;
+            long[] lower = new long[lowerSize * 2];
+            long[] upper = new long[( size - lowerSize ) * 2];
+            System.arraycopy( newIds, 0, lower, 0, lower.length );
+            System.arraycopy( newIds, lower.length, upper, 0, upper.length );
+
+            writeBlock( lower );
+            writeBlock( upper );
+        }
+        else
+        {
+            writeBlock( newIds );
+        }
+
+        count++;
+
+        return true;
+    }
+
+
+    /**
+     * Removes a UUID from the list.
+     *
+     * @param uuid The UUID to remove
+     * @return <code>true</code> if the UUID was removed, <code>false</code> if it was not present
+     * @throws IOException If the blocks can't be read or written
+     */
+    public boolean remove( String uuid ) throws IOException
+    {
+        long[] value = parse( uuid );
+
+        if ( value == null )
+        {
+            return false;
+        }
+
+        Tuple<String, byte[]> tuple = blocks.findGreaterOrEqual( uuid );
+
+        if ( tuple == null )
+        {
+            return false;
+        }
+
+        long[] ids = decode( tuple.getValue() );
+        int pos = search( ids, value[0], value[1] );
+
+        if ( pos < 0 )
+        {
+            return false;
+        }
+
+        int size = ids.length / 2;
+        long[] newIds = new long[ids.length - 2];
+        System.arraycopy( ids, 0, newIds, 0, pos * 2 );
+        System.arraycopy( ids, pos * 2 + 2, newIds, pos * 2, ( size - pos - 1 ) * 2 );
+
+        if ( ( newIds.length == 0 ) || ( pos == size - 1 ) )
+        {
+            blocks.remove( tuple.getKey() );
+        }
+
+        if ( newIds.length != 0 )
+        {
+            writeBlock( newIds );
+        }
+
+        count--;
+
+        return true;
+    }
+
+
+    /**
+     * @return A cursor over the UUIDs of this list
+     */
+    public PostingListCursor cursor()
+    {
+        return new PostingListCursor( blocks );
+    }
+
+
+    private void writeBlock( long[] ids ) throws IOException
+    {
+        int last = ids.length - 2;
+        blocks.insert( toString( ids[last], ids[last + 1] ), encode( ids, ids.length / 2 ), true );
+    }
+
+
+    /**
+     * Tells if a String is a UUID in its canonical form, ie lower case, and
+     * can then be stored in a PostingList.
+     *
+     * @param uuid The String to check
+     * @return <code>true</code> if it can be stored in a PostingList
+     */
+    public static boolean isCanonical( Object uuid )
+    {
+        return ( uuid instanceof String ) && ( parse( ( String ) uuid ) != null );
+    }
+
+
+    /**
+     * Parses a canonical UUID
+     *
+     * @param uuid The UUID
+     * @return The 128 bits of the UUID in 2 longs, or null if it's not a canonical UUID
+     */
+    static long[] parse( String uuid )
+    {
+        if ( ( uuid == null ) || ( uuid.length() != 36 ) )
+        {
+            return null;
+        }
+
+        long[] result = new long[2];
+        int digits = 0;
+
+        for ( int i = 0; i < 36; i++ )
+        {
+            char c = uuid.charAt( i );
+
+            if ( ( i == 8 ) || ( i == 13 ) || ( i == 18 ) || ( i == 23 ) )
+            {
+                if ( c != '-' )
+                {
+                    return null;
+                }
+
+                continue;
+            }
+
+            int digit;
+
+            if ( ( c >= '0' ) && ( c <= '9' ) )
+            {
+                digit = c - '0';
+            }
+            else if ( ( c >= 'a' ) && ( c <= 'f' ) )
+            {
+                digit = c - 'a' + 10;
+            }
+            else
+            {
+                return null;
+            }
+
+            int half = digits / 16;
+            result[half] = ( result[half] << 4 ) | digit;
+            digits++;
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Builds the canonical String form of a UUID
+     *
+     * @param high The 64 most significant bits
+     * @param low The 64 least significant bits
+     * @return The UUID
+     */
+    static String toString( long high, long low )
+    {
+        char[] chars = new char[36];
+        int digits = 0;
+
+        for ( int i = 0; i < 36; i++ )
+        {
+            if ( ( i == 8 ) || ( i == 13 ) || ( i == 18 ) || ( i == 23 ) )
+            {
+                chars[i] = '-';
+                continue;
+            }
+
+            long half = ( digits < 16 ) ? high : low;
+            int shift = 60 - ( ( digits % 16 ) * 4 );
+            chars[i] = HEX_CHARS[( int ) ( half >>> shift ) & 0x0F];
+            digits++;
+        }
+
+        return new String( chars );
+    }
+
+
+    /**
+     * Compares two 128 bits unsigned values
+     */
+    static int compare( long high1, long low1, long high2, long low2 )
+    {
+        if ( high1 != high2 )
+        {
+            return ( high1 + Long.MIN_VALUE ) < ( high2 + Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        if ( low1 != low2 )
+        {
+            return ( low1 + Long.MIN_VALUE ) < ( low2 + Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Searches for a UUID in a decoded block.
+     *
+     * @return The position of the UUID, or <code>-(insertion point) - 1</code> if it's not present
+     */
+    static int search( long[] ids, long high, long low )
+    {
+        int start = 0;
+        int end = ids.length / 2 - 1;
+
+        while ( start <= end )
+        {
+            int middle = ( start + end ) >>> 1;
+            int comparison = compare( ids[middle * 2], ids[middle * 2 + 1], high, low );
+
+            if ( comparison < 0 )
+            {
+                start = middle + 1;
+            }
+            else if ( comparison > 0 )
+            {
+                end = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+
+        return -( start + 1 );
+    }
+
+
+    /**
+     * Encodes a sorted array of UUIDs into a block
+     *
+     * @param ids The UUIDs, two longs per UUID
+     * @param size The number of UUIDs
+     * @return The encoded block
+     */
+    static byte[] encode( long[] ids, int size )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 16 + size * 16 );
+        writeVarInt( out, 0L, size );
+
+        long previousHigh = ids[0];
+        long previousLow = ids[1];
+
+        for ( int i = 7; i >= 0; i-- )
+        {
+            out.write( ( int ) ( previousHigh >>> ( i * 8 ) ) );
+        }
+
+        for ( int i = 7; i >= 0; i-- )
+        {
+            out.write( ( int ) ( previousLow >>> ( i * 8 ) ) );
+        }
+
+        for ( int i = 1; i < size; i++ )
+        {
+            long high = ids[i * 2];
+            long low = ids[i * 2 + 1];
+
+            // 128 bits subtraction, with a borrow
+            long deltaLow = low - previousLow;
+            long borrow = ( ( low + Long.MIN_VALUE ) < ( previousLow + Long.MIN_VALUE ) ) ? 1L : 0L;
+            long deltaHigh = high - previousHigh - borrow;
+
+            writeVarInt( out, deltaHigh, deltaLow );
+
+            previousHigh = high;
+            previousLow = low;
+        }
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Decodes a block
+     *
+     * @param block The encoded block
+     * @return The UUIDs, two longs per UUID
+     */
+    static long[] decode( byte[] block )
+    {
+        int[] pos = new int[1];
+        int size = ( int ) readVarInt( block, pos )[1];
+        long[] ids = new long[size * 2];
+
+        long high = 0L;
+        long low = 0L;
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            high = ( high << 8 ) | ( block[pos[0]++] & 0xFFL );
+        }
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            low = ( low << 8 ) | ( block[pos[0]++] & 0xFFL );
+        }
+
+        ids[0] = high;
+        ids[1] = low;
+
+        for ( int i = 1; i < size; i++ )
+        {
+            long[] delta = readVarInt( block, pos );
+
+            // 128 bits addition, with a carry
+            long newLow = low + delta[1];
+            long carry = ( ( newLow + Long.MIN_VALUE ) < ( low + Long.MIN_VALUE ) ) ? 1L : 0L;
+            high = high + delta[0] + carry;
+            low = newLow;
+
+            ids[i * 2] = high;
+            ids[i * 2 + 1] = low;
+        }
+
+        return ids;
+    }
+
+
+    /**
+     * Writes a 128 bits unsigned value, 7 bits at a time
+     */
+    private static void writeVarInt( ByteArrayOutputStream out, long high, long low )
+    {
+        while ( ( high != 0L ) || ( ( low & ~0x7FL ) != 0L ) )
+        {
+            out.write( ( int ) ( ( low & 0x7FL ) | 0x80L ) );
+            low = ( low >>> 7 ) | ( high << 57 );
+            high >>>= 7;
+        }
+
+        out.write( ( int ) low );
+    }
+
+
+    /**
+     * Reads a 128 bits unsigned value, and updates the position
+     */
+    private static long[] readVarInt( byte[] bytes, int[] pos )
+    {
+        long high = 0L;
+        long low = 0L;
+        int shift = 0;
+
+        while ( true )
+        {
+            long b = bytes[pos[0]++];
+            long bits = b & 0x7FL;
+
+            if ( shift < 64 )
+            {
+                low |= bits << shift;
+
+                if ( shift > 57 )
+                {
+                    high |= bits >>> ( 64 - shift );
+                }
+            }
+            else
+            {
+                high |= bits << ( shift - 64 );
+            }
+
+            if ( ( b & 0x80L ) == 0 )
+            {
+                return new long[]
+                    { high, low };
+            }
+
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import jdbm.btree.BTree;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Cursor over the UUIDs of a {@link PostingList}. Only one block is decoded at
+ * a time, and the next or previous block is found using the BTree keys.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PostingListCursor extends AbstractCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The BTree holding the blocks */
+    private final BTree<String, byte[]> blocks;
+
+    /** The current decoded block, or null if we are before the first or after the last UUID */
+    private long[] ids;
+
+    /** The position in the current block, which may be -1 or the block size */
+    private int pos;
+
+    /** Tells if we are after the last UUID, when there is no current block */
+    private boolean afterLast;
+
+    /** Tells if the cursor is positioned on a UUID */
+    private boolean valueAvailable;
+
+
+    /**
+     * Creates a Cursor over the UUIDs of a PostingList.
+     *
+     * @param blocks The BTree holding the posting list blocks
+     */
+    PostingListCursor( BTree<String, byte[]> blocks )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating PostingListCursor {}", this );
+        }
+
+        this.blocks = blocks;
+    }
+
+
+    private int blockSize()
+    {
+        return ids.length / 2;
+    }
+
+
+    private String lastOfBlock()
+    {
+        int last = ids.length - 2;
+
+        return PostingList.toString( ids[last], ids[last + 1] );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean available()
+    {
+        return valueAvailable;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void before( String element ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        valueAvailable = false;
+
+        try
+        {
+            Tuple<String, byte[]> tuple = blocks.findGreaterOrEqual( element );
+
+            if ( tuple == null )
+            {
+                ids = null;
+                afterLast = true;
+
+                return;
+            }
+
+            ids = PostingList.decode( tuple.getValue() );
+            long[] value = PostingList.parse( element );
+
+            if ( value == null )
+            {
+                // Not a canonical UUID : position before the first UUID which is greater
+                pos = -1;
+
+                while ( ( pos + 1 < blockSize() )
+                    && ( UuidComparator.INSTANCE.compare( PostingList.toString( ids[pos * 2 + 2], ids[pos * 2 + 3] ),
+                        element ) < 0 ) )
+                {
+                    pos++;
+                }
+
+                return;
+            }
+
+            int found = PostingList.search( ids, value[0], value[1] );
+            pos = ( found >= 0 ) ? found - 1 : -( found + 1 ) - 1;
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void after( String element ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        valueAvailable = false;
+
+        try
+        {
+            Tuple<String, byte[]> tuple = blocks.findGreaterOrEqual( element );
+
+            if ( tuple == null )
+            {
+                ids = null;
+                afterLast = true;
+
+                return;
+            }
+
+            ids = PostingList.decode( tuple.getValue() );
+            long[] value = PostingList.parse( element );
+
+            if ( value == null )
+            {
+                // Not a canonical UUID : position on the last UUID which is lower or equal
+                pos = -1;
+
+                while ( ( pos + 1 < blockSize() )
+                    && ( UuidComparator.INSTANCE.compare( PostingList.toString( ids[pos * 2 + 2], ids[pos * 2 + 3] ),
+                        element ) <= 0 ) )
+                {
+                    pos++;
+                }
+
+                return;
+            }
+
+            int found = PostingList.search( ids, value[0], value[1] );
+            pos = ( found >= 0 ) ? found : -( found + 1 ) - 1;
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        ids = null;
+        afterLast = false;
+        valueAvailable = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        ids = null;
+        afterLast = true;
+        valueAvailable = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            if ( ( ids != null ) && ( pos - 1 >= 0 ) )
+            {
+                pos--;
+                valueAvailable = true;
+
+                return true;
+            }
+
+            Tuple<String, byte[]> tuple = new Tuple<String, byte[]>();
+            TupleBrowser<String, byte[]> browser;
+
+            if ( ids == null )
+            {
+                if ( !afterLast )
+                {
+                    valueAvailable = false;
+
+                    return false;
+                }
+
+                browser = blocks.browse( null );
+            }
+            else
+            {
+                // The current block is the first one with a key greater or equal to its first UUID
+                browser = blocks.browse( PostingList.toString( ids[0], ids[1] ) );
+            }
+
+            if ( browser.getPrevious( tuple ) )
+            {
+                ids = PostingList.decode( tuple.getValue() );
+                pos = blockSize() - 1;
+                afterLast = false;
+                valueAvailable = true;
+
+                return true;
+            }
+
+            ids = null;
+            afterLast = false;
+            valueAvailable = false;
+
+            return false;
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            if ( ( ids != null ) && ( pos + 1 < blockSize() ) )
+            {
+                pos++;
+                valueAvailable = true;
+
+                return true;
+            }
+
+            Tuple<String, byte[]> tuple = new Tuple<String, byte[]>();
+            TupleBrowser<String, byte[]> browser;
+
+            if ( ids == null )
+            {
+                if ( afterLast )
+                {
+                    valueAvailable = false;
+
+                    return false;
+                }
+
+                browser = blocks.browse();
+            }
+            else
+            {
+                // Position the browser right after the current block
+                browser = blocks.browse( lastOfBlock() );
+                browser.getNext( tuple );
+            }
+
+            if ( browser.getNext( tuple ) )
+            {
+                ids = PostingList.decode( tuple.getValue() );
+                pos = 0;
+                valueAvailable = true;
+
+                return true;
+            }
+
+            ids = null;
+            afterLast = true;
+            valueAvailable = false;
+
+            return false;
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( valueAvailable )
+        {
+            return PostingList.toString( ids[pos * 2], ids[pos * 2 + 1] );
+        }
+
+        throw new InvalidCursorPositionException();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing PostingListCursor {}", this );
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing PostingListCursor {}", this );
+        }
+
+        super.close( cause );
+    }
+}
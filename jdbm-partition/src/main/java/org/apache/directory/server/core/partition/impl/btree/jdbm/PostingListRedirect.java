@@ -0,0 +1,71 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.Serializable;
+
+
+/**
+ * A redirection pointer to a {@link PostingList}, the BTree holding the
+ * compressed blocks of values for a key. It also carries the number of values
+ * stored in the posting list, so that they can be counted without reading it.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PostingListRedirect implements Serializable
+{
+    private static final long serialVersionUID = 5120784368927632017L;
+
+    final long recId;
+
+    final long count;
+
+
+    public PostingListRedirect( long recId, long count )
+    {
+        this.recId = recId;
+        this.count = count;
+    }
+
+
+    public long getRecId()
+    {
+        return recId;
+    }
+
+
+    public long getCount()
+    {
+        return count;
+    }
+
+
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append( "PostingListRedirect[" );
+        buf.append( recId );
+        buf.append( ", " );
+        buf.append( count );
+        buf.append( "]" );
+        return buf.toString();
+    }
+}
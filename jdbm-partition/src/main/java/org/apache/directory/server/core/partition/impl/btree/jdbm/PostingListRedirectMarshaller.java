@@ -0,0 +1,118 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.avltree.Marshaller;
+
+
+/**
+ * Serializes and deserializes a PostingListRedirect object to and from a byte[]
+ * representation.  The serialized form is a fixed size byte array of length
+ * 17.  The first byte contains the magic number of value 2 for this kind of
+ * object, the next 8 bytes encode the record identifier of the posting list
+ * BTree and the last 8 bytes the number of values it contains.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PostingListRedirectMarshaller implements Marshaller<PostingListRedirect>
+{
+    /** fixed byte array size of 17 for serialized form */
+    static final int SIZE = 17;
+
+    /** The magic number */
+    static final byte MAGIC = 2;
+
+    /** a reusable instance of this Marshaller */
+    public static final PostingListRedirectMarshaller INSTANCE = new PostingListRedirectMarshaller();
+
+
+    /**
+     * @see Marshaller#serialize(Object)
+     */
+    public final byte[] serialize( PostingListRedirect redirect ) throws IOException
+    {
+        byte[] bites = new byte[SIZE];
+
+        bites[0] = MAGIC;
+        writeLong( bites, 1, redirect.recId );
+        writeLong( bites, 9, redirect.count );
+
+        return bites;
+    }
+
+
+    /**
+     * @see Marshaller#deserialize(byte[])
+     */
+    public final PostingListRedirect deserialize( byte[] bytes ) throws IOException
+    {
+        if ( !isRedirect( bytes ) )
+        {
+            if ( bytes != null )
+            {
+                throw new IOException( "Not a serialized PostingListRedirect object: " + Strings.dumpBytes( bytes ) );
+            }
+            else
+            {
+                throw new IOException( "Not a serialized PostingListRedirect object: byte array is null." );
+            }
+        }
+
+        return new PostingListRedirect( readLong( bytes, 1 ), readLong( bytes, 9 ) );
+    }
+
+
+    private static void writeLong( byte[] bytes, int pos, long value )
+    {
+        for ( int i = 0; i < 8; i++ )
+        {
+            bytes[pos + i] = ( byte ) ( value >> ( 56 - 8 * i ) );
+        }
+    }
+
+
+    private static long readLong( byte[] bytes, int pos )
+    {
+        long value = 0L;
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            value = ( value << 8 ) | ( bytes[pos + i] & 0xFFL );
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Checks to see if a byte[] contains a redirect to a posting list.
+     *
+     * @param bites the bites to check for a redirect
+     * @return true if bites contain PostingListRedirect, false otherwise
+     */
+    public static boolean isRedirect( byte[] bites )
+    {
+        return ( bites != null ) && ( bites.length == SIZE ) && ( bites[0] == MAGIC );
+    }
+}
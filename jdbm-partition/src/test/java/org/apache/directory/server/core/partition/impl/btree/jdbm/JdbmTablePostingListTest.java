@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
+import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests JdbmTable operations when the duplicate UUIDs are stored in compressed
+ * posting lists.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmTablePostingListTest
+{
+    private static final int DUP_LIMIT = 10;
+    private static final int NB_VALUES = 2000;
+    private static final String KEY = "1";
+
+    private JdbmTable<String, String> table;
+    private File dbFile;
+    private RecordManager recman;
+    private static SchemaManager schemaManager;
+    private PartitionTxn partitionTxn;
+
+    /** The sorted values stored in the table */
+    private List<String> uuids;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmTablePostingListTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createTable() throws Exception
+    {
+        dbFile = File.createTempFile( getClass().getSimpleName(), "db" );
+        recman = new BaseRecordManager( dbFile.getAbsolutePath() );
+
+        SerializableComparator<String> comparator = new SerializableComparator<String>(
+            SchemaConstants.INTEGER_ORDERING_MATCH_MR_OID );
+        comparator.setSchemaManager( schemaManager );
+        UuidComparator.INSTANCE.setSchemaManager( schemaManager );
+
+        table = new JdbmTable<String, String>( schemaManager, "test", DUP_LIMIT, recman,
+            comparator, UuidComparator.INSTANCE, StringSerializer.INSTANCE, UuidSerializer.INSTANCE );
+        table.setPostingListsEnabled( true );
+        partitionTxn = new MockPartitionReadTxn();
+
+        uuids = new ArrayList<String>();
+
+        for ( int i = 0; i < NB_VALUES; i++ )
+        {
+            String uuid = UUID.randomUUID().toString();
+            uuids.add( uuid );
+            table.put( partitionTxn, KEY, uuid );
+        }
+
+        Collections.sort( uuids );
+    }
+
+
+    @After
+    public void destroyTable() throws Exception
+    {
+        table.close( partitionTxn );
+        recman.close();
+
+        String fileToDelete = dbFile.getAbsolutePath();
+        new File( fileToDelete + ".db" ).delete();
+        new File( fileToDelete + ".lg" ).delete();
+        dbFile.delete();
+    }
+
+
+    @Test
+    public void testPutHasCount() throws Exception
+    {
+        assertTrue( table.isKeyUsingPostingList( KEY ) );
+        assertFalse( table.isKeyUsingBTree( KEY ) );
+        assertEquals( NB_VALUES, table.count( partitionTxn, KEY ) );
+        assertEquals( NB_VALUES, table.count( partitionTxn ) );
+        assertEquals( uuids.get( 0 ), table.get( partitionTxn, KEY ) );
+
+        for ( String uuid : uuids )
+        {
+            assertTrue( table.has( partitionTxn, KEY, uuid ) );
+        }
+
+        assertFalse( table.has( partitionTxn, KEY, UUID.randomUUID().toString() ) );
+
+        // Adding an existing value does not change anything
+        table.put( partitionTxn, KEY, uuids.get( 100 ) );
+        assertEquals( NB_VALUES, table.count( partitionTxn, KEY ) );
+
+        assertTrue( table.hasGreaterOrEqual( partitionTxn, KEY, uuids.get( NB_VALUES - 1 ) ) );
+        assertFalse( table.hasGreaterOrEqual( partitionTxn, KEY, "ffffffff-ffff-ffff-ffff-ffffffffffff" ) );
+        assertTrue( table.hasLessOrEqual( partitionTxn, KEY, uuids.get( 0 ) ) );
+        assertFalse( table.hasLessOrEqual( partitionTxn, KEY, "00000000-0000-0000-0000-000000000000" ) );
+    }
+
+
+    @Test
+    public void testCursors() throws Exception
+    {
+        Cursor<String> values = table.valueCursor( partitionTxn, KEY );
+        int i = 0;
+
+        while ( values.next() )
+        {
+            assertEquals( uuids.get( i++ ), values.get() );
+        }
+
+        assertEquals( NB_VALUES, i );
+
+        while ( values.previous() )
+        {
+            assertEquals( uuids.get( --i ), values.get() );
+        }
+
+        assertEquals( 0, i );
+
+        values.after( uuids.get( 500 ) );
+        assertTrue( values.next() );
+        assertEquals( uuids.get( 501 ), values.get() );
+
+        values.before( uuids.get( 500 ) );
+        assertTrue( values.previous() );
+        assertEquals( uuids.get( 499 ), values.get() );
+        values.close();
+
+        Cursor<Tuple<String, String>> tuples = table.cursor();
+        tuples.beforeFirst();
+        i = 0;
+
+        while ( tuples.next() )
+        {
+            assertEquals( KEY, tuples.get().getKey() );
+            assertEquals( uuids.get( i++ ), tuples.get().getValue() );
+        }
+
+        assertEquals( NB_VALUES, i );
+        tuples.close();
+    }
+
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        for ( int i = 0; i < NB_VALUES - DUP_LIMIT; i++ )
+        {
+            table.remove( partitionTxn, KEY, uuids.get( i ) );
+            assertFalse( table.has( partitionTxn, KEY, uuids.get( i ) ) );
+        }
+
+        // We are back under the limit
+        assertFalse( table.isKeyUsingPostingList( KEY ) );
+        assertEquals( DUP_LIMIT, table.count( partitionTxn, KEY ) );
+        assertTrue( table.has( partitionTxn, KEY, uuids.get( NB_VALUES - 1 ) ) );
+
+        table.remove( partitionTxn, KEY );
+        assertEquals( 0, table.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testNonCanonicalValue() throws Exception
+    {
+        // An upper case UUID can't be stored in a posting list
+        String upperCase = UUID.randomUUID().toString().toUpperCase();
+        table.put( partitionTxn, KEY, upperCase );
+
+        assertTrue( table.isKeyUsingBTree( KEY ) );
+        assertEquals( NB_VALUES + 1, table.count( partitionTxn, KEY ) );
+        assertTrue( table.has( partitionTxn, KEY, upperCase ) );
+        assertTrue( table.has( partitionTxn, KEY, uuids.get( 42 ) ) );
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testSwitchAfterModification() throws Exception
+    {
+        // The table already holds some values
+        table.setPostingListsEnabled( false );
+    }
+}
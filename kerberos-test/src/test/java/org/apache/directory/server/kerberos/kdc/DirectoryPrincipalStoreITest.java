@@ -0,0 +1,119 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.kerberos.kdc;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.security.auth.kerberos.KerberosPrincipal;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.kerberos.KeyDerivationInterceptor;
+import org.apache.directory.server.kerberos.shared.store.PrincipalStoreEntry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the principal cache of the DirectoryPrincipalStore : the principals must be
+ * served from the cache, and dropped from it as soon as their entry is changed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "DirectoryPrincipalStoreIT-class",
+    partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com")
+    },
+    additionalInterceptors =
+        {
+            KeyDerivationInterceptor.class
+    })
+@ApplyLdifFiles("org/apache/directory/server/kerberos/kdc/KerberosIT.ldif")
+public class DirectoryPrincipalStoreITest extends AbstractKerberosITest
+{
+    private static final String PRINCIPAL_NAME = "cached@" + REALM;
+    private static final String PRINCIPAL_DN = "uid=cached," + USERS_DN;
+
+
+    @Test
+    public void testPrincipalCache() throws Exception
+    {
+        conn.add( new DefaultEntry( PRINCIPAL_DN,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: inetOrgPerson",
+            "objectClass: krb5principal",
+            "objectClass: krb5kdcentry",
+            "cn: Cached",
+            "sn: Cached",
+            "uid: cached",
+            "userPassword: secret",
+            "krb5PrincipalName", PRINCIPAL_NAME,
+            "krb5KeyVersionNumber: 0" ) );
+
+        DirectoryPrincipalStore store = new DirectoryPrincipalStore( getService(),
+            new Dn( getService().getSchemaManager(), USERS_DN ),
+            getService().getCacheService().getCache( "kdcPrincipalCache" ) );
+        KerberosPrincipal principal = new KerberosPrincipal( PRINCIPAL_NAME );
+
+        try
+        {
+            PrincipalStoreEntry entry = store.getPrincipal( principal );
+            assertNotNull( entry );
+            assertFalse( entry.isDisabled() );
+
+            // The second read is served from the cache
+            assertSame( entry, store.getPrincipal( principal ) );
+
+            // A modification invalidates the cached principal
+            conn.modify( new Dn( PRINCIPAL_DN ),
+                new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "krb5AccountDisabled", "TRUE" ) );
+
+            PrincipalStoreEntry modified = store.getPrincipal( principal );
+            assertNotSame( entry, modified );
+            assertTrue( modified.isDisabled() );
+
+            // And so does a deletion
+            conn.delete( PRINCIPAL_DN );
+
+            assertNull( store.getPrincipal( principal ) );
+        }
+        finally
+        {
+            store.stop();
+        }
+    }
+}
@@ -23,9 +23,11 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -98,6 +100,15 @@ public class MmrTester
 
     private boolean verbose = false;
     
+    /** The number of threads modifying the entries during the stress test */
+    private static final int STRESS_THREAD_COUNT = 4;
+    
+    /** The number of modifications done by each thread during the stress test */
+    private static final int STRESS_MODIFICATION_COUNT = 500;
+    
+    /** The time we wait for the peers to converge after the stress test, in milliseconds */
+    private static final long CONVERGENCE_TIMEOUT = 120000L;
+    
     private static LdapServer peer1Server;
 
     private static LdapServer peer2Server;
@@ -122,20 +133,27 @@ public class MmrTester
         
         for( String u : urls )
         {
-            LdapUrl url = new LdapUrl( u );
-            boolean useSsl = false;
-            if( url.getScheme().equals( "ldaps" ) )
-            {
-                useSsl = true;
-            }
-            
-            LdapNetworkConnection c = new LdapNetworkConnection( url.getHost(), url.getPort(), useSsl );
-            c.setTimeOut( Long.MAX_VALUE );
-            c.connect();
-            c.bind( ServerDNConstants.ADMIN_SYSTEM_DN, "secret" );
-            System.out.println( "connected to the server " + url );
-            connections.add( c );
+            connections.add( openConnection( u ) );
+        }
+    }
+    
+    
+    private LdapNetworkConnection openConnection( String u ) throws Exception
+    {
+        LdapUrl url = new LdapUrl( u );
+        boolean useSsl = false;
+        if( url.getScheme().equals( "ldaps" ) )
+        {
+            useSsl = true;
         }
+        
+        LdapNetworkConnection c = new LdapNetworkConnection( url.getHost(), url.getPort(), useSsl );
+        c.setTimeOut( Long.MAX_VALUE );
+        c.connect();
+        c.bind( ServerDNConstants.ADMIN_SYSTEM_DN, "secret" );
+        System.out.println( "connected to the server " + url );
+        
+        return c;
     }
     
     
@@ -223,6 +241,142 @@ public class MmrTester
     }
     
     
+    /**
+     * Modifies the injected entries from many threads, each of them writing to one of the
+     * peers, then waits for all the peers to have the same entryCSN for each entry. The
+     * write throughput and the time it took to converge are printed.
+     */
+    public void stressAndMeasureConvergence() throws Exception
+    {
+        final int entryCount = count.get() + 1;
+        final String[] peerUrls = urls.toArray( new String[0] );
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<Thread>();
+        
+        for( int t = 0; t < STRESS_THREAD_COUNT; t++ )
+        {
+            final int threadNum = t;
+            
+            Thread writer = new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Random random = new Random();
+                    
+                    try
+                    {
+                        LdapNetworkConnection nc = openConnection( peerUrls[threadNum % peerUrls.length] );
+                        
+                        try
+                        {
+                            for( int i = 0; i < STRESS_MODIFICATION_COUNT; i++ )
+                            {
+                                Dn personDn = new Dn( "cn=" + RDN_PREFIX + random.nextInt( entryCount ) + "," + REPL_AREA_SUFFIX );
+                                
+                                ModifyRequest modReq = new ModifyRequestImpl();
+                                modReq.setName( personDn );
+                                modReq.replace( SchemaConstants.SN_AT, "sn_" + threadNum + "_" + i );
+                                
+                                ModifyResponse resp = nc.modify( modReq );
+                                
+                                if( resp.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                                {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        }
+                        finally
+                        {
+                            nc.close();
+                        }
+                    }
+                    catch( Exception e )
+                    {
+                        throw new RuntimeException( e );
+                    }
+                }
+            } );
+            
+            writers.add( writer );
+        }
+        
+        long start = System.currentTimeMillis();
+        
+        for( Thread writer : writers )
+        {
+            writer.start();
+        }
+        
+        for( Thread writer : writers )
+        {
+            writer.join();
+        }
+        
+        long written = System.currentTimeMillis();
+        int total = STRESS_THREAD_COUNT * STRESS_MODIFICATION_COUNT;
+        
+        System.out.println( "applied " + total + " modifications (" + failures.get() + " failures) in "
+            + ( written - start ) + " ms : " + ( total * 1000L / Math.max( 1L, written - start ) ) + " modifications/s" );
+        
+        while( !isConverged() )
+        {
+            if( System.currentTimeMillis() - written > CONVERGENCE_TIMEOUT )
+            {
+                throw new RuntimeException( "The peers have not converged after " + CONVERGENCE_TIMEOUT + " ms" );
+            }
+            
+            Thread.sleep( 100 );
+        }
+        
+        long converged = System.currentTimeMillis();
+        
+        System.out.println( "converged " + ( converged - written ) + " ms after the last modification : "
+            + ( total * 1000L / Math.max( 1L, converged - start ) ) + " replicated modifications/s" );
+    }
+    
+    
+    /**
+     * Tells if all the peers have the same entryCSN for each entry of the replication area
+     */
+    private boolean isConverged() throws Exception
+    {
+        Map<String, String> reference = null;
+        
+        for( LdapNetworkConnection c : connections )
+        {
+            Map<String, String> csns = new HashMap<String, String>();
+            EntryCursor cursor = c.search( REPL_AREA_SUFFIX, "(objectClass=person)", SearchScope.ONELEVEL,
+                SchemaConstants.ENTRY_UUID_AT, SchemaConstants.ENTRY_CSN_AT );
+            
+            try
+            {
+                while( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+                    csns.put( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString(),
+                        entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            
+            if( reference == null )
+            {
+                reference = csns;
+            }
+            else if( !reference.equals( csns ) )
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    
     public void moveAndCompare( Dn superiorDn ) throws Exception
     {
         List<Dn> moved = new ArrayList<Dn>();
@@ -638,6 +792,8 @@ public class MmrTester
             
             cc.compareEntries( modified );
             
+            cc.stressAndMeasureConvergence();
+            
             Entry groupEntry = new DefaultEntry( "ou=groups," + REPL_AREA_SUFFIX,
                 "objectClass: organizationalUnit",
                 "objectClass: top",
@@ -22,6 +22,9 @@ package org.apache.directory.server.kerberos.kdc;
 
 import javax.security.auth.kerberos.KerberosPrincipal;
 
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -30,7 +33,10 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
@@ -38,6 +44,16 @@ import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.kerberos.changepwd.exceptions.ChangePasswdErrorType;
 import org.apache.directory.server.kerberos.changepwd.exceptions.ChangePasswordException;
@@ -46,22 +62,42 @@ import org.apache.directory.server.kerberos.shared.store.PrincipalStoreEntry;
 import org.apache.directory.server.protocol.shared.kerberos.GetPrincipal;
 import org.apache.directory.server.protocol.shared.kerberos.StoreUtils;
 import org.apache.directory.shared.kerberos.KerberosAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
  * A PrincipalStore backing entries in a DirectoryService.
- * 
+ * <br/>
+ * The principals can be cached : they are then removed from the cache by a listener
+ * registered in the EventService as soon as their entry is modified, renamed, moved
+ * or deleted.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class DirectoryPrincipalStore implements PrincipalStore
 {
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( DirectoryPrincipalStore.class );
+
     /** The directory service backing store for this PrincipalStore. */
     private final DirectoryService directoryService;
     private final Dn searchBaseDn;
 
     private CoreSession adminSession;
 
+    /** The cache of the principals, by name. Null if the principals are not cached */
+    private Cache principalCache;
+
+    /** The listener removing the modified principals from the cache */
+    private DirectoryListener principalListener;
+
+    /** The number of principals removed from the cache so far */
+    private long invalidations;
+
+    /** The lock protecting the cache updates */
+    private final Object cacheLock = new Object();
+
 
     /**
      * Creates a new instance of DirectoryPrincipalStore.
@@ -76,6 +112,40 @@ public class DirectoryPrincipalStore implements PrincipalStore
     }
 
 
+    /**
+     * Creates a new instance of DirectoryPrincipalStore, caching the principals. If the
+     * listener invalidating the cache can't be registered, the principals won't be cached.
+     *
+     * @param directoryService backing store for this PrincipalStore
+     * @param searchBaseDn The DN under which the principals are stored
+     * @param principalCache The cache to use
+     */
+    public DirectoryPrincipalStore( DirectoryService directoryService, Dn searchBaseDn, Cache principalCache )
+    {
+        this( directoryService, searchBaseDn );
+
+        NotificationCriteria criteria = new NotificationCriteria( directoryService.getSchemaManager() );
+        criteria.setBase( searchBaseDn );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+        criteria.setFilter( new PresenceNode( directoryService.getAtProvider().getObjectClass() ) );
+
+        DirectoryListener listener = new PrincipalCacheListener();
+
+        try
+        {
+            directoryService.getEventService().addListener( listener, criteria );
+
+            this.principalCache = principalCache;
+            this.principalListener = listener;
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to register the listener of the principal cache, the principals won't be cached", e );
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -152,6 +222,148 @@ public class DirectoryPrincipalStore implements PrincipalStore
      */
     public PrincipalStoreEntry getPrincipal( KerberosPrincipal principal ) throws Exception
     {
-        return ( PrincipalStoreEntry ) new GetPrincipal( principal ).execute( adminSession, searchBaseDn );
+        if ( principalCache == null )
+        {
+            return ( PrincipalStoreEntry ) new GetPrincipal( principal ).execute( adminSession, searchBaseDn );
+        }
+
+        String name = principal.getName();
+        Element element = principalCache.get( name );
+
+        if ( element != null )
+        {
+            return ( PrincipalStoreEntry ) element.getObjectValue();
+        }
+
+        long invalidationCount;
+
+        synchronized ( cacheLock )
+        {
+            invalidationCount = invalidations;
+        }
+
+        PrincipalStoreEntry entry = ( PrincipalStoreEntry ) new GetPrincipal( principal ).execute( adminSession,
+            searchBaseDn );
+
+        if ( entry != null )
+        {
+            synchronized ( cacheLock )
+            {
+                // Don't cache a principal which may have been modified while we were reading it
+                if ( invalidations == invalidationCount )
+                {
+                    principalCache.put( new Element( name, entry ) );
+                }
+            }
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Unregisters the cache listener, and empties the cache : the principals may be
+     * modified while we don't listen anymore.
+     */
+    public void stop()
+    {
+        if ( principalListener != null )
+        {
+            directoryService.getEventService().removeListener( principalListener );
+            principalListener = null;
+        }
+
+        if ( principalCache != null )
+        {
+            principalCache.removeAll();
+        }
+    }
+
+
+    /**
+     * Removes the principals stored in the given entry from the cache
+     */
+    private void invalidate( Entry entry )
+    {
+        if ( entry == null )
+        {
+            return;
+        }
+
+        Attribute principalNames = entry.get( KerberosAttribute.KRB5_PRINCIPAL_NAME_AT );
+
+        if ( principalNames == null )
+        {
+            return;
+        }
+
+        synchronized ( cacheLock )
+        {
+            invalidations++;
+
+            for ( Value value : principalNames )
+            {
+                principalCache.remove( value.getValue() );
+            }
+        }
+
+        LOG.debug( "Removed the principals {} from the cache", principalNames );
+    }
+
+
+    /**
+     * The listener removing the principals from the cache when their entry is changed
+     */
+    private class PrincipalCacheListener extends DirectoryListenerAdapter
+    {
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            invalidate( addContext.getEntry() );
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            invalidate( deleteContext.getEntry() );
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            invalidate( modifyContext.getEntry() );
+            invalidate( modifyContext.getAlteredEntry() );
+        }
+
+
+        @Override
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            invalidate( renameContext.getEntry() );
+        }
+
+
+        @Override
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            invalidate( moveContext.getOriginalEntry() );
+        }
+
+
+        @Override
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            invalidate( moveAndRenameContext.getOriginalEntry() );
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            // The principal must be removed before the operation returns
+            return true;
+        }
     }
 }
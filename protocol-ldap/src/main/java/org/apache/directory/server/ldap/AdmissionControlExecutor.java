@@ -0,0 +1,419 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.message.AddRequest;
+import org.apache.directory.api.ldap.model.message.BindRequest;
+import org.apache.directory.api.ldap.model.message.CompareRequest;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequest;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An Executor used by the LDAP ExecutorFilter, which classifies the incoming requests and
+ * processes each class in its own lane. A lane has its own threads and its own bounded queue,
+ * so a burst of expensive subtree searches can't delay the binds and the base object lookups.
+ * When the queue of a lane is full, the request is not processed : a response with a BUSY result
+ * code is immediately sent back to the client.
+ *
+ * The abandon and unbind requests, and the other session events, are never rejected : they are
+ * processed in a {@link OperationClass#CONTROL} lane with an unbounded queue.
+ *
+ * The lanes must be configured before the server is started.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AdmissionControlExecutor implements Executor
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( AdmissionControlExecutor.class );
+
+    /** The time an idle thread is kept, in seconds */
+    private static final long KEEP_ALIVE = 60L;
+
+    /**
+     * The classes of operations, each one being processed in its own lane
+     */
+    public enum OperationClass
+    {
+        /** The bind requests */
+        BIND,
+
+        /** The base object searches and the compare requests */
+        LOOKUP,
+
+        /** The one level and subtree searches */
+        SEARCH,
+
+        /** The add, delete, modify and modifyDN requests */
+        WRITE,
+
+        /** The extended requests */
+        EXTENDED,
+
+        /** The abandon and unbind requests, and any other event. Never rejected */
+        CONTROL
+    }
+
+    /** The lanes */
+    private final Map<OperationClass, Lane> lanes = new EnumMap<OperationClass, Lane>( OperationClass.class );
+
+
+    /**
+     * A lane : its threads, its queue, and its metrics
+     */
+    private static class Lane
+    {
+        /** The threads processing the requests of this lane */
+        private final ThreadPoolExecutor executor;
+
+        /** The number of requests processed */
+        private final AtomicLong nbProcessed = new AtomicLong();
+
+        /** The number of requests rejected because the queue was full */
+        private final AtomicLong nbRejected = new AtomicLong();
+
+        /** The total time the requests have been waiting in the queue, in ns */
+        private final AtomicLong totalWaitTime = new AtomicLong();
+
+        /** The longest time a request has been waiting in the queue, in ns */
+        private final AtomicLong maxWaitTime = new AtomicLong();
+
+
+        private Lane( final OperationClass operationClass, int nbThreads, int queueSize )
+        {
+            BlockingQueue<Runnable> queue;
+
+            if ( queueSize > 0 )
+            {
+                queue = new ArrayBlockingQueue<Runnable>( queueSize );
+            }
+            else
+            {
+                queue = new LinkedBlockingQueue<Runnable>();
+            }
+
+            final AtomicInteger threadNumber = new AtomicInteger();
+
+            executor = new ThreadPoolExecutor( nbThreads, nbThreads, KEEP_ALIVE, TimeUnit.SECONDS, queue,
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread( Runnable runnable )
+                    {
+                        Thread thread = new Thread( runnable, "ldap-" + operationClass.name().toLowerCase() + "-"
+                            + threadNumber.incrementAndGet() );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                } );
+
+            executor.allowCoreThreadTimeOut( true );
+        }
+
+
+        private void waited( long waitTime )
+        {
+            nbProcessed.incrementAndGet();
+            totalWaitTime.addAndGet( waitTime );
+            long max = maxWaitTime.get();
+
+            while ( ( waitTime > max ) && !maxWaitTime.compareAndSet( max, waitTime ) )
+            {
+                max = maxWaitTime.get();
+            }
+        }
+    }
+
+
+    /**
+     * Creates a new AdmissionControlExecutor instance, with a default configuration based on the
+     * number of processors.
+     */
+    public AdmissionControlExecutor()
+    {
+        int nbProcessors = Runtime.getRuntime().availableProcessors();
+
+        configure( OperationClass.BIND, nbProcessors, 1024 );
+        configure( OperationClass.LOOKUP, nbProcessors, 1024 );
+        configure( OperationClass.SEARCH, Math.max( 2, nbProcessors / 2 ), 256 );
+        configure( OperationClass.WRITE, Math.max( 2, nbProcessors / 2 ), 512 );
+        configure( OperationClass.EXTENDED, 2, 64 );
+        configure( OperationClass.CONTROL, 2, 0 );
+    }
+
+
+    /**
+     * Configures a lane. Must be called before the server is started.
+     *
+     * @param operationClass The lane to configure
+     * @param nbThreads The number of threads processing the requests of this lane
+     * @param queueSize The maximum number of requests waiting for a thread. Ignored for the
+     * CONTROL lane, which queue is unbounded.
+     */
+    public void configure( OperationClass operationClass, int nbThreads, int queueSize )
+    {
+        if ( nbThreads <= 0 )
+        {
+            throw new IllegalArgumentException( "A lane needs at least one thread : " + operationClass );
+        }
+
+        if ( operationClass == OperationClass.CONTROL )
+        {
+            queueSize = 0;
+        }
+        else if ( queueSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The queue of a lane must be bounded : " + operationClass );
+        }
+
+        Lane previous = lanes.put( operationClass, new Lane( operationClass, nbThreads, queueSize ) );
+
+        if ( previous != null )
+        {
+            previous.executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Gets the class of an incoming message
+     *
+     * @param message The message
+     * @return The operation class
+     */
+    public static OperationClass classify( Object message )
+    {
+        if ( message instanceof BindRequest )
+        {
+            return OperationClass.BIND;
+        }
+        else if ( message instanceof SearchRequest )
+        {
+            if ( ( ( SearchRequest ) message ).getScope() == SearchScope.OBJECT )
+            {
+                return OperationClass.LOOKUP;
+            }
+
+            return OperationClass.SEARCH;
+        }
+        else if ( message instanceof CompareRequest )
+        {
+            return OperationClass.LOOKUP;
+        }
+        else if ( ( message instanceof AddRequest ) || ( message instanceof ModifyRequest )
+            || ( message instanceof DeleteRequest ) || ( message instanceof ModifyDnRequest ) )
+        {
+            return OperationClass.WRITE;
+        }
+        else if ( message instanceof ExtendedRequest )
+        {
+            return OperationClass.EXTENDED;
+        }
+
+        return OperationClass.CONTROL;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute( final Runnable task )
+    {
+        Object message = null;
+        IoSession session = null;
+
+        if ( task instanceof IoEvent )
+        {
+            IoEvent event = ( IoEvent ) task;
+            session = event.getSession();
+
+            if ( event.getType() == IoEventType.MESSAGE_RECEIVED )
+            {
+                message = event.getParameter();
+            }
+        }
+
+        final Lane lane = lanes.get( classify( message ) );
+        final long submitTime = System.nanoTime();
+
+        try
+        {
+            lane.executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    lane.waited( System.nanoTime() - submitTime );
+                    task.run();
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            lane.nbRejected.incrementAndGet();
+            reject( session, message );
+        }
+    }
+
+
+    /**
+     * Sends back a BUSY response for a request which can't be processed
+     */
+    private void reject( IoSession session, Object message )
+    {
+        if ( ( session != null ) && ( message instanceof ResultResponseRequest ) && !session.isClosing() )
+        {
+            LOG.debug( "Rejecting the request {}, its lane is saturated", message );
+
+            ResultResponse response = ( ( ResultResponseRequest ) message ).getResultResponse();
+            response.getLdapResult().setResultCode( ResultCodeEnum.BUSY );
+            response.getLdapResult().setDiagnosticMessage( "The server is too busy to process this request" );
+            session.write( response );
+        }
+        else
+        {
+            LOG.warn( "Failed to process the event {}, the executor has been shutdown", message );
+        }
+    }
+
+
+    /**
+     * Stops the threads
+     */
+    public void shutdown()
+    {
+        for ( Lane lane : lanes.values() )
+        {
+            lane.executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * @param operationClass The lane
+     * @return The number of requests waiting for a thread in this lane
+     */
+    public int getQueueDepth( OperationClass operationClass )
+    {
+        return lanes.get( operationClass ).executor.getQueue().size();
+    }
+
+
+    /**
+     * @param operationClass The lane
+     * @return The number of requests processed in this lane
+     */
+    public long getNbProcessed( OperationClass operationClass )
+    {
+        return lanes.get( operationClass ).nbProcessed.get();
+    }
+
+
+    /**
+     * @param operationClass The lane
+     * @return The number of requests rejected with a BUSY result code in this lane
+     */
+    public long getNbRejected( OperationClass operationClass )
+    {
+        return lanes.get( operationClass ).nbRejected.get();
+    }
+
+
+    /**
+     * @param operationClass The lane
+     * @return The average time a request waits for a thread in this lane, in microseconds
+     */
+    public long getAverageWaitTime( OperationClass operationClass )
+    {
+        Lane lane = lanes.get( operationClass );
+        long nb = lane.nbProcessed.get();
+
+        return nb == 0L ? 0L : lane.totalWaitTime.get() / nb / 1000L;
+    }
+
+
+    /**
+     * @param operationClass The lane
+     * @return The longest time a request has waited for a thread in this lane, in microseconds
+     */
+    public long getMaxWaitTime( OperationClass operationClass )
+    {
+        return lanes.get( operationClass ).maxWaitTime.get() / 1000L;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "AdmissionControlExecutor[" );
+        boolean isFirst = true;
+
+        for ( OperationClass operationClass : lanes.keySet() )
+        {
+            if ( isFirst )
+            {
+                isFirst = false;
+            }
+            else
+            {
+                sb.append( ", " );
+            }
+
+            sb.append( operationClass ).append( "(queued=" ).append( getQueueDepth( operationClass ) );
+            sb.append( ", processed=" ).append( getNbProcessed( operationClass ) );
+            sb.append( ", rejected=" ).append( getNbRejected( operationClass ) );
+            sb.append( ", avgWait=" ).append( getAverageWaitTime( operationClass ) ).append( "us)" );
+        }
+
+        return sb.append( ']' ).toString();
+    }
+}
@@ -0,0 +1,791 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.directory.api.ldap.model.message.BindResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.Request;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.ldap.model.message.UnbindRequest;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A filter limiting the resources a single client can use, so that a misbehaving client can't
+ * degrade the service for all the others. A client is identified by its source IP address, and,
+ * once it has been bound, by its bind DN. For each of them, three limits can be configured :
+ * <ul>
+ *   <li>the number of concurrent connections : a new connection above the limit is closed as soon
+ *   as it has been accepted, and a bind which would exceed the limit of its DN fails with a BUSY
+ *   result code and leaves the session anonymous</li>
+ *   <li>the number of operations in flight : a request is in flight from the moment it is
+ *   received until its final response has been written</li>
+ *   <li>the number of operations per second, with a burst of the same size</li>
+ * </ul>
+ * A request exceeding one of the operation limits is not processed : a response with a BUSY
+ * result code is immediately sent back. The abandon and unbind requests are never limited.
+ * <p>
+ * The filter has to be added after the codec and before the executor, so that the rejected
+ * requests are never scheduled. A limit set to 0 is disabled.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ClientRateLimitFilter extends IoFilterAdapter
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ClientRateLimitFilter.class );
+
+    /** The name of this filter in the chains */
+    public static final String NAME = "clientRateLimit";
+
+    /** The session attribute storing the state of a session */
+    private static final AttributeKey SESSION_STATE = new AttributeKey( ClientRateLimitFilter.class, "sessionState" );
+
+    /** The minimal delay between two warnings about the same client, in ms */
+    private static final long WARNING_DELAY = 10000L;
+
+    /** The maximum number of connections from one address */
+    private int maxConnectionsPerAddress;
+
+    /** The maximum number of operations in flight from one address */
+    private int maxInFlightPerAddress;
+
+    /** The maximum number of operations per second from one address */
+    private int maxOperationsPerAddress;
+
+    /** The maximum number of sessions bound with one DN */
+    private int maxConnectionsPerBindDn;
+
+    /** The maximum number of operations in flight for one bind DN */
+    private int maxInFlightPerBindDn;
+
+    /** The maximum number of operations per second for one bind DN */
+    private int maxOperationsPerBindDn;
+
+    /** The LDAP server, used to get the LdapSessions */
+    private LdapServer ldapServer;
+
+    /** The clients, per address */
+    private final ConcurrentMap<String, ClientState> addressStates = new ConcurrentHashMap<>();
+
+    /** The clients, per normalized bind DN */
+    private final ConcurrentMap<String, ClientState> bindDnStates = new ConcurrentHashMap<>();
+
+    /** The number of connections closed because of the connection limits */
+    private final AtomicLong nbRejectedConnections = new AtomicLong();
+
+    /** The number of requests rejected because of the in flight limits */
+    private final AtomicLong nbRejectedOperations = new AtomicLong();
+
+    /** The number of requests rejected because of the operation rate limits */
+    private final AtomicLong nbThrottledOperations = new AtomicLong();
+
+
+    /**
+     * The resources used by a client, an address or a bind DN
+     */
+    private static class ClientState
+    {
+        /** The address or the normalized bind DN */
+        private final String name;
+
+        /** The number of connections */
+        private int connections;
+
+        /** The number of operations in flight */
+        private int inFlight;
+
+        /** The operations which can be done immediately */
+        private double tokens = -1d;
+
+        /** The last time the tokens have been refilled, in ns */
+        private long lastRefill;
+
+        /** The number of rejections since the last warning */
+        private long nbRejected;
+
+        /** The last time a warning has been logged, in ms */
+        private long lastWarning;
+
+        /** Tells if this state has been removed from its map */
+        private boolean removed;
+
+
+        private ClientState( String name )
+        {
+            this.name = name;
+        }
+
+
+        /**
+         * Takes a token from the bucket. Must be called while holding the state lock.
+         */
+        private boolean takeToken( int maxOperations )
+        {
+            long now = System.nanoTime();
+
+            if ( tokens < 0d )
+            {
+                tokens = maxOperations;
+            }
+            else
+            {
+                tokens = Math.min( maxOperations, tokens + ( now - lastRefill ) * maxOperations / 1.0e9d );
+            }
+
+            lastRefill = now;
+
+            if ( tokens < 1d )
+            {
+                return false;
+            }
+
+            tokens -= 1d;
+
+            return true;
+        }
+    }
+
+
+    /**
+     * The state of a session
+     */
+    private static class SessionState
+    {
+        /** The address the session comes from */
+        private final ClientState address;
+
+        /** The DN the session is bound with, null if it's anonymous */
+        private ClientState bindDn;
+
+        /** The requests in flight, with the bind DN they have been accounted on */
+        private final Map<Integer, ClientState> pending = new HashMap<>();
+
+
+        private SessionState( ClientState address )
+        {
+            this.address = address;
+        }
+    }
+
+
+    /**
+     * Sets the LDAP server this filter is used by. Must be called before the server is started.
+     *
+     * @param ldapServer The LDAP server
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionCreated( NextFilter nextFilter, IoSession session ) throws Exception
+    {
+        ClientState address = acquireConnection( addressStates, getAddress( session ), maxConnectionsPerAddress );
+
+        // The handler must always see the session, it will see it closed
+        nextFilter.sessionCreated( session );
+
+        if ( address == null )
+        {
+            session.close( true );
+
+            return;
+        }
+
+        session.setAttribute( SESSION_STATE, new SessionState( address ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionClosed( NextFilter nextFilter, IoSession session ) throws Exception
+    {
+        SessionState sessionState = ( SessionState ) session.removeAttribute( SESSION_STATE );
+
+        if ( sessionState != null )
+        {
+            List<ClientState> pendingBindDns;
+            ClientState bindDn;
+
+            synchronized ( sessionState )
+            {
+                pendingBindDns = new ArrayList<>( sessionState.pending.values() );
+                sessionState.pending.clear();
+                bindDn = sessionState.bindDn;
+                sessionState.bindDn = null;
+            }
+
+            for ( ClientState pendingBindDn : pendingBindDns )
+            {
+                completed( addressStates, sessionState.address );
+                completed( bindDnStates, pendingBindDn );
+            }
+
+            releaseConnection( bindDnStates, bindDn );
+            releaseConnection( addressStates, sessionState.address );
+        }
+
+        nextFilter.sessionClosed( session );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived( NextFilter nextFilter, IoSession session, Object message ) throws Exception
+    {
+        SessionState sessionState = ( SessionState ) session.getAttribute( SESSION_STATE );
+
+        if ( ( sessionState == null ) || !( message instanceof Request ) || ( message instanceof AbandonRequest )
+            || ( message instanceof UnbindRequest ) )
+        {
+            if ( ( sessionState != null ) && ( message instanceof AbandonRequest ) )
+            {
+                // An abandoned request may never get a response
+                completed( sessionState, ( ( AbandonRequest ) message ).getAbandoned() );
+            }
+
+            nextFilter.messageReceived( session, message );
+
+            return;
+        }
+
+        int messageId = ( ( Request ) message ).getMessageId();
+        ClientState bindDn;
+        boolean reused;
+
+        synchronized ( sessionState )
+        {
+            reused = sessionState.pending.containsKey( messageId );
+            bindDn = sessionState.bindDn;
+        }
+
+        if ( reused )
+        {
+            // The client is reusing a message ID, we can't account this request
+            nextFilter.messageReceived( session, message );
+
+            return;
+        }
+
+        String reason = admit( sessionState.address, maxInFlightPerAddress, maxOperationsPerAddress );
+
+        if ( ( reason == null ) && ( bindDn != null ) )
+        {
+            reason = admit( bindDn, maxInFlightPerBindDn, maxOperationsPerBindDn );
+
+            if ( reason != null )
+            {
+                completed( addressStates, sessionState.address );
+            }
+        }
+
+        if ( reason != null )
+        {
+            reject( session, message, reason );
+
+            return;
+        }
+
+        synchronized ( sessionState )
+        {
+            sessionState.pending.put( messageId, bindDn );
+        }
+
+        nextFilter.messageReceived( session, message );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void filterWrite( NextFilter nextFilter, IoSession session, WriteRequest writeRequest ) throws Exception
+    {
+        Object message = writeRequest.getMessage();
+        SessionState sessionState = ( SessionState ) session.getAttribute( SESSION_STATE );
+
+        if ( ( sessionState != null ) && ( message instanceof ResultResponse )
+            && !( message instanceof IntermediateResponse ) )
+        {
+            ResultResponse response = ( ResultResponse ) message;
+
+            if ( ( response instanceof BindResponse )
+                && ( response.getLdapResult().getResultCode() != ResultCodeEnum.SASL_BIND_IN_PROGRESS ) )
+            {
+                bound( session, sessionState, ( BindResponse ) response );
+            }
+
+            completed( sessionState, response.getMessageId() );
+        }
+
+        nextFilter.filterWrite( session, writeRequest );
+    }
+
+
+    /**
+     * Updates the bind DN of a session once a bind has completed
+     */
+    private void bound( IoSession session, SessionState sessionState, BindResponse response ) throws Exception
+    {
+        LdapSession ldapSession = ( ldapServer != null ) ? ldapServer.getLdapSessionManager().getLdapSession( session )
+            : null;
+
+        if ( ldapSession == null )
+        {
+            return;
+        }
+
+        String newBindDn = null;
+        CoreSession coreSession = ldapSession.getCoreSession();
+
+        if ( ldapSession.isAuthenticated() && ( coreSession != null ) && !coreSession.isAnonymous() )
+        {
+            newBindDn = coreSession.getAuthenticatedPrincipal().getDn().getNormName();
+        }
+
+        ClientState oldState;
+
+        synchronized ( sessionState )
+        {
+            oldState = sessionState.bindDn;
+
+            if ( ( oldState == null ) ? ( newBindDn == null ) : oldState.name.equals( newBindDn ) )
+            {
+                return;
+            }
+
+            sessionState.bindDn = null;
+        }
+
+        releaseConnection( bindDnStates, oldState );
+
+        if ( newBindDn == null )
+        {
+            return;
+        }
+
+        ClientState newState = acquireConnection( bindDnStates, newBindDn, maxConnectionsPerBindDn );
+
+        if ( newState == null )
+        {
+            // Too many sessions bound with this DN : the bind fails, the session is anonymous
+            ldapSession.setCoreSession( ldapServer.getDirectoryService().getSession() );
+            ldapSession.setAnonymous();
+
+            LdapResult result = response.getLdapResult();
+            result.setResultCode( ResultCodeEnum.BUSY );
+            result.setDiagnosticMessage( "Too many connections for this DN" );
+
+            return;
+        }
+
+        synchronized ( sessionState )
+        {
+            sessionState.bindDn = newState;
+        }
+    }
+
+
+    /**
+     * Gets the address a session comes from
+     */
+    private String getAddress( IoSession session )
+    {
+        SocketAddress remoteAddress = session.getRemoteAddress();
+
+        if ( ( remoteAddress instanceof InetSocketAddress )
+            && ( ( ( InetSocketAddress ) remoteAddress ).getAddress() != null ) )
+        {
+            return ( ( InetSocketAddress ) remoteAddress ).getAddress().getHostAddress();
+        }
+
+        return String.valueOf( remoteAddress );
+    }
+
+
+    /**
+     * Gets the state of a client, creating it if needed. The returned state may have been
+     * removed concurrently, which has to be checked while holding its lock.
+     */
+    private ClientState getClientState( ConcurrentMap<String, ClientState> states, String name )
+    {
+        ClientState state = states.get( name );
+
+        if ( state == null )
+        {
+            ClientState newState = new ClientState( name );
+            state = states.putIfAbsent( name, newState );
+
+            if ( state == null )
+            {
+                state = newState;
+            }
+        }
+
+        return state;
+    }
+
+
+    /**
+     * Accounts a new connection for a client
+     *
+     * @return The client state, or null if the client has too many connections
+     */
+    private ClientState acquireConnection( ConcurrentMap<String, ClientState> states, String name,
+        int maxConnections )
+    {
+        while ( true )
+        {
+            ClientState state = getClientState( states, name );
+
+            synchronized ( state )
+            {
+                if ( state.removed )
+                {
+                    continue;
+                }
+
+                if ( ( maxConnections > 0 ) && ( state.connections >= maxConnections ) )
+                {
+                    nbRejectedConnections.incrementAndGet();
+                    rejected( state, "too many connections" );
+
+                    return null;
+                }
+
+                state.connections++;
+
+                return state;
+            }
+        }
+    }
+
+
+    /**
+     * Releases a connection of a client, forgetting the client when it has no more connection
+     */
+    private void releaseConnection( ConcurrentMap<String, ClientState> states, ClientState state )
+    {
+        if ( state == null )
+        {
+            return;
+        }
+
+        synchronized ( state )
+        {
+            state.connections--;
+            removeIfIdle( states, state );
+        }
+    }
+
+
+    /**
+     * Removes a client state from its map if it's not used anymore. Must be called while
+     * holding the state lock.
+     */
+    private void removeIfIdle( ConcurrentMap<String, ClientState> states, ClientState state )
+    {
+        if ( ( state.connections <= 0 ) && ( state.inFlight <= 0 ) && !state.removed )
+        {
+            state.removed = true;
+            states.remove( state.name, state );
+        }
+    }
+
+
+    /**
+     * Accounts a new operation for a client
+     *
+     * @return null if the operation can be processed, or the reason why it can't
+     */
+    private String admit( ClientState state, int maxInFlight, int maxOperations )
+    {
+        synchronized ( state )
+        {
+            if ( ( maxInFlight > 0 ) && ( state.inFlight >= maxInFlight ) )
+            {
+                nbRejectedOperations.incrementAndGet();
+                rejected( state, "too many operations in flight" );
+
+                return "Too many operations in flight";
+            }
+
+            if ( ( maxOperations > 0 ) && !state.takeToken( maxOperations ) )
+            {
+                nbThrottledOperations.incrementAndGet();
+                rejected( state, "too many operations per second" );
+
+                return "Too many operations per second";
+            }
+
+            state.inFlight++;
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Called when the final response of a request has been written, or when it has been abandoned
+     */
+    private void completed( SessionState sessionState, int messageId )
+    {
+        ClientState bindDn;
+
+        synchronized ( sessionState )
+        {
+            if ( !sessionState.pending.containsKey( messageId ) )
+            {
+                return;
+            }
+
+            bindDn = sessionState.pending.remove( messageId );
+        }
+
+        completed( addressStates, sessionState.address );
+        completed( bindDnStates, bindDn );
+    }
+
+
+    private void completed( ConcurrentMap<String, ClientState> states, ClientState state )
+    {
+        if ( state == null )
+        {
+            return;
+        }
+
+        synchronized ( state )
+        {
+            state.inFlight--;
+            removeIfIdle( states, state );
+        }
+    }
+
+
+    /**
+     * Logs a rejection, at most once every {@link #WARNING_DELAY} for a given client. Must be
+     * called while holding the state lock.
+     */
+    private void rejected( ClientState state, String reason )
+    {
+        state.nbRejected++;
+        long now = System.currentTimeMillis();
+
+        if ( now - state.lastWarning >= WARNING_DELAY )
+        {
+            LOG.warn( "Throttling the client {} : {}, {} rejections since the last warning", state.name, reason,
+                state.nbRejected );
+            state.lastWarning = now;
+            state.nbRejected = 0L;
+        }
+    }
+
+
+    /**
+     * Sends back a BUSY response for a request which can't be processed
+     */
+    private void reject( IoSession session, Object message, String reason )
+    {
+        if ( ( message instanceof ResultResponseRequest ) && !session.isClosing() )
+        {
+            LOG.debug( "Rejecting the request {} : {}", message, reason );
+
+            ResultResponse response = ( ( ResultResponseRequest ) message ).getResultResponse();
+            response.getLdapResult().setResultCode( ResultCodeEnum.BUSY );
+            response.getLdapResult().setDiagnosticMessage( reason );
+            session.write( response );
+        }
+    }
+
+
+    /**
+     * @return The maximum number of connections from one address, 0 if unlimited
+     */
+    public int getMaxConnectionsPerAddress()
+    {
+        return maxConnectionsPerAddress;
+    }
+
+
+    /**
+     * @param maxConnectionsPerAddress The maximum number of connections from one address, 0 if unlimited
+     */
+    public void setMaxConnectionsPerAddress( int maxConnectionsPerAddress )
+    {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+
+    /**
+     * @return The maximum number of operations in flight from one address, 0 if unlimited
+     */
+    public int getMaxInFlightPerAddress()
+    {
+        return maxInFlightPerAddress;
+    }
+
+
+    /**
+     * @param maxInFlightPerAddress The maximum number of operations in flight from one address, 0 if unlimited
+     */
+    public void setMaxInFlightPerAddress( int maxInFlightPerAddress )
+    {
+        this.maxInFlightPerAddress = maxInFlightPerAddress;
+    }
+
+
+    /**
+     * @return The maximum number of operations per second from one address, 0 if unlimited
+     */
+    public int getMaxOperationsPerAddress()
+    {
+        return maxOperationsPerAddress;
+    }
+
+
+    /**
+     * @param maxOperationsPerAddress The maximum number of operations per second from one address, 0 if unlimited
+     */
+    public void setMaxOperationsPerAddress( int maxOperationsPerAddress )
+    {
+        this.maxOperationsPerAddress = maxOperationsPerAddress;
+    }
+
+
+    /**
+     * @return The maximum number of sessions bound with one DN, 0 if unlimited
+     */
+    public int getMaxConnectionsPerBindDn()
+    {
+        return maxConnectionsPerBindDn;
+    }
+
+
+    /**
+     * @param maxConnectionsPerBindDn The maximum number of sessions bound with one DN, 0 if unlimited
+     */
+    public void setMaxConnectionsPerBindDn( int maxConnectionsPerBindDn )
+    {
+        this.maxConnectionsPerBindDn = maxConnectionsPerBindDn;
+    }
+
+
+    /**
+     * @return The maximum number of operations in flight for one bind DN, 0 if unlimited
+     */
+    public int getMaxInFlightPerBindDn()
+    {
+        return maxInFlightPerBindDn;
+    }
+
+
+    /**
+     * @param maxInFlightPerBindDn The maximum number of operations in flight for one bind DN, 0 if unlimited
+     */
+    public void setMaxInFlightPerBindDn( int maxInFlightPerBindDn )
+    {
+        this.maxInFlightPerBindDn = maxInFlightPerBindDn;
+    }
+
+
+    /**
+     * @return The maximum number of operations per second for one bind DN, 0 if unlimited
+     */
+    public int getMaxOperationsPerBindDn()
+    {
+        return maxOperationsPerBindDn;
+    }
+
+
+    /**
+     * @param maxOperationsPerBindDn The maximum number of operations per second for one bind DN, 0 if unlimited
+     */
+    public void setMaxOperationsPerBindDn( int maxOperationsPerBindDn )
+    {
+        this.maxOperationsPerBindDn = maxOperationsPerBindDn;
+    }
+
+
+    /**
+     * @return The number of connections closed because of the connection limits
+     */
+    public long getNbRejectedConnections()
+    {
+        return nbRejectedConnections.get();
+    }
+
+
+    /**
+     * @return The number of requests rejected because of the in flight limits
+     */
+    public long getNbRejectedOperations()
+    {
+        return nbRejectedOperations.get();
+    }
+
+
+    /**
+     * @return The number of requests rejected because of the operation rate limits
+     */
+    public long getNbThrottledOperations()
+    {
+        return nbThrottledOperations.get();
+    }
+
+
+    /**
+     * @return The number of addresses which currently have some connections
+     */
+    public int getNbClients()
+    {
+        return addressStates.size();
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An Executor used by the LDAP ExecutorFilter, running the decoded requests in an elastic pool
+ * of threads. Unlike the default pool, which has as many threads as the transport has
+ * IoProcessors, the threads are created on demand, up to a global limit of requests running
+ * concurrently, and released when they have been idle for a while. A request blocked on the disk,
+ * on a lock or on a password hash computation does not prevent the other requests from being
+ * processed, as long as the limit is not reached.
+ *
+ * Three limits protect the server :
+ * <ul>
+ *   <li>a per session limit : when a session has this number of requests in flight, its reads are
+ *   suspended until one of them completes</li>
+ *   <li>a global limit : when all the threads are busy, the requests are queued, and the reads
+ *   are suspended on the sessions which sent them, until some threads are available again</li>
+ *   <li>a bounded queue : when it's full, the request is run by the thread which submitted it,
+ *   which stops this IoProcessor from reading until the request has been processed</li>
+ * </ul>
+ * Suspending the reads pushes back on the clients through TCP, instead of accumulating requests
+ * in memory.
+ *
+ * The requests of a session may be processed out of order, as with the default
+ * UnorderedThreadPoolExecutor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutor implements Executor
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LdapRequestExecutor.class );
+
+    /** The session attribute storing the number of requests in flight for this session */
+    private static final AttributeKey SESSION_STATE = new AttributeKey( LdapRequestExecutor.class, "sessionState" );
+
+    /** The default maximum number of requests in flight for one session */
+    public static final int DEFAULT_MAX_SESSION_IN_FLIGHT = 16;
+
+    /** The default number of queued requests, per thread of the pool */
+    public static final int DEFAULT_QUEUED_PER_THREAD = 4;
+
+    /** The time an idle thread is kept, in seconds */
+    private static final long KEEP_ALIVE = 60L;
+
+    /** The threads running the requests */
+    private final ThreadPoolExecutor executor;
+
+    /** The maximum number of requests in flight for one session */
+    private final int maxSessionInFlight;
+
+    /** The sessions which reads have been suspended because all the threads were busy */
+    private final Set<IoSession> suspendedSessions = Collections
+        .newSetFromMap( new ConcurrentHashMap<IoSession, Boolean>() );
+
+    /** The number of requests in flight, running or queued */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** The number of times a session's reads have been suspended */
+    private final AtomicLong nbSuspensions = new AtomicLong();
+
+    /** The highest number of requests in flight */
+    private final AtomicInteger maxInFlightReached = new AtomicInteger();
+
+
+    /**
+     * The state of a session
+     */
+    private static class SessionState
+    {
+        /** The number of requests in flight for this session */
+        private int inFlight;
+
+        /** Tells if the reads have been suspended because all the threads were busy */
+        private boolean globallySuspended;
+
+        /** Tells if the reads are suspended */
+        private boolean suspended;
+    }
+
+
+    /**
+     * Creates a new LdapRequestExecutor instance, queuing at most {@link #DEFAULT_QUEUED_PER_THREAD}
+     * requests per thread.
+     *
+     * @param maxInFlight The maximum number of requests running concurrently
+     * @param maxSessionInFlight The maximum number of requests in flight for one session
+     */
+    public LdapRequestExecutor( int maxInFlight, int maxSessionInFlight )
+    {
+        this( maxInFlight, maxSessionInFlight, maxInFlight * DEFAULT_QUEUED_PER_THREAD );
+    }
+
+
+    /**
+     * Creates a new LdapRequestExecutor instance.
+     *
+     * @param maxInFlight The maximum number of requests running concurrently
+     * @param maxSessionInFlight The maximum number of requests in flight for one session
+     * @param maxQueued The maximum number of requests waiting for a thread
+     */
+    public LdapRequestExecutor( int maxInFlight, int maxSessionInFlight, int maxQueued )
+    {
+        this.maxSessionInFlight = maxSessionInFlight > 0 ? maxSessionInFlight : DEFAULT_MAX_SESSION_IN_FLIGHT;
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = new ThreadPoolExecutor( maxInFlight, maxInFlight, KEEP_ALIVE, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>( Math.max( 1, maxQueued ) ), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "ldap-request-" + threadNumber.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy() );
+
+        // The threads are only created when needed, and released when idle
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute( final Runnable task )
+    {
+        final IoSession session = ( task instanceof IoEvent ) ? ( ( IoEvent ) task ).getSession() : null;
+        final SessionState state = ( session != null ) ? getState( session ) : null;
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.inFlight++;
+
+                if ( state.inFlight >= maxSessionInFlight )
+                {
+                    suspend( session, state );
+                }
+            }
+        }
+
+        int current = inFlight.incrementAndGet();
+        updateMaxInFlight( current );
+
+        if ( ( state != null ) && ( current > executor.getMaximumPoolSize() ) )
+        {
+            // All the threads are busy : stop reading from this session until the queue is drained
+            synchronized ( state )
+            {
+                state.globallySuspended = true;
+                suspend( session, state );
+                suspendedSessions.add( session );
+            }
+        }
+
+        executor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    completed( session, state );
+                }
+            }
+        } );
+    }
+
+
+    private SessionState getState( IoSession session )
+    {
+        SessionState state = ( SessionState ) session.getAttribute( SESSION_STATE );
+
+        if ( state == null )
+        {
+            SessionState newState = new SessionState();
+            state = ( SessionState ) session.setAttributeIfAbsent( SESSION_STATE, newState );
+
+            if ( state == null )
+            {
+                state = newState;
+            }
+        }
+
+        return state;
+    }
+
+
+    /**
+     * Called when a request has been processed
+     */
+    private void completed( IoSession session, SessionState state )
+    {
+        int current = inFlight.decrementAndGet();
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.inFlight--;
+                resumeIfPossible( session, state );
+            }
+        }
+
+        if ( ( current < executor.getMaximumPoolSize() ) && !suspendedSessions.isEmpty() )
+        {
+            // Some threads are available again : resume the suspended sessions
+            Iterator<IoSession> iterator = suspendedSessions.iterator();
+
+            while ( iterator.hasNext() )
+            {
+                IoSession suspendedSession = iterator.next();
+                iterator.remove();
+                SessionState suspendedState = getState( suspendedSession );
+
+                synchronized ( suspendedState )
+                {
+                    suspendedState.globallySuspended = false;
+                    resumeIfPossible( suspendedSession, suspendedState );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Suspends the reads on a session. Must be called while holding the state lock.
+     */
+    private void suspend( IoSession session, SessionState state )
+    {
+        if ( !state.suspended )
+        {
+            state.suspended = true;
+            nbSuspensions.incrementAndGet();
+            session.suspendRead();
+
+            if ( LOG.isDebugEnabled() )
+            {
+                LOG.debug( "Suspending the reads on session {}, {} requests in flight", session.getId(),
+                    state.inFlight );
+            }
+        }
+    }
+
+
+    /**
+     * Resumes the reads on a session if none of the limits is reached anymore. Must be called
+     * while holding the state lock.
+     */
+    private void resumeIfPossible( IoSession session, SessionState state )
+    {
+        if ( state.suspended && !state.globallySuspended && ( state.inFlight < maxSessionInFlight ) )
+        {
+            state.suspended = false;
+
+            if ( !session.isClosing() )
+            {
+                session.resumeRead();
+            }
+        }
+    }
+
+
+    private void updateMaxInFlight( int current )
+    {
+        int max = maxInFlightReached.get();
+
+        while ( ( current > max ) && !maxInFlightReached.compareAndSet( max, current ) )
+        {
+            max = maxInFlightReached.get();
+        }
+    }
+
+
+    /**
+     * Stops the threads. The requests being processed are interrupted.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * @return The number of requests in flight, running or queued
+     */
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+
+    /**
+     * @return The highest number of requests in flight seen so far
+     */
+    public int getMaxInFlightReached()
+    {
+        return maxInFlightReached.get();
+    }
+
+
+    /**
+     * @return The number of threads currently alive
+     */
+    public int getNbThreads()
+    {
+        return executor.getPoolSize();
+    }
+
+
+    /**
+     * @return The number of times a session's reads have been suspended
+     */
+    public long getNbSuspensions()
+    {
+        return nbSuspensions.get();
+    }
+}
@@ -26,17 +26,25 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.Provider;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
 
 import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
 import org.apache.directory.api.ldap.model.constants.Loggers;
@@ -65,6 +73,7 @@ import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.UnbindRequest;
 import org.apache.directory.api.ldap.model.message.extended.NoticeOfDisconnect;
 import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.security.CoreKeyStoreSpi;
@@ -95,6 +104,7 @@ import org.apache.directory.server.ldap.handlers.response.SearchResultEntryHandl
 import org.apache.directory.server.ldap.handlers.response.SearchResultReferenceHandler;
 import org.apache.directory.server.ldap.handlers.sasl.MechanismHandler;
 import org.apache.directory.server.ldap.handlers.ssl.LdapsInitializer;
+import org.apache.directory.server.ldap.handlers.ssl.TlsHandshakeFilter;
 import org.apache.directory.server.ldap.replication.consumer.PingerThread;
 import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
 import org.apache.directory.server.ldap.replication.consumer.ReplicationStatusEnum;
@@ -112,6 +122,7 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
 import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
 import org.apache.mina.handler.demux.MessageHandler;
 import org.apache.mina.transport.socket.AbstractSocketSessionConfig;
@@ -252,14 +263,62 @@ public class LdapServer extends DirectoryBackedService
     /** The handler responsible for the replication */
     private ReplicationRequestHandler replicationReqHandler;
 
+    /** The default maximum number of TLS sessions kept for resumption */
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 10000;
+
+    /** The default time a TLS session is kept for resumption, in seconds */
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT = 3600;
+
     /** The list of replication consumers */
     private List<ReplicationConsumer> replConsumers;
 
     private KeyManagerFactory keyManagerFactory;
 
+    /** The SSL context shared by LDAPS and StartTLS, built from the key manager factory */
+    private SSLContext sslContext;
+
+    /** The maximum number of TLS sessions kept for resumption */
+    private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+
+    /** The time a TLS session is kept for resumption, in seconds */
+    private int tlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT;
+
+    /** The number of threads running the TLS handshakes and decryption, 0 to use the I/O threads */
+    private int tlsThreads;
+
+    /** The executor running the TLS handshakes and decryption, if any */
+    private ExecutorService tlsExecutor;
+
+    /** The filter measuring the TLS handshakes */
+    private final TlsHandshakeFilter tlsHandshakeFilter = new TlsHandshakeFilter();
+
     /** the time interval between subsequent pings to each replication provider */
     private int pingerSleepTime;
 
+    /**
+     * The maximum number of requests processed concurrently by the elastic pool of threads.
+     * 0 means the requests are processed by a fixed pool of threads.
+     */
+    private int maxInFlightRequests;
+
+    /** The maximum number of requests in flight for one session, when the elastic pool is used */
+    private int maxSessionInFlightRequests = LdapRequestExecutor.DEFAULT_MAX_SESSION_IN_FLIGHT;
+
+    /** The maximum number of requests waiting for a thread of the elastic pool, 0 for the default */
+    private int maxQueuedRequests;
+
+    /** The executors created when the elastic pool is used */
+    private List<LdapRequestExecutor> requestExecutors = new ArrayList<LdapRequestExecutor>();
+
+    /** The executor processing each class of requests in its own lane, if admission control is enabled */
+    private AdmissionControlExecutor admissionControlExecutor;
+
+    /** The cache of encoded SearchResultEntry PDUs, if enabled */
+    private SearchResultEntryCache searchResultEntryCache;
+
+    /** The filter limiting the resources used by each client, if enabled */
+    private ClientRateLimitFilter clientRateLimitFilter;
+
     /** the list of cipher suites to be used in LDAPS and StartTLS */
     @Deprecated
     private List<String> enabledCipherSuites = new ArrayList<String>();
@@ -407,6 +466,14 @@ public class LdapServer extends DirectoryBackedService
         {
             keyManagerFactory.init( keyStore, certificatePassword.toCharArray() );
         }
+
+        // The SSL context used by LDAPS and StartTLS. Its server session context caches the TLS
+        // sessions, so that the clients can resume them on both.
+        sslContext = SSLContext.getInstance( "TLS" );
+        sslContext.init( keyManagerFactory.getKeyManagers(), new TrustManager[]
+            { new NoVerificationTrustManager() }, new SecureRandom() );
+        sslContext.getServerSessionContext().setSessionCacheSize( tlsSessionCacheSize );
+        sslContext.getServerSessionContext().setSessionTimeout( tlsSessionTimeout );
     }
 
 
@@ -499,6 +566,24 @@ public class LdapServer extends DirectoryBackedService
         // Install the replication handler if we have one
         startReplicationProducer();
 
+        if ( ( tlsThreads > 0 ) && ( tlsExecutor == null ) )
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+
+            // The events of a session must be processed in order, the TLS records are a stream
+            tlsExecutor = new OrderedThreadPoolExecutor( 0, tlsThreads, 60L, TimeUnit.SECONDS, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "ldap-tls-" + threadNumber.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+
         for ( Transport transport : transports )
         {
             if ( !( transport instanceof TcpTransport ) )
@@ -522,11 +607,39 @@ public class LdapServer extends DirectoryBackedService
             ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "codec", new ProtocolCodecFilter( this
                 .getProtocolCodecFactory() ) );
 
+            // Limit the resources used by each client before the requests are scheduled
+            if ( clientRateLimitFilter != null )
+            {
+                clientRateLimitFilter.setLdapServer( this );
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( ClientRateLimitFilter.NAME, clientRateLimitFilter );
+            }
+
             // Now inject an ExecutorFilter for the write operations
-            // We use the same number of thread than the number of IoProcessor
-            // (NOTE : this has to be double checked)
-            ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
-                new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
+            if ( admissionControlExecutor != null )
+            {
+                // Each class of requests is processed in its own lane, shared by all the transports
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+                    admissionControlExecutor, IoEventType.MESSAGE_RECEIVED ) );
+            }
+            else if ( maxInFlightRequests > 0 )
+            {
+                // The requests are processed by an elastic pool, up to the in flight limits
+                int maxQueued = maxQueuedRequests > 0 ? maxQueuedRequests : maxInFlightRequests
+                    * LdapRequestExecutor.DEFAULT_QUEUED_PER_THREAD;
+                LdapRequestExecutor requestExecutor = new LdapRequestExecutor( maxInFlightRequests,
+                    maxSessionInFlightRequests, maxQueued );
+                requestExecutors.add( requestExecutor );
+
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+                    requestExecutor, IoEventType.MESSAGE_RECEIVED ) );
+            }
+            else
+            {
+                // We use the same number of thread than the number of IoProcessor
+                // (NOTE : this has to be double checked)
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+                    new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
+            }
 
             /*
             // Trace all the incoming and outgoing message to the console
@@ -646,6 +759,21 @@ public class LdapServer extends DirectoryBackedService
             LOG.warn( "Failed to sent NoD.", e );
         }
 
+        for ( LdapRequestExecutor requestExecutor : requestExecutors )
+        {
+            requestExecutor.shutdown();
+        }
+
+        requestExecutors.clear();
+
+        if ( tlsExecutor != null )
+        {
+            tlsExecutor.shutdown();
+            tlsExecutor = null;
+        }
+
+        // The admission control executor is not shutdown, so that the server can be restarted :
+        // its idle threads expire by themselves
         started = false;
         LOG.info( "Ldap service stopped." );
     }
@@ -1682,6 +1810,12 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    public List<ReplicationConsumer> getReplConsumers()
+    {
+        return replConsumers;
+    }
+
+
     /**
      * @return the key manager factory of the server keystore
      */
@@ -1716,6 +1850,257 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * @return The maximum number of requests processed concurrently by the elastic pool of
+     * threads, 0 if the requests are processed by a fixed pool of threads
+     */
+    public int getMaxInFlightRequests()
+    {
+        return maxInFlightRequests;
+    }
+
+
+    /**
+     * Sets the maximum number of requests processed concurrently. When this number is positive,
+     * the requests are processed by a pool of up to this number of threads, created on demand and
+     * released when idle, instead of a fixed pool of threads. The requests received when all the
+     * threads are busy are queued, and the reads are suspended on the sessions which sent them.
+     * Must be set before the server is started.
+     *
+     * @param maxInFlightRequests The maximum number of requests processed concurrently, 0 to use
+     * a fixed pool of threads
+     */
+    public void setMaxInFlightRequests( int maxInFlightRequests )
+    {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+
+    /**
+     * @return The maximum number of requests in flight for one session, when the elastic pool
+     * is used
+     */
+    public int getMaxSessionInFlightRequests()
+    {
+        return maxSessionInFlightRequests;
+    }
+
+
+    /**
+     * Sets the maximum number of requests in flight for one session, when the elastic pool is
+     * used. When a session reaches this limit, its reads are suspended until one of its
+     * requests completes.
+     *
+     * @param maxSessionInFlightRequests The maximum number of requests in flight for one session
+     */
+    public void setMaxSessionInFlightRequests( int maxSessionInFlightRequests )
+    {
+        this.maxSessionInFlightRequests = maxSessionInFlightRequests;
+    }
+
+
+    /**
+     * @return The maximum number of requests waiting for a thread of the elastic pool, 0 for
+     * the default
+     */
+    public int getMaxQueuedRequests()
+    {
+        return maxQueuedRequests;
+    }
+
+
+    /**
+     * Sets the maximum number of requests waiting for a thread of the elastic pool. When the
+     * queue is full, the request is processed by the IoProcessor thread which received it,
+     * which stops reading until it's done. Must be set before the server is started.
+     *
+     * @param maxQueuedRequests The maximum number of queued requests, 0 for
+     * {@link LdapRequestExecutor#DEFAULT_QUEUED_PER_THREAD} per thread
+     */
+    public void setMaxQueuedRequests( int maxQueuedRequests )
+    {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+
+    /**
+     * @return The executor processing each class of requests in its own lane, null if admission
+     * control is disabled
+     */
+    public AdmissionControlExecutor getAdmissionControlExecutor()
+    {
+        return admissionControlExecutor;
+    }
+
+
+    /**
+     * Enables admission control : the binds, lookups, searches, writes and extended requests
+     * are each processed in their own lane, with their own threads and bounded queue, and
+     * rejected with a BUSY result code when their lane is saturated. This takes precedence
+     * over {@link #setMaxInFlightRequests(int)}. Must be set before the server is started.
+     *
+     * @param admissionControlExecutor The executor, null to disable admission control
+     */
+    public void setAdmissionControlExecutor( AdmissionControlExecutor admissionControlExecutor )
+    {
+        this.admissionControlExecutor = admissionControlExecutor;
+    }
+
+
+    /**
+     * @return The filter limiting the connections and the operations of each client, null if disabled
+     */
+    public ClientRateLimitFilter getClientRateLimitFilter()
+    {
+        return clientRateLimitFilter;
+    }
+
+
+    /**
+     * Enables the per client limits : the number of connections, of operations in flight and of
+     * operations per second are limited for each source address and each bind DN. The filter is
+     * shared by all the transports. Must be set before the server is started.
+     *
+     * @param clientRateLimitFilter The filter, null to disable the per client limits
+     */
+    public void setClientRateLimitFilter( ClientRateLimitFilter clientRateLimitFilter )
+    {
+        this.clientRateLimitFilter = clientRateLimitFilter;
+    }
+
+
+    /**
+     * @return The SSL context shared by LDAPS and StartTLS, null until the key store has been loaded
+     */
+    public SSLContext getSslContext()
+    {
+        return sslContext;
+    }
+
+
+    /**
+     * @return The maximum number of TLS sessions kept for resumption
+     */
+    public int getTlsSessionCacheSize()
+    {
+        return tlsSessionCacheSize;
+    }
+
+
+    /**
+     * Sets the maximum number of TLS sessions kept for resumption, shared by LDAPS and StartTLS.
+     *
+     * @param tlsSessionCacheSize The maximum number of cached TLS sessions, 0 for no limit
+     */
+    public void setTlsSessionCacheSize( int tlsSessionCacheSize )
+    {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+
+        if ( sslContext != null )
+        {
+            sslContext.getServerSessionContext().setSessionCacheSize( tlsSessionCacheSize );
+        }
+    }
+
+
+    /**
+     * @return The time a TLS session is kept for resumption, in seconds
+     */
+    public int getTlsSessionTimeout()
+    {
+        return tlsSessionTimeout;
+    }
+
+
+    /**
+     * Sets the time a TLS session can be resumed after it has been created.
+     *
+     * @param tlsSessionTimeout The TLS session timeout, in seconds, 0 for no limit
+     */
+    public void setTlsSessionTimeout( int tlsSessionTimeout )
+    {
+        this.tlsSessionTimeout = tlsSessionTimeout;
+
+        if ( sslContext != null )
+        {
+            sslContext.getServerSessionContext().setSessionTimeout( tlsSessionTimeout );
+        }
+    }
+
+
+    /**
+     * @return The number of threads running the TLS handshakes and decryption, 0 if they run in
+     * the I/O threads
+     */
+    public int getTlsThreads()
+    {
+        return tlsThreads;
+    }
+
+
+    /**
+     * Sets the number of threads running the TLS handshakes and the decryption of the LDAPS
+     * and StartTLS sessions, so that a burst of handshakes does not stall the I/O threads.
+     * Must be set before the server is started.
+     *
+     * @param tlsThreads The number of threads, 0 to run the TLS processing in the I/O threads
+     */
+    public void setTlsThreads( int tlsThreads )
+    {
+        this.tlsThreads = tlsThreads;
+    }
+
+
+    /**
+     * @return The executor running the TLS handshakes and decryption, null if they run in the
+     * I/O threads
+     */
+    public ExecutorService getTlsExecutor()
+    {
+        return tlsExecutor;
+    }
+
+
+    /**
+     * @return The filter measuring the TLS handshakes : handshake rate, resumption ratio and latency
+     */
+    public TlsHandshakeFilter getTlsHandshakeFilter()
+    {
+        return tlsHandshakeFilter;
+    }
+
+
+    /**
+     * @return The cache of encoded SearchResultEntry PDUs, null if disabled
+     */
+    public SearchResultEntryCache getSearchResultEntryCache()
+    {
+        return searchResultEntryCache;
+    }
+
+
+    /**
+     * Sets the cache of encoded SearchResultEntry PDUs. When set, an entry read again by a
+     * base scope search for the same requested attributes is written from its cached encoding
+     * instead of being encoded for each search.
+     *
+     * @param searchResultEntryCache The cache, null to disable it
+     */
+    public void setSearchResultEntryCache( SearchResultEntryCache searchResultEntryCache )
+    {
+        this.searchResultEntryCache = searchResultEntryCache;
+    }
+
+
+    /**
+     * @return The executors of the elastic pool, one per transport
+     */
+    public List<LdapRequestExecutor> getRequestExecutors()
+    {
+        return Collections.unmodifiableList( requestExecutors );
+    }
+
+
     /**
      * @return the number of seconds pinger thread sleeps between subsequent pings
      */
@@ -96,6 +96,9 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
 
+    /** The LDAP transaction started on this session, if any */
+    private volatile LdapTransaction transaction;
+
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -506,6 +509,26 @@ public class LdapSession
     }
 
 
+    /**
+     * @return The LDAP transaction started on this session, or null
+     */
+    public LdapTransaction getTransaction()
+    {
+        return transaction;
+    }
+
+
+    /**
+     * Sets the LDAP transaction started on this session
+     *
+     * @param transaction The LDAP transaction, null when it has ended
+     */
+    public void setTransaction( LdapTransaction transaction )
+    {
+        this.transaction = transaction;
+    }
+
+
     /**
      * Add a new Paged Search context into the stored context. If some
      * context with the same id already exists, it will be closed and
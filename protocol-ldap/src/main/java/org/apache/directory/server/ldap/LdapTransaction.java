@@ -0,0 +1,185 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A LDAP transaction, as defined in RFC 5805. The updates sent with the transaction specification
+ * control are not applied when they are received : they are stored in this transaction, and
+ * applied all at once, in one partition transaction, when the client commits the transaction.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapTransaction
+{
+    /** The transaction identifier */
+    private final byte[] id;
+
+    /** The updates, in the order they have been received */
+    private final List<ResultResponseRequest> updates = new ArrayList<ResultResponseRequest>();
+
+    /** The maximum number of updates in this transaction */
+    private final int maxUpdates;
+
+    /** The message ID of the update which could not be added to the transaction, if any */
+    private int failedMessageId = -1;
+
+    /** The result code of the update which could not be added to the transaction */
+    private ResultCodeEnum failedResultCode;
+
+
+    /**
+     * Creates a new LdapTransaction instance, with a random identifier
+     *
+     * @param maxUpdates The maximum number of updates in this transaction
+     */
+    public LdapTransaction( int maxUpdates )
+    {
+        this.id = Strings.getBytesUtf8( UUID.randomUUID().toString() );
+        this.maxUpdates = maxUpdates;
+    }
+
+
+    /**
+     * @return The transaction identifier
+     */
+    public byte[] getId()
+    {
+        return id;
+    }
+
+
+    /**
+     * Tells if an identifier is the one of this transaction
+     *
+     * @param otherId The identifier to check
+     * @return true if it's this transaction identifier
+     */
+    public boolean hasId( byte[] otherId )
+    {
+        return Arrays.equals( id, otherId );
+    }
+
+
+    /**
+     * Adds an update to the transaction.
+     *
+     * @param update The update request
+     * @return false if the transaction is full
+     */
+    public synchronized boolean addUpdate( ResultResponseRequest update )
+    {
+        if ( updates.size() >= maxUpdates )
+        {
+            fail( update.getMessageId(), ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+
+            return false;
+        }
+
+        updates.add( update );
+
+        return true;
+    }
+
+
+    /**
+     * Records an update which could not be added to the transaction : the transaction
+     * can't be committed anymore.
+     *
+     * @param messageId The update message ID
+     * @param resultCode The result code returned for this update
+     */
+    public synchronized void fail( int messageId, ResultCodeEnum resultCode )
+    {
+        if ( failedMessageId < 0 )
+        {
+            failedMessageId = messageId;
+            failedResultCode = resultCode;
+        }
+    }
+
+
+    /**
+     * @return The message ID of the first update which could not be added to the
+     * transaction, or -1
+     */
+    public synchronized int getFailedMessageId()
+    {
+        return failedMessageId;
+    }
+
+
+    /**
+     * @return The result code of the first update which could not be added to the
+     * transaction, or null
+     */
+    public synchronized ResultCodeEnum getFailedResultCode()
+    {
+        return failedResultCode;
+    }
+
+
+    /**
+     * Gets the updates, ordered by message ID. As the requests of a session may be processed
+     * out of order, this is the order in which the client has sent them.
+     *
+     * @return The updates
+     */
+    public synchronized List<ResultResponseRequest> getUpdates()
+    {
+        List<ResultResponseRequest> sorted = new ArrayList<ResultResponseRequest>( updates );
+
+        Collections.sort( sorted, new Comparator<ResultResponseRequest>()
+        {
+            @Override
+            public int compare( ResultResponseRequest update1, ResultResponseRequest update2 )
+            {
+                int messageId1 = update1.getMessageId();
+                int messageId2 = update2.getMessageId();
+
+                return messageId1 < messageId2 ? -1 : ( messageId1 == messageId2 ? 0 : 1 );
+            }
+        } );
+
+        return sorted;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "LdapTransaction[" + Strings.utf8ToString( id ) + ", " + updates.size() + " updates]";
+    }
+}
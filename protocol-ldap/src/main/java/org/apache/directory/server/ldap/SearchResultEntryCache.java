@@ -0,0 +1,518 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A bounded LRU cache of encoded SearchResultEntry PDUs. The protocolOp part of the PDU
+ * is stored, keyed by the entry UUID, its revision (entryCSN), its Dn, the requested
+ * attributes and the typesOnly flag : when the same entry is returned again, the message
+ * is built by prepending the LDAPMessage envelope with the new messageId to the cached
+ * bytes, without building nor encoding the SearchResultEntry again.
+ * <p>
+ * Only the entries returned by base scope searches are cached : they are the lookups an
+ * application repeats, while the entries returned by one level or subtree searches would
+ * just flush the LRU maps.
+ * <p>
+ * The entry is only cached when its content can't change without changing its entryCSN :
+ * the entries with collective attributes or subordinate counts are not cached, neither
+ * are the entries which may be filtered by the access control, which is when the access
+ * control is enabled and the requestor is not an administrator. The entries with no
+ * entryUUID or entryCSN, like the RootDSE, and the referrals are not cached either. The
+ * PDU is written as an IoBuffer, which the codec filter forwards without encoding it again.
+ * <p>
+ * The cache is split in stripes, each one being a LRU map protected by its own lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchResultEntryCache
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( SearchResultEntryCache.class );
+
+    /** The default maximum number of cached entries */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** The default maximum size of a cached PDU, in bytes */
+    public static final int DEFAULT_MAX_PDU_SIZE = 16384;
+
+    /** The number of stripes */
+    private static final int NB_STRIPES = 16;
+
+    /** The BER tag of a SEQUENCE */
+    private static final byte SEQUENCE_TAG = 0x30;
+
+    /** The BER tag of an INTEGER */
+    private static final byte INTEGER_TAG = 0x02;
+
+    /** The attributes computed when the entry is read */
+    private static final String[] COMPUTED_ATTRIBUTES =
+        {
+            ApacheSchemaConstants.NB_CHILDREN_AT,
+            ApacheSchemaConstants.NB_SUBORDINATES_AT
+        };
+
+    /** The stripes */
+    private final Stripe[] stripes;
+
+    /** The maximum size of a cached PDU */
+    private final int maxPduSize;
+
+    /** The number of PDUs found in the cache */
+    private final AtomicLong nbHits = new AtomicLong();
+
+    /** The number of PDUs which had to be encoded */
+    private final AtomicLong nbMisses = new AtomicLong();
+
+
+    /**
+     * A LRU map, bounded to a maximum number of elements
+     */
+    private static final class Stripe extends LinkedHashMap<String, byte[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The maximum number of elements */
+        private final int maxSize;
+
+
+        Stripe( int maxSize )
+        {
+            super( 16, 0.75f, true );
+            this.maxSize = maxSize;
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, byte[]> eldest )
+        {
+            return size() > maxSize;
+        }
+    }
+
+
+    /**
+     * Creates a new SearchResultEntryCache instance, with the default sizes
+     */
+    public SearchResultEntryCache()
+    {
+        this( DEFAULT_MAX_SIZE, DEFAULT_MAX_PDU_SIZE );
+    }
+
+
+    /**
+     * Creates a new SearchResultEntryCache instance
+     *
+     * @param maxSize The maximum number of cached entries
+     * @param maxPduSize The maximum size of a cached PDU, in bytes. The bigger entries are not cached.
+     */
+    public SearchResultEntryCache( int maxSize, int maxPduSize )
+    {
+        int stripeSize = Math.max( 1, ( maxSize + NB_STRIPES - 1 ) / NB_STRIPES );
+        stripes = new Stripe[NB_STRIPES];
+        this.maxPduSize = maxPduSize;
+
+        for ( int i = 0; i < NB_STRIPES; i++ )
+        {
+            stripes[i] = new Stripe( stripeSize );
+        }
+    }
+
+
+    private Stripe getStripe( String key )
+    {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+
+        return stripes[hash & ( NB_STRIPES - 1 )];
+    }
+
+
+    /**
+     * Computes the key under which the PDU of an entry is cached.
+     *
+     * @param request The search request
+     * @param entry The entry to send
+     * @param filtered Tells if the entry may have been filtered for the requestor by the access control
+     * @param passwordHidden Tells if the userPassword attribute is removed from the returned entries
+     * @return The key, or null if the entry can't be cached and must be written as is
+     */
+    public String getKey( SearchRequest request, Entry entry, boolean filtered, boolean passwordHidden )
+    {
+        if ( filtered || ( request.getScope() != SearchScope.OBJECT ) )
+        {
+            return null;
+        }
+
+        // A referral is returned as a SearchResultReference
+        if ( entry.containsAttribute( SchemaConstants.REF_AT ) && !request.hasControl( ManageDsaIT.OID ) )
+        {
+            return null;
+        }
+
+        Entry original = entry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            original = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        Attribute entryUuid = original.get( SchemaConstants.ENTRY_UUID_AT );
+        Attribute entryCsn = original.get( SchemaConstants.ENTRY_CSN_AT );
+
+        if ( ( entryUuid == null ) || ( entryCsn == null ) )
+        {
+            return null;
+        }
+
+        for ( Attribute attribute : entry )
+        {
+            if ( ( attribute.getAttributeType() != null ) && attribute.getAttributeType().isCollective() )
+            {
+                return null;
+            }
+        }
+
+        for ( String computed : COMPUTED_ATTRIBUTES )
+        {
+            if ( entry.containsAttribute( computed ) )
+            {
+                return null;
+            }
+        }
+
+        // The order of the requested attributes does not matter
+        List<String> attributes = new ArrayList<String>( request.getAttributes() );
+        Collections.sort( attributes );
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( entryUuid.get().getValue() ).append( '|' );
+        sb.append( entryCsn.get().getValue() ).append( '|' );
+        sb.append( entry.getDn().getName() ).append( '|' );
+        sb.append( request.getTypesOnly() ).append( '|' );
+        sb.append( passwordHidden );
+
+        for ( String attribute : attributes )
+        {
+            sb.append( '|' ).append( attribute );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Gets the cached PDU of an entry.
+     *
+     * @param key The entry key, as computed by {@link #getKey(SearchRequest, Entry, boolean, boolean)}
+     * @param messageId The ID of the message to send
+     * @return The encoded PDU, or null if the entry is not in the cache
+     */
+    public IoBuffer get( String key, int messageId )
+    {
+        Stripe stripe = getStripe( key );
+        byte[] protocolOp;
+
+        synchronized ( stripe )
+        {
+            protocolOp = stripe.get( key );
+        }
+
+        if ( protocolOp == null )
+        {
+            nbMisses.incrementAndGet();
+
+            return null;
+        }
+
+        nbHits.incrementAndGet();
+
+        return wrap( messageId, protocolOp );
+    }
+
+
+    /**
+     * Encodes a SearchResultEntry, and caches its protocolOp.
+     *
+     * @param key The entry key, as computed by {@link #getKey(SearchRequest, Entry, boolean, boolean)}
+     * @param codec The LDAP codec
+     * @param response The SearchResultEntry to send
+     * @return The encoded PDU, or null if the entry can't be encoded and must be written as is
+     */
+    public IoBuffer put( String key, LdapApiService codec, SearchResultEntry response )
+    {
+        if ( !response.getControls().isEmpty() )
+        {
+            return null;
+        }
+
+        ByteBuffer buffer;
+
+        try
+        {
+            buffer = new LdapEncoder( codec ).encodeMessage( response );
+            buffer.flip();
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to encode the entry {} : {}", response.getObjectName(), e.getMessage() );
+
+            return null;
+        }
+
+        byte[] protocolOp = getProtocolOp( buffer );
+
+        if ( ( protocolOp != null ) && ( protocolOp.length <= maxPduSize ) )
+        {
+            Stripe stripe = getStripe( key );
+
+            synchronized ( stripe )
+            {
+                stripe.put( key, protocolOp );
+            }
+        }
+
+        // The encoded message is written as is, without being copied
+        return IoBuffer.wrap( buffer );
+    }
+
+
+    /**
+     * Extracts the protocolOp of an encoded LDAPMessage, or returns null if the message
+     * has some controls. The buffer position is not modified.
+     *
+     * @param pdu The encoded LDAPMessage
+     * @return The encoded protocolOp
+     */
+    static byte[] getProtocolOp( ByteBuffer pdu )
+    {
+        int start = pdu.position();
+
+        if ( pdu.get( start ) != SEQUENCE_TAG )
+        {
+            return null;
+        }
+
+        int pos = start + 1;
+        int length = pdu.get( pos ) & 0xFF;
+        pos++;
+
+        if ( length > 0x7F )
+        {
+            int nbBytes = length & 0x7F;
+            length = 0;
+
+            for ( int i = 0; i < nbBytes; i++ )
+            {
+                length = ( length << 8 ) | ( pdu.get( pos++ ) & 0xFF );
+            }
+        }
+
+        int end = pos + length;
+
+        // Skip the messageId
+        if ( pdu.get( pos ) != INTEGER_TAG )
+        {
+            return null;
+        }
+
+        pos += 2 + pdu.get( pos + 1 );
+
+        // The protocolOp TLV
+        int opStart = pos;
+        pos++;
+        int opLength = pdu.get( pos ) & 0xFF;
+        pos++;
+
+        if ( opLength > 0x7F )
+        {
+            int nbBytes = opLength & 0x7F;
+            opLength = 0;
+
+            for ( int i = 0; i < nbBytes; i++ )
+            {
+                opLength = ( opLength << 8 ) | ( pdu.get( pos++ ) & 0xFF );
+            }
+        }
+
+        if ( pos + opLength != end )
+        {
+            // Some controls follow the protocolOp
+            return null;
+        }
+
+        byte[] protocolOp = new byte[end - opStart];
+        ByteBuffer slice = pdu.duplicate();
+        slice.position( opStart );
+        slice.get( protocolOp );
+
+        return protocolOp;
+    }
+
+
+    /**
+     * Builds the LDAPMessage envelope around an encoded protocolOp
+     *
+     * @param messageId The message ID
+     * @param protocolOp The encoded protocolOp
+     * @return The encoded LDAPMessage
+     */
+    static IoBuffer wrap( int messageId, byte[] protocolOp )
+    {
+        // The messageId is a positive INTEGER, encoded on the minimal number of bytes
+        int idLength = 1;
+
+        while ( ( idLength < 4 ) && ( ( messageId >>> ( idLength * 8 - 1 ) ) != 0 ) )
+        {
+            idLength++;
+        }
+
+        int contentLength = 2 + idLength + protocolOp.length;
+        IoBuffer buffer = IoBuffer.allocate( 1 + lengthOfLength( contentLength ) + contentLength );
+
+        buffer.put( SEQUENCE_TAG );
+        putLength( buffer, contentLength );
+        buffer.put( INTEGER_TAG );
+        buffer.put( ( byte ) idLength );
+
+        for ( int i = idLength - 1; i >= 0; i-- )
+        {
+            buffer.put( ( byte ) ( messageId >>> ( i * 8 ) ) );
+        }
+
+        buffer.put( protocolOp );
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    private static int lengthOfLength( int length )
+    {
+        if ( length < 0x80 )
+        {
+            return 1;
+        }
+
+        int nbBytes = 1;
+
+        while ( ( length >>> ( nbBytes * 8 ) ) != 0 )
+        {
+            nbBytes++;
+        }
+
+        return 1 + nbBytes;
+    }
+
+
+    private static void putLength( IoBuffer buffer, int length )
+    {
+        if ( length < 0x80 )
+        {
+            buffer.put( ( byte ) length );
+
+            return;
+        }
+
+        int nbBytes = lengthOfLength( length ) - 1;
+        buffer.put( ( byte ) ( 0x80 | nbBytes ) );
+
+        for ( int i = nbBytes - 1; i >= 0; i-- )
+        {
+            buffer.put( ( byte ) ( length >>> ( i * 8 ) ) );
+        }
+    }
+
+
+    /**
+     * Removes all the cached PDUs
+     */
+    public void clear()
+    {
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                stripe.clear();
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of cached PDUs
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+
+    /**
+     * @return The number of PDUs found in the cache
+     */
+    public long getNbHits()
+    {
+        return nbHits.get();
+    }
+
+
+    /**
+     * @return The number of PDUs which had to be encoded
+     */
+    public long getNbMisses()
+    {
+        return nbMisses.get();
+    }
+}
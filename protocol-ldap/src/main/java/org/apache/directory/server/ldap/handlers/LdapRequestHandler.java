@@ -21,14 +21,20 @@ package org.apache.directory.server.ldap.handlers;
 
 
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.directory.api.ldap.codec.api.CodecControl;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapReferralException;
 import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.directory.api.ldap.model.message.AddRequest;
 import org.apache.directory.api.ldap.model.message.BindRequest;
 import org.apache.directory.api.ldap.model.message.BindResponse;
 import org.apache.directory.api.ldap.model.message.BindResponseImpl;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
 import org.apache.directory.api.ldap.model.message.ExtendedRequest;
 import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequest;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
 import org.apache.directory.api.ldap.model.message.Referral;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Request;
@@ -40,7 +46,9 @@ import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.LdapTransaction;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
+import org.apache.directory.server.ldap.handlers.extended.StartTransactionHandler;
 import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.handler.demux.MessageHandler;
@@ -186,6 +194,14 @@ public abstract class LdapRequestHandler<T extends Request> implements MessageHa
             }
         }
 
+        // The updates which are part of a transaction are only applied when the transaction ends
+        if ( ( message instanceof ResultResponseRequest )
+            && message.hasControl( StartTransactionHandler.TRANSACTION_SPECIFICATION_OID ) )
+        {
+            addToTransaction( ldapSession, ( ResultResponseRequest ) message );
+            return;
+        }
+
         // We should check that the server allows anonymous requests
         // only if it's not a BindRequest
         if ( message instanceof BindRequest )
@@ -225,6 +241,52 @@ public abstract class LdapRequestHandler<T extends Request> implements MessageHa
     }
 
 
+    /**
+     * Stores an update carrying the transaction specification control in the session
+     * transaction. It will be applied when the transaction is committed.
+     */
+    private void addToTransaction( LdapSession ldapSession, ResultResponseRequest request )
+    {
+        LdapResult result = request.getResultResponse().getLdapResult();
+        LdapTransaction transaction = ldapSession.getTransaction();
+        Control control = request.getControl( StartTransactionHandler.TRANSACTION_SPECIFICATION_OID );
+        byte[] transactionId = null;
+
+        if ( control instanceof CodecControl )
+        {
+            transactionId = ( ( CodecControl<?> ) control ).getValue();
+        }
+
+        if ( ( transaction == null ) || !transaction.hasId( transactionId ) )
+        {
+            result.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+            result.setDiagnosticMessage( "Unknown transaction identifier" );
+        }
+        else if ( !( request instanceof AddRequest ) && !( request instanceof DeleteRequest )
+            && !( request instanceof ModifyRequest ) && !( request instanceof ModifyDnRequest ) )
+        {
+            result.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+            result.setDiagnosticMessage( "Only the updates can be part of a transaction" );
+        }
+        else
+        {
+            request.removeControl( control );
+
+            if ( transaction.addUpdate( request ) )
+            {
+                result.setResultCode( ResultCodeEnum.SUCCESS );
+            }
+            else
+            {
+                result.setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+                result.setDiagnosticMessage( "Too many updates in the transaction" );
+            }
+        }
+
+        ldapSession.getIoSession().write( request.getResultResponse() );
+    }
+
+
     /**
      * Handle a Ldap message associated with a session
      * 
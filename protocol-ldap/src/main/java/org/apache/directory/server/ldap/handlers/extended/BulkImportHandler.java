@@ -0,0 +1,289 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.decorators.ExtendedRequestDecorator;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionBulkImporter;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the bulk import extended operation, which loads a LDIF file into an empty
+ * partition, skipping most of the interceptor chain (see {@link PartitionBulkImporter}). The
+ * request value is the UTF-8 encoded partition ID, optionally followed by a space and the server
+ * side LDIF file to load :
+ * <pre>
+ *   example /var/imports/example.ldif
+ * </pre>
+ * The file is read as a stream, batch after batch, so its size is not limited by the memory.
+ * When no file is given, the LDIF content follows the partition ID on the next lines of the
+ * request value : this is only meant for small imports, as the whole request is in memory.
+ *
+ * The import runs in its own thread, so that it does not hold an LDAP worker thread, and the
+ * response is sent when it's done. Its value is the number of imported entries. Only one import
+ * can run at a time, and only the administrators are allowed to import entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BulkImportHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( BulkImportHandler.class );
+
+    /** The bulk import request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.4.1.18060.0.1.21";
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
+    /** The number of threads checking the imported entries */
+    private int nbThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The number of entries written in one transaction */
+    private int batchSize = PartitionBulkImporter.DEFAULT_BATCH_SIZE;
+
+    /** Tells if an import is running */
+    private final AtomicBoolean importing = new AtomicBoolean();
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        if ( !requestor.getCoreSession().isAnAdministrator() )
+        {
+            LOG.info( "Rejected bulk import requested by {}",
+                requestor.getCoreSession().getEffectivePrincipal().getName() );
+            writeError( requestor, req, ResultCodeEnum.INSUFFICIENT_ACCESS_RIGHTS,
+                "Only an administrator can import entries" );
+
+            return;
+        }
+
+        String value = null;
+
+        if ( req instanceof ExtendedRequestDecorator )
+        {
+            value = Strings.utf8ToString( ( ( ExtendedRequestDecorator<?> ) req ).getRequestValue() );
+        }
+
+        if ( Strings.isEmpty( value ) )
+        {
+            writeError( requestor, req, ResultCodeEnum.PROTOCOL_ERROR,
+                "The request value must contain the partition ID" );
+
+            return;
+        }
+
+        // The first line contains the partition ID and the optional file name
+        int eol = value.indexOf( '\n' );
+        String header = ( eol < 0 ) ? value.trim() : value.substring( 0, eol ).trim();
+        int pos = header.indexOf( ' ' );
+        String partitionId = ( pos < 0 ) ? header : header.substring( 0, pos );
+        String ldifFile = ( pos < 0 ) ? null : header.substring( pos + 1 ).trim();
+        Partition partition = null;
+
+        for ( Partition candidate : ldapServer.getDirectoryService().getPartitions() )
+        {
+            if ( partitionId.equalsIgnoreCase( candidate.getId() ) )
+            {
+                partition = candidate;
+                break;
+            }
+        }
+
+        if ( partition == null )
+        {
+            writeError( requestor, req, ResultCodeEnum.NO_SUCH_OBJECT, "No partition with ID " + partitionId );
+
+            return;
+        }
+
+        if ( !importing.compareAndSet( false, true ) )
+        {
+            writeError( requestor, req, ResultCodeEnum.BUSY, "An import is already running" );
+
+            return;
+        }
+
+        final PartitionBulkImporter importer = new PartitionBulkImporter( ldapServer.getDirectoryService(),
+            partition );
+        importer.setNbThreads( nbThreads );
+        importer.setBatchSize( batchSize );
+
+        final LdapSession session = requestor;
+        final ExtendedRequest request = req;
+        final String id = partitionId;
+        final String file = ldifFile;
+        final String inlineLdif = ( eol < 0 ) ? "" : value.substring( eol + 1 );
+
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    importLdif( session, request, importer, id, file, inlineLdif );
+                }
+                finally
+                {
+                    importing.set( false );
+                }
+            }
+        }, "bulk-import-" + partitionId );
+
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Imports the LDIF, from the server side file or from the request, and writes the response
+     */
+    private void importLdif( LdapSession requestor, ExtendedRequest req, PartitionBulkImporter importer,
+        String partitionId, String ldifFile, String inlineLdif )
+    {
+        long nbImported;
+
+        try ( Reader reader = ( ldifFile != null )
+            ? Files.newBufferedReader( Paths.get( ldifFile ), StandardCharsets.UTF_8 )
+            : new StringReader( inlineLdif ) )
+        {
+            LOG.info( "Importing {} in the partition {}", ( ldifFile != null ) ? ldifFile : "the request LDIF",
+                partitionId );
+            nbImported = importer.importLdif( reader );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Failed to read the LDIF to import in the partition {} : {}", partitionId, ioe.getMessage() );
+            writeError( requestor, req, ResultCodeEnum.OTHER, ioe.getMessage() );
+
+            return;
+        }
+        catch ( LdapException le )
+        {
+            LOG.error( "Failed to import entries in the partition {} : {}", partitionId, le.getMessage() );
+            writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM, le.getMessage() );
+
+            return;
+        }
+        catch ( RuntimeException re )
+        {
+            LOG.error( "Failed to import entries in the partition {}", partitionId, re );
+            writeError( requestor, req, ResultCodeEnum.OTHER, re.getMessage() );
+
+            return;
+        }
+
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), Strings.getBytesUtf8( Long.toString( nbImported ) ) );
+        response.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    private void writeError( LdapSession requestor, ExtendedRequest req, ResultCodeEnum resultCode, String message )
+    {
+        LdapResult result = req.getResultResponse().getLdapResult();
+        result.setResultCode( resultCode );
+        result.setDiagnosticMessage( message );
+        requestor.getIoSession().write( req.getResultResponse() );
+    }
+
+
+    /**
+     * @param nbThreads The number of threads checking the imported entries
+     */
+    public void setNbThreads( int nbThreads )
+    {
+        this.nbThreads = nbThreads;
+    }
+
+
+    /**
+     * @param batchSize The number of entries written in one transaction
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.decorators.ExtendedRequestDecorator;
+import org.apache.directory.api.ldap.model.exception.LdapEntryAlreadyExistsException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.AddRequest;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequest;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.LdapTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the End Transaction extended operation, defined in RFC 5805. The request
+ * value is :
+ * <pre>
+ * txnEndReq ::= SEQUENCE {
+ *     commit         BOOLEAN DEFAULT TRUE,
+ *     identifier     OCTET STRING }
+ * </pre>
+ * When the transaction is committed, all its updates are applied, in the order the client sent
+ * them, while holding the OperationManager write lock, and using one write transaction per
+ * partition. Only the partitions which can roll back a write transaction (the JDBM partitions)
+ * can be updated : an update of any other partition fails with UNWILLING_TO_PERFORM. If one of
+ * the updates fails, the partition transactions are aborted, the partition caches are cleared,
+ * and the response value contains the message ID of the failed update :
+ * <pre>
+ * txnEndRes ::= SEQUENCE {
+ *     messageID MessageID OPTIONAL }
+ * </pre>
+ * The event listeners, and thus the replication logs, are only notified once all the partition
+ * transactions have been committed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EndTransactionHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( EndTransactionHandler.class );
+
+    /** The End Transaction request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.1.21.3";
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The ASN.1 tags we use */
+    private static final int SEQUENCE_TAG = 0x30;
+    private static final int BOOLEAN_TAG = 0x01;
+    private static final int INTEGER_TAG = 0x02;
+    private static final int OCTET_STRING_TAG = 0x04;
+
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
+
+    /**
+     * The decoded request value
+     */
+    static class EndTransactionValue
+    {
+        /** Tells if the transaction must be committed */
+        boolean commit = true;
+
+        /** The transaction identifier */
+        byte[] identifier;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        EndTransactionValue value;
+
+        try
+        {
+            byte[] requestValue = null;
+
+            if ( req instanceof ExtendedRequestDecorator )
+            {
+                requestValue = ( ( ExtendedRequestDecorator<?> ) req ).getRequestValue();
+            }
+
+            value = decode( requestValue );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            writeError( requestor, req, ResultCodeEnum.PROTOCOL_ERROR, iae.getMessage() );
+
+            return;
+        }
+
+        LdapTransaction transaction;
+
+        synchronized ( requestor )
+        {
+            transaction = requestor.getTransaction();
+
+            if ( ( transaction == null ) || !transaction.hasId( value.identifier ) )
+            {
+                writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM, "Unknown transaction identifier" );
+
+                return;
+            }
+
+            requestor.setTransaction( null );
+        }
+
+        if ( !value.commit )
+        {
+            // Nothing has been applied yet
+            LOG.debug( "Aborted {}", transaction );
+            writeResponse( requestor, req, ResultCodeEnum.SUCCESS, null, -1 );
+
+            return;
+        }
+
+        if ( transaction.getFailedMessageId() >= 0 )
+        {
+            writeResponse( requestor, req, transaction.getFailedResultCode(),
+                "An update could not be added to the transaction", transaction.getFailedMessageId() );
+
+            return;
+        }
+
+        List<ResultResponseRequest> updates = transaction.getUpdates();
+        CoreSession coreSession = requestor.getCoreSession();
+        OperationManager operationManager = ldapServer.getDirectoryService().getOperationManager();
+        ResultResponseRequest failedUpdate = null;
+        LdapException failure = null;
+
+        // Hold the write lock, so that no other update can be interleaved with the transaction ones
+        operationManager.lockWrite();
+
+        try
+        {
+            coreSession.beginSessionTransaction();
+            boolean committed = false;
+
+            try
+            {
+                for ( ResultResponseRequest update : updates )
+                {
+                    try
+                    {
+                        apply( coreSession, update );
+                    }
+                    catch ( LdapException le )
+                    {
+                        failedUpdate = update;
+                        failure = le;
+                        break;
+                    }
+                }
+
+                coreSession.endSessionTransaction( failedUpdate == null );
+                committed = true;
+            }
+            finally
+            {
+                if ( !committed )
+                {
+                    try
+                    {
+                        coreSession.endSessionTransaction( false );
+                    }
+                    catch ( IOException ioe )
+                    {
+                        LOG.error( "Failed to abort the transaction : {}", ioe.getMessage() );
+                    }
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            LOG.error( "Failed to end {} : {}", transaction, ioe.getMessage() );
+            writeResponse( requestor, req, ResultCodeEnum.OTHER, ioe.getMessage(), -1 );
+
+            return;
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+
+        if ( failedUpdate != null )
+        {
+            ResultCodeEnum resultCode = ResultCodeEnum.OTHER;
+
+            if ( failure instanceof LdapOperationException )
+            {
+                resultCode = ( ( LdapOperationException ) failure ).getResultCode();
+            }
+
+            LOG.info( "{} aborted, update {} failed : {}", transaction, failedUpdate.getMessageId(),
+                failure.getMessage() );
+            writeResponse( requestor, req, resultCode, failure.getMessage(), failedUpdate.getMessageId() );
+
+            return;
+        }
+
+        LOG.debug( "Committed {}", transaction );
+        writeResponse( requestor, req, ResultCodeEnum.SUCCESS, null, -1 );
+    }
+
+
+    /**
+     * Applies one update
+     */
+    private void apply( CoreSession coreSession, ResultResponseRequest update ) throws LdapException
+    {
+        if ( update instanceof AddRequest )
+        {
+            coreSession.add( ( AddRequest ) update );
+        }
+        else if ( update instanceof DeleteRequest )
+        {
+            coreSession.delete( ( DeleteRequest ) update );
+        }
+        else if ( update instanceof ModifyRequest )
+        {
+            coreSession.modify( ( ModifyRequest ) update );
+        }
+        else if ( update instanceof ModifyDnRequest )
+        {
+            // Same logic as in the ModifyDnRequestHandler
+            ModifyDnRequest modifyDnRequest = ( ModifyDnRequest ) update;
+            SchemaManager schemaManager = coreSession.getDirectoryService().getSchemaManager();
+            Dn newRdn = new Dn( schemaManager, modifyDnRequest.getNewRdn().getName() );
+            Dn oldRdn = new Dn( schemaManager, modifyDnRequest.getName().getRdn().getName() );
+            boolean rdnChanged = !newRdn.equals( oldRdn );
+
+            if ( rdnChanged )
+            {
+                if ( modifyDnRequest.getNewSuperior() != null )
+                {
+                    coreSession.moveAndRename( modifyDnRequest );
+                }
+                else
+                {
+                    coreSession.rename( modifyDnRequest );
+                }
+            }
+            else if ( modifyDnRequest.getNewSuperior() != null )
+            {
+                modifyDnRequest.setNewRdn( null );
+                coreSession.move( modifyDnRequest );
+            }
+            else
+            {
+                throw new LdapEntryAlreadyExistsException( "Attempt to move entry onto itself." );
+            }
+        }
+    }
+
+
+    /**
+     * Decodes the request value
+     *
+     * @param value The request value
+     * @return The decoded value
+     * @throws IllegalArgumentException If the value is not a valid txnEndReq
+     */
+    static EndTransactionValue decode( byte[] value )
+    {
+        if ( ( value == null ) || ( value.length < 2 ) || ( ( value[0] & 0xFF ) != SEQUENCE_TAG ) )
+        {
+            throw new IllegalArgumentException( "The request value must be a txnEndReq sequence" );
+        }
+
+        int[] pos = new int[]
+            { 1 };
+        int end = readLength( value, pos );
+
+        if ( end != value.length )
+        {
+            throw new IllegalArgumentException( "Invalid txnEndReq length" );
+        }
+
+        EndTransactionValue result = new EndTransactionValue();
+
+        if ( ( pos[0] < end ) && ( ( value[pos[0]] & 0xFF ) == BOOLEAN_TAG ) )
+        {
+            pos[0]++;
+            int booleanEnd = readLength( value, pos );
+
+            if ( booleanEnd != pos[0] + 1 )
+            {
+                throw new IllegalArgumentException( "Invalid commit flag" );
+            }
+
+            result.commit = value[pos[0]] != 0;
+            pos[0] = booleanEnd;
+        }
+
+        if ( ( pos[0] >= end ) || ( ( value[pos[0]] & 0xFF ) != OCTET_STRING_TAG ) )
+        {
+            throw new IllegalArgumentException( "Missing transaction identifier" );
+        }
+
+        pos[0]++;
+        int identifierEnd = readLength( value, pos );
+
+        if ( identifierEnd != end )
+        {
+            throw new IllegalArgumentException( "Invalid transaction identifier" );
+        }
+
+        result.identifier = Arrays.copyOfRange( value, pos[0], identifierEnd );
+
+        return result;
+    }
+
+
+    /**
+     * Reads a BER length at the given position, and returns the end of the element
+     */
+    private static int readLength( byte[] value, int[] pos )
+    {
+        if ( pos[0] >= value.length )
+        {
+            throw new IllegalArgumentException( "Truncated value" );
+        }
+
+        int length = value[pos[0]++] & 0xFF;
+
+        if ( length > 0x7F )
+        {
+            int nbBytes = length & 0x7F;
+
+            if ( ( nbBytes > 3 ) || ( pos[0] + nbBytes > value.length ) )
+            {
+                throw new IllegalArgumentException( "Invalid length" );
+            }
+
+            length = 0;
+
+            for ( int i = 0; i < nbBytes; i++ )
+            {
+                length = ( length << 8 ) | ( value[pos[0]++] & 0xFF );
+            }
+        }
+
+        int end = pos[0] + length;
+
+        if ( end > value.length )
+        {
+            throw new IllegalArgumentException( "Truncated value" );
+        }
+
+        return end;
+    }
+
+
+    /**
+     * Encodes the response value containing the message ID of the failed update
+     *
+     * @param messageId The failed update message ID
+     * @return The encoded txnEndRes
+     */
+    static byte[] encodeResponse( int messageId )
+    {
+        ByteArrayOutputStream integer = new ByteArrayOutputStream();
+        boolean started = false;
+
+        for ( int shift = 24; shift >= 0; shift -= 8 )
+        {
+            int b = ( messageId >>> shift ) & 0xFF;
+
+            // Skip the leading zeroes, unless the next byte would be read as a negative number
+            if ( started || ( b != 0 ) || ( shift == 0 ) )
+            {
+                if ( !started && ( ( b & 0x80 ) != 0 ) )
+                {
+                    integer.write( 0 );
+                }
+
+                integer.write( b );
+                started = true;
+            }
+        }
+
+        byte[] integerBytes = integer.toByteArray();
+        byte[] encoded = new byte[integerBytes.length + 4];
+        encoded[0] = ( byte ) SEQUENCE_TAG;
+        encoded[1] = ( byte ) ( integerBytes.length + 2 );
+        encoded[2] = ( byte ) INTEGER_TAG;
+        encoded[3] = ( byte ) integerBytes.length;
+        System.arraycopy( integerBytes, 0, encoded, 4, integerBytes.length );
+
+        return encoded;
+    }
+
+
+    private void writeResponse( LdapSession requestor, ExtendedRequest req, ResultCodeEnum resultCode,
+        String message, int failedMessageId )
+    {
+        byte[] responseValue = failedMessageId >= 0 ? encodeResponse( failedMessageId ) : null;
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), responseValue );
+        response.getLdapResult().setResultCode( resultCode );
+
+        if ( message != null )
+        {
+            response.getLdapResult().setDiagnosticMessage( message );
+        }
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    private void writeError( LdapSession requestor, ExtendedRequest req, ResultCodeEnum resultCode, String message )
+    {
+        LdapResult result = req.getResultResponse().getLdapResult();
+        result.setResultCode( resultCode );
+        result.setDiagnosticMessage( message );
+        requestor.getIoSession().write( req.getResultResponse() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.decorators.ExtendedRequestDecorator;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the partition backup extended operation. The request value is the
+ * UTF-8 encoded partition ID, followed by a space and the server side directory where
+ * the backup has to be written :
+ * <pre>
+ *   example /var/backups/apacheds/example-20161019
+ * </pre>
+ * The partition is copied while it's online. Only the administrators are allowed to
+ * request a backup.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionBackupHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( PartitionBackupHandler.class );
+
+    /** The partition backup request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.4.1.18060.0.1.20";
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        if ( !requestor.getCoreSession().isAnAdministrator() )
+        {
+            LOG.info( "Rejected partition backup requested by {}",
+                requestor.getCoreSession().getEffectivePrincipal().getName() );
+            writeError( requestor, req, ResultCodeEnum.INSUFFICIENT_ACCESS_RIGHTS,
+                "Only an administrator can backup a partition" );
+
+            return;
+        }
+
+        String value = null;
+
+        if ( req instanceof ExtendedRequestDecorator )
+        {
+            value = Strings.utf8ToString( ( ( ExtendedRequestDecorator<?> ) req ).getRequestValue() );
+        }
+
+        int pos = ( value == null ) ? -1 : value.indexOf( ' ' );
+
+        if ( pos <= 0 )
+        {
+            writeError( requestor, req, ResultCodeEnum.PROTOCOL_ERROR,
+                "The request value must contain the partition ID and the backup directory" );
+
+            return;
+        }
+
+        String partitionId = value.substring( 0, pos );
+        File backupDirectory = new File( value.substring( pos + 1 ).trim() );
+        Partition partition = null;
+
+        for ( Partition candidate : ldapServer.getDirectoryService().getPartitions() )
+        {
+            if ( partitionId.equalsIgnoreCase( candidate.getId() ) )
+            {
+                partition = candidate;
+                break;
+            }
+        }
+
+        if ( partition == null )
+        {
+            writeError( requestor, req, ResultCodeEnum.NO_SUCH_OBJECT, "No partition with ID " + partitionId );
+
+            return;
+        }
+
+        try
+        {
+            LOG.info( "Backing up the partition {} in {}", partitionId, backupDirectory );
+            partition.backup( backupDirectory, ldapServer.getDirectoryService().getOperationManager().getRWLock() );
+        }
+        catch ( LdapException le )
+        {
+            LOG.error( "Failed to backup the partition {} : {}", partitionId, le.getMessage() );
+            writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM, le.getMessage() );
+
+            return;
+        }
+
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), Strings.getBytesUtf8( backupDirectory.getAbsolutePath() ) );
+        response.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    private void writeError( LdapSession requestor, ExtendedRequest req, ResultCodeEnum resultCode, String message )
+    {
+        LdapResult result = req.getResultResponse().getLdapResult();
+        result.setResultCode( resultCode );
+        result.setDiagnosticMessage( message );
+        requestor.getIoSession().write( req.getResultResponse() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.decorators.ExtendedRequestDecorator;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the replica snapshot extended operation, used by a consumer to get a copy
+ * of the files of the partition it replicates, instead of fetching all its entries. The
+ * request value is the UTF-8 encoded replicated base, which must be a partition suffix.
+ * <br/>
+ * The partition is copied while it's online, then its files are streamed to the consumer as
+ * intermediate responses, each of them containing a type byte :
+ * <ul>
+ *   <li>FILE_CHUNK : followed by the file path relative to the partition directory, written
+ *   using DataOutput.writeUTF, and by the next bytes of the file</li>
+ *   <li>COOKIE : followed by the cookie the consumer has to use to get the modifications done
+ *   since the snapshot has started</li>
+ * </ul>
+ * The operation requires the syncrepl provider to be enabled, and only the administrators are
+ * allowed to request a snapshot. The snapshot is taken and sent by a dedicated thread, so
+ * that the LDAP worker threads are not blocked while the files are streamed, and only one
+ * snapshot can be sent at a time.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaSnapshotHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaSnapshotHandler.class );
+
+    /** The replica snapshot request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.4.1.18060.0.1.22";
+
+    /** The intermediate response containing some bytes of a file */
+    public static final byte FILE_CHUNK = 0x00;
+
+    /** The intermediate response containing the replication cookie */
+    public static final byte COOKIE = 0x01;
+
+    /** The size of the file chunks */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
+    /** Tells if a snapshot is being sent */
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        if ( !requestor.getCoreSession().isAnAdministrator() )
+        {
+            LOG.info( "Rejected replica snapshot requested by {}",
+                requestor.getCoreSession().getEffectivePrincipal().getName() );
+            writeError( requestor, req, ResultCodeEnum.INSUFFICIENT_ACCESS_RIGHTS,
+                "Only an administrator can request a replica snapshot" );
+
+            return;
+        }
+
+        if ( !( ldapServer.getReplicationReqHandler() instanceof SyncReplRequestHandler ) )
+        {
+            writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM, "The server is not a syncrepl provider" );
+
+            return;
+        }
+
+        SyncReplRequestHandler provider = ( SyncReplRequestHandler ) ldapServer.getReplicationReqHandler();
+        DirectoryService directoryService = ldapServer.getDirectoryService();
+        Dn base;
+
+        try
+        {
+            String value = null;
+
+            if ( req instanceof ExtendedRequestDecorator )
+            {
+                value = Strings.utf8ToString( ( ( ExtendedRequestDecorator<?> ) req ).getRequestValue() );
+            }
+
+            base = new Dn( directoryService.getSchemaManager(), value );
+        }
+        catch ( LdapException le )
+        {
+            writeError( requestor, req, ResultCodeEnum.PROTOCOL_ERROR, "The request value must be the replicated base" );
+
+            return;
+        }
+
+        final Partition partition = directoryService.getPartitionNexus().getPartition( base );
+
+        if ( !partition.getSuffixDn().equals( base ) )
+        {
+            writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM,
+                "The replicated base " + base + " is not a partition suffix" );
+
+            return;
+        }
+
+        if ( !sending.compareAndSet( false, true ) )
+        {
+            writeError( requestor, req, ResultCodeEnum.BUSY, "A snapshot is already being sent" );
+
+            return;
+        }
+
+        final LdapSession session = requestor;
+        final ExtendedRequest request = req;
+        final SyncReplRequestHandler syncReplProvider = provider;
+        final Dn replicatedBase = base;
+
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sendSnapshot( session, request, syncReplProvider, partition, replicatedBase );
+                }
+                catch ( Exception e )
+                {
+                    LOG.error( "Failed to send a snapshot of the partition {}", partition.getId(), e );
+                    writeError( session, request, ResultCodeEnum.OTHER, e.getMessage() );
+                }
+                finally
+                {
+                    sending.set( false );
+                }
+            }
+        }, "replica-snapshot-" + partition.getId() );
+
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Copy the partition, send its files and the cookie, then write the response
+     */
+    private void sendSnapshot( LdapSession requestor, ExtendedRequest req, SyncReplRequestHandler provider,
+        Partition partition, Dn base ) throws Exception
+    {
+        DirectoryService directoryService = ldapServer.getDirectoryService();
+        String contextCsn;
+
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            contextCsn = partition.getContextCsn( partitionTxn );
+        }
+
+        // The modifications done while the snapshot is taken will be sent from the change
+        // log, they must not be purged meanwhile
+        provider.getChangeLog().pin( contextCsn );
+
+        File snapshotDirectory = new File( directoryService.getInstanceLayout().getReplDirectory(),
+            "snapshot-" + partition.getId() + "-" + System.currentTimeMillis() );
+
+        try
+        {
+            LOG.info( "Creating a snapshot of the partition {} in {}", partition.getId(), snapshotDirectory );
+            partition.backup( snapshotDirectory, directoryService.getOperationManager().getRWLock() );
+
+            sendFiles( requestor, req, snapshotDirectory, "" );
+
+            if ( requestor.getIoSession().isClosing() )
+            {
+                LOG.warn( "The consumer has closed the session while receiving the snapshot of {}", partition.getId() );
+
+                return;
+            }
+
+            byte[] cookie = provider.registerSnapshotConsumer( requestor, base, contextCsn );
+            sendIntermediateResponse( requestor, req, COOKIE, null, cookie, cookie.length );
+        }
+        catch ( LdapException le )
+        {
+            LOG.error( "Failed to create a snapshot of the partition {} : {}", partition.getId(), le.getMessage() );
+            writeError( requestor, req, ResultCodeEnum.UNWILLING_TO_PERFORM, le.getMessage() );
+
+            return;
+        }
+        finally
+        {
+            provider.getChangeLog().unpin( contextCsn );
+            FileUtils.deleteDirectory( snapshotDirectory );
+        }
+
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), Strings.getBytesUtf8( contextCsn ) );
+        response.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    /**
+     * Send all the files of a directory, recursively
+     */
+    private void sendFiles( LdapSession requestor, ExtendedRequest req, File directory, String path )
+        throws IOException
+    {
+        File[] files = directory.listFiles();
+
+        if ( files == null )
+        {
+            throw new IOException( "Cannot list the files of " + directory );
+        }
+
+        for ( File file : files )
+        {
+            String filePath = path + file.getName();
+
+            if ( file.isDirectory() )
+            {
+                sendFiles( requestor, req, file, filePath + "/" );
+
+                continue;
+            }
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            boolean empty = true;
+
+            try ( InputStream in = new FileInputStream( file ) )
+            {
+                int nbRead;
+
+                while ( ( nbRead = in.read( buffer ) ) > 0 )
+                {
+                    sendIntermediateResponse( requestor, req, FILE_CHUNK, filePath, buffer, nbRead );
+                    empty = false;
+                }
+            }
+
+            if ( empty )
+            {
+                // The consumer has to create the file anyway
+                sendIntermediateResponse( requestor, req, FILE_CHUNK, filePath, buffer, 0 );
+            }
+        }
+    }
+
+
+    private void sendIntermediateResponse( LdapSession requestor, ExtendedRequest req, byte type, String filePath,
+        byte[] bytes, int length ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream( length + 256 );
+        DataOutputStream out = new DataOutputStream( baos );
+        out.writeByte( type );
+
+        if ( filePath != null )
+        {
+            out.writeUTF( filePath );
+        }
+
+        out.write( bytes, 0, length );
+        out.flush();
+
+        IntermediateResponse response = new IntermediateResponseImpl( req.getMessageId() );
+        response.setResponseName( EXTENSION_OID );
+        response.setResponseValue( baos.toByteArray() );
+
+        // Wait for the chunk to be written, we don't want the whole partition to be queued in memory
+        requestor.getIoSession().write( response ).awaitUninterruptibly();
+    }
+
+
+    private void writeError( LdapSession requestor, ExtendedRequest req, ResultCodeEnum resultCode, String message )
+    {
+        LdapResult result = req.getResultResponse().getLdapResult();
+        result.setResultCode( resultCode );
+        result.setDiagnosticMessage( message );
+        requestor.getIoSession().write( req.getResultResponse() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerImpl;
+import org.apache.directory.server.ldap.replication.provider.ReplicaEventLog;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the replication status extended operation. The response value is a UTF-8
+ * text, with one <code>name: value</code> line per metric :
+ * <pre>
+ *   provider.replica.1.host: consumer1.example.com
+ *   provider.replica.1.lastSentCsn: 20161019101112.123456Z#000000#001#000000
+ *   provider.replica.1.pendingEvents: 12
+ *   provider.replica.1.oldestPendingAge: 350
+ *   provider.replica.1.sentEntries: 12000
+ *   provider.replica.1.sendRate: 120.50
+ *   consumer.2.connected: true
+ *   consumer.2.appliedEntries: 12000
+ *   consumer.2.applyRate: 118.25
+ *   consumer.2.lastBatchLatency: 12
+ *   consumer.2.averageBatchLatency: 10
+ *   consumer.2.lastAppliedCsn: 20161019101112.123456Z#000000#001#000000
+ *   consumer.2.csnLag: 400
+ * </pre>
+ * The provider metrics are given for each consumer registered on this server, the consumer
+ * metrics for each provider this server replicates. The rates are the average number of entries
+ * per second over the last minute, the ages and latencies are in milliseconds. The number of
+ * pending events is maintained by the replica event log, polling this operation does not read
+ * the change log.
+ * Only the administrators are allowed to read the replication status.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicationStatusHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicationStatusHandler.class );
+
+    /** The replication status request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.4.1.18060.0.1.23";
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        if ( !requestor.getCoreSession().isAnAdministrator() )
+        {
+            LOG.info( "Rejected replication status requested by {}",
+                requestor.getCoreSession().getEffectivePrincipal().getName() );
+
+            LdapResult result = req.getResultResponse().getLdapResult();
+            result.setResultCode( ResultCodeEnum.INSUFFICIENT_ACCESS_RIGHTS );
+            result.setDiagnosticMessage( "Only an administrator can read the replication status" );
+            requestor.getIoSession().write( req.getResultResponse() );
+
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+
+        if ( ldapServer.getReplicationReqHandler() instanceof SyncReplRequestHandler )
+        {
+            SyncReplRequestHandler provider = ( SyncReplRequestHandler ) ldapServer.getReplicationReqHandler();
+
+            for ( ReplicaEventLog replicaLog : provider.getReplicaLogMap().values() )
+            {
+                appendProviderStatus( sb, replicaLog, now );
+            }
+        }
+
+        if ( ldapServer.getReplConsumers() != null )
+        {
+            for ( ReplicationConsumer consumer : ldapServer.getReplConsumers() )
+            {
+                if ( consumer instanceof ReplicationConsumerImpl )
+                {
+                    appendConsumerStatus( sb, ( ReplicationConsumerImpl ) consumer );
+                }
+            }
+        }
+
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), Strings.getBytesUtf8( sb.toString() ) );
+        response.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    private void appendProviderStatus( StringBuilder sb, ReplicaEventLog replicaLog, long now )
+    {
+        String prefix = "provider.replica." + replicaLog.getId() + ".";
+
+        append( sb, prefix, "host", replicaLog.getHostName() );
+        append( sb, prefix, "lastSentCsn", replicaLog.getLastSentCsn() );
+
+        try
+        {
+            append( sb, prefix, "pendingEvents", replicaLog.getPendingMessages() );
+
+            String oldestPendingCsn = replicaLog.getOldestPendingCsn();
+            long age = ( oldestPendingCsn == null ) ? 0L : Math.max( 0L, now
+                - new Csn( oldestPendingCsn ).getTimestamp() );
+            append( sb, prefix, "oldestPendingAge", age );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Cannot read the pending events of the replica {}", replicaLog.getId(), e );
+        }
+
+        append( sb, prefix, "sentEntries", replicaLog.getSendRate().getTotal() );
+        append( sb, prefix, "sendRate", formatRate( replicaLog.getSendRate().getRate( now ) ) );
+    }
+
+
+    private void appendConsumerStatus( StringBuilder sb, ReplicationConsumerImpl consumer )
+    {
+        String prefix = "consumer." + consumer.getId() + ".";
+
+        append( sb, prefix, "connected", !consumer.isDisconnected() );
+        append( sb, prefix, "appliedEntries", consumer.getApplyRate().getTotal() );
+        append( sb, prefix, "applyRate", formatRate( consumer.getApplyRate().getRate() ) );
+        append( sb, prefix, "lastBatchLatency", consumer.getLastBatchLatency() );
+        append( sb, prefix, "averageBatchLatency", consumer.getAverageBatchLatency() );
+        append( sb, prefix, "lastAppliedCsn", consumer.getLastAppliedCsn() );
+        append( sb, prefix, "csnLag", consumer.getCsnLag() );
+    }
+
+
+    private void append( StringBuilder sb, String prefix, String name, Object value )
+    {
+        sb.append( prefix ).append( name ).append( ": " ).append( value == null ? "" : value ).append( '\n' );
+    }
+
+
+    private String formatRate( double rate )
+    {
+        return String.format( Locale.ROOT, "%.2f", rate );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        this.ldapServer = ldapServer;
+    }
+}
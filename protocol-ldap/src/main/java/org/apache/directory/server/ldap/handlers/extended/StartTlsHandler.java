@@ -20,16 +20,12 @@
 package org.apache.directory.server.ldap.handlers.extended;
 
 
-import java.security.Provider;
-import java.security.SecureRandom;
-import java.security.Security;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 
 import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
 import org.apache.directory.api.ldap.codec.decorators.ExtendedResponseDecorator;
@@ -40,14 +36,17 @@ import org.apache.directory.api.ldap.model.message.ExtendedResponse;
 import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.util.Strings;
-import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.ExtendedOperationHandler;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.ssl.LdapsInitializer;
+import org.apache.directory.server.ldap.handlers.ssl.TlsHandshakeFilter;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
 import org.apache.directory.server.protocol.shared.transport.Transport;
 import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +68,9 @@ public class StartTlsHandler implements ExtendedOperationHandler<ExtendedRequest
     /** The SSL Context instance */
     private SSLContext sslContext;
 
+    /** The LdapServer instance */
+    private LdapServer ldapServer;
+
     /** The list of enabled ciphers */
     private List<String> cipherSuite;
 
@@ -125,12 +127,21 @@ public class StartTlsHandler implements ExtendedOperationHandler<ExtendedRequest
             sslFilter.setWantClientAuth( wantClientAuth );
 
             chain.addFirst( "sslFilter", sslFilter );
+            chain.addAfter( "sslFilter", TlsHandshakeFilter.NAME, ldapServer.getTlsHandshakeFilter() );
+
+            // Run the handshake and the decryption in the TLS pool, if any
+            if ( ldapServer.getTlsExecutor() != null )
+            {
+                chain.addFirst( LdapsInitializer.TLS_EXECUTOR_FILTER,
+                    new ExecutorFilter( ldapServer.getTlsExecutor(), IoEventType.MESSAGE_RECEIVED ) );
+            }
         }
         else
         {
             // Be sure we disable SSLV3
             sslFilter.setEnabledProtocols( new String[]
                 { "TLSv1", "TLSv1.1", "TLSv1.2" } );
+            ldapServer.getTlsHandshakeFilter().handshakeStarted( session.getIoSession() );
             sslFilter.startSsl( session.getIoSession() );
         }
 
@@ -171,26 +182,14 @@ public class StartTlsHandler implements ExtendedOperationHandler<ExtendedRequest
     public void setLdapServer( LdapServer ldapServer )
     {
         LOG.debug( "Setting LDAP Service" );
-        Provider provider = Security.getProvider( "SUN" );
-        LOG.debug( "provider = {}", provider );
+        this.ldapServer = ldapServer;
 
-        try
-        {
-            sslContext = SSLContext.getInstance( "TLS" );
-        }
-        catch ( Exception e )
-        {
-            throw new RuntimeException( I18n.err( I18n.ERR_681 ), e );
-        }
+        // The SSL context is shared with LDAPS, so are the cached TLS sessions
+        sslContext = ldapServer.getSslContext();
 
-        try
-        {
-            sslContext.init( ldapServer.getKeyManagerFactory().getKeyManagers(), new TrustManager[]
-                { new NoVerificationTrustManager() }, new SecureRandom() );
-        }
-        catch ( Exception e )
+        if ( sslContext == null )
         {
-            throw new RuntimeException( I18n.err( I18n.ERR_682 ), e );
+            throw new RuntimeException( I18n.err( I18n.ERR_681 ) );
         }
 
         // Get the transport
@@ -0,0 +1,153 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.server.ldap.ExtendedOperationHandler;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.LdapTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An handler for the Start Transaction extended operation, defined in RFC 5805. The response
+ * value is the identifier of the new transaction, which the client puts in the transaction
+ * specification control of the updates belonging to this transaction. Those updates are
+ * applied when the transaction is committed, see {@link EndTransactionHandler}.
+ *
+ * Only one transaction can be running on a session.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class StartTransactionHandler implements ExtendedOperationHandler<ExtendedRequest, ExtendedResponse>
+{
+    private static final Logger LOG = LoggerFactory.getLogger( StartTransactionHandler.class );
+
+    /** The Start Transaction request and response OID */
+    public static final String EXTENSION_OID = "1.3.6.1.1.21.1";
+
+    /** The transaction specification control OID */
+    public static final String TRANSACTION_SPECIFICATION_OID = "1.3.6.1.1.21.2";
+
+    /** The default maximum number of updates in a transaction */
+    public static final int DEFAULT_MAX_UPDATES = 10000;
+
+    public static final Set<String> EXTENSION_OIDS;
+
+    static
+    {
+        Set<String> set = new HashSet<String>( 1 );
+        set.add( EXTENSION_OID );
+        EXTENSION_OIDS = Collections.unmodifiableSet( set );
+    }
+
+    /** The maximum number of updates in a transaction */
+    private int maxUpdates = DEFAULT_MAX_UPDATES;
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getOid()
+    {
+        return EXTENSION_OID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void handleExtendedOperation( LdapSession requestor, ExtendedRequest req ) throws Exception
+    {
+        LdapTransaction transaction;
+
+        synchronized ( requestor )
+        {
+            if ( requestor.getTransaction() != null )
+            {
+                LdapResult result = req.getResultResponse().getLdapResult();
+                result.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+                result.setDiagnosticMessage( "A transaction is already running on this session" );
+                requestor.getIoSession().write( req.getResultResponse() );
+
+                return;
+            }
+
+            transaction = new LdapTransaction( maxUpdates );
+            requestor.setTransaction( transaction );
+        }
+
+        LOG.debug( "Started {}", transaction );
+
+        ExtendedResponse response = LdapApiServiceFactory.getSingleton().newExtendedResponse( EXTENSION_OID,
+            req.getMessageId(), transaction.getId() );
+        response.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+
+        requestor.getIoSession().write( response );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getExtensionOids()
+    {
+        return EXTENSION_OIDS;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLdapServer( LdapServer ldapServer )
+    {
+        // The updates carrying the transaction specification control must not be rejected
+        ldapServer.getSupportedControls().add( TRANSACTION_SPECIFICATION_OID );
+    }
+
+
+    /**
+     * @return The maximum number of updates in a transaction
+     */
+    public int getMaxUpdates()
+    {
+        return maxUpdates;
+    }
+
+
+    /**
+     * @param maxUpdates The maximum number of updates in a transaction
+     */
+    public void setMaxUpdates( int maxUpdates )
+    {
+        this.maxUpdates = maxUpdates;
+    }
+}
@@ -30,6 +30,7 @@ import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
 import org.apache.directory.api.ldap.model.message.BindRequest;
 import org.apache.directory.api.ldap.model.message.BindResponse;
@@ -39,10 +40,16 @@ import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.OperationEnum;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.apache.directory.server.core.authn.Authenticator;
+import org.apache.directory.server.core.authn.PasswordVerifier;
+import org.apache.directory.server.core.authn.SimpleAuthenticator;
 import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
@@ -81,44 +88,128 @@ public class BindRequestHandler extends LdapRequestHandler<BindRequest>
 
 
     /**
-     * Handle the Simple authentication.
+     * Hands a Simple authentication over to the password verification pool. This is only done when
+     * the user's password is expensive to compare, or not known yet. The bind, including
+     * the password comparison, is done by a pool thread, which writes the response : the calling
+     * thread returns as soon as the request has been queued. If the pool is saturated, or if the
+     * request waits for too long, a BUSY response is sent back.
      *
+     * @param verifier The password verification pool
      * @param ldapSession The associated Session
      * @param bindRequest The BindRequest received
-     * @throws Exception If the authentication cannot be done
+     * @throws Exception If the previous session cannot be unbound
      */
-    // This will suppress PMD.EmptyCatchBlock warnings in this method
-    public void handleSimpleAuth( LdapSession ldapSession, BindRequest bindRequest ) throws Exception
+    private void handleSimpleAuthAsync( PasswordVerifier verifier, final LdapSession ldapSession,
+        final BindRequest bindRequest ) throws Exception
     {
-        DirectoryService directoryService = ldapServer.getDirectoryService();
+        // The session must be pending before we return, so that the next requests are rejected
+        startSimpleAuth( ldapSession );
 
-        // if the user is already bound, we have to unbind him
-        if ( ldapSession.isAuthenticated() )
+        try
         {
-            // We already have a bound session for this user. We have to
-            // abandon it first.
-            ldapSession.getCoreSession().unbind();
+            verifier.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        bindSimple( ldapSession, bindRequest );
+                    }
+                    catch ( Exception e )
+                    {
+                        LOG.error( "Unexpected failure while processing the bind request {}", bindRequest, e );
+                        sendBusy( ldapSession, bindRequest, e.getLocalizedMessage() );
+                    }
+                }
+            }, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sendBusy( ldapSession, bindRequest, "The password verification timed out" );
+                }
+            } );
+        }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            sendBusy( ldapSession, bindRequest, lsue.getLocalizedMessage() );
         }
+    }
 
-        // Set the status to SimpleAuthPending
-        ldapSession.setSimpleAuthPending();
 
-        // Now, bind the user
+    /**
+     * Resets the session to anonymous, and sends back a BUSY response
+     */
+    private void sendBusy( LdapSession ldapSession, BindRequest bindRequest, String message )
+    {
+        LdapResult result = bindRequest.getResultResponse().getLdapResult();
+        result.setResultCode( ResultCodeEnum.BUSY );
+        result.setDiagnosticMessage( message );
 
-        // create a new Bind context, with a null session, as we don't have 
-        // any context yet.
-        BindOperationContext bindContext = new BindOperationContext( null );
+        ldapSession.setAnonymous();
+        ldapSession.getIoSession().write( bindRequest.getResultResponse() );
+    }
 
-        // Stores the Dn of the user to check, and its password
+
+    /**
+     * @return The simple authenticator, if any
+     */
+    private SimpleAuthenticator getSimpleAuthenticator()
+    {
+        Interceptor interceptor = ldapServer.getDirectoryService().getInterceptor(
+            InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+
+        if ( interceptor instanceof AuthenticationInterceptor )
+        {
+            for ( Authenticator authenticator : ( ( AuthenticationInterceptor ) interceptor ).getAuthenticators() )
+            {
+                if ( authenticator instanceof SimpleAuthenticator )
+                {
+                    return ( SimpleAuthenticator ) authenticator;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Tells if a Simple authentication must be handed over to the password verification pool. The
+     * cheap binds are done by the calling thread, as queuing them would cost more than the bind itself.
+     */
+    private boolean isExpensiveBind( SimpleAuthenticator authenticator, BindRequest bindRequest ) throws Exception
+    {
+        if ( ( authenticator == null ) || ( authenticator.getPasswordVerifier() == null )
+            || Strings.isEmpty( bindRequest.getCredentials() ) )
+        {
+            return false;
+        }
+
+        Dn bindDn = resolveBindDn( bindRequest );
+
+        // An invalid Dn will be rejected right away
+        return ( bindDn != null ) && authenticator.isExpensiveBind( bindDn );
+    }
+
+
+    /**
+     * Gets the Dn of the user, parsing the request name if it has not already been done
+     *
+     * @return The Dn, or null if the name is not a valid Dn
+     */
+    private Dn resolveBindDn( BindRequest bindRequest )
+    {
         Dn bindDn = bindRequest.getDn();
-        
+
         if ( bindDn == null )
         {
             String name = bindRequest.getName();
-            
+
             try
             {
-                bindDn = new Dn( directoryService.getSchemaManager(), name );
+                bindDn = new Dn( ldapServer.getDirectoryService().getSchemaManager(), name );
                 bindRequest.setDn( bindDn );
             }
             catch ( LdapInvalidDnException e )
@@ -127,7 +218,61 @@ public class BindRequestHandler extends LdapRequestHandler<BindRequest>
                 LOG.debug( "Unable to convert the name to a DN." );
             }
         }
-        
+
+        return bindDn;
+    }
+
+
+    /**
+     * Unbinds the session if it was authenticated, and sets it to SimpleAuthPending
+     */
+    private void startSimpleAuth( LdapSession ldapSession ) throws Exception
+    {
+        // if the user is already bound, we have to unbind him
+        if ( ldapSession.isAuthenticated() )
+        {
+            // We already have a bound session for this user. We have to
+            // abandon it first.
+            ldapSession.getCoreSession().unbind();
+        }
+
+        // Set the status to SimpleAuthPending
+        ldapSession.setSimpleAuthPending();
+    }
+
+
+    /**
+     * Handle the Simple authentication.
+     *
+     * @param ldapSession The associated Session
+     * @param bindRequest The BindRequest received
+     * @throws Exception If the authentication cannot be done
+     */
+    // This will suppress PMD.EmptyCatchBlock warnings in this method
+    public void handleSimpleAuth( LdapSession ldapSession, BindRequest bindRequest ) throws Exception
+    {
+        startSimpleAuth( ldapSession );
+        bindSimple( ldapSession, bindRequest );
+    }
+
+
+    /**
+     * Binds the user of a Simple authentication, and writes the response. The session must
+     * already be SimpleAuthPending.
+     */
+    private void bindSimple( LdapSession ldapSession, BindRequest bindRequest ) throws Exception
+    {
+        DirectoryService directoryService = ldapServer.getDirectoryService();
+
+        // Now, bind the user
+
+        // create a new Bind context, with a null session, as we don't have 
+        // any context yet.
+        BindOperationContext bindContext = new BindOperationContext( null );
+
+        // Stores the Dn of the user to check, and its password
+        resolveBindDn( bindRequest );
+
         bindContext.setDn( bindRequest.getDn() );
         bindContext.setCredentials( bindRequest.getCredentials() );
         bindContext.setIoSession( ldapSession.getIoSession() );
@@ -233,6 +378,12 @@ public class BindRequestHandler extends LdapRequestHandler<BindRequest>
                 code = ResultCodeEnum.UNWILLING_TO_PERFORM;
                 result.setResultCode( code );
             }
+            else if ( e instanceof LdapServiceUnavailableException )
+            {
+                // The password verification pool is saturated
+                code = ( ( LdapServiceUnavailableException ) e ).getResultCode();
+                result.setResultCode( code );
+            }
             else if ( e instanceof LdapInvalidDnException )
             {
                 code = ResultCodeEnum.INVALID_DN_SYNTAX;
@@ -649,7 +800,16 @@ public class BindRequestHandler extends LdapRequestHandler<BindRequest>
         // Deal with the two kinds of authentication : Simple and SASL
         if ( bindRequest.isSimple() )
         {
-            handleSimpleAuth( ldapSession, bindRequest );
+            SimpleAuthenticator authenticator = getSimpleAuthenticator();
+
+            if ( isExpensiveBind( authenticator, bindRequest ) )
+            {
+                handleSimpleAuthAsync( authenticator.getPasswordVerifier(), ldapSession, bindRequest );
+            }
+            else
+            {
+                handleSimpleAuth( ldapSession, bindRequest );
+            }
         }
         else
         {
@@ -74,12 +74,14 @@ import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.SearchResultEntryCache;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
 import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -274,7 +276,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             req.getAttributes().toArray( new String[]
                 {} ) );
 
-        session.getIoSession().write( generateResponse( session, req, entry ) );
+        writeResponse( session, req, entry );
 
         // write the SearchResultDone message
         session.getIoSession().write( req.getResultResponse() );
@@ -406,7 +408,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+            writeResponse( session, req, entry );
 
             if ( IS_DEBUG )
             {
@@ -461,7 +463,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+            writeResponse( session, req, entry );
             count++;
             pageCount++;
         }
@@ -947,6 +949,62 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Writes the response generated for an entry. When the server has a SearchResultEntry
+     * cache and the entry can be cached, the encoded entry is written instead of the
+     * SearchResultEntry message : on a hit, the response is not even generated.
+     *
+     * @param session the current session
+     * @param req the search request
+     * @param entry the entry to be returned
+     * @throws Exception if there are problems in generating the response
+     */
+    private void writeResponse( LdapSession session, SearchRequest req, Entry entry ) throws Exception
+    {
+        SearchResultEntryCache entryCache = ldapServer.getSearchResultEntryCache();
+        String key = null;
+
+        if ( entryCache != null )
+        {
+            DirectoryService directoryService = session.getCoreSession().getDirectoryService();
+
+            // The entries returned to a user may have been filtered by the access control
+            boolean filtered = directoryService.isAccessControlEnabled()
+                && !session.getCoreSession().isAnAdministrator();
+            key = entryCache.getKey( req, entry, filtered, directoryService.isPasswordHidden() );
+
+            if ( key != null )
+            {
+                IoBuffer cached = entryCache.get( key, req.getMessageId() );
+
+                if ( cached != null )
+                {
+                    session.getIoSession().write( cached );
+
+                    return;
+                }
+            }
+        }
+
+        Response response = generateResponse( session, req, entry );
+
+        if ( ( key != null ) && ( response instanceof SearchResultEntry ) )
+        {
+            IoBuffer encoded = entryCache.put( key, session.getCoreSession().getDirectoryService()
+                .getLdapCodecService(), ( SearchResultEntry ) response );
+
+            if ( encoded != null )
+            {
+                session.getIoSession().write( encoded );
+
+                return;
+            }
+        }
+
+        session.getIoSession().write( response );
+    }
+
+
     /**
      * Alters the filter expression based on the presence of the
      * ManageDsaIT decorator.  If the decorator is not present, the search
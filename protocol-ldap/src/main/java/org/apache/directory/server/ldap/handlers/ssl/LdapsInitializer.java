@@ -20,19 +20,18 @@
 package org.apache.directory.server.ldap.handlers.ssl;
 
 
-import java.security.SecureRandom;
 import java.util.List;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
 import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
 import org.apache.mina.core.filterchain.IoFilterChainBuilder;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.ssl.SslFilter;
 
 
@@ -45,6 +44,10 @@ import org.apache.mina.filter.ssl.SslFilter;
  */
 public final class LdapsInitializer
 {
+    /** The name of the filter running the TLS handshakes and decryption in the TLS pool */
+    public static final String TLS_EXECUTOR_FILTER = "tlsExecutor";
+
+
     private LdapsInitializer()
     {
     }
@@ -60,21 +63,23 @@ public final class LdapsInitializer
      */
     public static IoFilterChainBuilder init( LdapServer ldapServer, TcpTransport transport ) throws LdapException
     {
-        SSLContext sslCtx;
+        // The SSL context is shared with StartTLS, so are the cached TLS sessions
+        SSLContext sslCtx = ldapServer.getSslContext();
 
-        try
+        if ( sslCtx == null )
         {
-            // Initialize the SSLContext to work with our key managers.
-            sslCtx = SSLContext.getInstance( "TLS" );
-            sslCtx.init( ldapServer.getKeyManagerFactory().getKeyManagers(), new TrustManager[]
-                { new NoVerificationTrustManager() }, new SecureRandom() );
+            throw new LdapException( I18n.err( I18n.ERR_683 ) );
         }
-        catch ( Exception e )
+
+        DefaultIoFilterChainBuilder chain = new DefaultIoFilterChainBuilder();
+
+        // Run the handshakes and the decryption in the TLS pool, if any
+        if ( ldapServer.getTlsExecutor() != null )
         {
-            throw new LdapException( I18n.err( I18n.ERR_683 ), e );
+            chain.addLast( TLS_EXECUTOR_FILTER, new ExecutorFilter( ldapServer.getTlsExecutor(),
+                IoEventType.MESSAGE_RECEIVED ) );
         }
 
-        DefaultIoFilterChainBuilder chain = new DefaultIoFilterChainBuilder();
         SslFilter sslFilter = new SslFilter( sslCtx );
 
         // The ciphers
@@ -104,6 +109,7 @@ public final class LdapsInitializer
         sslFilter.setWantClientAuth( transport.isWantClientAuth() );
 
         chain.addLast( "sslFilter", sslFilter );
+        chain.addLast( TlsHandshakeFilter.NAME, ldapServer.getTlsHandshakeFilter() );
 
         return chain;
     }
@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap.handlers.ssl;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
+
+
+/**
+ * A filter following the SslFilter, which measures the TLS handshakes of the LDAPS and StartTLS
+ * sessions : it asks the SslFilter to notify the end of the first handshake, and records its
+ * duration and whether the TLS session has been resumed from the server session cache. The
+ * notification is consumed here, it never reaches the LDAP handler.
+ * <p>
+ * The handshake of a LDAPS session starts when the filter is added to its chain, which is when
+ * the connection is accepted, and the handshake of a StartTLS session starts when the StartTLS
+ * request is processed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class TlsHandshakeFilter extends IoFilterAdapter
+{
+    /** The name of this filter in the chains */
+    public static final String NAME = "tlsHandshake";
+
+    /** The session attribute holding the handshake start time */
+    private static final AttributeKey HANDSHAKE_START = new AttributeKey( TlsHandshakeFilter.class, "start" );
+
+    /** The number of completed handshakes */
+    private final AtomicLong nbHandshakes = new AtomicLong();
+
+    /** The number of handshakes which have resumed a cached TLS session */
+    private final AtomicLong nbResumed = new AtomicLong();
+
+    /** The cumulated handshake time, in nanoseconds */
+    private final AtomicLong totalHandshakeTime = new AtomicLong();
+
+    /** The longest handshake time, in nanoseconds */
+    private final AtomicLong maxHandshakeTime = new AtomicLong();
+
+    /** The time the metrics have been reset, in ms */
+    private volatile long resetTime = System.currentTimeMillis();
+
+
+    /**
+     * The time a handshake has started
+     */
+    private static final class HandshakeStart
+    {
+        /** The start time, in ms, compared to the TLS session creation time */
+        private final long millis = System.currentTimeMillis();
+
+        /** The start time, in ns, used to compute the handshake duration */
+        private final long nanos = System.nanoTime();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onPostAdd( IoFilterChain parent, String name, NextFilter nextFilter ) throws Exception
+    {
+        handshakeStarted( parent.getSession() );
+    }
+
+
+    /**
+     * Tells the filter a new handshake is starting on a session
+     *
+     * @param session The session
+     */
+    public void handshakeStarted( IoSession session )
+    {
+        session.setAttribute( HANDSHAKE_START, new HandshakeStart() );
+        session.setAttribute( SslFilter.USE_NOTIFICATION );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived( NextFilter nextFilter, IoSession session, Object message ) throws Exception
+    {
+        if ( message == SslFilter.SESSION_SECURED )
+        {
+            HandshakeStart start = ( HandshakeStart ) session.removeAttribute( HANDSHAKE_START );
+
+            if ( start != null )
+            {
+                session.removeAttribute( SslFilter.USE_NOTIFICATION );
+
+                // A resumed TLS session has been created by a previous handshake
+                SSLSession sslSession = ( SSLSession ) session.getAttribute( SslFilter.SSL_SESSION );
+                boolean resumed = ( sslSession != null ) && ( sslSession.getCreationTime() < start.millis );
+
+                handshakeCompleted( System.nanoTime() - start.nanos, resumed );
+
+                return;
+            }
+        }
+
+        nextFilter.messageReceived( session, message );
+    }
+
+
+    /**
+     * Records a completed handshake
+     *
+     * @param duration The handshake duration, in ns
+     * @param resumed Tells if the TLS session has been resumed
+     */
+    void handshakeCompleted( long duration, boolean resumed )
+    {
+        nbHandshakes.incrementAndGet();
+        totalHandshakeTime.addAndGet( duration );
+
+        if ( resumed )
+        {
+            nbResumed.incrementAndGet();
+        }
+
+        long max = maxHandshakeTime.get();
+
+        while ( ( duration > max ) && !maxHandshakeTime.compareAndSet( max, duration ) )
+        {
+            max = maxHandshakeTime.get();
+        }
+    }
+
+
+    /**
+     * @return The number of completed handshakes
+     */
+    public long getNbHandshakes()
+    {
+        return nbHandshakes.get();
+    }
+
+
+    /**
+     * @return The number of handshakes which have resumed a cached TLS session
+     */
+    public long getNbResumedHandshakes()
+    {
+        return nbResumed.get();
+    }
+
+
+    /**
+     * @return The ratio of handshakes which have resumed a cached TLS session, between 0 and 1
+     */
+    public double getResumptionRatio()
+    {
+        long handshakes = nbHandshakes.get();
+
+        return ( handshakes == 0 ) ? 0d : ( double ) nbResumed.get() / handshakes;
+    }
+
+
+    /**
+     * @return The number of handshakes per second since the metrics have been reset
+     */
+    public double getHandshakeRate()
+    {
+        long elapsed = Math.max( 1L, System.currentTimeMillis() - resetTime );
+
+        return nbHandshakes.get() * 1000d / elapsed;
+    }
+
+
+    /**
+     * @return The average handshake time, in ms
+     */
+    public long getAverageHandshakeTime()
+    {
+        long handshakes = nbHandshakes.get();
+
+        return ( handshakes == 0 ) ? 0L : TimeUnit.NANOSECONDS.toMillis( totalHandshakeTime.get() / handshakes );
+    }
+
+
+    /**
+     * @return The longest handshake time, in ms
+     */
+    public long getMaxHandshakeTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis( maxHandshakeTime.get() );
+    }
+
+
+    /**
+     * Resets the metrics
+     */
+    public void reset()
+    {
+        nbHandshakes.set( 0L );
+        nbResumed.set( 0L );
+        totalHandshakeTime.set( 0L );
+        maxHandshakeTime.set( 0L );
+        resetTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdbm.RecordManager;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * A persistent dictionary associating an integer ID to each AttributeType stored in the
+ * replication change log, so that the delta messages don't have to store the attribute
+ * names. An ID is never reused, even if the AttributeType is removed from the schema.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AttributeTypeDictionary
+{
+    /** The name of the record storing the dictionary */
+    private static final String DICTIONARY_NAME = "ATTRIBUTE_TYPE_DICTIONARY";
+
+    /** The SchemaManager instance */
+    private SchemaManager schemaManager;
+
+    /** The record manager storing the dictionary */
+    private RecordManager recordManager;
+
+    /** The dictionary record ID */
+    private long recordId;
+
+    /** The AttributeType OIDs, the ID being the position in the list */
+    private List<String> oids;
+
+    /** The IDs, per OID */
+    private Map<String, Integer> ids = new HashMap<>();
+
+
+    /**
+     * Creates a new instance of AttributeTypeDictionary, or reads the existing one
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param recordManager The record manager storing the dictionary
+     * @throws IOException If the dictionary can't be read or created
+     */
+    @SuppressWarnings("unchecked")
+    public AttributeTypeDictionary( SchemaManager schemaManager, RecordManager recordManager ) throws IOException
+    {
+        this.schemaManager = schemaManager;
+        this.recordManager = recordManager;
+
+        recordId = recordManager.getNamedObject( DICTIONARY_NAME );
+
+        if ( recordId == 0L )
+        {
+            oids = new ArrayList<>();
+            recordId = recordManager.insert( oids );
+            recordManager.setNamedObject( DICTIONARY_NAME, recordId );
+        }
+        else
+        {
+            oids = ( List<String> ) recordManager.fetch( recordId );
+
+            for ( int i = 0; i < oids.size(); i++ )
+            {
+                ids.put( oids.get( i ), i );
+            }
+        }
+    }
+
+
+    /**
+     * Gives an ID to all the AttributeTypes of the given message's entry and modifications which
+     * don't have one yet, and stores the dictionary if it has been modified.
+     *
+     * @param message The message
+     * @throws IOException If the dictionary can't be stored
+     */
+    public synchronized void register( ReplicaEventMessage message ) throws IOException
+    {
+        boolean modified = false;
+
+        for ( Attribute attribute : message.getEntry() )
+        {
+            modified |= register( attribute.getAttributeType() );
+        }
+
+        for ( Modification modification : message.getModifications() )
+        {
+            modified |= register( modification.getAttribute().getAttributeType() );
+        }
+
+        if ( modified )
+        {
+            recordManager.update( recordId, new ArrayList<>( oids ) );
+        }
+    }
+
+
+    /**
+     * Gives an ID to an AttributeType if it does not have one yet
+     *
+     * @return true if the AttributeType has been added
+     */
+    private boolean register( AttributeType attributeType )
+    {
+        String oid = attributeType.getOid();
+
+        if ( ids.containsKey( oid ) )
+        {
+            return false;
+        }
+
+        ids.put( oid, oids.size() );
+        oids.add( oid );
+
+        return true;
+    }
+
+
+    /**
+     * @param attributeType The AttributeType
+     * @return The AttributeType ID, or -1 if it has not been registered
+     */
+    public synchronized int getId( AttributeType attributeType )
+    {
+        Integer id = ids.get( attributeType.getOid() );
+
+        if ( id == null )
+        {
+            return -1;
+        }
+
+        return id;
+    }
+
+
+    /**
+     * @param id The AttributeType ID
+     * @return The AttributeType associated with the ID
+     * @throws IOException If the ID is unknown, or the AttributeType does not exist anymore
+     */
+    public synchronized AttributeType getAttributeType( int id ) throws IOException
+    {
+        if ( ( id < 0 ) || ( id >= oids.size() ) )
+        {
+            throw new IOException( "Unknown AttributeType ID " + id );
+        }
+
+        AttributeType attributeType = schemaManager.getAttributeType( oids.get( id ) );
+
+        if ( attributeType == null )
+        {
+            throw new IOException( "The AttributeType " + oids.get( id ) + " does not exist" );
+        }
+
+        return attributeType;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+/**
+ * Measures the rate of a replication event (entries sent to a consumer, entries applied
+ * by a consumer...) over the last minute. The events are counted in one second buckets,
+ * so reading the rate is cheap whatever the number of events.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RateMeter
+{
+    /** The number of seconds the rate is computed on */
+    private static final int NB_BUCKETS = 60;
+
+    /** The number of events in each bucket */
+    private final long[] counts = new long[NB_BUCKETS];
+
+    /** The second each bucket is counting the events of */
+    private final long[] seconds = new long[NB_BUCKETS];
+
+    /** The total number of events */
+    private long total;
+
+
+    /**
+     * Counts some events, which just happened
+     *
+     * @param nbEvents The number of events
+     */
+    public void mark( long nbEvents )
+    {
+        mark( nbEvents, System.currentTimeMillis() );
+    }
+
+
+    /**
+     * Counts some events, which happened at the given time
+     *
+     * @param nbEvents The number of events
+     * @param time The time in milliseconds
+     */
+    public synchronized void mark( long nbEvents, long time )
+    {
+        long second = time / 1000L;
+        int bucket = ( int ) ( second % NB_BUCKETS );
+
+        if ( seconds[bucket] != second )
+        {
+            // The bucket was used for an older second
+            seconds[bucket] = second;
+            counts[bucket] = 0L;
+        }
+
+        counts[bucket] += nbEvents;
+        total += nbEvents;
+    }
+
+
+    /**
+     * @return The average number of events per second over the last minute
+     */
+    public double getRate()
+    {
+        return getRate( System.currentTimeMillis() );
+    }
+
+
+    /**
+     * @param time The current time in milliseconds
+     * @return The average number of events per second over the minute before the given time
+     */
+    public synchronized double getRate( long time )
+    {
+        long second = time / 1000L;
+        long count = 0L;
+
+        for ( int i = 0; i < NB_BUCKETS; i++ )
+        {
+            if ( ( seconds[i] > second - NB_BUCKETS ) && ( seconds[i] <= second ) )
+            {
+                count += counts[i];
+            }
+        }
+
+        return ( double ) count / NB_BUCKETS;
+    }
+
+
+    /**
+     * @return The total number of events
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+}
@@ -21,10 +21,35 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.ldap.codec.api.CodecControl;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapProtocolErrorException;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
@@ -41,6 +66,28 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The ID of the replica the modification has been received from, if any */
+    private int replicaId = NO_REPLICA_ID;
+
+    /** The entry DN before a MODDN operation */
+    private Dn previousDn;
+
+    /** Tells if the message only contains the modifications */
+    private boolean delta;
+
+    /** The modifications, when the message is a delta */
+    private List<Modification> modifications;
+
+    /** The replicaId value used when the modification has been done locally */
+    public static final int NO_REPLICA_ID = -1;
+
+    /**
+     * The OID of the control sent by a consumer accepting the modifications as deltas, and added
+     * by the provider to each entry sent as a delta
+     */
+    public static final String DELTA_CONTROL_OID = "1.3.6.1.4.1.18060.0.0.10";
+
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
@@ -79,6 +126,396 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The ID of the replica the modification has been received from, or
+     * {@link #NO_REPLICA_ID} if it has been done locally
+     */
+    public int getReplicaId()
+    {
+        return replicaId;
+    }
+
+
+    /**
+     * @param replicaId The ID of the replica the modification has been received from
+     */
+    public void setReplicaId( int replicaId )
+    {
+        this.replicaId = replicaId;
+    }
+
+
+    /**
+     * @return The entry DN before a MODDN operation, or null
+     */
+    public Dn getPreviousDn()
+    {
+        return previousDn;
+    }
+
+
+    /**
+     * @param previousDn The entry DN before a MODDN operation
+     */
+    public void setPreviousDn( Dn previousDn )
+    {
+        this.previousDn = previousDn;
+    }
+
+
+    /**
+     * @return true if the message is a delta : the entry only contains the DN, the entryUUID
+     * and the entryCSN, and the changes are the {@link #getModifications() modifications}.
+     */
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+
+    /**
+     * @param delta Tells if the message is a delta
+     */
+    public void setDelta( boolean delta )
+    {
+        this.delta = delta;
+    }
+
+
+    /**
+     * @return The modifications applied on the entry, when the message is a delta
+     */
+    public List<Modification> getModifications()
+    {
+        if ( modifications == null )
+        {
+            return Collections.<Modification> emptyList();
+        }
+
+        return modifications;
+    }
+
+
+    /**
+     * @param modifications The modifications applied on the entry
+     */
+    public void setModifications( List<Modification> modifications )
+    {
+        this.modifications = modifications;
+    }
+
+
+    /**
+     * Creates a ReplicaEventMessage for a modification, storing only the modifications : the
+     * values which have been added, removed or replaced.
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param alteredEntry The entry after the modification
+     * @param modifications The modifications applied on the entry
+     * @return The MODIFY message
+     * @throws LdapException If the delta can't be created
+     */
+    public static ReplicaEventMessage createDelta( SchemaManager schemaManager, Entry alteredEntry,
+        List<Modification> modifications ) throws LdapException
+    {
+        ReplicaEventMessage message = new ReplicaEventMessage( ChangeType.MODIFY,
+            createDeltaEntry( schemaManager, alteredEntry ) );
+        message.setDelta( true );
+
+        List<Modification> copies = new ArrayList<Modification>( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            if ( modification.getAttribute().getAttributeType() != null )
+            {
+                copies.add( modification.clone() );
+            }
+        }
+
+        message.setModifications( copies );
+
+        return message;
+    }
+
+
+    /**
+     * Creates the entry of a delta, containing the DN, the entryUUID and the entryCSN
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param alteredEntry The entry after the modification
+     * @return The delta entry
+     * @throws LdapException If the delta can't be created
+     */
+    public static Entry createDeltaEntry( SchemaManager schemaManager, Entry alteredEntry ) throws LdapException
+    {
+        Entry entry = alteredEntry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            entry = ( ( ClonedServerEntry ) entry ).getClonedEntry();
+        }
+
+        Entry deltaEntry = new DefaultEntry( schemaManager, entry.getDn() );
+        deltaEntry.put( entry.get( SchemaConstants.ENTRY_UUID_AT ).clone() );
+        deltaEntry.put( entry.get( SchemaConstants.ENTRY_CSN_AT ).clone() );
+
+        return deltaEntry;
+    }
+
+
+    /**
+     * Applies some modifications on an entry
+     *
+     * @param entry The entry to modify
+     * @param modifications The modifications to apply
+     * @throws LdapException If a modification can't be applied
+     */
+    public static void applyModifications( Entry entry, List<Modification> modifications ) throws LdapException
+    {
+        for ( Modification modification : modifications )
+        {
+            Attribute attribute = modification.getAttribute();
+            AttributeType attributeType = attribute.getAttributeType();
+
+            switch ( modification.getOperation() )
+            {
+                case ADD_ATTRIBUTE:
+                    entry.add( attribute.clone() );
+                    break;
+
+                case REMOVE_ATTRIBUTE:
+                    if ( attribute.size() == 0 )
+                    {
+                        entry.removeAttributes( attributeType );
+                    }
+                    else
+                    {
+                        entry.remove( attribute );
+
+                        if ( entry.containsAttribute( attributeType ) && ( entry.get( attributeType ).size() == 0 ) )
+                        {
+                            entry.removeAttributes( attributeType );
+                        }
+                    }
+
+                    break;
+
+                case REPLACE_ATTRIBUTE:
+                    if ( attribute.size() == 0 )
+                    {
+                        entry.removeAttributes( attributeType );
+                    }
+                    else
+                    {
+                        entry.put( attribute.clone() );
+                    }
+
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+
+    /**
+     * Encodes some modifications, to be sent to a consumer as the value of the delta control.
+     * The format is :
+     * <ul>
+     * <li>int : the number of modifications, then for each modification :
+     *   <ul>
+     *   <li>byte : the operation</li>
+     *   <li>string : the AttributeType OID</li>
+     *   <li>int : the number of values, then for each value a boolean telling if it's a String,
+     *   followed by the value</li>
+     *   </ul>
+     * </li>
+     * </ul>
+     * The strings and binary values are stored as an int length followed by the bytes.
+     *
+     * @param modifications The modifications
+     * @return The encoded modifications
+     */
+    public static byte[] encodeModifications( List<Modification> modifications )
+    {
+        try ( ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( baos ) )
+        {
+            List<Modification> schemaAware = new ArrayList<Modification>( modifications.size() );
+
+            for ( Modification modification : modifications )
+            {
+                if ( modification.getAttribute().getAttributeType() != null )
+                {
+                    schemaAware.add( modification );
+                }
+            }
+
+            out.writeInt( schemaAware.size() );
+
+            for ( Modification modification : schemaAware )
+            {
+                Attribute attribute = modification.getAttribute();
+
+                out.writeByte( modification.getOperation().getValue() );
+                writeBytes( out, Strings.getBytesUtf8( attribute.getAttributeType().getOid() ) );
+                writeValues( out, attribute );
+            }
+
+            out.flush();
+
+            return baos.toByteArray();
+        }
+        catch ( IOException ioe )
+        {
+            // Can't happen, we write in memory
+            throw new IllegalStateException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Decodes the modifications encoded by {@link #encodeModifications(List)}
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param bytes The encoded modifications
+     * @return The modifications
+     * @throws LdapException If the modifications can't be decoded
+     */
+    public static List<Modification> decodeModifications( SchemaManager schemaManager, byte[] bytes )
+        throws LdapException
+    {
+        try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            int nbModifications = in.readInt();
+            List<Modification> modifications = new ArrayList<Modification>( nbModifications );
+
+            for ( int i = 0; i < nbModifications; i++ )
+            {
+                ModificationOperation operation = ModificationOperation.getOperation( in.readByte() );
+                AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry(
+                    Strings.utf8ToString( readBytes( in ) ) );
+                Attribute attribute = readValues( in, attributeType );
+
+                modifications.add( new DefaultModification( operation, attribute ) );
+            }
+
+            return modifications;
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapException( "Cannot decode the modifications : " + ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Creates the control flagging an entry sent as a delta, its value being the encoded modifications
+     *
+     * @param codec The LDAP codec
+     * @param modifications The modifications
+     * @return The delta control
+     */
+    public static Control createDeltaControl( LdapApiService codec, List<Modification> modifications )
+    {
+        CodecControl<? extends Control> control = codec.newControl( new OpaqueControl( DELTA_CONTROL_OID ) );
+        control.setValue( encodeModifications( modifications ) );
+
+        return control;
+    }
+
+
+    /**
+     * Reads the modifications carried by a delta control
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param control The delta control
+     * @return The modifications
+     * @throws LdapException If the control has no value, or if it can't be decoded
+     */
+    public static List<Modification> getModifications( SchemaManager schemaManager, Control control )
+        throws LdapException
+    {
+        byte[] value = null;
+
+        if ( control instanceof CodecControl )
+        {
+            value = ( ( CodecControl<?> ) control ).getValue();
+        }
+
+        if ( value == null )
+        {
+            throw new LdapProtocolErrorException( "The delta control does not contain the modifications" );
+        }
+
+        return decodeModifications( schemaManager, value );
+    }
+
+
+    /**
+     * Writes the values of an attribute
+     */
+    static void writeValues( DataOutputStream out, Attribute attribute ) throws IOException
+    {
+        out.writeInt( attribute.size() );
+
+        for ( Value value : attribute )
+        {
+            out.writeBoolean( value.isHumanReadable() );
+
+            if ( value.isHumanReadable() )
+            {
+                writeBytes( out, Strings.getBytesUtf8( value.getValue() ) );
+            }
+            else
+            {
+                writeBytes( out, value.getBytes() );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the values written by {@link #writeValues(DataOutputStream, Attribute)}
+     */
+    static Attribute readValues( DataInputStream in, AttributeType attributeType ) throws IOException, LdapException
+    {
+        Attribute attribute = new DefaultAttribute( attributeType );
+        int nbValues = in.readInt();
+
+        for ( int i = 0; i < nbValues; i++ )
+        {
+            if ( in.readBoolean() )
+            {
+                attribute.add( Strings.utf8ToString( readBytes( in ) ) );
+            }
+            else
+            {
+                attribute.add( readBytes( in ) );
+            }
+        }
+
+        return attribute;
+    }
+
+
+    static void writeBytes( DataOutputStream out, byte[] bytes ) throws IOException
+    {
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    static byte[] readBytes( DataInputStream in ) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully( bytes );
+
+        return bytes;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
@@ -22,18 +22,29 @@ package org.apache.directory.server.ldap.replication;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
 
 
 /**
@@ -41,10 +52,38 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * 
  * A modification is serialized following this format : <br/>
  * <ul>
- * <li>byte : EventType</li>
+ * <li>byte : EventType, ORed with 0x40 if the extended informations are present</li>
+ * <li>int : the replica ID the modification comes from, if extended</li>
+ * <li>boolean : true if the previous DN is present, if extended</li>
+ * <li>byte[] : the serialized previous DN, if present</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>int and byte[] : the length and the modifications encoded by
+ * {@link ReplicaEventMessage#encodeModifications(java.util.List)}, if the message is a delta</li>
  * </ul>
+ * The extended flag allows messages stored by the previous versions to be read. The
+ * whole message is written in an ObjectOutputStream. When the message is a delta, the
+ * EventType is also ORed with 0x20.
+ * <br/>
+ * When an {@link AttributeTypeDictionary} is available, a delta is serialized in a more
+ * compact format, without any ObjectOutputStream :
+ * <ul>
+ * <li>byte : EventType, ORed with 0x20, and with 0x40 if the extended informations are present</li>
+ * <li>int : the replica ID the modification comes from, if extended</li>
+ * <li>boolean : true if the previous DN is present, if extended</li>
+ * <li>string : the previous DN, if present</li>
+ * <li>string : the DN</li>
+ * <li>int : the number of attributes (the entryUUID and the entryCSN), then for each attribute :
+ *   <ul>
+ *   <li>int : the AttributeType ID in the dictionary</li>
+ *   <li>int : the number of values, then for each value a boolean telling if it's a String,
+ *   followed by the value</li>
+ *   </ul>
+ * </li>
+ * <li>int : the number of modifications, then for each modification the operation as a byte,
+ * followed by the modified attribute, stored as above</li>
+ * </ul>
+ * The strings and binary values are stored as an int length followed by the bytes.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -56,6 +95,18 @@ public class ReplicaEventMessageSerializer implements Serializer
     /** The schemaManager */
     private transient SchemaManager schemaManager;
 
+    /** The dictionary used to encode the AttributeTypes of the deltas */
+    private transient AttributeTypeDictionary dictionary;
+
+    /** The flag set on the change type when the message has extended informations */
+    private static final byte EXTENDED_FLAG = 0x40;
+
+    /** The flag set on the change type when the message is a delta */
+    private static final byte DELTA_FLAG = 0x20;
+
+    /** The first byte of a message written in an ObjectOutputStream (the stream magic number) */
+    private static final byte OBJECT_STREAM_MAGIC = ( byte ) 0xAC;
+
 
     /**
      * Creates a new instance of ReplicaEventMessageSerializer.
@@ -63,8 +114,21 @@ public class ReplicaEventMessageSerializer implements Serializer
      * @param schemaManager The reference to the global schemaManager
      */
     public ReplicaEventMessageSerializer( SchemaManager schemaManager )
+    {
+        this( schemaManager, null );
+    }
+
+
+    /**
+     * Creates a new instance of ReplicaEventMessageSerializer, storing the deltas in the compact format.
+     *
+     * @param schemaManager The reference to the global schemaManager
+     * @param dictionary The AttributeType dictionary
+     */
+    public ReplicaEventMessageSerializer( SchemaManager schemaManager, AttributeTypeDictionary dictionary )
     {
         this.schemaManager = schemaManager;
+        this.dictionary = dictionary;
     }
 
 
@@ -75,6 +139,11 @@ public class ReplicaEventMessageSerializer implements Serializer
     {
         ReplicaEventMessage replicaEventMessage = ( ReplicaEventMessage ) object;
 
+        if ( replicaEventMessage.isDelta() && isRegistered( replicaEventMessage ) )
+        {
+            return serializeDelta( replicaEventMessage );
+        }
+
         Entry entry = replicaEventMessage.getEntry();
         ChangeType changeType = replicaEventMessage.getChangeType();
 
@@ -83,7 +152,30 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
 
             // The change type first
-            out.writeByte( changeType.getValue() );
+            Dn previousDn = replicaEventMessage.getPreviousDn();
+            int replicaId = replicaEventMessage.getReplicaId();
+            int type = changeType.getValue();
+
+            if ( replicaEventMessage.isDelta() )
+            {
+                type |= DELTA_FLAG;
+            }
+
+            if ( ( previousDn == null ) && ( replicaId == ReplicaEventMessage.NO_REPLICA_ID ) )
+            {
+                out.writeByte( type );
+            }
+            else
+            {
+                out.writeByte( type | EXTENDED_FLAG );
+                out.writeInt( replicaId );
+                out.writeBoolean( previousDn != null );
+
+                if ( previousDn != null )
+                {
+                    previousDn.writeExternal( out );
+                }
+            }
 
             // The entry DN
             entry.getDn().writeExternal( out );
@@ -91,6 +183,102 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            if ( replicaEventMessage.isDelta() )
+            {
+                byte[] modifications = ReplicaEventMessage.encodeModifications(
+                    replicaEventMessage.getModifications() );
+                out.writeInt( modifications.length );
+                out.write( modifications );
+            }
+
+            out.flush();
+
+            return baos.toByteArray();
+        }
+    }
+
+
+    /**
+     * Tells if all the AttributeTypes of the entry and of the modifications are present in the dictionary
+     */
+    private boolean isRegistered( ReplicaEventMessage replicaEventMessage )
+    {
+        if ( dictionary == null )
+        {
+            return false;
+        }
+
+        for ( Attribute attribute : replicaEventMessage.getEntry() )
+        {
+            if ( dictionary.getId( attribute.getAttributeType() ) < 0 )
+            {
+                return false;
+            }
+        }
+
+        for ( Modification modification : replicaEventMessage.getModifications() )
+        {
+            if ( dictionary.getId( modification.getAttribute().getAttributeType() ) < 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Serializes a delta in the compact format
+     */
+    private byte[] serializeDelta( ReplicaEventMessage replicaEventMessage ) throws IOException
+    {
+        Entry entry = replicaEventMessage.getEntry();
+
+        try ( ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( baos ) )
+        {
+            Dn previousDn = replicaEventMessage.getPreviousDn();
+            int replicaId = replicaEventMessage.getReplicaId();
+            int type = replicaEventMessage.getChangeType().getValue() | DELTA_FLAG;
+
+            if ( ( previousDn == null ) && ( replicaId == ReplicaEventMessage.NO_REPLICA_ID ) )
+            {
+                out.writeByte( type );
+            }
+            else
+            {
+                out.writeByte( type | EXTENDED_FLAG );
+                out.writeInt( replicaId );
+                out.writeBoolean( previousDn != null );
+
+                if ( previousDn != null )
+                {
+                    ReplicaEventMessage.writeBytes( out, Strings.getBytesUtf8( previousDn.getName() ) );
+                }
+            }
+
+            ReplicaEventMessage.writeBytes( out, Strings.getBytesUtf8( entry.getDn().getName() ) );
+            out.writeInt( entry.size() );
+
+            for ( Attribute attribute : entry )
+            {
+                out.writeInt( dictionary.getId( attribute.getAttributeType() ) );
+                ReplicaEventMessage.writeValues( out, attribute );
+            }
+
+            List<Modification> modifications = replicaEventMessage.getModifications();
+            out.writeInt( modifications.size() );
+
+            for ( Modification modification : modifications )
+            {
+                Attribute attribute = modification.getAttribute();
+
+                out.writeByte( modification.getOperation().getValue() );
+                out.writeInt( dictionary.getId( attribute.getAttributeType() ) );
+                ReplicaEventMessage.writeValues( out, attribute );
+            }
+
             out.flush();
 
             return baos.toByteArray();
@@ -107,6 +295,11 @@ public class ReplicaEventMessageSerializer implements Serializer
      */
     public Object deserialize( byte[] bytes ) throws IOException
     {
+        if ( ( bytes.length > 0 ) && ( bytes[0] != OBJECT_STREAM_MAGIC ) )
+        {
+            return deserializeDelta( bytes );
+        }
+
         ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
 
         ReplicaEventMessage replicaEventMessage = null;
@@ -115,7 +308,20 @@ public class ReplicaEventMessageSerializer implements Serializer
         {
             // The changeType
             byte type = in.readByte();
-            ChangeType changeType = ChangeType.getChangeType( type );
+            ChangeType changeType = ChangeType.getChangeType( type & ~( EXTENDED_FLAG | DELTA_FLAG ) );
+            int replicaId = ReplicaEventMessage.NO_REPLICA_ID;
+            Dn previousDn = null;
+
+            if ( ( type & EXTENDED_FLAG ) != 0 )
+            {
+                replicaId = in.readInt();
+
+                if ( in.readBoolean() )
+                {
+                    previousDn = new Dn( schemaManager );
+                    previousDn.readExternal( in );
+                }
+            }
 
             // The Entry's DN
             Dn entryDn = new Dn( schemaManager );
@@ -125,15 +331,95 @@ public class ReplicaEventMessageSerializer implements Serializer
             Entry entry = new DefaultEntry( schemaManager );
             entry.readExternal( in );
             entry.setDn( entryDn );
+            List<Modification> modifications = null;
+
+            if ( ( type & DELTA_FLAG ) != 0 )
+            {
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully( encoded );
+                modifications = ReplicaEventMessage.decodeModifications( schemaManager, encoded );
+            }
 
             // And create a ReplicaEventMessage
             replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage.setReplicaId( replicaId );
+            replicaEventMessage.setPreviousDn( previousDn );
+            replicaEventMessage.setDelta( ( type & DELTA_FLAG ) != 0 );
+            replicaEventMessage.setModifications( modifications );
         }
         catch ( ClassNotFoundException cnfe )
         {
             // there is nothing we can do here...
         }
+        catch ( LdapException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
 
         return replicaEventMessage;
     }
+
+
+    /**
+     * Deserializes a delta stored in the compact format
+     */
+    private ReplicaEventMessage deserializeDelta( byte[] bytes ) throws IOException
+    {
+        if ( dictionary == null )
+        {
+            throw new IOException( "Cannot read a delta without an AttributeType dictionary" );
+        }
+
+        try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            byte type = in.readByte();
+            ChangeType changeType = ChangeType.getChangeType( type & ~( EXTENDED_FLAG | DELTA_FLAG ) );
+            int replicaId = ReplicaEventMessage.NO_REPLICA_ID;
+            Dn previousDn = null;
+
+            if ( ( type & EXTENDED_FLAG ) != 0 )
+            {
+                replicaId = in.readInt();
+
+                if ( in.readBoolean() )
+                {
+                    previousDn = new Dn( schemaManager, Strings.utf8ToString( ReplicaEventMessage.readBytes( in ) ) );
+                }
+            }
+
+            Dn entryDn = new Dn( schemaManager, Strings.utf8ToString( ReplicaEventMessage.readBytes( in ) ) );
+            Entry entry = new DefaultEntry( schemaManager, entryDn );
+            int nbAttributes = in.readInt();
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                AttributeType attributeType = dictionary.getAttributeType( in.readInt() );
+                entry.put( ReplicaEventMessage.readValues( in, attributeType ) );
+            }
+
+            int nbModifications = in.readInt();
+            List<Modification> modifications = new ArrayList<Modification>( nbModifications );
+
+            for ( int i = 0; i < nbModifications; i++ )
+            {
+                ModificationOperation operation = ModificationOperation.getOperation( in.readByte() );
+                AttributeType attributeType = dictionary.getAttributeType( in.readInt() );
+
+                modifications.add( new DefaultModification( operation,
+                    ReplicaEventMessage.readValues( in, attributeType ) ) );
+            }
+
+            ReplicaEventMessage replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage.setReplicaId( replicaId );
+            replicaEventMessage.setPreviousDn( previousDn );
+            replicaEventMessage.setDelta( true );
+            replicaEventMessage.setModifications( modifications );
+
+            return replicaEventMessage;
+        }
+        catch ( LdapException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+    }
 }
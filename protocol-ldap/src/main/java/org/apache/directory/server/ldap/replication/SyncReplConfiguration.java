@@ -65,6 +65,9 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  */
 public class SyncReplConfiguration implements ReplicationConsumerConfig
 {
+    /** The OID of the control used by a consumer to ask for a parallel initial refresh */
+    public static final String PARALLEL_REFRESH_CONTROL_OID = "1.3.6.1.4.1.18060.0.0.11";
+
     /** host name of the syncrepl remote server, default value is localhost */
     private String remoteHost;
 
@@ -133,6 +136,21 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** The number of received entries applied in a single transaction, default is 1 (no batching) */
+    private int applyBatchSize = 1;
+
+    /** The number of threads used to apply the changes done on disjoint subtrees, default is 1 */
+    private int applyThreads = 1;
+
+    /** flag to indicate if the consumer asks for the modifications to be sent as deltas, default is true */
+    private boolean deltaReplication = true;
+
+    /** flag to indicate if the consumer asks for the initial content to be sent over parallel streams, default is false */
+    private boolean parallelRefresh = false;
+
+    /** flag to indicate if a consumer without cookie starts from a snapshot of the provider's partition, default is false */
+    private boolean snapshotBootstrap = false;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -580,6 +598,115 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of received entries applied in a single transaction
+     */
+    public int getApplyBatchSize()
+    {
+        return applyBatchSize;
+    }
+
+
+    /**
+     * Sets the number of received entries applied in a single transaction, with the
+     * cookie stored once per batch. A value of 1 applies and commits each entry on its own.
+     *
+     * @param applyBatchSize the number of entries in a batch
+     */
+    public void setApplyBatchSize( int applyBatchSize )
+    {
+        this.applyBatchSize = Math.max( 1, applyBatchSize );
+    }
+
+
+    /**
+     * @return the number of threads used to apply a batch
+     */
+    public int getApplyThreads()
+    {
+        return applyThreads;
+    }
+
+
+    /**
+     * Sets the number of threads used to apply a batch. When greater than 1, the changes
+     * done on disjoint subtrees of the base are applied in parallel, the changes done on
+     * the same subtree being applied in the order they have been received.
+     *
+     * @param applyThreads the number of threads
+     */
+    public void setApplyThreads( int applyThreads )
+    {
+        this.applyThreads = Math.max( 1, applyThreads );
+    }
+
+
+    /**
+     * @return true if the consumer asks for the modifications to be sent as deltas
+     */
+    public boolean isDeltaReplication()
+    {
+        return deltaReplication;
+    }
+
+
+    /**
+     * Tells the consumer to ask for the modifications to be sent as deltas, containing only
+     * the modified attributes. A provider which does not support it sends the whole entries.
+     *
+     * @param deltaReplication true to ask for deltas
+     */
+    public void setDeltaReplication( boolean deltaReplication )
+    {
+        this.deltaReplication = deltaReplication;
+    }
+
+
+    /**
+     * @return true if the consumer asks for the initial content to be sent over parallel streams
+     */
+    public boolean isParallelRefresh()
+    {
+        return parallelRefresh;
+    }
+
+
+    /**
+     * Tells the consumer to ask the provider to send the initial content over parallel streams,
+     * each of them containing disjoint subtrees. The entries are then best applied using
+     * several threads, see {@link #setApplyThreads(int)}.
+     *
+     * @param parallelRefresh true to ask for a parallel initial refresh
+     */
+    public void setParallelRefresh( boolean parallelRefresh )
+    {
+        this.parallelRefresh = parallelRefresh;
+    }
+
+
+    /**
+     * @return true if a consumer without cookie starts from a snapshot of the provider's partition
+     */
+    public boolean isSnapshotBootstrap()
+    {
+        return snapshotBootstrap;
+    }
+
+
+    /**
+     * Tells the consumer to replace its partition by a copy of the provider's partition files
+     * when it has no cookie, instead of fetching all the entries. The base must be the suffix
+     * of a file based partition on both servers, and all the entries and attributes have to be
+     * replicated.
+     *
+     * @param snapshotBootstrap true to bootstrap the consumer from a snapshot
+     */
+    public void setSnapshotBootstrap( boolean snapshotBootstrap )
+    {
+        this.snapshotBootstrap = snapshotBootstrap;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -633,6 +760,11 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
             sb.append( "MS, " );
         }
 
+        if ( applyBatchSize > 1 )
+        {
+            sb.append( "batch:" ).append( applyBatchSize ).append( "/" ).append( applyThreads ).append( ", " );
+        }
+
         sb.append( "provider:" ).append( producer ).append( ", " );
         sb.append( "user:'" ).append( replUserDn ).append( "', " );
 
@@ -0,0 +1,272 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A compact set of entryUUIDs, used to accumulate the UUIDs of the entries present on the
+ * provider during a refresh present phase. Each UUID is stored as two longs in a single
+ * array (16 bytes per UUID), which is sorted once all the UUIDs have been added, so that
+ * the lookups can be done using a binary search.
+ * <br/>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PresentUuidSet
+{
+    /** The initial number of UUIDs we can store */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Under this size, we use an insertion sort */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /** The UUIDs, stored as the most significant bits followed by the least significant bits */
+    private long[] uuids = new long[INITIAL_CAPACITY * 2];
+
+    /** The number of UUIDs stored */
+    private int size;
+
+    /** Tells if the UUIDs are sorted */
+    private boolean sorted = true;
+
+
+    /**
+     * Adds a UUID, as sent in a syncIdSet or a SyncStateValue control.
+     *
+     * @param uuid The 16 bytes UUID
+     */
+    public void add( byte[] uuid )
+    {
+        long msb = 0L;
+        long lsb = 0L;
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            msb = ( msb << 8 ) | ( uuid[i] & 0xFF );
+        }
+
+        for ( int i = 8; i < 16; i++ )
+        {
+            lsb = ( lsb << 8 ) | ( uuid[i] & 0xFF );
+        }
+
+        add( msb, lsb );
+    }
+
+
+    /**
+     * Adds a UUID
+     *
+     * @param uuid The UUID string, as stored in the entryUUID attribute
+     */
+    public void add( String uuid )
+    {
+        UUID value = UUID.fromString( uuid );
+        add( value.getMostSignificantBits(), value.getLeastSignificantBits() );
+    }
+
+
+    private void add( long msb, long lsb )
+    {
+        if ( size * 2 == uuids.length )
+        {
+            uuids = Arrays.copyOf( uuids, uuids.length * 2 );
+        }
+
+        uuids[size * 2] = msb;
+        uuids[size * 2 + 1] = lsb;
+
+        if ( sorted && ( size > 0 ) && ( compare( size - 1, msb, lsb ) > 0 ) )
+        {
+            sorted = false;
+        }
+
+        size++;
+    }
+
+
+    /**
+     * Tells if the set contains the given UUID
+     *
+     * @param uuid The UUID string, as stored in the entryUUID attribute
+     * @return true if the UUID is present
+     */
+    public boolean contains( String uuid )
+    {
+        if ( Strings.isEmpty( uuid ) )
+        {
+            return false;
+        }
+
+        UUID value = UUID.fromString( uuid );
+
+        return contains( value.getMostSignificantBits(), value.getLeastSignificantBits() );
+    }
+
+
+    private boolean contains( long msb, long lsb )
+    {
+        if ( !sorted )
+        {
+            sort( 0, size - 1 );
+            sorted = true;
+        }
+
+        int low = 0;
+        int high = size - 1;
+
+        while ( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int cmp = compare( mid, msb, lsb );
+
+            if ( cmp < 0 )
+            {
+                low = mid + 1;
+            }
+            else if ( cmp > 0 )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Compares the UUID stored at the given position with the given UUID, as unsigned values
+     */
+    private int compare( int pos, long msb, long lsb )
+    {
+        long posMsb = uuids[pos * 2];
+
+        if ( posMsb != msb )
+        {
+            return ( posMsb + Long.MIN_VALUE ) < ( msb + Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        long posLsb = uuids[pos * 2 + 1];
+
+        if ( posLsb != lsb )
+        {
+            return ( posLsb + Long.MIN_VALUE ) < ( lsb + Long.MIN_VALUE ) ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+
+    private void swap( int i, int j )
+    {
+        long msb = uuids[i * 2];
+        long lsb = uuids[i * 2 + 1];
+        uuids[i * 2] = uuids[j * 2];
+        uuids[i * 2 + 1] = uuids[j * 2 + 1];
+        uuids[j * 2] = msb;
+        uuids[j * 2 + 1] = lsb;
+    }
+
+
+    /**
+     * Sorts the UUIDs between the two given positions, inclusive. The UUIDs are random, a
+     * quicksort using the middle element as a pivot is good enough.
+     */
+    private void sort( int low, int high )
+    {
+        while ( high - low > INSERTION_SORT_THRESHOLD )
+        {
+            int mid = ( low + high ) >>> 1;
+            long pivotMsb = uuids[mid * 2];
+            long pivotLsb = uuids[mid * 2 + 1];
+            int i = low;
+            int j = high;
+
+            while ( i <= j )
+            {
+                while ( compare( i, pivotMsb, pivotLsb ) < 0 )
+                {
+                    i++;
+                }
+
+                while ( compare( j, pivotMsb, pivotLsb ) > 0 )
+                {
+                    j--;
+                }
+
+                if ( i <= j )
+                {
+                    swap( i, j );
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recurse on the smallest part, to limit the stack depth
+            if ( j - low < high - i )
+            {
+                sort( low, j );
+                low = i;
+            }
+            else
+            {
+                sort( i, high );
+                high = j;
+            }
+        }
+
+        for ( int i = low + 1; i <= high; i++ )
+        {
+            for ( int j = i; ( j > low ) && ( compare( j - 1, uuids[j * 2], uuids[j * 2 + 1] ) > 0 ); j-- )
+            {
+                swap( j, j - 1 );
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of UUIDs stored
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return true if there is no UUID stored
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+}
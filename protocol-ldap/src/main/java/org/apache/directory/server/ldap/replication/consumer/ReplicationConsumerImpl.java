@@ -20,13 +20,29 @@
 package org.apache.directory.server.ldap.replication.consumer;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.collections.map.LRUMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
 import org.apache.directory.api.ldap.codec.controls.manageDsaIT.ManageDsaITDecorator;
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
@@ -50,13 +66,14 @@ import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
-import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.NotNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedResponse;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -67,6 +84,7 @@ import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaITImpl;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.message.controls.SortRequestControlImpl;
@@ -74,10 +92,12 @@ import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.FileUtils;
 import org.apache.directory.api.util.StringConstants;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.ldap.client.api.ConnectionClosedEventListener;
 import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.ldap.client.api.future.ExtendedFuture;
 import org.apache.directory.ldap.client.api.future.SearchFuture;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CoreSession;
@@ -92,9 +112,19 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmDnIndex;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmRdnIndex;
+import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.handlers.extended.ReplicaSnapshotHandler;
+import org.apache.directory.server.ldap.replication.RateMeter;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.Store;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -164,7 +194,56 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     private AttributeType adsReplCookieAT;
     private AttributeType adsDsReplicaIdAT;
 
-    private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
+    /** The number of locks used to serialize the updates done on an entry, a power of 2 */
+    private static final int NB_UUID_LOCKS = 256;
+
+    /**
+     * The locks serializing the updates done on an entry when many consumers replicate the
+     * same partition. The lock is selected using the entryUUID hash, so the updates done on
+     * unrelated entries are very unlikely to wait for each other.
+     */
+    private static final Object[] UUID_LOCKS = new Object[NB_UUID_LOCKS];
+
+    static
+    {
+        for ( int i = 0; i < NB_UUID_LOCKS; i++ )
+        {
+            UUID_LOCKS[i] = new Object();
+        }
+    }
+
+    /** The number of entries deleted at once at the end of a refresh present phase */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    /** The rate of the entries applied by the consumer */
+    private final RateMeter applyRate = new RateMeter();
+
+    /** The time it took to apply the last batch, in milliseconds */
+    private volatile long lastBatchLatency;
+
+    /** The time spent applying all the batches, in milliseconds */
+    private final AtomicLong totalBatchLatency = new AtomicLong();
+
+    /** The number of applied batches */
+    private final AtomicLong nbBatches = new AtomicLong();
+
+    /** The CSN of the last applied entry */
+    private volatile String lastAppliedCsn;
+
+    /** The UUIDs of the entries present on the provider, collected during the refresh phase */
+    private PresentUuidSet presentUuids;
+
+    /** Tells if the provider has sent a present syncIdSet during the refresh phase */
+    private boolean presentPhase;
+
+    /** The time we wait for the next entry before applying an incomplete batch, in milliseconds */
+    private static final long BATCH_FLUSH_DELAY = 50L;
+
+    /** The received entries which have not been applied yet, when the entries are applied in batches */
+    private List<SearchResultEntry> pendingEntries;
+
+    /** The executor applying the changes done on disjoint subtrees in parallel */
+    private ExecutorService applyExecutor;
 
 
     /**
@@ -184,7 +263,9 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         this.directoryService = directoryservice;
 
-        session = directoryService.getAdminSession();
+        // The batches are applied in a transaction held by the session, so the consumer
+        // must not share the admin session with the rest of the server
+        session = directoryService.getSession( directoryService.getAdminSession().getAuthenticatedPrincipal() );
 
         schemaManager = directoryservice.getSchemaManager();
 
@@ -198,6 +279,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         ridMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, ridAttr );
 
         prepareSyncSearchRequest();
+
+        if ( config.getApplyBatchSize() > 1 )
+        {
+            pendingEntries = new ArrayList<SearchResultEntry>( config.getApplyBatchSize() );
+
+            if ( config.getApplyThreads() > 1 )
+            {
+                applyExecutor = Executors.newFixedThreadPool( config.getApplyThreads() );
+            }
+        }
     }
 
 
@@ -298,6 +389,18 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 new ManageDsaITImpl() ) );
         }
 
+        if ( config.isDeltaReplication() )
+        {
+            // Ask the provider to only send the modified attributes
+            searchRequest.addControl( new OpaqueControl( ReplicaEventMessage.DELTA_CONTROL_OID ) );
+        }
+
+        if ( config.isParallelRefresh() )
+        {
+            // The provider only uses it when it has to send the whole content
+            searchRequest.addControl( new OpaqueControl( SyncReplConfiguration.PARALLEL_REFRESH_CONTROL_OID ) );
+        }
+
         if ( CONSUMER_LOG.isDebugEnabled() )
         {
             MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
@@ -312,6 +415,34 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         SyncDoneValue ctrl = ( SyncDoneValue ) searchDone.getControls().get( SyncDoneValue.OID );
 
+        if ( !applyPendingEntries() )
+        {
+            // The batch has been aborted, we don't go any further
+            return ResultCodeEnum.OTHER;
+        }
+
+        if ( searchDone.getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS )
+        {
+            try
+            {
+                int replicaId = -1;
+
+                if ( ( ctrl != null ) && ( ctrl.getCookie() != null ) )
+                {
+                    replicaId = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( ctrl.getCookie() ) );
+                }
+
+                endRefreshPhase( replicaId );
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( "Failed to delete the entries not present on the provider", e );
+            }
+        }
+
+        presentUuids = null;
+        presentPhase = false;
+
         if ( ( ctrl != null ) && ( ctrl.getCookie() != null ) )
         {
             syncCookie = ctrl.getCookie();
@@ -335,138 +466,504 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * Process a SearchResultEntry received from a consumer. We have to handle all the
+     * Process a SearchResultEntry received from a consumer. The entry is applied immediately,
+     * or added to the current batch if the entries are applied in batches.
+     *
+     * @param syncResult The received entry
+     */
+    private void handleSearchResultEntry( SearchResultEntry syncResult )
+    {
+        CONSUMER_LOG.debug( "------------- starting handleSearchResult ------------" );
+
+        SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+
+        // All the entries received during the refresh phase are present on the provider
+        if ( ( presentUuids != null ) && ( syncStateCtrl.getSyncStateType() != SyncStateTypeEnum.DELETE ) )
+        {
+            presentUuids.add( syncStateCtrl.getEntryUUID() );
+        }
+
+        if ( pendingEntries == null )
+        {
+            if ( syncStateCtrl.getCookie() != null )
+            {
+                syncCookie = syncStateCtrl.getCookie();
+                CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
+                    Strings.utf8ToString( syncCookie ) );
+            }
+
+            // store the cookie only if the operation was successful
+            try
+            {
+                applySearchResultEntry( syncResult, true );
+
+                if ( syncStateCtrl.getCookie() != null )
+                {
+                    storeCookie();
+                }
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( e.getMessage(), e );
+            }
+        }
+        else
+        {
+            pendingEntries.add( syncResult );
+
+            if ( pendingEntries.size() >= config.getApplyBatchSize() )
+            {
+                applyPendingEntries();
+            }
+        }
+
+        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+    }
+
+
+    /**
+     * Apply a SearchResultEntry received from a consumer. We have to handle all the
      * cases :
      * - Add
      * - Modify
      * - Moddn
      * - Delete
      * - Present
-     * @param syncResult
+     *
+     * @param syncResult The received entry
+     * @param lockEntry Tells if we have to lock the entry UUID. It's not necessary when the
+     * OperationManager write lock is already held
+     * @throws Exception If the entry can't be applied
      */
-    private void handleSearchResultEntry( SearchResultEntry syncResult )
+    private void applySearchResultEntry( SearchResultEntry syncResult, boolean lockEntry ) throws Exception
     {
-        CONSUMER_LOG.debug( "------------- starting handleSearchResult ------------" );
-
         SyncStateValue syncStateCtrl = ( SyncStateValue ) syncResult.getControl( SyncStateValue.OID );
+        Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
 
-        try
+        Control deltaControl = syncResult.getControl( ReplicaEventMessage.DELTA_CONTROL_OID );
+        List<Modification> delta = null;
+
+        if ( deltaControl != null )
         {
-            Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
-            String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
-            // lock on UUID to serialize the updates when there are multiple consumers
-            // connected to several producers and to the *same* base/partition
-            Object lock = getLockFor( uuid );
+            // The entry only contains the DN, entryUUID and entryCSN, the control the modifications
+            delta = ReplicaEventMessage.getModifications( schemaManager, deltaControl );
+        }
 
-            synchronized ( lock )
-            {
-                int rid = -1;
+        if ( !lockEntry )
+        {
+            applySearchResultEntry( remoteEntry, syncStateCtrl, delta );
 
-                if ( syncStateCtrl.getCookie() != null )
+            return;
+        }
+
+        String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
+        // lock on UUID to serialize the updates when there are multiple consumers
+        // connected to several producers and to the *same* base/partition
+        Object lock = getLockFor( uuid );
+
+        synchronized ( lock )
+        {
+            applySearchResultEntry( remoteEntry, syncStateCtrl, delta );
+        }
+    }
+
+
+    private void applySearchResultEntry( Entry remoteEntry, SyncStateValue syncStateCtrl, List<Modification> delta )
+        throws Exception
+    {
+        int rid = -1;
+
+        if ( syncStateCtrl.getCookie() != null )
+        {
+            rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncStateCtrl.getCookie() ) );
+        }
+
+        SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+
+        // check to avoid conversion of UUID from byte[] to String
+        if ( CONSUMER_LOG.isDebugEnabled() )
+        {
+            CONSUMER_LOG.debug( "state name {}", state.name() );
+            CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
+        }
+
+        Dn remoteDn = remoteEntry.getDn();
+
+        switch ( state )
+        {
+            case ADD:
+                boolean remoteDnExist = false;
+
+                try
                 {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
-                    CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
+                    remoteDnExist = session.exists( remoteDn );
+                }
+                catch ( LdapNoSuchObjectException lnsoe )
+                {
+                    CONSUMER_LOG.error( lnsoe.getMessage() );
                 }
 
-                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+                if ( !remoteDnExist )
+                {
+                    CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
+                    CONSUMER_LOG.debug( remoteEntry.toString() );
+                    AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+                    addContext.setReplEvent( true );
+                    addContext.setRid( rid );
+
+                    OperationManager operationManager = directoryService.getOperationManager();
+                    operationManager.add( addContext );
+                }
+                else
+                {
+                    CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
+                    modify( remoteEntry, rid );
+                }
 
-                // check to avoid conversion of UUID from byte[] to String
-                if ( CONSUMER_LOG.isDebugEnabled() )
+                break;
+
+            case MODIFY:
+                CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+
+                if ( delta != null )
+                {
+                    modifyDelta( remoteEntry, delta, rid );
+                }
+                else
                 {
-                    CONSUMER_LOG.debug( "state name {}", state.name() );
-                    CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
+                    modify( remoteEntry, rid );
                 }
 
-                Dn remoteDn = remoteEntry.getDn();
+                break;
+
+            case MODDN:
+                String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() ).toString();
+                applyModDnOperation( remoteEntry, entryUuid, rid );
+
+                break;
 
-                switch ( state )
+            case DELETE:
+                CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
+
+                if ( !session.exists( remoteDn ) )
                 {
-                    case ADD:
-                        boolean remoteDnExist = false;
+                    CONSUMER_LOG
+                        .debug(
+                            "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
+                            remoteDn );
+                }
+                else
+                {
+                    // incase of a MODDN operation resulting in a branch to be moved out of scope
+                    // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
+                    // so the branch needs to be recursively deleted here
+                    deleteRecursive( remoteEntry.getDn(), rid );
+                }
 
-                        try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
+                break;
 
-                        if ( !remoteDnExist )
-                        {
-                            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
-                            CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
-                            addContext.setReplEvent( true );
-                            addContext.setRid( rid );
-
-                            OperationManager operationManager = directoryService.getOperationManager();
-                            operationManager.add( addContext );
-                        }
-                        else
-                        {
-                            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
-                            modify( remoteEntry, rid );
-                        }
+            case PRESENT:
+                CONSUMER_LOG.debug( "entry present {}", remoteEntry );
+                break;
 
-                        break;
+            default:
+                throw new IllegalArgumentException( "Unexpected sync state " + state );
+        }
 
-                    case MODIFY:
-                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
-                        modify( remoteEntry, rid );
+        if ( state != SyncStateTypeEnum.PRESENT )
+        {
+            applyRate.mark( 1L );
+            Attribute csnAttr = remoteEntry.get( SchemaConstants.ENTRY_CSN_AT );
 
-                        break;
+            if ( csnAttr != null )
+            {
+                lastAppliedCsn = csnAttr.getString();
+            }
+        }
+    }
 
-                    case MODDN:
-                        String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() ).toString();
-                        applyModDnOperation( remoteEntry, entryUuid, rid );
 
-                        break;
+    /**
+     * Applies the entries of the current batch, and stores the cookie of the last one. The
+     * entries are applied in a single transaction, or in parallel if more than one thread
+     * has been configured.
+     *
+     * @return false if the batch has been aborted, and the consumer disconnected
+     */
+    private boolean applyPendingEntries()
+    {
+        if ( ( pendingEntries == null ) || pendingEntries.isEmpty() )
+        {
+            return true;
+        }
 
-                    case DELETE:
-                        CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
+        List<SearchResultEntry> batch = pendingEntries;
+        pendingEntries = new ArrayList<SearchResultEntry>( config.getApplyBatchSize() );
 
-                        if ( !session.exists( remoteDn ) )
-                        {
-                            CONSUMER_LOG
-                                .debug(
-                                    "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
-                                    remoteDn );
-                        }
-                        else
-                        {
-                            // incase of a MODDN operation resulting in a branch to be moved out of scope
-                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
-                            // so the branch needs to be recursively deleted here
-                            deleteRecursive( remoteEntry.getDn(), rid );
-                        }
+        byte[] batchCookie = null;
 
-                        break;
+        for ( SearchResultEntry entry : batch )
+        {
+            SyncStateValue syncStateCtrl = ( SyncStateValue ) entry.getControl( SyncStateValue.OID );
 
-                    case PRESENT:
-                        CONSUMER_LOG.debug( "entry present {}", remoteEntry );
-                        break;
+            if ( syncStateCtrl.getCookie() != null )
+            {
+                batchCookie = syncStateCtrl.getCookie();
+            }
+        }
 
-                    default:
-                        throw new IllegalArgumentException( "Unexpected sync state " + state );
-                }
+        CONSUMER_LOG.debug( "applying a batch of {} entries", batch.size() );
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            return applyBatch( batch, batchCookie );
+        }
+        finally
+        {
+            long latency = System.currentTimeMillis() - start;
+            lastBatchLatency = latency;
+            totalBatchLatency.addAndGet( latency );
+            nbBatches.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Applies a batch, in parallel or in a single transaction. If an entry can't be applied,
+     * the batch is aborted : the cookie is left where it was, and the consumer disconnects, so
+     * that the entries are sent again by the provider.
+     *
+     * @param batch The entries to apply
+     * @param batchCookie The cookie of the last entry of the batch, if any
+     * @return false if the batch has been aborted
+     */
+    /* no qualifier */boolean applyBatch( List<SearchResultEntry> batch, byte[] batchCookie )
+    {
+        byte[] previousCookie = syncCookie;
+
+        try
+        {
+            if ( applyExecutor != null )
+            {
+                applyInParallel( batch );
+
+                if ( batchCookie != null )
                 {
+                    syncCookie = batchCookie;
                     storeCookie();
                 }
             }
+            else
+            {
+                applyInTransaction( batch, batchCookie );
+            }
+
+            return true;
         }
         catch ( Exception e )
         {
-            CONSUMER_LOG.error( e.getMessage(), e );
+            // The batch is lost : restart from the cookie of the last applied batch
+            CONSUMER_LOG.error( "Failed to apply a batch of {} entries received from {}", batch.size(),
+                config.getProducer(), e );
+
+            syncCookie = previousCookie;
+            lastSavedCookie = null;
+            disconnect();
+
+            return false;
         }
+    }
 
-        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+
+    /**
+     * Applies a batch in a single transaction, the cookie being stored in the same transaction.
+     * When the partition can't roll back a transaction, the entries are applied one after the
+     * other, and the cookie is only stored when they all have been applied.
+     */
+    private void applyInTransaction( List<SearchResultEntry> batch, byte[] batchCookie ) throws Exception
+    {
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        // Hold the write lock, so that no other update can be interleaved with the batch ones
+        operationManager.lockWrite();
+
+        try
+        {
+            Partition partition = directoryService.getPartitionNexus().getPartition(
+                new Dn( schemaManager, config.getBaseDn() ) );
+
+            if ( !partition.isRollbackSupported() )
+            {
+                for ( SearchResultEntry entry : batch )
+                {
+                    applySearchResultEntry( entry, false );
+                }
+
+                if ( batchCookie != null )
+                {
+                    syncCookie = batchCookie;
+                    storeCookie();
+                }
+
+                return;
+            }
+
+            session.beginSessionTransaction();
+            boolean committed = false;
+
+            try
+            {
+                for ( SearchResultEntry entry : batch )
+                {
+                    applySearchResultEntry( entry, false );
+                }
+
+                if ( batchCookie != null )
+                {
+                    syncCookie = batchCookie;
+                    storeCookie();
+                }
+
+                session.endSessionTransaction( true );
+                committed = true;
+            }
+            finally
+            {
+                if ( !committed )
+                {
+                    try
+                    {
+                        session.endSessionTransaction( false );
+                    }
+                    catch ( IOException ioe )
+                    {
+                        CONSUMER_LOG.error( "Failed to abort the batch transaction", ioe );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            operationManager.unlockWrite();
+        }
+    }
+
+
+    /**
+     * Applies the entries of a batch in parallel. The entries are grouped by the subtree
+     * directly below the base they belong to, each group being applied in order by one
+     * thread. The entries which may impact more than one subtree (renames, deletions and
+     * updates of the base itself) are barriers : the groups built before them are applied
+     * first, then they are applied on their own.
+     *
+     * @throws Exception If an entry can't be applied. The entries of the other groups may
+     * have been applied.
+     */
+    private void applyInParallel( List<SearchResultEntry> batch ) throws Exception
+    {
+        Map<String, List<SearchResultEntry>> groups = new LinkedHashMap<String, List<SearchResultEntry>>();
+        Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+
+        for ( SearchResultEntry entry : batch )
+        {
+            SyncStateTypeEnum state = ( ( SyncStateValue ) entry.getControl( SyncStateValue.OID ) )
+                .getSyncStateType();
+            Dn dn = new Dn( schemaManager, entry.getObjectName().getName() );
+
+            if ( ( state == SyncStateTypeEnum.MODDN ) || ( state == SyncStateTypeEnum.DELETE )
+                || ( dn.size() <= baseDn.size() ) )
+            {
+                applyGroups( groups );
+                applySearchResultEntry( entry, true );
+
+                continue;
+            }
+
+            // The subtree is the ancestor just below the base
+            while ( dn.size() > baseDn.size() + 1 )
+            {
+                dn = dn.getParent();
+            }
+
+            List<SearchResultEntry> group = groups.get( dn.getNormName() );
+
+            if ( group == null )
+            {
+                group = new ArrayList<SearchResultEntry>();
+                groups.put( dn.getNormName(), group );
+            }
+
+            group.add( entry );
+        }
+
+        applyGroups( groups );
+    }
+
+
+    /**
+     * Applies each group of entries in its own thread, and wait for all of them to be done
+     *
+     * @throws Exception The first error met while applying the groups
+     */
+    private void applyGroups( Map<String, List<SearchResultEntry>> groups ) throws Exception
+    {
+        if ( groups.isEmpty() )
+        {
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>( groups.size() );
+
+        for ( final List<SearchResultEntry> group : groups.values() )
+        {
+            Future<Void> future = applyExecutor.submit( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for ( SearchResultEntry entry : group )
+                    {
+                        applySearchResultEntry( entry, true );
+                    }
+
+                    return null;
+                }
+            } );
+
+            futures.add( future );
+        }
+
+        groups.clear();
+        Exception error = null;
+
+        // Wait for all the groups, even when one of them has failed
+        for ( Future<Void> future : futures )
+        {
+            try
+            {
+                future.get();
+            }
+            catch ( ExecutionException ee )
+            {
+                if ( error == null )
+                {
+                    error = ( ee.getCause() instanceof Exception ) ? ( Exception ) ee.getCause() : ee;
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+
+                throw ie;
+            }
+        }
+
+        if ( error != null )
+        {
+            throw error;
+        }
     }
 
 
@@ -479,6 +976,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             CONSUMER_LOG.debug( "............... inside handleSyncInfo ..............." );
 
+            // The entries received before must be applied before the info is processed
+            if ( !applyPendingEntries() )
+            {
+                return;
+            }
+
             byte[] syncInfoBytes = syncInfoResp.getResponseValue();
 
             if ( syncInfoBytes == null )
@@ -517,11 +1020,17 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             // present in the syncIdSet
             if ( syncInfoValue.isRefreshDeletes() )
             {
-                deleteEntries( uuidList, false, replicaId );
+                deleteEntries( uuidList, replicaId );
+            }
+            else if ( ( uuidList != null ) && !uuidList.isEmpty() )
+            {
+                // A refresh present syncIdSet : the provider may send many of them, the entries
+                // which are not present will be deleted once the refresh phase is done
+                addPresentUuids( uuidList );
             }
             else
             {
-                deleteEntries( uuidList, true, replicaId );
+                endRefreshPhase( replicaId );
             }
 
             CONSUMER_LOG.info( "refreshDone: " + syncInfoValue.isRefreshDone() );
@@ -563,6 +1072,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         // read the cookie if persisted
         readCookie();
 
+        if ( ( syncCookie == null ) && config.isSnapshotBootstrap() && !bootstrapFromSnapshot() )
+        {
+            CONSUMER_LOG.warn( "Consumer {} could not be bootstrapped from a snapshot, fetching all the entries",
+                config.getReplicaId() );
+        }
+
         if ( config.isRefreshNPersist() )
         {
             try
@@ -707,6 +1222,11 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             disconnect();
         }
+
+        if ( applyExecutor != null )
+        {
+            applyExecutor.shutdown();
+        }
     }
 
 
@@ -719,6 +1239,71 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * @return true if the consumer is not connected to its provider
+     */
+    public boolean isDisconnected()
+    {
+        return disconnected;
+    }
+
+
+    /**
+     * @return The rate of the entries applied by the consumer
+     */
+    public RateMeter getApplyRate()
+    {
+        return applyRate;
+    }
+
+
+    /**
+     * @return The time it took to apply the last batch of entries, in milliseconds
+     */
+    public long getLastBatchLatency()
+    {
+        return lastBatchLatency;
+    }
+
+
+    /**
+     * @return The average time it takes to apply a batch of entries, in milliseconds
+     */
+    public long getAverageBatchLatency()
+    {
+        long batches = nbBatches.get();
+
+        return ( batches == 0L ) ? 0L : totalBatchLatency.get() / batches;
+    }
+
+
+    /**
+     * @return The CSN of the last entry applied by the consumer, null if none has been applied yet
+     */
+    public String getLastAppliedCsn()
+    {
+        return lastAppliedCsn;
+    }
+
+
+    /**
+     * @return The time elapsed since the last applied entry has been modified on the provider, in
+     * milliseconds, or -1 if none has been applied yet. This is the replication lag as long as the
+     * provider keeps being modified.
+     */
+    public long getCsnLag()
+    {
+        String csn = lastAppliedCsn;
+
+        if ( csn == null )
+        {
+            return -1L;
+        }
+
+        return Math.max( 0L, System.currentTimeMillis() - new Csn( csn ).getTimestamp() );
+    }
+
+
     /**
      * Performs a search on connection with updated syncRequest control. The provider
      * will initiate an UpdateContant or an initContent depending on the current consumer
@@ -757,6 +1342,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         searchRequest.addControl( syncReq );
 
+        // Collect the UUIDs of the entries present on the provider until the refresh phase is done
+        presentUuids = new PresentUuidSet();
+        presentPhase = false;
+
         // Do the search. We use a searchAsync because we want to get SearchResultDone responses
         SearchFuture sf = connection.searchAsync( searchRequest );
 
@@ -784,10 +1373,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             }
 
             // Next entry
-            resp = sf.get();
+            resp = nextResponse( sf );
             CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
         }
 
+        // The entries received before a disconnection are not applied, they will be sent again
+        if ( pendingEntries != null )
+        {
+            pendingEntries.clear();
+        }
+
         if ( sf.isCancelled() )
         {
 
@@ -861,43 +1456,318 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * Disconnect from the producer
+     * Reads the next response. When some entries are waiting to be applied, we don't wait
+     * for the batch to be complete if the provider has nothing more to send.
+     */
+    private Response nextResponse( SearchFuture sf ) throws Exception
+    {
+        if ( ( pendingEntries == null ) || pendingEntries.isEmpty() )
+        {
+            return sf.get();
+        }
+
+        Response resp = sf.get( BATCH_FLUSH_DELAY, TimeUnit.MILLISECONDS );
+
+        if ( resp == null )
+        {
+            applyPendingEntries();
+            resp = sf.get();
+        }
+
+        return resp;
+    }
+
+
+    /**
+     * Disconnect from the producer
+     */
+    private void disconnect()
+    {
+        disconnected = true;
+
+        try
+        {
+            if ( ( connection != null ) && connection.isConnected() )
+            {
+                connection.unBind();
+                CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
+
+                if ( CONSUMER_LOG.isDebugEnabled() )
+                {
+                    MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
+                    CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
+                }
+
+                connection.close();
+                CONSUMER_LOG.info( "Connection closed for the server {}", config.getProducer() );
+
+                connection = null;
+            }
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( "Failed to close the connection", e );
+        }
+        finally
+        {
+            // persist the cookie
+            storeCookie();
+
+            // reset the cookie
+            syncCookie = null;
+        }
+    }
+
+
+    /**
+     * Replace the local partition by a snapshot of the provider's partition, and get the cookie
+     * to use to fetch the modifications done on the provider since the snapshot has started.
+     *
+     * @return true if the partition has been replaced
+     */
+    private boolean bootstrapFromSnapshot()
+    {
+        try
+        {
+            Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+            Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+
+            if ( !( partition instanceof JdbmPartition )
+                || ( ( ( JdbmPartition ) partition ).getPartitionPath() == null )
+                || !partition.getSuffixDn().equals( baseDn ) )
+            {
+                CONSUMER_LOG.warn( "The base {} is not the suffix of a JDBM partition", baseDn );
+
+                return false;
+            }
+
+            JdbmPartition jdbmPartition = ( JdbmPartition ) partition;
+            File partitionDirectory = new File( jdbmPartition.getPartitionPath() );
+            File snapshotDirectory = new File( partitionDirectory.getParentFile(), partition.getId() + "-snapshot" );
+            FileUtils.deleteDirectory( snapshotDirectory );
+
+            CONSUMER_LOG.info( "Fetching a snapshot of {} from {} in {}", baseDn, config.getProducer(),
+                snapshotDirectory );
+
+            byte[] cookie = fetchSnapshot( snapshotDirectory );
+
+            if ( cookie == null )
+            {
+                FileUtils.deleteDirectory( snapshotDirectory );
+
+                return false;
+            }
+
+            installSnapshot( jdbmPartition, partitionDirectory, snapshotDirectory );
+
+            syncCookie = cookie;
+            storeCookie();
+
+            CONSUMER_LOG.info( "Consumer {} bootstrapped from a snapshot, cookie '{}'", config.getReplicaId(),
+                Strings.utf8ToString( cookie ) );
+
+            return true;
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( "Failed to bootstrap the consumer {} from a snapshot", config.getReplicaId(), e );
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Receive the partition files sent by the provider.
+     *
+     * @return The cookie sent once all the files have been received, null if the snapshot failed
+     */
+    private byte[] fetchSnapshot( File snapshotDirectory ) throws Exception
+    {
+        ExtendedRequest request = LdapApiServiceFactory.getSingleton().newExtendedRequest(
+            ReplicaSnapshotHandler.EXTENSION_OID, Strings.getBytesUtf8( config.getBaseDn() ) );
+
+        ExtendedFuture future = connection.extendedAsync( request );
+        byte[] cookie = null;
+        String currentPath = null;
+        OutputStream out = null;
+
+        try
+        {
+            while ( true )
+            {
+                Response response = future.get();
+
+                if ( response == null )
+                {
+                    CONSUMER_LOG.warn( "The connection has been closed while receiving the snapshot" );
+
+                    return null;
+                }
+
+                if ( !( response instanceof IntermediateResponse ) )
+                {
+                    ResultCodeEnum resultCode = ( ( ExtendedResponse ) response ).getLdapResult().getResultCode();
+
+                    if ( resultCode != ResultCodeEnum.SUCCESS )
+                    {
+                        CONSUMER_LOG.warn( "The provider failed to send a snapshot : {} {}", resultCode,
+                            ( ( ExtendedResponse ) response ).getLdapResult().getDiagnosticMessage() );
+
+                        return null;
+                    }
+
+                    return cookie;
+                }
+
+                byte[] value = ( ( IntermediateResponse ) response ).getResponseValue();
+
+                if ( value[0] == ReplicaSnapshotHandler.COOKIE )
+                {
+                    cookie = Arrays.copyOfRange( value, 1, value.length );
+
+                    continue;
+                }
+
+                DataInputStream in = new DataInputStream( new ByteArrayInputStream( value, 1, value.length - 1 ) );
+                String path = in.readUTF();
+                int pos = value.length - in.available();
+
+                if ( !path.equals( currentPath ) )
+                {
+                    if ( out != null )
+                    {
+                        out.close();
+                    }
+
+                    out = new FileOutputStream( getSnapshotFile( snapshotDirectory, path ) );
+                    currentPath = path;
+                }
+
+                out.write( value, pos, value.length - pos );
+            }
+        }
+        finally
+        {
+            if ( out != null )
+            {
+                out.close();
+            }
+        }
+    }
+
+
+    /**
+     * Get a file of the snapshot, checking that it's not outside the snapshot directory
+     */
+    private File getSnapshotFile( File snapshotDirectory, String path ) throws IOException
+    {
+        File file = new File( snapshotDirectory, path );
+
+        if ( !file.getCanonicalPath().startsWith( snapshotDirectory.getCanonicalPath() + File.separator ) )
+        {
+            throw new IOException( "Invalid snapshot file " + path );
+        }
+
+        File parent = file.getParentFile();
+
+        if ( !parent.exists() && !parent.mkdirs() )
+        {
+            throw new IOException( I18n.err( I18n.ERR_112_COULD_NOT_CREATE_DIRECTORY, parent ) );
+        }
+
+        return file;
+    }
+
+
+    /**
+     * Replace the partition files by the snapshot ones. The partition is removed while its
+     * files are swapped, holding the write lock, then a new instance, configured like the
+     * removed one, is initialized from the new files : a destroyed partition can't be
+     * initialized again.
      */
-    private void disconnect()
+    private void installSnapshot( JdbmPartition partition, File partitionDirectory, File snapshotDirectory )
+        throws Exception
     {
-        disconnected = true;
+        File previousDirectory = new File( partitionDirectory.getParentFile(), partition.getId() + "-previous" );
+        FileUtils.deleteDirectory( previousDirectory );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.lockWrite();
 
         try
         {
-            if ( ( connection != null ) && connection.isConnected() )
+            directoryService.removePartition( partition );
+
+            try
             {
-                connection.unBind();
-                CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
+                if ( !partitionDirectory.renameTo( previousDirectory ) )
+                {
+                    throw new IOException( "Cannot move " + partitionDirectory + " to " + previousDirectory );
+                }
 
-                if ( CONSUMER_LOG.isDebugEnabled() )
+                if ( !snapshotDirectory.renameTo( partitionDirectory ) )
                 {
-                    MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
-                    CONSUMER_LOG.info( "Unbound from the server {}", config.getProducer() );
+                    throw new IOException( "Cannot move " + snapshotDirectory + " to " + partitionDirectory );
                 }
 
-                connection.close();
-                CONSUMER_LOG.info( "Connection closed for the server {}", config.getProducer() );
+                directoryService.addPartition( copyPartition( partition ) );
+            }
+            catch ( Exception e )
+            {
+                // Restore the previous files, and put the partition back online
+                if ( previousDirectory.exists() )
+                {
+                    FileUtils.deleteDirectory( partitionDirectory );
 
-                connection = null;
+                    if ( !previousDirectory.renameTo( partitionDirectory ) )
+                    {
+                        CONSUMER_LOG.error( "Cannot restore {} from {}", partitionDirectory, previousDirectory );
+                    }
+                }
+
+                directoryService.addPartition( copyPartition( partition ) );
+
+                throw e;
             }
         }
-        catch ( Exception e )
+        finally
         {
-            CONSUMER_LOG.error( "Failed to close the connection", e );
+            operationManager.unlockWrite();
         }
-        finally
+
+        FileUtils.deleteDirectory( previousDirectory );
+    }
+
+
+    /**
+     * Create a new partition with the same configuration as the given one.
+     */
+    private JdbmPartition copyPartition( JdbmPartition partition ) throws Exception
+    {
+        JdbmPartition copy = new JdbmPartition( schemaManager, directoryService.getDnFactory() );
+        copy.setId( partition.getId() );
+        copy.setSuffixDn( partition.getSuffixDn() );
+        copy.setPartitionPath( partition.getPartitionPath() );
+        copy.setCacheSize( partition.getCacheSize() );
+        copy.setSyncOnWrite( partition.isSyncOnWrite() );
+        copy.setOptimizerEnabled( partition.isOptimizerEnabled() );
+        copy.setContextEntry( partition.getContextEntry() );
+
+        for ( Index<?, String> index : partition.getIndexedAttributes() )
         {
-            // persist the cookie
-            storeCookie();
+            if ( ( index instanceof JdbmRdnIndex ) || ( index instanceof JdbmDnIndex ) )
+            {
+                // The system indexes are created when the partition is initialized
+                continue;
+            }
 
-            // reset the cookie
-            syncCookie = null;
+            JdbmIndex<Object> indexCopy = new JdbmIndex<Object>( index.getAttributeId(), index.hasReverse() );
+            indexCopy.setCacheSize( index.getCacheSize() );
+            copy.addIndexedAttributes( indexCopy );
         }
+
+        return copy;
     }
 
 
@@ -1120,28 +1990,66 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
-    private void modify( Entry remoteEntry, int rid ) throws Exception
+    /**
+     * Reads the local copy of an entry
+     */
+    private Entry lookupLocalEntry( Dn dn, String[] attributes ) throws LdapException, IOException
     {
-        String[] attributes = computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
-
-        LookupOperationContext lookupCtx =
-            new LookupOperationContext( session, remoteEntry.getDn(), attributes );
+        LookupOperationContext lookupCtx = new LookupOperationContext( session, dn, attributes );
 
         lookupCtx.setSyncreplLookup( true );
 
-        Entry localEntry;
-        
-        Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( remoteEntry.getDn() );
+        Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( dn );
         
         try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
         {
             lookupCtx.setTransaction( partitionTxn );
-            localEntry = session.getDirectoryService().getOperationManager().lookup( lookupCtx );
+
+            return session.getDirectoryService().getOperationManager().lookup( lookupCtx );
+        }
+    }
+
+
+    /**
+     * Reads the entryCSN of the local copy of an entry. When the partition is a Store, the
+     * entryUUID is used to get it directly from the master table, without building the DN
+     * nor going through the interceptors. Otherwise, or if the entry is not known with this
+     * UUID, we do a lookup.
+     */
+    private String getLocalEntryCsn( Entry remoteEntry ) throws LdapException, IOException
+    {
+        Dn dn = remoteEntry.getDn();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+        Attribute uuid = remoteEntry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( ( partition instanceof Store ) && ( uuid != null ) )
+        {
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                String localCsn = ( ( Store ) partition ).getEntryCsn( partitionTxn, uuid.getString() );
+
+                if ( localCsn != null )
+                {
+                    return localCsn;
+                }
+            }
         }
 
+        Entry localEntry = lookupLocalEntry( dn, new String[]
+            { SchemaConstants.ENTRY_CSN_AT } );
+
+        return localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+    }
+
+
+    /**
+     * Tells if the local copy of an entry has been modified after the received one
+     */
+    private boolean isLocalEntryLatest( Entry remoteEntry ) throws LdapException, IOException
+    {
         if ( config.isMmrMode() )
         {
-            Csn localCsn = new Csn( localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+            Csn localCsn = new Csn( getLocalEntryCsn( remoteEntry ) );
             Csn remoteCsn = new Csn( remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
 
             if ( localCsn.compareTo( remoteCsn ) >= 0 )
@@ -1149,10 +2057,26 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 // just discard the received modified entry, that is old
                 CONSUMER_LOG.debug( "local modification is latest, discarding the modification of dn {}",
                     remoteEntry.getDn() );
-                return;
+                return true;
             }
         }
 
+        return false;
+    }
+
+
+    private void modify( Entry remoteEntry, int rid ) throws Exception
+    {
+        // Discard the outdated modifications before reading the whole local entry
+        if ( isLocalEntryLatest( remoteEntry ) )
+        {
+            return;
+        }
+
+        String[] attributes = computeAttributes( config.getAttributes(), SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+
+        Entry localEntry = lookupLocalEntry( remoteEntry.getDn(), attributes );
+
         remoteEntry.removeAttributes( MOD_IGNORE_AT );
         localEntry.removeAttributes( MOD_IGNORE_AT );
 
@@ -1206,6 +2130,132 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Applies a modification received as a delta : the entry only contains the DN, the entryUUID
+     * and the entryCSN, and the modifications are the ones applied on the provider. The values
+     * which are already present, or already removed, are not added or removed again.
+     */
+    private void modifyDelta( Entry remoteEntry, List<Modification> modifications, int rid ) throws Exception
+    {
+        if ( isLocalEntryLatest( remoteEntry ) )
+        {
+            return;
+        }
+
+        List<String> attributes = new ArrayList<String>();
+
+        for ( Modification modification : modifications )
+        {
+            attributes.add( modification.getAttribute().getAttributeType().getOid() );
+        }
+
+        Entry localEntry = lookupLocalEntry( remoteEntry.getDn(), attributes.toArray( new String[0] ) );
+
+        List<Modification> mods = new ArrayList<Modification>( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            Attribute remoteAttr = modification.getAttribute();
+            AttributeType attributeType = remoteAttr.getAttributeType();
+
+            if ( isIgnored( attributeType ) )
+            {
+                continue;
+            }
+
+            Attribute localAttr = localEntry.get( attributeType );
+
+            switch ( modification.getOperation() )
+            {
+                case ADD_ATTRIBUTE:
+                    Attribute added = new DefaultAttribute( attributeType );
+
+                    for ( Value value : remoteAttr )
+                    {
+                        if ( ( localAttr == null ) || !localAttr.contains( value ) )
+                        {
+                            added.add( value );
+                        }
+                    }
+
+                    if ( added.size() > 0 )
+                    {
+                        mods.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, added ) );
+                    }
+
+                    break;
+
+                case REMOVE_ATTRIBUTE:
+                    if ( localAttr == null )
+                    {
+                        break;
+                    }
+
+                    if ( remoteAttr.size() == 0 )
+                    {
+                        mods.add( modification );
+
+                        break;
+                    }
+
+                    Attribute removed = new DefaultAttribute( attributeType );
+
+                    for ( Value value : remoteAttr )
+                    {
+                        if ( localAttr.contains( value ) )
+                        {
+                            removed.add( value );
+                        }
+                    }
+
+                    if ( removed.size() > 0 )
+                    {
+                        mods.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, removed ) );
+                    }
+
+                    break;
+
+                default:
+                    if ( ( remoteAttr.size() > 0 ) || ( localAttr != null ) )
+                    {
+                        mods.add( modification );
+                    }
+
+                    break;
+            }
+        }
+
+        if ( mods.isEmpty() )
+        {
+            return;
+        }
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( session, remoteEntry.getDn(), mods );
+        modifyContext.setReplEvent( true );
+        modifyContext.setRid( rid );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.modify( modifyContext );
+    }
+
+
+    /**
+     * Tells if the modifications of an AttributeType are ignored, the attribute being managed locally
+     */
+    private boolean isIgnored( AttributeType attributeType )
+    {
+        for ( String ignored : MOD_IGNORE_AT )
+        {
+            if ( attributeType.equals( schemaManager.getAttributeType( ignored ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Create a new list combining a list and a newly added attribute
      */
@@ -1246,26 +2296,16 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      * deletes the entries having the UUID given in the list
      *
      * @param uuidList the list of UUIDs
-     * @param replicaId TODO
+     * @param replicaId The replica ID found in the cookie
      * @throws Exception in case of any problems while deleting the entries
      */
-    private void deleteEntries( List<byte[]> uuidList, boolean isRefreshPresent, int replicaId ) throws Exception
+    private void deleteEntries( List<byte[]> uuidList, int replicaId ) throws Exception
     {
         if ( uuidList == null || uuidList.isEmpty() )
         {
             return;
         }
 
-        // if it is refreshPresent list then send all the UUIDs for
-        // filtering, otherwise breaking the list will cause the
-        // other present entries to be deleted from DIT
-        if ( isRefreshPresent )
-        {
-            CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
-            processDelete( uuidList, isRefreshPresent, replicaId );
-            return;
-        }
-
         int nodeLimit = 10;
 
         int count = uuidList.size() / nodeLimit;
@@ -1275,7 +2315,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         for ( ; i < count; i++ )
         {
             startIndex = i * nodeLimit;
-            processDelete( uuidList.subList( startIndex, startIndex + nodeLimit ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, startIndex + nodeLimit ), replicaId );
         }
 
         if ( ( uuidList.size() % nodeLimit ) != 0 )
@@ -1286,7 +2326,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 startIndex = i * nodeLimit;
             }
 
-            processDelete( uuidList.subList( startIndex, uuidList.size() ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, uuidList.size() ), replicaId );
         }
     }
 
@@ -1294,11 +2334,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /**
      * do not call this method directly, instead call deleteEntries()
      *
-     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT (node limit applies only for refreshDeletes list)
-     * @param isRefreshPresent a flag indicating the type of entries present in the UUID list
-     * @param replicaId TODO
+     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT
+     * @param replicaId The replica ID found in the cookie
      */
-    private void processDelete( List<byte[]> limitedUuidList, boolean isRefreshPresent, int replicaId )
+    private void processDelete( List<byte[]> limitedUuidList, int replicaId )
         throws Exception
     {
         ExprNode filter = null;
@@ -1308,36 +2347,17 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             String uuid = Strings.uuidToString( limitedUuidList.get( 0 ) );
 
             filter = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT, new Value( uuid ).getValue() );
-            if ( isRefreshPresent )
-            {
-                filter = new NotNode( filter );
-            }
         }
         else
         {
-            if ( isRefreshPresent )
-            {
-                filter = new AndNode();
-            }
-            else
-            {
-                filter = new OrNode();
-            }
+            filter = new OrNode();
 
             for ( int i = 0; i < size; i++ )
             {
                 String uuid = Strings.uuidToString( limitedUuidList.get( i ) );
                 ExprNode uuidEqNode = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT, new Value( uuid ) .getValue() );
 
-                if ( isRefreshPresent )
-                {
-                    uuidEqNode = new NotNode( uuidEqNode );
-                    ( ( AndNode ) filter ).addNode( uuidEqNode );
-                }
-                else
-                {
-                    ( ( OrNode ) filter ).addNode( uuidEqNode );
-                }
+                ( ( OrNode ) filter ).addNode( uuidEqNode );
             }
         }
 
@@ -1367,36 +2387,161 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         {
             Entry entry = cursor.get();
 
-            DeleteOperationContext ctx = new DeleteOperationContext( session );
-            ctx.setReplEvent( true );
-            ctx.setRid( replicaId );
+            delete( operationManager, entry.getDn(), replicaId );
+        }
+
+        cursor.close();
+    }
 
-            // DO NOT generate replication event if this is being deleted as part of 
-            // e_sync_refresh_required
-            if ( reload )
-            {
-                ctx.setGenerateNoReplEvt( true );
-            }
 
-            ctx.setDn( entry.getDn() );
-            operationManager.delete( ctx );
+    /**
+     * Deletes an entry received from the provider
+     */
+    private void delete( OperationManager operationManager, Dn dn, int replicaId ) throws LdapException
+    {
+        DeleteOperationContext ctx = new DeleteOperationContext( session );
+        ctx.setReplEvent( true );
+        ctx.setRid( replicaId );
+
+        // DO NOT generate replication event if this is being deleted as part of 
+        // e_sync_refresh_required
+        if ( reload )
+        {
+            ctx.setGenerateNoReplEvt( true );
         }
 
-        cursor.close();
+        ctx.setDn( dn );
+        operationManager.delete( ctx );
+    }
+
+
+    /**
+     * Stores the UUIDs of a refresh present syncIdSet
+     */
+    private void addPresentUuids( List<byte[]> uuidList )
+    {
+        CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
+
+        if ( presentUuids == null )
+        {
+            // We are not in a refresh phase anymore, a new present phase is starting
+            presentUuids = new PresentUuidSet();
+        }
+
+        for ( byte[] uuid : uuidList )
+        {
+            presentUuids.add( uuid );
+        }
+
+        presentPhase = true;
     }
 
 
-    private synchronized Object getLockFor( String uuid )
+    /**
+     * Ends the refresh phase. If the provider has sent the list of the present entries,
+     * all the local entries which are not present on the provider are deleted. The
+     * local entries are read with a single scan of the entryUUID index, and compared
+     * with the present UUIDs, then the deletions are applied in batches.
+     *
+     * @param replicaId The replica ID found in the cookie
+     * @throws Exception If the entries can't be read or deleted
+     */
+    private void endRefreshPhase( int replicaId ) throws Exception
     {
-        Object lock = UUID_LOCK_MAP.get( uuid );
+        PresentUuidSet present = presentUuids;
+        boolean deleteNotPresent = presentPhase;
+
+        presentUuids = null;
+        presentPhase = false;
+
+        if ( !deleteNotPresent )
+        {
+            return;
+        }
+
+        CONSUMER_LOG.debug( "refresh present phase done, {} entries present on the provider", present.size() );
+
+        SearchRequest req = new SearchRequestImpl();
+        req.setBase( new Dn( schemaManager, config.getBaseDn() ) );
+        req.setFilter( ENTRY_UUID_PRESENCE_FILTER );
+        req.setScope( SearchScope.SUBTREE );
+        req.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+        req.addAttributes( SchemaConstants.ENTRY_UUID_AT );
+
+        List<Dn> notPresent = new ArrayList<Dn>();
+        Cursor<Entry> cursor = session.search( req );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+                Attribute uuidAt = entry.get( directoryService.getAtProvider().getEntryUUID() );
+
+                if ( ( uuidAt != null ) && !present.contains( uuidAt.getString() ) )
+                {
+                    notPresent.add( entry.getDn() );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        if ( notPresent.isEmpty() )
+        {
+            return;
+        }
+
+        // Delete the children before their parent
+        Collections.sort( notPresent, new Comparator<Dn>()
+        {
+            @Override
+            public int compare( Dn dn1, Dn dn2 )
+            {
+                return dn2.size() - dn1.size();
+            }
+        } );
+
+        CONSUMER_LOG.info( "deleting {} entries not present on the provider {}", notPresent.size(),
+            config.getProducer() );
+
+        OperationManager operationManager = directoryService.getOperationManager();
 
-        if ( lock == null )
+        for ( int start = 0; start < notPresent.size(); start += DELETE_BATCH_SIZE )
         {
-            lock = new Object();
-            UUID_LOCK_MAP.put( uuid, lock );
+            if ( disconnected )
+            {
+                CONSUMER_LOG.warn( "Disconnected from {}, {} entries not present have not been deleted",
+                    config.getProducer(), notPresent.size() - start );
+
+                return;
+            }
+
+            int end = Math.min( start + DELETE_BATCH_SIZE, notPresent.size() );
+
+            for ( Dn dn : notPresent.subList( start, end ) )
+            {
+                delete( operationManager, dn, replicaId );
+            }
+
+            CONSUMER_LOG.debug( "deleted {} of {} entries not present on the provider", end, notPresent.size() );
         }
+    }
+
+
+    /**
+     * @return The lock protecting the entry with the given entryUUID
+     */
+    private static Object getLockFor( String uuid )
+    {
+        int hash = uuid.hashCode();
+
+        // Spread the high bits of the hash on the low bits we use
+        hash ^= hash >>> 16;
 
-        return lock;
+        return UUID_LOCKS[hash & ( NB_UUID_LOCKS - 1 )];
     }
 
 
@@ -0,0 +1,923 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.TransactionManager;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.ldap.replication.AttributeTypeDictionary;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The replication change log shared by all the consumers of a provider. Each modification
+ * is stored once, keyed by its entryCSN, whatever the number of consumers. The consumers
+ * only keep their position in this log (the last CSN they have received), and read it
+ * through a {@link ReplicaJournalCursor} which select the messages they are interested in.
+ * <br/>
+ * The log is purged by the {@link ReplicaEventLogJanitor}, up to the slowest consumer.
+ * A CSN can also be pinned while a consumer is doing its initial refresh, to protect the
+ * modifications done since this refresh has started. The messages not yet received by a
+ * lagging consumer are also compacted, folding the successive changes done on an entry,
+ * so that catching up depends on the number of modified entries rather than on the number
+ * of modifications.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLog
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaChangeLog.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The name of the change log file */
+    public static final String REPLICA_CHANGE_LOG_NAME = "REPL_CHANGE_LOG";
+
+    /** The number of messages read at once by a cursor */
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /** The SchemaManager instance */
+    private SchemaManager schemaManager;
+
+    /** The journal of modifications */
+    private JdbmTable<String, ReplicaEventMessage> journal;
+
+    /** The record manager */
+    private RecordManager recman;
+
+    /** The dictionary of the AttributeTypes stored in the deltas */
+    private AttributeTypeDictionary dictionary;
+
+    /** the underlying file */
+    private File journalFile;
+
+    /** The lock protecting the journal : the readers can't browse it while it's modified */
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+    /** The CSNs which must not be purged */
+    private final List<String> pinnedCsns = new ArrayList<>();
+
+    /** The CSN of the last message read by each opened cursor */
+    private final Map<ReplicaJournalCursor, String> readPositions = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a new instance of ReplicaChangeLog, or open the existing one
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param replDir The directory containing the replication data
+     * @throws IOException If the log can't be created
+     */
+    public ReplicaChangeLog( SchemaManager schemaManager, File replDir ) throws IOException
+    {
+        this.schemaManager = schemaManager;
+        journalFile = new File( replDir, REPLICA_CHANGE_LOG_NAME );
+        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
+        dictionary = new AttributeTypeDictionary( schemaManager, recman );
+        journal = createJournal( recman, journalFile.getName() );
+
+        PROVIDER_LOG.debug( "Opened the replication change log {}", journalFile );
+    }
+
+
+    /**
+     * Creates a table storing ReplicaEventMessages ordered by CSN
+     */
+    private JdbmTable<String, ReplicaEventMessage> createJournal( RecordManager recordManager, String name )
+        throws IOException
+    {
+        TransactionManager transactionManager = ( ( BaseRecordManager ) recordManager ).getTransactionManager();
+        transactionManager.setMaximumTransactionsInLog( 200 );
+
+        SerializableComparator<String> comparator = new SerializableComparator<>(
+            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
+        comparator.setSchemaManager( schemaManager );
+
+        return new JdbmTable<>( schemaManager, name, recordManager, comparator,
+            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager, dictionary ) );
+    }
+
+
+    /**
+     * Stores the given message in the log.
+     *
+     * @param message The message to store
+     */
+    public void log( ReplicaEventMessage message )
+    {
+        rwLock.writeLock().lock();
+
+        try
+        {
+            PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
+                message.getChangeType() );
+
+            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+
+            if ( message.isDelta() )
+            {
+                // The delta is stored using the AttributeType IDs
+                dictionary.register( message );
+            }
+
+            // The journal is not a partition table, it does not use any partition transaction
+            journal.put( null, entryCsn, message );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to insert the entry into the replication change log", e );
+            PROVIDER_LOG.error( "Failed to insert the entry into the replication change log", e );
+        }
+        finally
+        {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Reads at most <code>max</code> messages which CSN is strictly above the given CSN.
+     *
+     * @param fromCsn The CSN to start after. If null, we start from the beginning of the log
+     * @param max The maximum number of messages to read
+     * @return The list of messages, ordered by CSN. Empty if we have reached the end of the log
+     * @throws Exception If the log can't be read
+     */
+    public List<ReplicaEventMessage> fetch( String fromCsn, int max ) throws Exception
+    {
+        return fetch( null, fromCsn, max );
+    }
+
+
+    /**
+     * Reads at most <code>max</code> messages which CSN is strictly above the given CSN, on
+     * behalf of a cursor. The position of the cursor is updated while the log is locked, so
+     * that the compaction knows which messages it has already read.
+     */
+    List<ReplicaEventMessage> fetch( ReplicaJournalCursor reader, String fromCsn, int max ) throws Exception
+    {
+        List<ReplicaEventMessage> messages = new ArrayList<>( max );
+
+        rwLock.readLock().lock();
+
+        try
+        {
+            Cursor<Tuple<String, ReplicaEventMessage>> cursor = journal.cursor();
+
+            try
+            {
+                if ( fromCsn != null )
+                {
+                    cursor.after( new Tuple<String, ReplicaEventMessage>( fromCsn, null ) );
+                }
+
+                while ( ( messages.size() < max ) && cursor.next() )
+                {
+                    messages.add( cursor.get().getValue() );
+                }
+
+                if ( ( reader != null ) && !messages.isEmpty() )
+                {
+                    readPositions.put( reader, getCsn( messages.get( messages.size() - 1 ) ) );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        finally
+        {
+            rwLock.readLock().unlock();
+        }
+
+        return messages;
+    }
+
+
+    /**
+     * Removes the messages which CSN is strictly below the given CSN, and which are older
+     * than the given time.
+     *
+     * @param upToCsn The CSN we stop at. If null, all the messages older than the given time are removed
+     * @param olderThan The time, in milliseconds, before which the messages can be removed
+     * @return The number of removed messages
+     * @throws Exception If the log can't be purged
+     */
+    public long purge( String upToCsn, long olderThan ) throws Exception
+    {
+        List<String> purgeables = new ArrayList<>();
+        String csnVal = null;
+
+        // Collect the CSNs in batches, we don't want to block the writers for too long
+        do
+        {
+            List<ReplicaEventMessage> messages = fetch( csnVal, DEFAULT_FETCH_SIZE );
+
+            if ( messages.isEmpty() )
+            {
+                break;
+            }
+
+            for ( ReplicaEventMessage message : messages )
+            {
+                csnVal = getCsn( message );
+
+                if ( ( upToCsn != null ) && ( csnVal.compareTo( upToCsn ) >= 0 ) )
+                {
+                    csnVal = null;
+                    break;
+                }
+
+                if ( new Csn( csnVal ).getTimestamp() < olderThan )
+                {
+                    purgeables.add( csnVal );
+                }
+            }
+        }
+        while ( csnVal != null );
+
+        rwLock.writeLock().lock();
+
+        try
+        {
+            for ( String csn : purgeables )
+            {
+                journal.remove( null, csn );
+            }
+        }
+        finally
+        {
+            rwLock.writeLock().unlock();
+        }
+
+        return purgeables.size();
+    }
+
+
+    /**
+     * Coalesces the redundant messages the consumers have not received yet. The messages are
+     * grouped by entryUUID, and for each entry :
+     * <ul>
+     * <li>consecutive MODIFY messages received from the same replica are folded into a single
+     * message, stored under the CSN of the last one. Deltas are merged, a complete entry
+     * replacing what was modified before</li>
+     * <li>the MODIFY messages followed by a DELETE are removed</li>
+     * <li>an ADD followed by a DELETE received from the same replica is removed too, unless some
+     * children have been added meanwhile. The DELETE is also removed if no consumer has read the
+     * ADD yet</li>
+     * </ul>
+     * The ADD messages are never moved, and the MODDN messages are kept as is : we don't fold
+     * the messages across a MODDN. Folding the modifications this way is safe for all the
+     * consumers, including those which have received some of the folded messages, as the
+     * resulting message leads to the same entry.
+     *
+     * @param consumerCsns The CSN of the last message sent to each consumer
+     * @return The number of removed messages
+     * @throws Exception If the log can't be compacted
+     */
+    public long compact( Collection<String> consumerCsns ) throws Exception
+    {
+        String fromCsn = null;
+
+        for ( String csn : consumerCsns )
+        {
+            if ( ( fromCsn == null ) || ( csn.compareTo( fromCsn ) < 0 ) )
+            {
+                fromCsn = csn;
+            }
+        }
+
+        String pinnedCsn = getOldestPinnedCsn();
+
+        if ( ( pinnedCsn != null ) && ( ( fromCsn == null ) || ( pinnedCsn.compareTo( fromCsn ) < 0 ) ) )
+        {
+            fromCsn = pinnedCsn;
+        }
+
+        if ( fromCsn == null )
+        {
+            // No consumer, nothing to compact
+            return 0L;
+        }
+
+        // Group the changes by entry, reading the log in batches, like the purge
+        List<EntryChanges> changes = new ArrayList<>();
+        Map<String, EntryChanges> openedChanges = new HashMap<>();
+        Map<Dn, EntryChanges> addedEntries = new HashMap<>();
+        String csnVal = fromCsn;
+
+        while ( true )
+        {
+            List<ReplicaEventMessage> messages = fetch( csnVal, DEFAULT_FETCH_SIZE );
+
+            if ( messages.isEmpty() )
+            {
+                break;
+            }
+
+            for ( ReplicaEventMessage message : messages )
+            {
+                csnVal = getCsn( message );
+                String uuid = message.getEntry().get( SchemaConstants.ENTRY_UUID_AT ).getString();
+                Dn dn = message.getEntry().getDn();
+
+                // An entry added since the beginning can't be removed if some of its children
+                // have been modified, or if it has been moved
+                markAddedAncestors( addedEntries, dn );
+
+                if ( message.getChangeType() == ChangeType.MODDN )
+                {
+                    Dn previousDn = ( message.getPreviousDn() != null ) ? message.getPreviousDn() : dn;
+
+                    for ( Map.Entry<Dn, EntryChanges> added : addedEntries.entrySet() )
+                    {
+                        if ( added.getKey().isDescendantOf( previousDn ) )
+                        {
+                            added.getValue().hasDependents = true;
+                        }
+                    }
+
+                    closeChanges( changes, openedChanges.remove( uuid ), addedEntries );
+
+                    continue;
+                }
+
+                EntryChanges entryChanges = openedChanges.get( uuid );
+
+                if ( entryChanges == null )
+                {
+                    entryChanges = new EntryChanges( dn, message.getChangeType() == ChangeType.ADD );
+                    openedChanges.put( uuid, entryChanges );
+
+                    if ( entryChanges.added )
+                    {
+                        addedEntries.put( dn, entryChanges );
+                    }
+                }
+
+                entryChanges.csns.add( csnVal );
+
+                if ( message.getChangeType() == ChangeType.DELETE )
+                {
+                    entryChanges.deleted = true;
+                    closeChanges( changes, openedChanges.remove( uuid ), addedEntries );
+                }
+            }
+        }
+
+        changes.addAll( openedChanges.values() );
+
+        long removed = 0L;
+
+        for ( EntryChanges entryChanges : changes )
+        {
+            if ( entryChanges.csns.size() > 1 )
+            {
+                removed += fold( entryChanges, consumerCsns );
+            }
+        }
+
+        if ( removed > 0 )
+        {
+            PROVIDER_LOG.debug( "removed {} redundant messages from the replication change log", removed );
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Marks the entries added since the beginning of the compaction which are an ancestor of
+     * the given DN
+     */
+    private void markAddedAncestors( Map<Dn, EntryChanges> addedEntries, Dn dn )
+    {
+        if ( addedEntries.isEmpty() )
+        {
+            return;
+        }
+
+        Dn parent = dn.getParent();
+
+        while ( ( parent != null ) && !parent.isEmpty() )
+        {
+            EntryChanges added = addedEntries.get( parent );
+
+            if ( added != null )
+            {
+                added.hasDependents = true;
+            }
+
+            parent = parent.getParent();
+        }
+    }
+
+
+    /**
+     * Stores the changes of an entry which can't be extended anymore
+     */
+    private void closeChanges( List<EntryChanges> changes, EntryChanges entryChanges,
+        Map<Dn, EntryChanges> addedEntries )
+    {
+        if ( entryChanges != null )
+        {
+            changes.add( entryChanges );
+
+            if ( entryChanges.added )
+            {
+                addedEntries.remove( entryChanges.dn );
+            }
+        }
+    }
+
+
+    /**
+     * Folds the changes done on a single entry
+     *
+     * @return The number of removed messages
+     */
+    private long fold( EntryChanges entryChanges, Collection<String> consumerCsns ) throws Exception
+    {
+        List<String> csns = entryChanges.csns;
+        String firstCsn = csns.get( 0 );
+        String lastCsn = csns.get( csns.size() - 1 );
+        List<String> removedCsns = new ArrayList<>();
+        Map<String, ReplicaEventMessage> coalescedMessages = new HashMap<String, ReplicaEventMessage>();
+
+        rwLock.writeLock().lock();
+
+        try
+        {
+            List<ReplicaEventMessage> messages = new ArrayList<>( csns.size() );
+
+            for ( String csn : csns )
+            {
+                ReplicaEventMessage message = journal.get( null, csn );
+
+                if ( message == null )
+                {
+                    // Purged meanwhile
+                    return 0L;
+                }
+
+                messages.add( message );
+            }
+
+            // The ADD is never moved : a child may have been added after it
+            int first = entryChanges.added ? 1 : 0;
+
+            if ( entryChanges.deleted )
+            {
+                // The modifications are useless if the entry is deleted
+                removedCsns.addAll( csns.subList( first, csns.size() - 1 ) );
+
+                // The replica which has added the entry needs the DELETE, unless it has done it
+                if ( entryChanges.added && !entryChanges.hasDependents
+                    && ( messages.get( 0 ).getReplicaId() == messages.get( messages.size() - 1 ).getReplicaId() ) )
+                {
+                    removedCsns.add( firstCsn );
+
+                    // Nobody but the consumers which have read the ADD needs the DELETE
+                    if ( !isRead( consumerCsns, firstCsn, lastCsn ) )
+                    {
+                        removedCsns.add( lastCsn );
+                    }
+                }
+            }
+            else
+            {
+                // Only the consecutive messages received from the same replica are folded : this
+                // replica must not get them back, while the other ones must get all of them
+                int start = first;
+
+                for ( int i = first + 1; i <= messages.size(); i++ )
+                {
+                    if ( ( i < messages.size() )
+                        && ( messages.get( i ).getReplicaId() == messages.get( start ).getReplicaId() ) )
+                    {
+                        continue;
+                    }
+
+                    if ( i - start > 1 )
+                    {
+                        coalescedMessages.put( csns.get( i - 1 ), coalesce( messages.subList( start, i ) ) );
+                        removedCsns.addAll( csns.subList( start, i - 1 ) );
+                    }
+
+                    start = i;
+                }
+            }
+
+            for ( Map.Entry<String, ReplicaEventMessage> coalesced : coalescedMessages.entrySet() )
+            {
+                if ( coalesced.getValue().isDelta() )
+                {
+                    dictionary.register( coalesced.getValue() );
+                }
+
+                journal.put( null, coalesced.getKey(), coalesced.getValue() );
+            }
+
+            for ( String csn : removedCsns )
+            {
+                journal.remove( null, csn );
+            }
+        }
+        finally
+        {
+            rwLock.writeLock().unlock();
+        }
+
+        return removedCsns.size();
+    }
+
+
+    /**
+     * Folds some consecutive MODIFY messages, received from the same replica, into a single
+     * message. A complete entry replaces
+     * the previous messages, while a delta is applied on top of them : its modifications are
+     * applied on a complete entry, or appended to the previous ones.
+     */
+    private ReplicaEventMessage coalesce( List<ReplicaEventMessage> messages ) throws LdapException
+    {
+        ReplicaEventMessage first = messages.get( 0 );
+        Entry entry = first.getEntry().clone();
+        boolean delta = first.isDelta();
+        List<Modification> modifications = new ArrayList<Modification>( first.getModifications() );
+
+        for ( ReplicaEventMessage message : messages.subList( 1, messages.size() ) )
+        {
+            if ( !message.isDelta() )
+            {
+                entry = message.getEntry().clone();
+                delta = false;
+                modifications.clear();
+
+                continue;
+            }
+
+            if ( delta )
+            {
+                modifications.addAll( message.getModifications() );
+            }
+            else
+            {
+                ReplicaEventMessage.applyModifications( entry, message.getModifications() );
+            }
+
+            // The entryCSN and the DN are the ones of the last message
+            for ( Attribute attribute : message.getEntry() )
+            {
+                entry.put( attribute.clone() );
+            }
+
+            entry.setDn( message.getEntry().getDn() );
+        }
+
+        ReplicaEventMessage coalesced = new ReplicaEventMessage( first.getChangeType(), entry );
+        coalesced.setDelta( delta );
+        coalesced.setReplicaId( first.getReplicaId() );
+
+        if ( delta )
+        {
+            coalesced.setModifications( modifications );
+        }
+
+        return coalesced;
+    }
+
+
+    /**
+     * Tells if a consumer, a cursor or a refresh in progress has read the messages up to a CSN
+     * in [fromCsn, toCsn[. Must be called while holding the write lock.
+     */
+    private boolean isRead( Collection<String> consumerCsns, String fromCsn, String toCsn )
+    {
+        List<String> positions = new ArrayList<>( consumerCsns );
+        positions.addAll( readPositions.values() );
+
+        synchronized ( pinnedCsns )
+        {
+            positions.addAll( pinnedCsns );
+        }
+
+        for ( String csn : positions )
+        {
+            if ( ( csn.compareTo( fromCsn ) >= 0 ) && ( csn.compareTo( toCsn ) < 0 ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Copies all the messages stored in a journal created by a previous version, where
+     * each consumer had its own journal, and deletes it.
+     *
+     * @param oldJournalFile The old journal file, without its extension
+     * @return The number of messages copied
+     */
+    public long importJournal( File oldJournalFile )
+    {
+        long count = 0L;
+        RecordManager oldRecman = null;
+        JdbmTable<String, ReplicaEventMessage> oldJournal = null;
+
+        try
+        {
+            oldRecman = new BaseRecordManager( oldJournalFile.getAbsolutePath() );
+            oldJournal = createJournal( oldRecman, oldJournalFile.getName() );
+            Cursor<Tuple<String, ReplicaEventMessage>> cursor = oldJournal.cursor();
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Tuple<String, ReplicaEventMessage> tuple = cursor.get();
+
+                    rwLock.writeLock().lock();
+
+                    try
+                    {
+                        if ( !journal.has( null, tuple.getKey() ) )
+                        {
+                            journal.put( null, tuple.getKey(), tuple.getValue() );
+                            count++;
+                        }
+                    }
+                    finally
+                    {
+                        rwLock.writeLock().unlock();
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.warn( "Failed to import the replication event log {}", oldJournalFile, e );
+        }
+        finally
+        {
+            try
+            {
+                if ( oldJournal != null )
+                {
+                    oldJournal.close( null );
+                }
+
+                if ( oldRecman != null )
+                {
+                    oldRecman.close();
+                }
+            }
+            catch ( Exception e )
+            {
+                PROVIDER_LOG.warn( "Failed to close the replication event log {}", oldJournalFile, e );
+            }
+        }
+
+        PROVIDER_LOG.info( "imported {} messages from the replication event log {}", count, oldJournalFile );
+
+        return count;
+    }
+
+
+    /**
+     * Protects the messages following the given CSN from being purged.
+     *
+     * @param csn The CSN to pin
+     */
+    public void pin( String csn )
+    {
+        synchronized ( pinnedCsns )
+        {
+            pinnedCsns.add( csn );
+        }
+    }
+
+
+    /**
+     * Releases a CSN previously pinned.
+     *
+     * @param csn The CSN to release
+     */
+    public void unpin( String csn )
+    {
+        synchronized ( pinnedCsns )
+        {
+            pinnedCsns.remove( csn );
+        }
+    }
+
+
+    /**
+     * Registers a cursor starting to read the log after the given CSN
+     *
+     * @param reader The cursor
+     * @param csn The CSN it starts after, or null if it starts at the beginning of the log
+     */
+    void openReader( ReplicaJournalCursor reader, String csn )
+    {
+        if ( csn != null )
+        {
+            readPositions.put( reader, csn );
+        }
+    }
+
+
+    /**
+     * Unregisters a closed cursor
+     *
+     * @param reader The cursor
+     */
+    void closeReader( ReplicaJournalCursor reader )
+    {
+        readPositions.remove( reader );
+    }
+
+
+    /**
+     * @return The oldest pinned CSN, or null if there is none
+     */
+    public String getOldestPinnedCsn()
+    {
+        String oldest = null;
+
+        synchronized ( pinnedCsns )
+        {
+            for ( String csn : pinnedCsns )
+            {
+                if ( ( oldest == null ) || ( csn.compareTo( oldest ) < 0 ) )
+                {
+                    oldest = csn;
+                }
+            }
+        }
+
+        return oldest;
+    }
+
+
+    /**
+     * @return the number of messages present in the log
+     */
+    public long count()
+    {
+        try
+        {
+            return journal.count( null );
+        }
+        catch ( LdapException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /**
+     * @return The CSN of the given message
+     */
+    private static String getCsn( ReplicaEventMessage message ) throws LdapException
+    {
+        return message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+    }
+
+
+    /**
+     * @return The SchemaManager instance
+     */
+    public SchemaManager getSchemaManager()
+    {
+        return schemaManager;
+    }
+
+
+    /**
+     * @return the name of the log
+     */
+    public String getName()
+    {
+        return journalFile.getName();
+    }
+
+
+    /**
+     * Closes the log
+     *
+     * @throws Exception If the log can't be closed
+     */
+    public void stop() throws Exception
+    {
+        PROVIDER_LOG.debug( "Stopping the replication change log" );
+
+        rwLock.writeLock().lock();
+
+        try
+        {
+            if ( journal != null )
+            {
+                journal.close( null );
+            }
+
+            journal = null;
+
+            if ( recman != null )
+            {
+                recman.close();
+            }
+
+            recman = null;
+        }
+        finally
+        {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * The CSNs of the messages stored for a single entry, in a sequence we can fold
+     */
+    private static class EntryChanges
+    {
+        /** The entry DN */
+        private final Dn dn;
+
+        /** Tells if the first message is an ADD */
+        private final boolean added;
+
+        /** Tells if the last message is a DELETE */
+        private boolean deleted;
+
+        /** Tells if some descendants of the added entry have been modified, or moved */
+        private boolean hasDependents;
+
+        /** The CSNs of the messages */
+        private final List<String> csns = new ArrayList<>();
+
+
+        private EntryChanges( Dn dn, boolean added )
+        {
+            this.dn = dn;
+            this.added = added;
+        }
+    }
+}
@@ -21,27 +21,15 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
-import java.io.IOException;
-
-import jdbm.RecordManager;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.TransactionManager;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
-import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
-import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.ldap.replication.RateMeter;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,16 +45,13 @@ import org.slf4j.LoggerFactory;
  * <li>refreshNPersist : a flag indicating that the consumer is processing in Refresh and persist mode</li>
  * <li></li>
  * </ul>
- * A separate log is maintained for each syncrepl consumer.<br/>
- * We also associate a Queue with each structure, which will store the messages to send to the consumer.
+ * The modifications are stored once in the {@link ReplicaChangeLog} shared by all the consumers,
+ * each consumer only keeps its position in this log.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 {
-    /** The logger */
-    private static final Logger LOG = LoggerFactory.getLogger( ReplicaEventLog.class );
-
     /** A logger for the replication provider */
     private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
 
@@ -77,7 +62,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private String searchFilter;
 
     /** the csn that was sent to the client during the last sync session*/
-    private String lastSentCsn;
+    private volatile String lastSentCsn;
 
     /** the persistent listener */
     private SyncReplSearchListener persistentListener;
@@ -98,86 +83,45 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private int purgeThresholdCount = DEFAULT_PURGE_THRESHOLD_COUNT;
 
     // fields that won't be serialized
-    /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
-
-    /** the underlying file  */
-    private File journalFile;
-
-    /** The record manager*/
-    private RecordManager recman;
+    /** The change log shared by all the consumers */
+    private ReplicaChangeLog changeLog;
 
     /** A flag used to indicate that the consumer is not up to date */
     private volatile boolean dirty;
 
+    /** Tells if the consumer accepts the modifications as deltas */
+    private volatile boolean deltaSupported;
+
     /** the DN of the entry where this event log details are stored */
     private Dn consumerEntryDn;
 
+    /** The rate of the entries sent to the consumer */
+    private final RateMeter sendRate = new RateMeter();
+
+    /** The number of logged messages this consumer has not received yet */
+    private final AtomicLong pendingMessages = new AtomicLong();
+
     public static final String REPLICA_EVENT_LOG_NAME_PREFIX = "REPL_EVENT_LOG.";
 
     public static final int DEFAULT_PURGE_THRESHOLD_COUNT = 10000;
 
     /** The max delay for an idle replication log with no activity, by default the logs have no idle time period */
     public static final int DEFAULT_MAX_IDLE_PERIOD = -1;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
 
 
     /**
      * Creates a new instance of EventLog for a replica
      * 
-     * @param directoryService The DirectoryService instance
+     * @param changeLog The change log shared by all the consumers
      * @param replicaId The replica ID
      */
-    public ReplicaEventLog( PartitionTxn partitionTxn, DirectoryService directoryService, int replicaId ) throws IOException
+    public ReplicaEventLog( ReplicaChangeLog changeLog, int replicaId )
     {
         PROVIDER_LOG.debug( "Creating the replication queue for replica {}", replicaId );
-        SchemaManager schemaManager = directoryService.getSchemaManager();
+        this.changeLog = changeLog;
         this.replicaId = replicaId;
-        this.searchCriteria = new NotificationCriteria( schemaManager );
+        this.searchCriteria = new NotificationCriteria( changeLog.getSchemaManager() );
         this.searchCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
-
-        // Create the journal file, or open if already exists
-        File replDir = directoryService.getInstanceLayout().getReplDirectory();
-        journalFile = new File( replDir, REPLICA_EVENT_LOG_NAME_PREFIX + replicaId );
-        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
-        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 200 );
-
-        SerializableComparator<String> comparator = new SerializableComparator<>(
-            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
-        comparator.setSchemaManager( schemaManager );
-
-        journal = new JdbmTable<>( schemaManager, journalFile.getName(), recman, comparator,
-            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
-        
-        this.partitionTxn = partitionTxn;
-    }
-
-
-    /**
-     * Stores the given message in the queue 
-     *
-     * @param message The message to store
-     */
-    public synchronized void log( ReplicaEventMessage message )
-    {
-        try
-        {
-            LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-            PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-
-            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-            journal.put( partitionTxn, entryCsn, message );
-        }
-        catch ( Exception e )
-        {
-            LOG.warn( "Failed to insert the entry into syncrepl log", e );
-            PROVIDER_LOG.error( "Failed to insert the entry into syncrepl log", e );
-        }
     }
 
 
@@ -198,7 +142,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public void recreate() throws Exception
     {
-        LOG.debug( "recreating the queue for the replica id {}", replicaId );
+        PROVIDER_LOG.debug( "recreating the queue for the replica id {}", replicaId );
     }
 
 
@@ -209,22 +153,8 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public void stop() throws Exception
     {
+        // Nothing to close, the change log is shared with the other consumers
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
-
-        // Close the producer and session, DO NOT close connection 
-        if ( journal != null )
-        {
-            journal.close( partitionTxn );
-        }
-
-        journal = null;
-
-        if ( recman != null )
-        {
-            recman.close();
-        }
-
-        recman = null;
     }
 
 
@@ -334,6 +264,24 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     }
 
 
+    /**
+     * @return true if the consumer accepts the modifications as deltas
+     */
+    public boolean isDeltaSupported()
+    {
+        return deltaSupported;
+    }
+
+
+    /**
+     * @param deltaSupported Tells if the consumer accepts the modifications as deltas
+     */
+    public void setDeltaSupported( boolean deltaSupported )
+    {
+        this.deltaSupported = deltaSupported;
+    }
+
+
     /**
      * @return The replica ID
      */
@@ -371,6 +319,135 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     }
 
 
+    /**
+     * Update the last sent CSN after an entry has been sent to the consumer, and count it.
+     *
+     * @param lastSentCsn The CSN of the sent entry
+     */
+    public void entrySent( String lastSentCsn )
+    {
+        setLastSentCsn( lastSentCsn );
+        sendRate.mark( 1L );
+    }
+
+
+    /**
+     * @return The rate of the entries sent to the consumer
+     */
+    public RateMeter getSendRate()
+    {
+        return sendRate;
+    }
+
+
+    /**
+     * Counts the messages of the change log this consumer has not received yet. The whole log
+     * is read, this is only done when the consumer is loaded, the count is then updated when
+     * messages are logged and sent.
+     *
+     * @throws Exception If the change log can't be read
+     */
+    public void countPendingMessages() throws Exception
+    {
+        ReplicaJournalCursor cursor = getCursor( lastSentCsn );
+        long count = 0L;
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                count++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        pendingMessages.set( count );
+    }
+
+
+    /**
+     * Count a message stored in the change log, if it's in the consumer's scope and has not
+     * been received from this consumer. The consumer's filter is not evaluated here, it's
+     * checked when the message is sent.
+     *
+     * @param message The logged message
+     */
+    public void messageLogged( ReplicaEventMessage message )
+    {
+        if ( message.getReplicaId() == replicaId )
+        {
+            return;
+        }
+
+        Dn dn = ( message.getPreviousDn() != null ) ? message.getPreviousDn() : message.getEntry().getDn();
+
+        if ( ( searchCriteria == null ) || ReplicaJournalCursor.isInScope( dn, searchCriteria ) )
+        {
+            pendingMessages.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Uncount a message of the change log which has been sent to the consumer, or skipped.
+     */
+    public void messageSent()
+    {
+        long count = pendingMessages.get();
+
+        // The messages not matching the consumer's filter have been counted anyway
+        while ( ( count > 0L ) && !pendingMessages.compareAndSet( count, count - 1L ) )
+        {
+            count = pendingMessages.get();
+        }
+    }
+
+
+    /**
+     * Reset the number of pending messages, once the consumer has read the whole change log.
+     */
+    public void resetPendingMessages()
+    {
+        pendingMessages.set( 0L );
+    }
+
+
+    /**
+     * @return The number of messages of the change log this consumer has not received yet
+     */
+    public long getPendingMessages()
+    {
+        return pendingMessages.get();
+    }
+
+
+    /**
+     * @return The CSN of the oldest message this consumer has not received yet, null if it's up to date
+     * @throws Exception If the change log can't be read
+     */
+    public String getOldestPendingCsn() throws Exception
+    {
+        ReplicaJournalCursor cursor = getCursor( lastSentCsn );
+
+        try
+        {
+            if ( cursor.next() )
+            {
+                return cursor.get().getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+            }
+
+            return null;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
     /**
      * @return The consumer Hostname
      */
@@ -439,12 +516,12 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
     /**
      * @param consumerCsn the consumer's CSN extracted from cookie
-     * @return A cursor on top of the queue
+     * @return A cursor on top of the shared change log, returning the messages this consumer is interested in
      * @throws Exception If the cursor can't be created
      */
     public ReplicaJournalCursor getCursor( String consumerCsn ) throws Exception
     {
-        return new ReplicaJournalCursor( partitionTxn, journal, consumerCsn );
+        return new ReplicaJournalCursor( changeLog, this, consumerCsn );
     }
 
 
@@ -453,23 +530,25 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public String getName()
     {
-        return journal.getName();
+        return REPLICA_EVENT_LOG_NAME_PREFIX + replicaId;
     }
 
 
     /**
-     * @return the number of entries present in the replica log
+     * @return The change log shared by all the consumers
      */
-    public synchronized long count()
+    public ReplicaChangeLog getChangeLog()
     {
-        try
-        {
-            return journal.count( partitionTxn );
-        }
-        catch ( LdapException e )
-        {
-            throw new RuntimeException( e );
-        }
+        return changeLog;
+    }
+
+
+    /**
+     * @return the number of entries present in the shared change log
+     */
+    public long count()
+    {
+        return changeLog.count();
     }
 
 
@@ -525,7 +604,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         return "ReplicaEventLog [hostName=" + hostName + ", searchFilter=" + searchFilter + ", lastSentCsn="
             + lastSentCsn + ", searchCriteria=" + searchCriteria + ", replicaId=" + replicaId
             + ", refreshNPersist=" + refreshNPersist + ", maxInactivePeriod=" + maxIdlePeriod
-            + ", purgeThresholdCount=" + purgeThresholdCount + ", journalFile=" + journalFile
+            + ", purgeThresholdCount=" + purgeThresholdCount
             + ", dirty=" + dirty + ", consumerEntryDn=" + consumerEntryDn + "]";
     }
 }
@@ -20,21 +20,23 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.util.DateUtils;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.core.api.event.DirectoryListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Removes the idle consumers, and deletes old entries from the replication change log. As
+ * the change log is shared by all the consumers, we only delete the entries which have been
+ * sent to all of them. The entries which have not been sent yet are compacted.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -46,6 +48,9 @@ public class ReplicaEventLogJanitor extends Thread
 
     private Map<Integer, ReplicaEventLog> replicaLogMap;
 
+    /** The change log shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
     private volatile boolean stop = false;
 
     /** A lock used to wait */
@@ -58,12 +63,13 @@ public class ReplicaEventLogJanitor extends Thread
 
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaChangeLog changeLog )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // if the log has more entries than the consumers threshold count then all the entries
+        // before the oldest last sent CSN and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.changeLog = changeLog;
         setDaemon( true );
     }
 
@@ -73,117 +79,191 @@ public class ReplicaEventLogJanitor extends Thread
     {
         while ( !stop )
         {
-            for ( ReplicaEventLog log : replicaLogMap.values() )
+            long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
+
+            removeIdleLogs( now );
+            purge( now );
+            compact();
+
+            try
             {
-                synchronized ( log ) // lock the log and clean
+                synchronized ( lock )
                 {
-                    try
-                    {
-                        String lastSentCsn = log.getLastSentCsn();
+                    lock.wait( sleepTime );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                LOG.warn( "ReplicaEventLogJanitor thread was interrupted, processing logs for cleanup", e );
+            }
+        }
+    }
 
-                        if ( lastSentCsn == null )
-                        {
-                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
-                        }
 
-                        long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
+    /**
+     * Removes the consumers which have not been updated for more than their max idle period
+     */
+    private void removeIdleLogs( long now )
+    {
+        for ( ReplicaEventLog log : replicaLogMap.values() )
+        {
+            synchronized ( log ) // lock the log and clean
+            {
+                try
+                {
+                    String lastSentCsn = log.getLastSentCsn();
+
+                    if ( lastSentCsn == null )
+                    {
+                        LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
+                        continue;
+                    }
 
-                        long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
+                    long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
 
-                        long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
+                    long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
 
-                        LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
-                            lastUpdatedTime, maxIdleTime );
+                    LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
+                        lastUpdatedTime, maxIdleTime );
 
-                        // DO NOT delete those with maxIdleTime <= 0
-                        if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    // DO NOT delete those with maxIdleTime <= 0
+                    if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    {
+                        //max idle time of the event log reached, delete it
+                        removeEventLog( log );
+
+                        // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
+                        // will get called eventually but removeEventLog() will not be called cause by 
+                        // that time this log will not be present in replicaLogMap
+                        // The reason we don't call this method first is to guard against any rename
+                        // operation performed on the log's entry in DiT
+                        try
                         {
-                            //max idle time of the event log reached, delete it
-                            removeEventLog( log );
-
-                            // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
-                            // will get called eventually but removeEventLog() will not be called cause by 
-                            // that time this log will not be present in replicaLogMap
-                            // The reason we don't call this method first is to guard against any rename
-                            // operation performed on the log's entry in DiT
-                            try
-                            {
-                                directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
-                            }
-                            catch ( LdapException e )
-                            {
-                                LOG.warn( "Failed to delete the entry {} of replica event log {}",
-                                    log.getConsumerEntryDn(), log.getName(), e );
-                            }
-
-                            continue;
+                            directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
                         }
-
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
+                        catch ( LdapException e )
                         {
-                            continue;
+                            LOG.warn( "Failed to delete the entry {} of replica event log {}",
+                                log.getConsumerEntryDn(), log.getName(), e );
                         }
+                    }
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to check the idle time of the log {}", log.getName(), e );
+                }
+            }
+        }
+    }
 
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
 
-                        long deleteCount = 0;
+    /**
+     * Purges the entries of the change log which have been sent to all the consumers. Nothing
+     * is purged as long as the log is smaller than the lowest consumer threshold count, or if
+     * a consumer has never been updated.
+     */
+    private void purge( long now )
+    {
+        try
+        {
+            String oldestCsn = null;
+            long thresholdCount = ReplicaEventLog.DEFAULT_PURGE_THRESHOLD_COUNT;
+            boolean first = true;
 
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
+            for ( ReplicaEventLog log : replicaLogMap.values() )
+            {
+                String lastSentCsn = log.getLastSentCsn();
 
-                        while ( cursor.next() )
-                        {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
-                        }
+                if ( lastSentCsn == null )
+                {
+                    LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
 
-                        cursor.close();
+                    return;
+                }
 
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
-                    }
+                if ( ( oldestCsn == null ) || ( lastSentCsn.compareTo( oldestCsn ) < 0 ) )
+                {
+                    oldestCsn = lastSentCsn;
                 }
-            }
 
-            try
-            {
-                synchronized ( lock )
+                if ( first || ( log.getPurgeThresholdCount() < thresholdCount ) )
                 {
-                    lock.wait( sleepTime );
+                    thresholdCount = log.getPurgeThresholdCount();
+                    first = false;
                 }
             }
-            catch ( InterruptedException e )
+
+            // Don't purge what a consumer doing its initial refresh will need
+            String pinnedCsn = changeLog.getOldestPinnedCsn();
+
+            if ( ( pinnedCsn != null ) && ( ( oldestCsn == null ) || ( pinnedCsn.compareTo( oldestCsn ) < 0 ) ) )
             {
-                LOG.warn( "ReplicaEventLogJanitor thread was interrupted, processing logs for cleanup", e );
+                oldestCsn = pinnedCsn;
+            }
+
+            if ( changeLog.count() < thresholdCount )
+            {
+                return;
+            }
+
+            LOG.debug( "starting to purge the log entries that are older than {} milliseconds and {}",
+                thresholdTime, oldestCsn );
+
+            long deleteCount = changeLog.purge( oldestCsn, now - thresholdTime );
+
+            LOG.debug( "purged {} messages from the log {}", deleteCount, changeLog.getName() );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to purge old entries from the log {}", changeLog.getName(), e );
+        }
+    }
+
+
+    /**
+     * Folds the redundant messages the consumers have not received yet. Nothing is done
+     * if a consumer has never been updated.
+     */
+    private void compact()
+    {
+        try
+        {
+            List<String> consumerCsns = new ArrayList<>();
+
+            for ( ReplicaEventLog log : replicaLogMap.values() )
+            {
+                String lastSentCsn = log.getLastSentCsn();
+
+                if ( lastSentCsn == null )
+                {
+                    LOG.debug( "last sent CSN is null for the replica {}, skipping compaction", log.getName() );
+
+                    return;
+                }
+
+                consumerCsns.add( lastSentCsn );
             }
+
+            long removedCount = changeLog.compact( consumerCsns );
+
+            LOG.debug( "compacted {} messages from the log {}", removedCount, changeLog.getName() );
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to compact the log {}", changeLog.getName(), e );
         }
     }
 
 
     public synchronized void removeEventLog( ReplicaEventLog replicaEventLog )
     {
-        directoryService.getEventService().removeListener( replicaEventLog.getPersistentListener() );
+        DirectoryListener listener = replicaEventLog.getPersistentListener();
+
+        if ( listener != null )
+        {
+            directoryService.getEventService().removeListener( listener );
+        }
+
         String name = replicaEventLog.getName();
         LOG.debug( "removed the persistent listener for replication event log {}", name );
 
@@ -191,10 +271,8 @@ public class ReplicaEventLogJanitor extends Thread
 
         try
         {
+            // The change log is shared, the purge will release the entries this consumer was holding
             replicaEventLog.stop();
-
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
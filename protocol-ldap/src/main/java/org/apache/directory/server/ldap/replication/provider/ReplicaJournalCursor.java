@@ -23,24 +23,33 @@ package org.apache.directory.server.ldap.replication.provider;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of the replication change log shared by all the consumers. It
+ * only returns the messages a given consumer is interested in : the messages which are
+ * newer than the consumer's CSN, which have not been received from this consumer, and
+ * which match the consumer's search criteria. A MODDN moving an entry out of the consumer's
+ * scope is returned as a DELETE of this entry.
+ * <br/>
+ * The log is read in small batches, so that the writers are not blocked while the messages
+ * are sent to the consumer.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,42 +64,54 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** the shared change log */
+    private ReplicaChangeLog changeLog;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the consumer reading the log */
+    private ReplicaEventLog consumer;
 
     /** the consumer's CSN based on which messages will be qualified for sending */
     private String consumerCsn;
 
-    private ReplicaEventMessage qualifiedEvtMsg;
+    /** The evaluator used to check that an entry matches the consumer filter */
+    private ExpressionEvaluator evaluator;
+
+    /** The messages read from the log and not yet returned */
+    private List<ReplicaEventMessage> batch;
+
+    /** The position in the current batch */
+    private int batchPos;
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
-    
+    /** The CSN of the last message read from the log */
+    private String lastReadCsn;
+
+    /** Tells if we have reached the end of the log */
+    private boolean exhausted;
+
+    private ReplicaEventMessage qualifiedEvtMsg;
 
 
     /**
-     * Creates a cursor on top of the given journal
-     * @param journal the log journal
+     * Creates a cursor on top of the given change log
+     * 
+     * @param changeLog the shared change log
+     * @param consumer the consumer reading the log
      * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception 
      */
-    public ReplicaJournalCursor( PartitionTxn partitionTxn, JdbmTable<String, ReplicaEventMessage> journal, String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaChangeLog changeLog, ReplicaEventLog consumer, String consumerCsn )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating ReplicaJournalCursor {}", this );
         }
 
-        this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.changeLog = changeLog;
+        this.consumer = consumer;
         this.consumerCsn = consumerCsn;
-        this.partitionTxn = partitionTxn;
+        this.lastReadCsn = consumerCsn;
+        this.evaluator = new ExpressionEvaluator( changeLog.getSchemaManager() );
+
+        changeLog.openReader( this, consumerCsn );
     }
 
 
@@ -157,11 +178,38 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * selects the current queue entry if qualified for sending to the consumer
+     * Tells if a DN is in the scope defined by the consumer's criteria
+     */
+    /* no qualifier */static boolean isInScope( Dn dn, NotificationCriteria criteria )
+    {
+        Dn base = criteria.getBase();
+
+        if ( base == null )
+        {
+            return true;
+        }
+
+        switch ( criteria.getScope() )
+        {
+            case OBJECT:
+                return dn.equals( base );
+
+            case ONELEVEL:
+                return base.equals( dn.getParent() );
+
+            default:
+                return dn.isDescendantOf( base ) || dn.equals( base );
+        }
+    }
+
+
+    /**
+     * Selects the message if qualified for sending to the consumer. A MODDN moving the entry
+     * out of the consumer's scope is transformed to a DELETE.
      * 
-     * @throws Exception
+     * @return The message to send, or null if the consumer is not interested in this message
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private ReplicaEventMessage qualify( ReplicaEventMessage evtMsg ) throws LdapException
     {
         LOG.debug( "ReplicaEventMessage: {}", evtMsg );
 
@@ -181,10 +229,56 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
                 LOG.debug( "event {} for dn {} is not qualified for sending", evt, evtMsg.getEntry().getDn() );
             }
 
-            return false;
+            return null;
         }
 
-        return true;
+        if ( consumer == null )
+        {
+            return evtMsg;
+        }
+
+        // Don't send back to a MMR peer the modifications it has sent us
+        if ( evtMsg.getReplicaId() == consumer.getId() )
+        {
+            LOG.debug( "event for dn {} has been received from the replica {}, skipping",
+                evtMsg.getEntry().getDn(), consumer.getId() );
+
+            return null;
+        }
+
+        NotificationCriteria criteria = consumer.getSearchCriteria();
+
+        if ( criteria == null )
+        {
+            return evtMsg;
+        }
+
+        Entry entry = evtMsg.getEntry();
+        Dn previousDn = evtMsg.getPreviousDn();
+        Dn dn = ( previousDn != null ) ? previousDn : entry.getDn();
+
+        if ( !isInScope( dn, criteria ) )
+        {
+            return null;
+        }
+
+        // A delta only contains the modified attributes : the filter is checked by the
+        // provider against the whole entry before sending it
+        if ( !evtMsg.isDelta() && !evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
+        {
+            return null;
+        }
+
+        if ( ( previousDn != null ) && !isInScope( entry.getDn(), criteria ) )
+        {
+            // The entry has been moved out of the consumer's scope
+            Entry deletedEntry = entry.clone();
+            deletedEntry.setDn( previousDn );
+
+            return new ReplicaEventMessage( ChangeType.DELETE, deletedEntry );
+        }
+
+        return evtMsg;
     }
 
 
@@ -202,35 +296,57 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        while ( true )
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
-
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
-
-            if ( skipQualifying )
+            if ( ( batch == null ) || ( batchPos == batch.size() ) )
             {
-                qualifiedEvtMsg = message;
-                return true;
+                if ( exhausted || !fetchBatch() )
+                {
+                    qualifiedEvtMsg = null;
+
+                    return false;
+                }
             }
 
-            boolean qualified = isQualified( csn, message );
+            ReplicaEventMessage message = batch.get( batchPos++ );
+            lastReadCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+
+            ReplicaEventMessage qualified = qualify( message );
 
-            if ( qualified )
+            if ( qualified != null )
             {
-                qualifiedEvtMsg = message;
+                qualifiedEvtMsg = qualified;
+
                 return true;
             }
-            else
-            {
-                journal.remove( partitionTxn, csn );
-            }
         }
+    }
+
 
-        qualifiedEvtMsg = null;
+    /**
+     * Reads the next messages from the log
+     * 
+     * @return false if there are no more messages to read
+     */
+    private boolean fetchBatch() throws LdapException
+    {
+        try
+        {
+            batch = changeLog.fetch( this, lastReadCsn, ReplicaChangeLog.DEFAULT_FETCH_SIZE );
+            batchPos = 0;
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
 
-        return false;
+        exhausted = batch.size() < ReplicaChangeLog.DEFAULT_FETCH_SIZE;
+
+        return !batch.isEmpty();
     }
 
 
@@ -254,7 +370,8 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        batch = null;
+        changeLog.closeReader( this );
         super.close();
     }
 
@@ -270,41 +387,12 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        batch = null;
+        changeLog.closeReader( this );
         super.close( cause );
     }
 
 
-    /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
-     */
-    protected void skipQualifyingWhileFetching()
-    {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
-    {
-        try
-        {
-            if ( qualifiedEvtMsg != null )
-            {
-                journal.remove( partitionTxn, qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            }
-        }
-        catch ( Exception e )
-        {
-
-        }
-    }
-
-
     /**
      * {@inheritDoc}
      */
@@ -29,14 +29,24 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncDone.SyncDoneValue;
@@ -57,6 +67,7 @@ import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
@@ -65,6 +76,9 @@ import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AbandonListener;
+import org.apache.directory.api.ldap.model.message.AbandonableRequest;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
 import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
 import org.apache.directory.api.ldap.model.message.LdapResult;
@@ -72,6 +86,7 @@ import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
 import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
@@ -92,10 +107,16 @@ import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
@@ -105,6 +126,7 @@ import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -146,6 +168,12 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private ReplicaEventLogJanitor logJanitor;
 
+    /** The change log shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
+    /** The listener storing the modifications into the change log */
+    private ChangeLogListener changeLogListener;
+
     private AttributeType replLogMaxIdleAT;
 
     private AttributeType replLogPurgeThresholdCountAT;
@@ -153,6 +181,21 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /** thread used for updating consumer infor */
     private Thread consumerInfoUpdateThread;
 
+    /** The evaluator used to check that a modified entry matches a consumer filter */
+    private ExpressionEvaluator evaluator;
+
+    /** The default number of streams used to send the initial content to a consumer */
+    private static final int DEFAULT_REFRESH_STREAMS = 4;
+
+    /** The number of ranges each stream should process, so that the streams stay busy */
+    private static final int RANGES_PER_STREAM = 8;
+
+    /** The marker telling a stream that there is no more range to process */
+    private static final Dn END_OF_RANGES = new Dn();
+
+    /** The number of concurrent streams used to send the initial content, when the consumer asks for it */
+    private int refreshStreams = DEFAULT_REFRESH_STREAMS;
+
     /**
      * Create a SyncReplRequestHandler empty instance
      */
@@ -161,6 +204,27 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * @return The number of concurrent streams used to send the initial content to a consumer
+     */
+    public int getRefreshStreams()
+    {
+        return refreshStreams;
+    }
+
+
+    /**
+     * Set the number of concurrent streams used to send the initial content to a consumer which
+     * asks for a parallel refresh. A value of 1 disables the parallel refresh.
+     *
+     * @param refreshStreams The number of streams
+     */
+    public void setRefreshStreams( int refreshStreams )
+    {
+        this.refreshStreams = Math.max( 1, refreshStreams );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -187,6 +251,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             objectClassAT = dirService.getSchemaManager()
                 .lookupAttributeTypeRegistry( SchemaConstants.OBJECT_CLASS_AT );
 
+            evaluator = new ExpressionEvaluator( dirService.getSchemaManager() );
+
+            // The consumers can ask for the modifications to be sent as deltas
+            ldapServer.getSupportedControls().add( ReplicaEventMessage.DELTA_CONTROL_OID );
+
+            // And for the initial content to be sent over parallel streams
+            ldapServer.getSupportedControls().add( SyncReplConfiguration.PARALLEL_REFRESH_CONTROL_OID );
+
             replLogMaxIdleAT = dirService.getSchemaManager()
                 .lookupAttributeTypeRegistry( SchemaConstants.ADS_REPL_LOG_MAX_IDLE );
 
@@ -204,14 +276,27 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 }
             }
 
+            // Open the change log shared by all the consumers
+            changeLog = new ReplicaChangeLog( dirService.getSchemaManager(), syncReplData );
+
             // Create the replication manager
             replicaUtil = new ReplConsumerManager( dirService );
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, changeLog );
             logJanitor.start();
 
+            // The change log listener must be registered before the consumers listeners, so that
+            // a modification is always logged before being pushed to the consumers
+            changeLogListener = new ChangeLogListener();
+            NotificationCriteria changeLogCriteria = new NotificationCriteria( dirService.getSchemaManager() );
+            changeLogCriteria.setBase( new Dn( dirService.getSchemaManager() ) );
+            changeLogCriteria.setScope( SearchScope.SUBTREE );
+            changeLogCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+            dirService.getEventService().addListener( changeLogListener, changeLogCriteria );
+
             registerPersistentSearches();
 
             cledListener = new ConsumerLogEntryChangeListener();
@@ -257,6 +342,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         EventService evtSrv = dirService.getEventService();
 
         evtSrv.removeListener( cledListener );
+        evtSrv.removeListener( changeLogListener );
         //first set the 'stop' flag
         logJanitor.stopCleaning();
         //then interrupt the janitor
@@ -279,6 +365,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             }
         }
 
+        try
+        {
+            changeLog.stop();
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.error( "Failed to close the replication change log", e );
+        }
+
         // flush the dirty repos
         storeReplicaInfo();
 
@@ -344,6 +439,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                     else
                     {
                         String consumerCsn = LdapProtocolUtils.getCsn( cookieString );
+                        clientMsgLog.setDeltaSupported( request.hasControl( ReplicaEventMessage.DELTA_CONTROL_OID ) );
                         doContentUpdate( session, request, clientMsgLog, consumerCsn );
                     }
                 }
@@ -408,15 +504,40 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         throw new IllegalStateException( I18n.err( I18n.ERR_686 ) );
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                List<Modification> modifications = null;
+
+                if ( replicaEventMessage.isDelta() )
+                {
+                    entry = resolveDelta( session, clientMsgLog, entry );
+
+                    if ( entry == null )
+                    {
+                        // The entry does not exist anymore, or does not match the consumer's filter
+                        clientMsgLog.setLastSentCsn( lastSentCsn );
+                        clientMsgLog.messageSent();
 
-                clientMsgLog.setLastSentCsn( lastSentCsn );
+                        continue;
+                    }
+
+                    if ( clientMsgLog.isDeltaSupported() )
+                    {
+                        modifications = replicaEventMessage.getModifications();
+                    }
+                }
+
+                sendSearchResultEntry( session, req, entry, syncStateType, modifications );
+
+                clientMsgLog.entrySent( lastSentCsn );
+                clientMsgLog.messageSent();
 
                 PROVIDER_LOG.debug( "The latest entry sent to the consumer {} has this CSN : {}", clientMsgLog.getId(),
                     lastSentCsn );
             }
 
             PROVIDER_LOG.debug( "All pending modifciations for replica {} processed", clientMsgLog.getId() );
+
+            // The messages which did not match the consumer's filter have been counted too
+            clientMsgLog.resetPendingMessages();
         }
         finally
         {
@@ -425,6 +546,61 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Gets the entry to send for a delta read from the change log. If the consumer does not
+     * accept the deltas, or if its filter has to be checked, the whole entry is read.
+     *
+     * @return The delta if the consumer accepts it, the whole entry otherwise, or null if the entry
+     * must not be sent
+     */
+    private Entry resolveDelta( LdapSession session, ReplicaEventLog replicaLog, Entry delta ) throws Exception
+    {
+        NotificationCriteria criteria = replicaLog.getSearchCriteria();
+        boolean checkFilter = ( criteria != null ) && ( criteria.getFilter() != null )
+            && !isObjectClassPresence( criteria.getFilter() );
+
+        if ( replicaLog.isDeltaSupported() && !checkFilter )
+        {
+            return delta;
+        }
+
+        Entry entry;
+
+        try
+        {
+            entry = session.getCoreSession().lookup( delta.getDn(), SchemaConstants.ALL_USER_ATTRIBUTES,
+                SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            // The entry has been deleted or renamed since, a following message will take care of it
+            return null;
+        }
+
+        if ( checkFilter && !evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
+        {
+            return null;
+        }
+
+        if ( replicaLog.isDeltaSupported() )
+        {
+            return delta;
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Tells if the filter is (objectClass=*)
+     */
+    private boolean isObjectClassPresence( ExprNode filter )
+    {
+        return ( filter instanceof PresenceNode )
+            && objectClassAT.equals( ( ( PresenceNode ) filter ).getAttributeType() );
+    }
+
+
     /**
      * process the update of the consumer, starting from the given LastEntryCSN the consumer
      * has sent with the sync request.
@@ -529,16 +705,31 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             contextCsn = partition.getContextCsn( partitionTxn );
         }
 
-        boolean refreshNPersist = isRefreshNPersist( request );
-
         // first register a ReplicaEventLog before starting the initial content refresh
-        // this is to log all the operations happen on DIT during initial content refresh
-        ReplicaEventLog replicaLog = null;
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        // the operations done on the DIT during the initial content refresh are stored in
+        // the change log, we pin the context CSN so that they don't get purged meanwhile
+        ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
+        replicaLog.setDeltaSupported( request.hasControl( ReplicaEventMessage.DELTA_CONTROL_OID ) );
+        changeLog.pin( contextCsn );
+
+        try
         {
-            replicaLog = createReplicaEventLog( partitionTxn, hostName, originalFilter );
+            sendInitialContent( session, request, replicaLog, modifiedFilter, contextCsn );
         }
+        finally
+        {
+            changeLog.unpin( contextCsn );
+        }
+    }
+
+
+    /**
+     * Send all the entries to the consumer, then the modifications done since the refresh has started
+     */
+    private void sendInitialContent( LdapSession session, SearchRequest request, ReplicaEventLog replicaLog,
+        ExprNode modifiedFilter, String contextCsn ) throws Exception
+    {
+        boolean refreshNPersist = isRefreshNPersist( request );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
         Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
@@ -579,7 +770,17 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         request.setFilter( initialContentFilter );
 
         // Now, do a search to get all the entries
-        SearchResultDone searchDoneResp = doSimpleSearch( session, request, replicaLog );
+        SearchResultDone searchDoneResp;
+
+        if ( ( refreshStreams > 1 ) && ( request.getScope() == SearchScope.SUBTREE )
+            && request.hasControl( SyncReplConfiguration.PARALLEL_REFRESH_CONTROL_OID ) )
+        {
+            searchDoneResp = doParallelSearch( session, request, replicaLog );
+        }
+        else
+        {
+            searchDoneResp = doSimpleSearch( session, request, replicaLog );
+        }
 
         if ( searchDoneResp.getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS )
         {
@@ -592,25 +793,31 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             {
                 PROVIDER_LOG
                     .debug( "Refresh&Persist requested : send the data being modified since the initial refresh" );
-                // Now, send the modified entries since the search has started
-                sendContentFromLog( session, request, replicaLog, contextCsn );
 
-                byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
+                // The listener can't push anything while we are reading the change log
+                synchronized ( replicaLog )
+                {
+                    // Now, send the modified entries since the search has started
+                    sendContentFromLog( session, request, replicaLog, contextCsn );
 
-                IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
-                intermResp.setResponseName( SyncInfoValue.OID );
+                    byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
 
-                SyncInfoValue syncInfo = new SyncInfoValueDecorator(
-                    ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
-                syncInfo.setCookie( cookie );
-                intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
+                    IntermediateResponse intermResp = new IntermediateResponseImpl( request.getMessageId() );
+                    intermResp.setResponseName( SyncInfoValue.OID );
 
-                PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
+                    SyncInfoValue syncInfo = new SyncInfoValueDecorator(
+                        ldapServer.getDirectoryService().getLdapCodecService(), SynchronizationInfoEnum.NEW_COOKIE );
+                    syncInfo.setCookie( cookie );
+                    intermResp.setResponseValue( ( ( SyncInfoValueDecorator ) syncInfo ).getValue() );
 
-                session.getIoSession().write( intermResp );
+                    PROVIDER_LOG.info( "Sending the intermediate response to consumer {}, {}", replicaLog, syncInfo );
+
+                    session.getIoSession().write( intermResp );
+
+                    // switch the handler mode to realtime push
+                    replicationListener.setPushInRealTime( refreshNPersist );
+                }
 
-                // switch the handler mode to realtime push
-                replicationListener.setPushInRealTime( refreshNPersist );
                 PROVIDER_LOG.debug( "e waiting for any modification for {}", replicaLog );
             }
             else
@@ -658,14 +865,26 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog )
         throws Exception
     {
-        PROVIDER_LOG.debug( "Simple Search {} for {}", req, session );
-        SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
+        return doSimpleSearch( session, req, req, replicaLog, null );
+    }
+
+
+    /**
+     * Process a search on the provider for a range of the initial content, and send the found
+     * entries as responses to the consumer's request. When the range is part of a parallel
+     * refresh, the size limit and the abandon listener are the ones of the whole refresh.
+     */
+    private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req, SearchRequest rangeReq,
+        ReplicaEventLog replicaLog, ParallelRefresh refresh ) throws Exception
+    {
+        PROVIDER_LOG.debug( "Simple Search {} for {}", rangeReq, session );
+        SearchResultDone searchDoneResp = ( SearchResultDone ) rangeReq.getResultResponse();
         LdapResult ldapResult = searchDoneResp.getLdapResult();
 
         // A normal search
         // Check that we have a cursor or not.
         // No cursor : do a search.
-        Cursor<Entry> cursor = session.getCoreSession().search( req );
+        Cursor<Entry> cursor = session.getCoreSession().search( rangeReq );
 
         // Position the cursor at the beginning
         cursor.beforeFirst();
@@ -676,19 +895,17 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
          */
         try
         {
-            // Get the size limits
-            // Don't bother setting size limits for administrators that don't ask for it
-            long serverLimit = getServerSizeLimit( session, req );
+            long sizeLimit = Long.MAX_VALUE;
 
-            long requestLimit = req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit();
+            if ( refresh == null )
+            {
+                sizeLimit = getSizeLimit( session, req );
+                req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
+            }
 
-            req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
             setTimeLimitsOnCursor( req, session, cursor );
-            PROVIDER_LOG.debug( "search operation requested size limit {}, server size limit {}", requestLimit,
-                serverLimit );
-            long sizeLimit = min( requestLimit, serverLimit );
 
-            readResults( session, req, ldapResult, cursor, sizeLimit, replicaLog );
+            readResults( session, req, ldapResult, cursor, sizeLimit, replicaLog, refresh );
         }
         finally
         {
@@ -711,11 +928,305 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Send the initial content over parallel streams. The replicated area is split in disjoint
+     * subtrees, using the number of descendants stored in the RDN index : a subtree which is too
+     * big is replaced by its children subtrees, once its root entry has been sent. The subtrees are
+     * then searched concurrently by the streams, each of them sending its entries sorted the same
+     * way as a simple search, so that the parents are always sent before their children.
+     */
+    private SearchResultDone doParallelSearch( final LdapSession session, final SearchRequest req,
+        final ReplicaEventLog replicaLog ) throws Exception
+    {
+        PROVIDER_LOG.debug( "Parallel Search {} for {} using {} streams", req, session, refreshStreams );
+        SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
+        Partition partition = dirService.getPartitionNexus().getPartition( req.getBase() );
+
+        Entry base = session.getCoreSession().lookup( req.getBase(), SchemaConstants.ENTRY_UUID_AT );
+        long maxRangeSize = getNbSubordinates( partition, base ) / ( refreshStreams * RANGES_PER_STREAM );
+
+        final ParallelRefresh refresh = new ParallelRefresh( getSizeLimit( session, req ),
+            refreshStreams * RANGES_PER_STREAM );
+        final BlockingQueue<Dn> ranges = refresh.ranges;
+        final AtomicReference<ResultCodeEnum> failure = refresh.failure;
+
+        // A single listener for all the streams, registered before they start
+        req.addAbandonListener( refresh );
+
+        ExecutorService executor = Executors.newFixedThreadPool( refreshStreams );
+        List<Future<Void>> streams = new ArrayList<Future<Void>>( refreshStreams );
+
+        for ( int i = 0; i < refreshStreams; i++ )
+        {
+            Future<Void> stream = executor.submit( new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    sendRanges( session, req, replicaLog, refresh );
+
+                    return null;
+                }
+            } );
+
+            streams.add( stream );
+        }
+
+        try
+        {
+            splitRange( session, req, replicaLog, partition, base, maxRangeSize, refresh );
+        }
+        catch ( Exception e )
+        {
+            // Let the streams stop
+            failure.compareAndSet( null, ResultCodeEnum.OTHER );
+
+            throw e;
+        }
+        finally
+        {
+            // Stop the streams once they have processed all the ranges
+            // The running streams drain the queue : clearing it could drop an end marker
+            for ( int i = 0; i < refreshStreams; i++ )
+            {
+                while ( !ranges.offer( END_OF_RANGES, 1, TimeUnit.SECONDS ) && !allDone( streams ) )
+                {
+                    PROVIDER_LOG.debug( "Waiting for the streams to pull the remaining ranges" );
+                }
+            }
+
+            executor.shutdown();
+        }
+
+        try
+        {
+            for ( Future<Void> stream : streams )
+            {
+                stream.get();
+            }
+        }
+        catch ( ExecutionException ee )
+        {
+            Throwable cause = ee.getCause();
+
+            if ( cause instanceof Exception )
+            {
+                throw ( Exception ) cause;
+            }
+
+            throw new LdapException( cause.getMessage(), cause );
+        }
+
+        if ( failure.get() != null )
+        {
+            searchDoneResp.getLdapResult().setResultCode( failure.get() );
+        }
+        else
+        {
+            searchDoneResp.getLdapResult().setResultCode( ResultCodeEnum.SUCCESS );
+        }
+
+        PROVIDER_LOG.debug( "Parallel search done" );
+
+        return searchDoneResp;
+    }
+
+
+    /**
+     * Tells if all the streams of a parallel refresh have stopped.
+     */
+    private boolean allDone( List<Future<Void>> streams )
+    {
+        for ( Future<Void> stream : streams )
+        {
+            if ( !stream.isDone() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Split the subtree starting at the given entry in ranges small enough to be sent in parallel.
+     * The ranges are pushed in a queue, the streams will pull them from it.
+     */
+    private void splitRange( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog,
+        Partition partition, Entry root, long maxRangeSize, ParallelRefresh refresh ) throws Exception
+    {
+        BlockingQueue<Dn> ranges = refresh.ranges;
+        AtomicReference<ResultCodeEnum> failure = refresh.failure;
+
+        if ( ( failure.get() != null ) || req.isAbandoned() || session.getIoSession().isClosing() )
+        {
+            return;
+        }
+
+        if ( getNbSubordinates( partition, root ) <= maxRangeSize )
+        {
+            // Don't wait forever if the streams have stopped
+            while ( !ranges.offer( root.getDn(), 1, TimeUnit.SECONDS ) )
+            {
+                if ( ( failure.get() != null ) || req.isAbandoned() )
+                {
+                    return;
+                }
+            }
+
+            return;
+        }
+
+        // The subtree is too big : send its root entry, then split its children
+        SearchResultDone rootDone = doSimpleSearch( session, req,
+            createRangeRequest( req, root.getDn(), SearchScope.OBJECT ), replicaLog, refresh );
+
+        if ( rootDone.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+        {
+            failure.compareAndSet( null, rootDone.getLdapResult().getResultCode() );
+
+            return;
+        }
+
+        SearchRequest childrenReq = new SearchRequestImpl();
+        childrenReq.setMessageId( req.getMessageId() );
+        childrenReq.setBase( root.getDn() );
+        childrenReq.setScope( SearchScope.ONELEVEL );
+        childrenReq.setFilter( new PresenceNode( objectClassAT ) );
+        childrenReq.setDerefAliases( req.getDerefAliases() );
+        childrenReq.addAttributes( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( req.hasControl( ManageDsaIT.OID ) )
+        {
+            childrenReq.addControl( req.getControl( ManageDsaIT.OID ) );
+        }
+
+        Cursor<Entry> cursor = session.getCoreSession().search( childrenReq );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                splitRange( session, req, replicaLog, partition, cursor.get(), maxRangeSize, refresh );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Send the entries of the ranges pulled from the queue, until the end marker is found.
+     */
+    private void sendRanges( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog,
+        ParallelRefresh refresh ) throws Exception
+    {
+        BlockingQueue<Dn> ranges = refresh.ranges;
+        AtomicReference<ResultCodeEnum> failure = refresh.failure;
+
+        try
+        {
+            while ( true )
+            {
+                Dn rangeDn = ranges.take();
+
+                if ( rangeDn == END_OF_RANGES )
+                {
+                    return;
+                }
+
+                if ( ( failure.get() != null ) || req.isAbandoned() || session.getIoSession().isClosing() )
+                {
+                    // Just drain the queue
+                    continue;
+                }
+
+                try
+                {
+                    SearchResultDone rangeDone = doSimpleSearch( session, req,
+                        createRangeRequest( req, rangeDn, SearchScope.SUBTREE ), replicaLog, refresh );
+
+                    if ( rangeDone.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                    {
+                        failure.compareAndSet( null, rangeDone.getLdapResult().getResultCode() );
+                    }
+                }
+                catch ( LdapNoSuchObjectException lnsoe )
+                {
+                    // The subtree has been deleted since the split, it will be sent from the log
+                    PROVIDER_LOG.debug( "The range {} does not exist anymore", rangeDn );
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            // Let the other streams stop
+            failure.compareAndSet( null, ResultCodeEnum.OTHER );
+
+            throw e;
+        }
+    }
+
+
+    /**
+     * Create a copy of the consumer's request, limited to a range of the initial content.
+     */
+    private SearchRequest createRangeRequest( SearchRequest req, Dn base, SearchScope scope )
+    {
+        SearchRequest rangeReq = new SearchRequestImpl();
+        rangeReq.setMessageId( req.getMessageId() );
+        rangeReq.setBase( base );
+        rangeReq.setScope( scope );
+        rangeReq.setFilter( req.getFilter() );
+        rangeReq.setDerefAliases( req.getDerefAliases() );
+        // The size limit is checked for the whole refresh, not per range
+        rangeReq.setSizeLimit( NO_SIZE_LIMIT );
+        rangeReq.setTimeLimit( req.getTimeLimit() );
+        rangeReq.setTypesOnly( req.getTypesOnly() );
+        rangeReq.addAttributes( req.getAttributes().toArray( new String[0] ) );
+        rangeReq.addAllControls( req.getControls().values().toArray( new Control[0] ) );
+
+        return rangeReq;
+    }
+
+
+    /**
+     * Get the number of entries below an entry, from the partition's RDN index.
+     */
+    private long getNbSubordinates( Partition partition, Entry entry ) throws Exception
+    {
+        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+        {
+            return partition.getSubordinates( partitionTxn, entry ).getNbSubordinates();
+        }
+    }
+
+
+    /**
+     * Get the number of entries which can be sent for a request, from the request and the server limits.
+     */
+    private long getSizeLimit( LdapSession session, SearchRequest req )
+    {
+        // Don't bother setting size limits for administrators that don't ask for it
+        long serverLimit = getServerSizeLimit( session, req );
+
+        long requestLimit = req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit();
+
+        PROVIDER_LOG.debug( "search operation requested size limit {}, server size limit {}", requestLimit,
+            serverLimit );
+
+        return min( requestLimit, serverLimit );
+    }
+
+
     /**
      * Process the results get from a search request. We will send them to the client.
      */
     private void readResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
-        Cursor<Entry> cursor, long sizeLimit, ReplicaEventLog replicaLog ) throws Exception
+        Cursor<Entry> cursor, long sizeLimit, ReplicaEventLog replicaLog, ParallelRefresh refresh )
+        throws Exception
     {
         long count = 0;
 
@@ -737,12 +1248,21 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 break;
             }
 
+            if ( ( refresh != null ) && !refresh.acquireEntry() )
+            {
+                // The limit has been reached by the whole refresh
+                PROVIDER_LOG.debug( "Sent {} entries for {}, the size limit is reached", count, replicaLog );
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+
+                return;
+            }
+
             Entry entry = cursor.get();
 
-            sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD );
+            sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD, null );
 
             String lastSentCsn = entry.get( csnAT ).getString();
-            replicaLog.setLastSentCsn( lastSentCsn );
+            replicaLog.entrySent( lastSentCsn );
 
             count++;
         }
@@ -769,7 +1289,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * SyncState control.
      */
     private void sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
-        SyncStateTypeEnum syncStateType ) throws Exception
+        SyncStateTypeEnum syncStateType, List<Modification> modifications ) throws Exception
     {
         Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
 
@@ -789,6 +1309,13 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         Response resp = generateResponse( session, req, entry );
         resp.addControl( syncStateControl );
 
+        if ( modifications != null )
+        {
+            // The entry only contains the DN, entryUUID and entryCSN, the control the modifications
+            resp.addControl( ReplicaEventMessage.createDeltaControl(
+                ldapServer.getDirectoryService().getLdapCodecService(), modifications ) );
+        }
+
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
         session.getIoSession().write( resp );
     }
@@ -984,12 +1511,67 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * Register a consumer which has been bootstrapped from a snapshot of the partition holding
+     * the given base. The consumer will replicate the whole partition, and it will be sent the
+     * modifications done since the given context CSN when it connects with the returned cookie.
+     *
+     * @param session The consumer's session
+     * @param base The replicated base
+     * @param contextCsn The partition's context CSN when the snapshot was started
+     * @return The cookie the consumer has to use
+     * @throws Exception If the consumer can't be registered
+     */
+    public byte[] registerSnapshotConsumer( LdapSession session, Dn base, String contextCsn ) throws Exception
+    {
+        InetSocketAddress address = ( InetSocketAddress ) session.getIoSession().getRemoteAddress();
+        String hostName = address.getAddress().getHostName();
+        ExprNode filter = new PresenceNode( objectClassAT );
+
+        ReplicaEventLog replicaLog = createReplicaEventLog( hostName, filter.toString() );
+        replicaLog.setLastSentCsn( contextCsn );
+
+        // The modifications done since the snapshot has started will be sent from the log
+        Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
+
+        NotificationCriteria criteria = new NotificationCriteria( dirService.getSchemaManager() );
+        criteria.setBase( base );
+        criteria.setFilter( new AndNode( filter, new GreaterEqNode( csnAT, contexCsnValue ) ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+        replicaLog.setSearchCriteria( criteria );
+
+        // The consumer is not connected yet, the listener will be attached to its session later
+        SyncReplSearchListener replicationListener = new SyncReplSearchListener( null, null, replicaLog, false );
+        replicaLog.setPersistentListener( replicationListener );
+
+        dirService.getEventService().addListener( replicationListener, criteria );
+
+        replicaUtil.addConsumerEntry( replicaLog );
+        replicaLogMap.put( replicaLog.getId(), replicaLog );
+
+        PROVIDER_LOG.info( "Registered the consumer {} bootstrapped from a snapshot at {}", replicaLog, contextCsn );
+
+        return LdapProtocolUtils.createCookie( replicaLog.getId(), contextCsn );
+    }
+
+
     public Map<Integer, ReplicaEventLog> getReplicaLogMap()
     {
         return replicaLogMap;
     }
 
 
+    /**
+     * @return The change log shared by all the consumers
+     */
+    public ReplicaChangeLog getChangeLog()
+    {
+        return changeLog;
+    }
+
+
     private EqualityNode<String> newIsReferralEqualityNode( LdapSession session ) throws Exception
     {
         EqualityNode<String> ocIsReferral = new EqualityNode<String>( SchemaConstants.OBJECT_CLASS_AT, 
@@ -1033,7 +1615,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     {
         try
         {
-            List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs();
+            List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs( changeLog );
             Set<String> eventLogNames = new HashSet<>();
 
             if ( !eventLogs.isEmpty() )
@@ -1056,14 +1638,33 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "no replica logs found to initialize" );
             }
 
-            // remove unused logs
+            // The consumers used to have their own log : copy the messages of the logs still
+            // in use into the shared change log, and remove all of them
+            Set<String> oldLogNames = new HashSet<>();
+
             for ( File f : getAllReplJournalNames() )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
+                String name = f.getName();
+                int extPos = name.lastIndexOf( '.' );
+
+                if ( ( extPos > ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX.length() ) )
+                {
+                    name = name.substring( 0, extPos );
+                }
+
+                oldLogNames.add( name );
+            }
+
+            for ( String name : oldLogNames )
+            {
+                if ( eventLogNames.contains( name ) )
                 {
-                    f.delete();
-                    PROVIDER_LOG.info( "removed unused replication event log {}", f );
+                    changeLog.importJournal( new File( syncReplData, name ) );
                 }
+
+                new File( syncReplData, name + ".db" ).delete();
+                new File( syncReplData, name + ".lg" ).delete();
+                PROVIDER_LOG.info( "removed the replication event log {}", name );
             }
         }
         catch ( Exception e )
@@ -1151,13 +1752,13 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /**
      * Create a new ReplicaEventLog. Each replica will have a unique ID, created by the provider.
      */
-    private ReplicaEventLog createReplicaEventLog( PartitionTxn partitionTxn, String hostName, String filter ) throws Exception
+    private ReplicaEventLog createReplicaEventLog( String hostName, String filter )
     {
         int replicaId = replicaCount.incrementAndGet();
 
         PROVIDER_LOG.debug( "creating a new event log for the replica with id {}", replicaId );
 
-        ReplicaEventLog replicaLog = new ReplicaEventLog( partitionTxn, dirService, replicaId );
+        ReplicaEventLog replicaLog = new ReplicaEventLog( changeLog, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
 
@@ -1285,4 +1886,174 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             }
         }
     } // end of listener class
+
+
+    /**
+     * A listener storing all the modifications done on the server into the change log shared by
+     * all the consumers. Each modification is stored once, whatever the number of consumers.
+     */
+    private class ChangeLogListener extends DirectoryListenerAdapter
+    {
+        /**
+         * Stores a modification into the change log
+         */
+        private void log( AbstractChangeOperationContext opCtx, ChangeType changeType, Entry entry, Dn previousDn )
+        {
+            if ( SyncReplSearchListener.isConfigEntry( entry ) || opCtx.isGenerateNoReplEvt() )
+            {
+                return;
+            }
+
+            ReplicaEventMessage message = new ReplicaEventMessage( changeType, entry );
+            message.setPreviousDn( previousDn );
+
+            log( opCtx, message );
+        }
+
+
+        /**
+         * Stores a message into the change log
+         */
+        private void log( AbstractChangeOperationContext opCtx, ReplicaEventMessage message )
+        {
+            if ( opCtx.isReplEvent() )
+            {
+                // Keep track of the replica the modification comes from, we don't want to send it back
+                message.setReplicaId( opCtx.getRid() );
+            }
+
+            changeLog.log( message );
+
+            for ( ReplicaEventLog replicaLog : replicaLogMap.values() )
+            {
+                replicaLog.messageLogged( message );
+            }
+        }
+
+
+        @Override
+        public boolean isSynchronous()
+        {
+            // The modification must be logged before being pushed to the consumers
+            return true;
+        }
+
+
+        @Override
+        public void entryAdded( AddOperationContext addContext )
+        {
+            log( addContext, ChangeType.ADD, addContext.getEntry(), null );
+        }
+
+
+        @Override
+        public void entryDeleted( DeleteOperationContext deleteContext )
+        {
+            log( deleteContext, ChangeType.DELETE, deleteContext.getEntry(), null );
+        }
+
+
+        @Override
+        public void entryModified( ModifyOperationContext modifyContext )
+        {
+            Entry alteredEntry = modifyContext.getAlteredEntry();
+
+            if ( SyncReplSearchListener.isConfigEntry( alteredEntry ) || modifyContext.isGenerateNoReplEvt() )
+            {
+                return;
+            }
+
+            try
+            {
+                // Only store the modified attributes
+                log( modifyContext, ReplicaEventMessage.createDelta( dirService.getSchemaManager(), alteredEntry,
+                    modifyContext.getModItems() ) );
+            }
+            catch ( LdapException le )
+            {
+                PROVIDER_LOG.warn( "Cannot create a delta for the modification of {}, storing the whole entry",
+                    alteredEntry.getDn(), le );
+                log( modifyContext, ChangeType.MODIFY, alteredEntry, null );
+            }
+        }
+
+
+        @Override
+        public void entryMoved( MoveOperationContext moveContext )
+        {
+            log( moveContext, ChangeType.MODDN, moveContext.getModifiedEntry(), moveContext.getDn() );
+        }
+
+
+        @Override
+        public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+        {
+            log( moveAndRenameContext, ChangeType.MODDN, moveAndRenameContext.getModifiedEntry(),
+                moveAndRenameContext.getDn() );
+        }
+
+
+        @Override
+        public void entryRenamed( RenameOperationContext renameContext )
+        {
+            log( renameContext, ChangeType.MODDN, renameContext.getModifiedEntry(), renameContext.getDn() );
+        }
+    }
+
+
+    /**
+     * The state shared by the streams of a parallel refresh : the ranges to send, the first
+     * failure, and the number of entries sent so far, so that the size limit applies to the
+     * whole refresh. It is also the only abandon listener registered for the request.
+     */
+    private static class ParallelRefresh implements AbandonListener
+    {
+        /** The ranges waiting for a stream */
+        private final BlockingQueue<Dn> ranges;
+
+        /** The first failure met by a stream */
+        private final AtomicReference<ResultCodeEnum> failure = new AtomicReference<ResultCodeEnum>();
+
+        /** The maximum number of entries to send */
+        private final long sizeLimit;
+
+        /** The number of entries sent by all the streams */
+        private final AtomicLong nbSent = new AtomicLong();
+
+
+        private ParallelRefresh( long sizeLimit, int capacity )
+        {
+            this.sizeLimit = sizeLimit;
+            ranges = new ArrayBlockingQueue<Dn>( capacity );
+        }
+
+
+        /**
+         * Reserve one entry in the size limit.
+         *
+         * @return <tt>false</tt> if the limit has been reached
+         */
+        private boolean acquireEntry()
+        {
+            if ( nbSent.incrementAndGet() <= sizeLimit )
+            {
+                return true;
+            }
+
+            nbSent.decrementAndGet();
+
+            return false;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        public void requestAbandoned( AbandonableRequest req )
+        {
+            // Stop the split, the streams will skip the ranges not yet sent
+            PROVIDER_LOG.debug( "The parallel refresh for message {} has been abandoned", req.getMessageId() );
+            failure.compareAndSet( null, ResultCodeEnum.CANCELED );
+        }
+    }
 }
@@ -56,9 +56,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A listener associated with the replication system. It does send the modifications to the 
- * consumer, if it's connected, or store the data into a queue for a later transmission.
- * 
- * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery
+ * consumer, if it's connected. The modifications are stored once for all the consumers in
+ * the shared change log, which is read when the consumer reconnects.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -203,8 +202,8 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     
 
     /**
-     * Process a ADD operation. The added entry is pushed to the consumer if it's connected,
-     * or stored in the consumer's queue if it's not.
+     * Process a ADD operation. The added entry is pushed to the consumer if it's connected.
+     * The modification has already been stored in the change log shared by all the consumers.
      * 
      * @param addContext The Addition operation context
      */
@@ -219,22 +218,21 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "ADD Listener : log " + entry.getDn() );
-            // we log it first
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry ) );
-
-            // We send the added entry directly to the consumer if it's connected
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-                // Construct a new SearchResultEntry
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
-                // Create the control which will be added to the response.
-                SyncStateValue syncAdd = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.ADD, entry );
-                
-                sendResult( resultEntry, entry, EventType.ADD, syncAdd );
+                // We send the added entry directly to the consumer if it's connected
+                if ( canPush( entry ) )
+                {
+                    // Construct a new SearchResultEntry
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( entry.getDn() );
+                    resultEntry.setEntry( entry );
+
+                    // Create the control which will be added to the response.
+                    SyncStateValue syncAdd = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.ADD, entry );
+                    
+                    sendResult( resultEntry, entry, EventType.ADD, syncAdd );
+                }
             }
         }
         catch ( LdapInvalidAttributeValueException e )
@@ -246,8 +244,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process a Delete operation. A delete event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * Process a Delete operation. A delete event is send to the consumer if it's connected.
      * 
      * @param deleteContext The delete operation context
      */
@@ -271,18 +268,18 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     {
         try
         {
-            //System.out.println( "DELETE Listener : log " + entry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry ) );
-            
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
+                if ( canPush( entry ) )
+                {
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( entry.getDn() );
+                    resultEntry.setEntry( entry );
 
-                SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
+                    SyncStateValue syncDelete = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.DELETE, entry );
 
-                sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
+                    sendResult( resultEntry, entry, EventType.DELETE, syncDelete );
+                }
             }
         }
         catch ( LdapInvalidAttributeValueException e )
@@ -294,8 +291,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process a Modify operation. A modify event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * Process a Modify operation. A modify event is send to the consumer if it's connected.
      * 
      * @param modifyContext The modify operation context
      */
@@ -310,19 +306,31 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
-            
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( modifyContext.getDn() );
-                resultEntry.setEntry( alteredEntry );
-
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, alteredEntry );
-
-                sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
+                if ( canPush( alteredEntry ) )
+                {
+                    DirectoryService directoryService = session.getCoreSession().getDirectoryService();
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( modifyContext.getDn() );
+
+                    if ( consumerMsgLog.isDeltaSupported() )
+                    {
+                        // Only send the modifications
+                        resultEntry.setEntry( ReplicaEventMessage.createDeltaEntry( directoryService.getSchemaManager(),
+                            alteredEntry ) );
+                        resultEntry.addControl( ReplicaEventMessage.createDeltaControl(
+                            directoryService.getLdapCodecService(), modifyContext.getModItems() ) );
+                    }
+                    else
+                    {
+                        resultEntry.setEntry( alteredEntry );
+                    }
+
+                    SyncStateValue syncModify = createControl( directoryService, SyncStateTypeEnum.MODIFY, alteredEntry );
+
+                    sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
+                }
             }
         }
         catch ( Exception e )
@@ -333,8 +341,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process a Move operation. A MODDN event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * Process a Move operation. A MODDN event is send to the consumer if it's connected.
      * 
      * @param moveContext The move operation context
      */
@@ -356,18 +363,18 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
                 return;
             }
 
-            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( moveContext.getDn() );
-                resultEntry.setEntry( entry );
+                if ( canPush( entry ) )
+                {
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( moveContext.getDn() );
+                    resultEntry.setEntry( entry );
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+                    SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE, syncModify );
+                    sendResult( resultEntry, entry, EventType.MOVE, syncModify );
+                }
             }
         }
         catch ( Exception e )
@@ -378,8 +385,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process a MoveAndRename operation. A MODDN event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * Process a MoveAndRename operation. A MODDN event is send to the consumer if it's connected.
      * 
      * @param moveAndRenameContext The move and rename operation context
      */
@@ -401,20 +407,18 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
                 return;
             }
 
-
-            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
-            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
+                if ( canPush( entry ) )
+                {
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( entry.getDn() );
+                    resultEntry.setEntry( entry );
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+                    SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
 
-                sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
+                    sendResult( resultEntry, entry, EventType.MOVE_AND_RENAME, syncModify );
+                }
             }
         }
         catch ( Exception e )
@@ -425,8 +429,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
 
     /**
-     * Process a Rename operation. A MODDN event is send to the consumer, or stored in its 
-     * queue if the consumer is not connected.
+     * Process a Rename operation. A MODDN event is send to the consumer if it's connected.
      * 
      * @param renameContext The rename operation context
      */
@@ -442,22 +445,21 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            // should always send the original entry cause the consumer perform the modDn operation there
-            //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
-            if ( pushInRealTime )
+            synchronized ( consumerMsgLog )
             {
-                SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
-                resultEntry.setObjectName( entry.getDn() );
-                resultEntry.setEntry( entry );
-
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
-                
-                // In this case, the cookie is different
-                syncModify.setCookie( getCookie( entry ) );
-
-                sendResult( resultEntry, entry, EventType.RENAME, syncModify );
+                if ( canPush( entry ) )
+                {
+                    SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
+                    resultEntry.setObjectName( entry.getDn() );
+                    resultEntry.setEntry( entry );
+
+                    SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODDN, entry );
+                    
+                    // In this case, the cookie is different
+                    syncModify.setCookie( getCookie( entry ) );
+
+                    sendResult( resultEntry, entry, EventType.RENAME, syncModify );
+                }
             }
         }
         catch ( Exception e )
@@ -467,6 +469,29 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * Tells if the entry has to be pushed to the consumer : it must be connected, and the
+     * entry must not have already been sent from the change log. This method must be called
+     * while holding the consumer's lock, which is also held while the change log is sent.
+     */
+    private boolean canPush( Entry entry ) throws LdapInvalidAttributeValueException
+    {
+        if ( !pushInRealTime )
+        {
+            return false;
+        }
+
+        String lastSentCsn = consumerMsgLog.getLastSentCsn();
+
+        if ( lastSentCsn == null )
+        {
+            return true;
+        }
+
+        return entry.get( SchemaConstants.ENTRY_CSN_AT ).getString().compareTo( lastSentCsn ) > 0;
+    }
+
+
     /**
      * @return true if the entries are sent to the consumer in real time
      */
@@ -521,7 +546,8 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             try
             {
                 // if successful update the last sent CSN
-                consumerMsgLog.setLastSentCsn( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                consumerMsgLog.entrySent( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+                consumerMsgLog.messageSent();
             }
             catch ( Exception e )
             {
@@ -538,7 +564,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param entry the entry
      * @return true if the entry belongs to ou=config partition, false otherwise
      */
-    private boolean isConfigEntry( Entry entry )
+    static boolean isConfigEntry( Entry entry )
     {
         // we can do Dn.isDescendantOf but in this part of the
         // server the DNs are all normalized and a simple string compare should
@@ -0,0 +1,169 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequestImpl;
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.BindRequestImpl;
+import org.apache.directory.api.ldap.model.message.ExtendedRequestImpl;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.server.ldap.AdmissionControlExecutor.OperationClass;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Test;
+
+
+/**
+ * Tests the AdmissionControlExecutor class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AdmissionControlExecutorTest
+{
+    /**
+     * A session keeping the written messages
+     */
+    private static class RecordingSession extends DummySession
+    {
+        private List<Object> written = new CopyOnWriteArrayList<Object>();
+
+
+        @Override
+        public WriteFuture write( Object message )
+        {
+            written.add( message );
+
+            return null;
+        }
+    }
+
+
+    /**
+     * A request received on a session, waiting for a latch before being processed
+     */
+    private static IoEvent received( IoSession session, Object message, final CountDownLatch release,
+        final CountDownLatch done )
+    {
+        return new IoEvent( IoEventType.MESSAGE_RECEIVED, session, message )
+        {
+            @Override
+            public void fire()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+
+    private static SearchRequest search( int messageId, SearchScope scope )
+    {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setMessageId( messageId );
+        searchRequest.setScope( scope );
+
+        return searchRequest;
+    }
+
+
+    @Test
+    public void testClassify()
+    {
+        assertEquals( OperationClass.BIND, AdmissionControlExecutor.classify( new BindRequestImpl() ) );
+        assertEquals( OperationClass.LOOKUP, AdmissionControlExecutor.classify( search( 1, SearchScope.OBJECT ) ) );
+        assertEquals( OperationClass.SEARCH, AdmissionControlExecutor.classify( search( 1, SearchScope.ONELEVEL ) ) );
+        assertEquals( OperationClass.SEARCH, AdmissionControlExecutor.classify( search( 1, SearchScope.SUBTREE ) ) );
+        assertEquals( OperationClass.WRITE, AdmissionControlExecutor.classify( new AddRequestImpl() ) );
+        assertEquals( OperationClass.EXTENDED, AdmissionControlExecutor.classify( new ExtendedRequestImpl() ) );
+        assertEquals( OperationClass.CONTROL, AdmissionControlExecutor.classify( new AbandonRequestImpl() ) );
+        assertEquals( OperationClass.CONTROL, AdmissionControlExecutor.classify( null ) );
+    }
+
+
+    @Test
+    public void testSaturatedLaneRejectsRequests() throws Exception
+    {
+        AdmissionControlExecutor executor = new AdmissionControlExecutor();
+        executor.configure( OperationClass.SEARCH, 1, 1 );
+
+        try
+        {
+            RecordingSession session = new RecordingSession();
+            CountDownLatch release = new CountDownLatch( 1 );
+            CountDownLatch searchesDone = new CountDownLatch( 2 );
+
+            // The first search blocks the only thread of the lane, the second one is queued
+            executor.execute( received( session, search( 1, SearchScope.SUBTREE ), release, searchesDone ) );
+            executor.execute( received( session, search( 2, SearchScope.SUBTREE ), release, searchesDone ) );
+
+            // The third one is rejected
+            executor.execute( received( session, search( 3, SearchScope.SUBTREE ), release, searchesDone ) );
+
+            assertEquals( 1L, executor.getNbRejected( OperationClass.SEARCH ) );
+            assertEquals( 1, executor.getQueueDepth( OperationClass.SEARCH ) );
+            assertEquals( 1, session.written.size() );
+
+            SearchResultDone done = ( SearchResultDone ) session.written.get( 0 );
+            assertEquals( 3, done.getMessageId() );
+            assertEquals( ResultCodeEnum.BUSY, done.getLdapResult().getResultCode() );
+
+            // A bind is not delayed by the saturated search lane
+            CountDownLatch bindDone = new CountDownLatch( 1 );
+            BindRequestImpl bindRequest = new BindRequestImpl();
+            executor.execute( received( session, bindRequest, new CountDownLatch( 0 ), bindDone ) );
+            assertTrue( bindDone.await( 10, TimeUnit.SECONDS ) );
+
+            release.countDown();
+            assertTrue( searchesDone.await( 10, TimeUnit.SECONDS ) );
+            assertEquals( 2L, executor.getNbProcessed( OperationClass.SEARCH ) );
+            assertEquals( 0L, executor.getNbRejected( OperationClass.BIND ) );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequestImpl;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.junit.Test;
+
+
+/**
+ * Tests the ClientRateLimitFilter class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ClientRateLimitFilterTest
+{
+    /**
+     * A session keeping the messages written and received
+     */
+    private static class RecordingSession extends DummySession
+    {
+        private List<Object> written = new CopyOnWriteArrayList<Object>();
+        private List<Object> received = new CopyOnWriteArrayList<Object>();
+
+
+        private RecordingSession( ClientRateLimitFilter filter, String address )
+        {
+            setRemoteAddress( new InetSocketAddress( address, 10389 ) );
+            setHandler( new IoHandlerAdapter()
+            {
+                @Override
+                public void messageReceived( IoSession session, Object message )
+                {
+                    received.add( message );
+                }
+            } );
+            getFilterChain().addLast( ClientRateLimitFilter.NAME, filter );
+            getFilterChain().fireSessionCreated();
+        }
+
+
+        @Override
+        public WriteFuture write( Object message )
+        {
+            written.add( message );
+
+            return null;
+        }
+    }
+
+
+    private static SearchRequest search( int messageId )
+    {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setMessageId( messageId );
+        searchRequest.setScope( SearchScope.SUBTREE );
+
+        return searchRequest;
+    }
+
+
+    /**
+     * Writes the final response of a request through the filter chain
+     */
+    private static void done( IoSession session, SearchRequest searchRequest )
+    {
+        session.getFilterChain().fireFilterWrite( new DefaultWriteRequest( searchRequest.getResultResponse() ) );
+    }
+
+
+    @Test
+    public void testConnectionLimit()
+    {
+        ClientRateLimitFilter filter = new ClientRateLimitFilter();
+        filter.setMaxConnectionsPerAddress( 2 );
+
+        RecordingSession session1 = new RecordingSession( filter, "127.0.0.1" );
+        RecordingSession session2 = new RecordingSession( filter, "127.0.0.1" );
+        RecordingSession session3 = new RecordingSession( filter, "127.0.0.1" );
+        RecordingSession other = new RecordingSession( filter, "127.0.0.2" );
+
+        assertFalse( session1.isClosing() );
+        assertFalse( session2.isClosing() );
+        assertTrue( session3.isClosing() );
+        assertFalse( other.isClosing() );
+        assertEquals( 1L, filter.getNbRejectedConnections() );
+        assertEquals( 2, filter.getNbClients() );
+
+        // Once a connection has been closed, the client can connect again
+        session1.getFilterChain().fireSessionClosed();
+        assertFalse( new RecordingSession( filter, "127.0.0.1" ).isClosing() );
+
+        other.getFilterChain().fireSessionClosed();
+        assertEquals( 1, filter.getNbClients() );
+    }
+
+
+    @Test
+    public void testInFlightLimit()
+    {
+        ClientRateLimitFilter filter = new ClientRateLimitFilter();
+        filter.setMaxInFlightPerAddress( 1 );
+        RecordingSession session = new RecordingSession( filter, "127.0.0.1" );
+
+        SearchRequest search1 = search( 1 );
+        session.getFilterChain().fireMessageReceived( search1 );
+        session.getFilterChain().fireMessageReceived( search( 2 ) );
+
+        // The second search is rejected, the abandon requests are never limited
+        session.getFilterChain().fireMessageReceived( new AbandonRequestImpl( 5 ) );
+        assertEquals( 2, session.received.size() );
+        assertEquals( 1L, filter.getNbRejectedOperations() );
+        assertEquals( 1, session.written.size() );
+
+        SearchResultDone busy = ( SearchResultDone ) session.written.get( 0 );
+        assertEquals( 2, busy.getMessageId() );
+        assertEquals( ResultCodeEnum.BUSY, busy.getLdapResult().getResultCode() );
+
+        // Once the first search is done, a new one can be processed
+        done( session, search1 );
+        SearchRequest search3 = search( 3 );
+        session.getFilterChain().fireMessageReceived( search3 );
+        assertEquals( 3, session.received.size() );
+
+        // An abandoned search may never get a response
+        session.getFilterChain().fireMessageReceived( new AbandonRequestImpl( 3 ) );
+        session.getFilterChain().fireMessageReceived( search( 4 ) );
+        assertEquals( 5, session.received.size() );
+        assertEquals( 1L, filter.getNbRejectedOperations() );
+    }
+
+
+    @Test
+    public void testOperationRateLimit()
+    {
+        ClientRateLimitFilter filter = new ClientRateLimitFilter();
+        filter.setMaxOperationsPerAddress( 5 );
+        RecordingSession session = new RecordingSession( filter, "127.0.0.1" );
+
+        for ( int i = 1; i <= 20; i++ )
+        {
+            SearchRequest searchRequest = search( i );
+            session.getFilterChain().fireMessageReceived( searchRequest );
+            done( session, searchRequest );
+        }
+
+        // The burst is 5 operations, a few more may have been allowed if the test is slow
+        assertTrue( session.received.size() >= 5 );
+        assertTrue( session.received.size() < 10 );
+        assertEquals( 20L, session.received.size() + filter.getNbThrottledOperations() );
+        assertEquals( 0L, filter.getNbRejectedOperations() );
+    }
+}
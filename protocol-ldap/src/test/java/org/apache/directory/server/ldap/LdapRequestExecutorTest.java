@@ -0,0 +1,269 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
+import org.junit.Test;
+
+
+/**
+ * Tests the LdapRequestExecutor class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutorTest
+{
+    /**
+     * A request waiting for a latch, counting down another latch when done
+     */
+    private static IoEvent request( IoSession session, final CountDownLatch release, final CountDownLatch done )
+    {
+        return new IoEvent( IoEventType.MESSAGE_RECEIVED, session, null )
+        {
+            @Override
+            public void fire()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+
+    /**
+     * A request sleeping for some time, like a request blocked on the disk
+     */
+    private static IoEvent slowRequest( IoSession session, final long delay, final CountDownLatch done )
+    {
+        return new IoEvent( IoEventType.MESSAGE_RECEIVED, session, null )
+        {
+            @Override
+            public void fire()
+            {
+                try
+                {
+                    Thread.sleep( delay );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+
+    @Test
+    public void testSessionLimitSuspendsReads() throws Exception
+    {
+        LdapRequestExecutor executor = new LdapRequestExecutor( 100, 2 );
+
+        try
+        {
+            IoSession session = new DummySession();
+            CountDownLatch release = new CountDownLatch( 1 );
+            CountDownLatch done = new CountDownLatch( 2 );
+
+            executor.execute( request( session, release, done ) );
+            assertFalse( session.isReadSuspended() );
+
+            executor.execute( request( session, release, done ) );
+            assertTrue( session.isReadSuspended() );
+
+            release.countDown();
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+
+            // The counters are updated after the request has been processed
+            long deadline = System.currentTimeMillis() + 10000L;
+
+            while ( ( executor.getInFlight() > 0 ) && ( System.currentTimeMillis() < deadline ) )
+            {
+                Thread.sleep( 10L );
+            }
+
+            assertEquals( 0, executor.getInFlight() );
+            assertFalse( session.isReadSuspended() );
+            assertEquals( 1L, executor.getNbSuspensions() );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testGlobalLimitQueuesRequests() throws Exception
+    {
+        LdapRequestExecutor executor = new LdapRequestExecutor( 2, 10 );
+
+        try
+        {
+            IoSession[] sessions = new IoSession[]
+                { new DummySession(), new DummySession(), new DummySession() };
+            CountDownLatch release = new CountDownLatch( 1 );
+            CountDownLatch done = new CountDownLatch( 3 );
+
+            for ( IoSession session : sessions )
+            {
+                executor.execute( request( session, release, done ) );
+            }
+
+            // The third request has been queued, and its session suspended
+            assertFalse( sessions[0].isReadSuspended() );
+            assertFalse( sessions[1].isReadSuspended() );
+            assertTrue( sessions[2].isReadSuspended() );
+            assertEquals( 3, executor.getInFlight() );
+            assertTrue( executor.getNbThreads() <= 2 );
+
+            release.countDown();
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+
+            long deadline = System.currentTimeMillis() + 10000L;
+
+            while ( ( executor.getInFlight() > 0 ) && ( System.currentTimeMillis() < deadline ) )
+            {
+                Thread.sleep( 10L );
+            }
+
+            assertFalse( sessions[2].isReadSuspended() );
+            assertEquals( 3, executor.getMaxInFlightReached() );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testFullQueueRunsInCaller() throws Exception
+    {
+        LdapRequestExecutor executor = new LdapRequestExecutor( 1, 10, 1 );
+
+        try
+        {
+            CountDownLatch release = new CountDownLatch( 1 );
+            CountDownLatch done = new CountDownLatch( 2 );
+            final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+
+            // The first request is running, the second one is queued
+            executor.execute( request( new DummySession(), release, done ) );
+            executor.execute( request( new DummySession(), release, done ) );
+
+            // The queue is full : the third request is run by the calling thread
+            executor.execute( new IoEvent( IoEventType.MESSAGE_RECEIVED, new DummySession(), null )
+            {
+                @Override
+                public void fire()
+                {
+                    runner.set( Thread.currentThread() );
+                }
+            } );
+
+            assertSame( Thread.currentThread(), runner.get() );
+
+            release.countDown();
+            assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    private long runSlowClients( Executor executor, int nbClients, long delay ) throws Exception
+    {
+        CountDownLatch done = new CountDownLatch( nbClients );
+        long t0 = System.currentTimeMillis();
+
+        for ( int i = 0; i < nbClients; i++ )
+        {
+            executor.execute( slowRequest( new DummySession(), delay, done ) );
+        }
+
+        assertTrue( done.await( 60, TimeUnit.SECONDS ) );
+
+        return System.currentTimeMillis() - t0;
+    }
+
+
+    /**
+     * Compares the default pool with the elastic pool of the request executor, with many clients
+     * sending a request blocked for some time.
+     */
+    @Test
+    public void testSlowClients() throws Exception
+    {
+        int nbClients = 1000;
+        long delay = 20L;
+        int nbThreads = Runtime.getRuntime().availableProcessors() + 1;
+
+        UnorderedThreadPoolExecutor pool = new UnorderedThreadPoolExecutor( nbThreads );
+        LdapRequestExecutor requestExecutor = new LdapRequestExecutor( nbClients, 1 );
+
+        try
+        {
+            long poolTime = runSlowClients( pool, nbClients, delay );
+            long requestTime = runSlowClients( requestExecutor, nbClients, delay );
+
+            System.out.println( nbClients + " slow clients, pool of " + nbThreads + " threads : " + poolTime
+                + "ms, elastic pool : " + requestTime + "ms, " + requestExecutor.getMaxInFlightReached()
+                + " requests in flight at most" );
+
+            assertTrue( requestTime < poolTime );
+        }
+        finally
+        {
+            pool.shutdownNow();
+            requestExecutor.shutdown();
+        }
+    }
+}
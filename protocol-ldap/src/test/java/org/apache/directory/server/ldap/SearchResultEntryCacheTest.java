@@ -0,0 +1,196 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.api.LdapEncoder;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+
+/**
+ * Tests the SearchResultEntryCache class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchResultEntryCacheTest
+{
+    private static final LdapApiService CODEC = LdapApiServiceFactory.getSingleton();
+
+
+    private Entry newEntry( String csn ) throws Exception
+    {
+        StringBuilder description = new StringBuilder();
+
+        // Big enough to need a long form length
+        for ( int i = 0; i < 100; i++ )
+        {
+            description.append( "some description " );
+        }
+
+        return new DefaultEntry( "cn=test,ou=system",
+            "objectClass: person",
+            "cn: test",
+            "sn: test",
+            "description: " + description,
+            "entryUUID: " + UUID.nameUUIDFromBytes( new byte[]
+                { 1 } ),
+            "entryCSN: " + csn );
+    }
+
+
+    private SearchResultEntry newResponse( int messageId, Entry entry )
+    {
+        SearchResultEntry response = new SearchResultEntryImpl( messageId );
+        response.setEntry( entry );
+        response.setObjectName( entry.getDn() );
+
+        return response;
+    }
+
+
+    private byte[] encode( SearchResultEntry response ) throws Exception
+    {
+        ByteBuffer buffer = new LdapEncoder( CODEC ).encodeMessage( response );
+        buffer.flip();
+        byte[] pdu = new byte[buffer.remaining()];
+        buffer.get( pdu );
+
+        return pdu;
+    }
+
+
+    private SearchRequest newRequest( SearchScope scope )
+    {
+        SearchRequest request = new SearchRequestImpl();
+        request.setScope( scope );
+
+        return request;
+    }
+
+
+    /**
+     * Reads the entry PDU from the cache, or encodes it and caches it on a miss
+     */
+    private IoBuffer encode( SearchResultEntryCache cache, SearchRequest request, SearchResultEntry response )
+    {
+        String key = cache.getKey( request, response.getEntry(), false, true );
+        IoBuffer cached = cache.get( key, response.getMessageId() );
+
+        if ( cached != null )
+        {
+            return cached;
+        }
+
+        return cache.put( key, CODEC, response );
+    }
+
+
+    private byte[] toBytes( IoBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get( bytes );
+
+        return bytes;
+    }
+
+
+    @Test
+    public void testWrapMessageIds() throws Exception
+    {
+        Entry entry = newEntry( "20161019000000.000000Z#000000#000#000000" );
+        byte[] protocolOp = SearchResultEntryCache.getProtocolOp( ByteBuffer.wrap( encode( newResponse( 1,
+            entry ) ) ) );
+
+        for ( int messageId : new int[]
+            { 1, 127, 128, 255, 256, 65535, 70000, 8388608, Integer.MAX_VALUE } )
+        {
+            assertArrayEquals( encode( newResponse( messageId, entry ) ),
+                toBytes( SearchResultEntryCache.wrap( messageId, protocolOp ) ) );
+        }
+    }
+
+
+    @Test
+    public void testCacheHit() throws Exception
+    {
+        SearchResultEntryCache cache = new SearchResultEntryCache();
+        SearchRequest request = newRequest( SearchScope.OBJECT );
+        request.addAttributes( "cn", "description" );
+        Entry entry = newEntry( "20161019000000.000000Z#000000#000#000000" );
+
+        byte[] first = toBytes( encode( cache, request, newResponse( 3, entry ) ) );
+        byte[] second = toBytes( encode( cache, request, newResponse( 400, entry ) ) );
+
+        assertArrayEquals( encode( newResponse( 3, entry ) ), first );
+        assertArrayEquals( encode( newResponse( 400, entry ) ), second );
+        assertEquals( 1L, cache.getNbHits() );
+        assertEquals( 1L, cache.getNbMisses() );
+
+        // A new revision of the entry is encoded again
+        Entry modified = newEntry( "20161019000001.000000Z#000000#000#000000" );
+        encode( cache, request, newResponse( 5, modified ) );
+        assertEquals( 2L, cache.getNbMisses() );
+        assertEquals( 2, cache.size() );
+
+        // So is the same entry, with other attributes requested
+        request.addAttributes( "sn" );
+        encode( cache, request, newResponse( 6, entry ) );
+        assertEquals( 3L, cache.getNbMisses() );
+    }
+
+
+    @Test
+    public void testNotCached() throws Exception
+    {
+        SearchResultEntryCache cache = new SearchResultEntryCache();
+        SearchRequest request = newRequest( SearchScope.OBJECT );
+        Entry entry = newEntry( "20161019000000.000000Z#000000#000#000000" );
+
+        // The entry may have been filtered by the access control
+        assertNull( cache.getKey( request, entry, true, true ) );
+
+        // The entry has no revision
+        assertNull( cache.getKey( request, new DefaultEntry( "cn=test,ou=system",
+            "objectClass: person", "cn: test", "sn: test" ), false, true ) );
+
+        // The entries returned by one level and subtree searches are not cached
+        assertNull( cache.getKey( newRequest( SearchScope.ONELEVEL ), entry, false, true ) );
+        assertNull( cache.getKey( newRequest( SearchScope.SUBTREE ), entry, false, true ) );
+
+        assertEquals( 0, cache.size() );
+    }
+}
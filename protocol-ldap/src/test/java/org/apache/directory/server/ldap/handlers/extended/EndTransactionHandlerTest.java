@@ -0,0 +1,141 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.ldap.handlers.extended;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.ldap.LdapTransaction;
+import org.apache.directory.server.ldap.handlers.extended.EndTransactionHandler.EndTransactionValue;
+import org.junit.Test;
+
+
+/**
+ * Tests the End Transaction request value decoding, and the LdapTransaction class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EndTransactionHandlerTest
+{
+    @Test
+    public void testDecodeCommit()
+    {
+        // SEQUENCE { OCTET STRING 'txn1' }, commit defaults to TRUE
+        byte[] value = new byte[]
+            { 0x30, 0x06, 0x04, 0x04, 't', 'x', 'n', '1' };
+
+        EndTransactionValue decoded = EndTransactionHandler.decode( value );
+
+        assertTrue( decoded.commit );
+        assertArrayEquals( Strings.getBytesUtf8( "txn1" ), decoded.identifier );
+    }
+
+
+    @Test
+    public void testDecodeAbort()
+    {
+        // SEQUENCE { BOOLEAN FALSE, OCTET STRING 'txn1' }
+        byte[] value = new byte[]
+            { 0x30, 0x09, 0x01, 0x01, 0x00, 0x04, 0x04, 't', 'x', 'n', '1' };
+
+        EndTransactionValue decoded = EndTransactionHandler.decode( value );
+
+        assertFalse( decoded.commit );
+        assertArrayEquals( Strings.getBytesUtf8( "txn1" ), decoded.identifier );
+    }
+
+
+    @Test
+    public void testDecodeInvalidValue()
+    {
+        byte[][] values = new byte[][]
+            {
+                null,
+                {},
+                { 0x04, 0x01, 'a' },
+                { 0x30, 0x03, 0x01, 0x01, 0x00 },
+                { 0x30, 0x06, 0x04, 0x05, 't', 'x', 'n', '1' },
+            };
+
+        for ( byte[] value : values )
+        {
+            try
+            {
+                EndTransactionHandler.decode( value );
+                fail();
+            }
+            catch ( IllegalArgumentException iae )
+            {
+                // Expected
+            }
+        }
+    }
+
+
+    @Test
+    public void testEncodeResponse()
+    {
+        assertArrayEquals( new byte[]
+            { 0x30, 0x03, 0x02, 0x01, 0x05 }, EndTransactionHandler.encodeResponse( 5 ) );
+        assertArrayEquals( new byte[]
+            { 0x30, 0x04, 0x02, 0x02, 0x00, ( byte ) 0x80 }, EndTransactionHandler.encodeResponse( 128 ) );
+        assertArrayEquals( new byte[]
+            { 0x30, 0x04, 0x02, 0x02, 0x01, 0x00 }, EndTransactionHandler.encodeResponse( 256 ) );
+    }
+
+
+    @Test
+    public void testTransactionUpdates()
+    {
+        LdapTransaction transaction = new LdapTransaction( 2 );
+
+        ResultResponseRequest add = new AddRequestImpl();
+        add.setMessageId( 3 );
+        ResultResponseRequest delete = new DeleteRequestImpl();
+        delete.setMessageId( 2 );
+
+        // The updates may be received out of order, they are applied in the client order
+        assertTrue( transaction.addUpdate( add ) );
+        assertTrue( transaction.addUpdate( delete ) );
+
+        List<ResultResponseRequest> updates = transaction.getUpdates();
+        assertEquals( 2, updates.get( 0 ).getMessageId() );
+        assertEquals( 3, updates.get( 1 ).getMessageId() );
+
+        // The transaction is full
+        ResultResponseRequest other = new DeleteRequestImpl();
+        other.setMessageId( 4 );
+        assertFalse( transaction.addUpdate( other ) );
+        assertEquals( 4, transaction.getFailedMessageId() );
+        assertEquals( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED, transaction.getFailedResultCode() );
+        assertTrue( transaction.hasId( transaction.getId() ) );
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.ssl;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the TLS handshake metrics.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class TlsHandshakeFilterTest
+{
+    @Test
+    public void testMetrics()
+    {
+        TlsHandshakeFilter filter = new TlsHandshakeFilter();
+
+        assertEquals( 0d, filter.getResumptionRatio(), 0d );
+        assertEquals( 0L, filter.getAverageHandshakeTime() );
+
+        filter.handshakeCompleted( TimeUnit.MILLISECONDS.toNanos( 30L ), false );
+        filter.handshakeCompleted( TimeUnit.MILLISECONDS.toNanos( 2L ), true );
+        filter.handshakeCompleted( TimeUnit.MILLISECONDS.toNanos( 1L ), true );
+        filter.handshakeCompleted( TimeUnit.MILLISECONDS.toNanos( 7L ), true );
+
+        assertEquals( 4L, filter.getNbHandshakes() );
+        assertEquals( 3L, filter.getNbResumedHandshakes() );
+        assertEquals( 0.75d, filter.getResumptionRatio(), 0d );
+        assertEquals( 10L, filter.getAverageHandshakeTime() );
+        assertEquals( 30L, filter.getMaxHandshakeTime() );
+
+        filter.reset();
+
+        assertEquals( 0L, filter.getNbHandshakes() );
+        assertEquals( 0L, filter.getMaxHandshakeTime() );
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the RateMeter class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RateMeterTest
+{
+    @Test
+    public void testRate()
+    {
+        RateMeter meter = new RateMeter();
+        long start = 1000000000L;
+
+        assertEquals( 0d, meter.getRate( start ), 0d );
+
+        // 100 events per second during 30 seconds
+        for ( int i = 0; i < 30; i++ )
+        {
+            meter.mark( 100L, start + i * 1000L );
+        }
+
+        assertEquals( 3000L, meter.getTotal() );
+        assertEquals( 50d, meter.getRate( start + 29000L ), 0d );
+
+        // The events of the first 16 seconds are too old
+        assertEquals( 1400 / 60d, meter.getRate( start + 75000L ), 0d );
+
+        // The buckets are reused
+        meter.mark( 600L, start + 60000L );
+        assertEquals( 3600L, meter.getTotal() );
+        assertEquals( ( 29 * 100 + 600 ) / 60d, meter.getRate( start + 60000L ), 0d );
+
+        // Nothing happened during the last minute
+        assertEquals( 0d, meter.getRate( start + 200000L ), 0d );
+    }
+}
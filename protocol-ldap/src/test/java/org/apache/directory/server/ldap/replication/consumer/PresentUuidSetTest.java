@@ -0,0 +1,110 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.util.Strings;
+import org.junit.Test;
+
+
+/**
+ * Tests the PresentUuidSet class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PresentUuidSetTest
+{
+    @Test
+    public void testEmpty()
+    {
+        PresentUuidSet set = new PresentUuidSet();
+
+        assertTrue( set.isEmpty() );
+        assertFalse( set.contains( UUID.randomUUID().toString() ) );
+        assertFalse( set.contains( null ) );
+    }
+
+
+    @Test
+    public void testAddAndContains()
+    {
+        PresentUuidSet set = new PresentUuidSet();
+        List<String> present = new ArrayList<>();
+
+        // More UUIDs than the initial capacity, added as bytes and as strings
+        for ( int i = 0; i < 5000; i++ )
+        {
+            String uuid = UUID.randomUUID().toString();
+            present.add( uuid );
+
+            if ( i % 2 == 0 )
+            {
+                set.add( Strings.uuidToBytes( uuid ) );
+            }
+            else
+            {
+                set.add( uuid );
+            }
+        }
+
+        assertEquals( 5000, set.size() );
+
+        for ( String uuid : present )
+        {
+            assertTrue( set.contains( uuid ) );
+        }
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertFalse( set.contains( UUID.randomUUID().toString() ) );
+        }
+
+        // Adding after a lookup requires a new sort
+        String added = UUID.randomUUID().toString();
+        set.add( "00000000-0000-0000-0000-000000000000" );
+        set.add( added );
+        assertTrue( set.contains( added ) );
+        assertTrue( set.contains( "00000000-0000-0000-0000-000000000000" ) );
+        assertTrue( set.contains( present.get( 42 ) ) );
+    }
+
+
+    @Test
+    public void testUnsignedOrder()
+    {
+        PresentUuidSet set = new PresentUuidSet();
+        set.add( "ffffffff-ffff-ffff-ffff-ffffffffffff" );
+        set.add( "7fffffff-ffff-ffff-8000-000000000000" );
+        set.add( "80000000-0000-0000-7fff-ffffffffffff" );
+
+        assertTrue( set.contains( "ffffffff-ffff-ffff-ffff-ffffffffffff" ) );
+        assertTrue( set.contains( "7fffffff-ffff-ffff-8000-000000000000" ) );
+        assertTrue( set.contains( "80000000-0000-0000-7fff-ffffffffffff" ) );
+        assertFalse( set.contains( "80000000-0000-0000-8000-000000000000" ) );
+    }
+}
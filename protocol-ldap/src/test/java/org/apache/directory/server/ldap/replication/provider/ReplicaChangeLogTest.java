@@ -0,0 +1,602 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests the change log shared by the replication consumers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLogTest
+{
+    private static SchemaManager schemaManager;
+
+    private static CsnFactory csnFactory;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ReplicaChangeLog changeLog;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaChangeLogTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @Before
+    public void createChangeLog() throws Exception
+    {
+        changeLog = new ReplicaChangeLog( schemaManager, folder.getRoot() );
+    }
+
+
+    @After
+    public void closeChangeLog() throws Exception
+    {
+        changeLog.stop();
+    }
+
+
+    private ReplicaEventMessage log( ChangeType changeType, String dn, int replicaId, String previousDn )
+        throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", new Dn( dn ).getRdn().getValue(),
+            "entryCSN", csnFactory.newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        ReplicaEventMessage message = new ReplicaEventMessage( changeType, entry );
+        message.setReplicaId( replicaId );
+
+        if ( previousDn != null )
+        {
+            message.setPreviousDn( new Dn( schemaManager, previousDn ) );
+        }
+
+        changeLog.log( message );
+
+        return message;
+    }
+
+
+    private ReplicaEventLog createConsumer( int replicaId, String base )
+        throws Exception
+    {
+        ReplicaEventLog consumer = new ReplicaEventLog( changeLog, replicaId );
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( new Dn( schemaManager, base ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setFilter( new PresenceNode( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT ) ) );
+        consumer.setSearchCriteria( criteria );
+
+        return consumer;
+    }
+
+
+    private List<ReplicaEventMessage> read( ReplicaEventLog consumer, String fromCsn ) throws Exception
+    {
+        List<ReplicaEventMessage> messages = new ArrayList<>();
+        ReplicaJournalCursor cursor = consumer.getCursor( fromCsn );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                messages.add( cursor.get() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return messages;
+    }
+
+
+    private String csn( ReplicaEventMessage message ) throws Exception
+    {
+        return message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+    }
+
+
+    private ReplicaEventMessage log( ChangeType changeType, boolean delta, String dn, String uuid,
+        Object... attributes ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn, attributes );
+        entry.put( "entryCSN", csnFactory.newInstance().toString() );
+        entry.put( "entryUUID", uuid );
+
+        ReplicaEventMessage message = new ReplicaEventMessage( changeType, entry );
+        message.setDelta( delta );
+        changeLog.log( message );
+
+        return message;
+    }
+
+
+    private ReplicaEventMessage logDelta( String dn, String uuid, Modification... modifications ) throws Exception
+    {
+        ReplicaEventMessage message = new ReplicaEventMessage( ChangeType.MODIFY,
+            new DefaultEntry( schemaManager, dn,
+                "entryCSN", csnFactory.newInstance().toString(),
+                "entryUUID", uuid ) );
+        message.setDelta( true );
+        message.setModifications( Arrays.asList( modifications ) );
+        changeLog.log( message );
+
+        return message;
+    }
+
+
+    private Modification modification( ModificationOperation operation, String attributeType, String... values )
+    {
+        return new DefaultModification( operation, schemaManager.getAttributeType( attributeType ), values );
+    }
+
+
+    private ReplicaEventMessage logEntry( ChangeType changeType, String dn, String uuid, String description )
+        throws Exception
+    {
+        return log( changeType, false, dn, uuid,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", new Dn( dn ).getRdn().getValue(),
+            "description", description );
+    }
+
+
+    private ReplicaEventMessage logEntry( ChangeType changeType, String dn, String uuid, String description,
+        int replicaId ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou", new Dn( dn ).getRdn().getValue(),
+            "description", description,
+            "entryCSN", csnFactory.newInstance().toString(),
+            "entryUUID", uuid );
+
+        ReplicaEventMessage message = new ReplicaEventMessage( changeType, entry );
+        message.setReplicaId( replicaId );
+        changeLog.log( message );
+
+        return message;
+    }
+
+
+    @Test
+    public void testSharedLog() throws Exception
+    {
+        // More messages than a batch, to check that the cursor reads them all
+        for ( int i = 0; i < 250; i++ )
+        {
+            log( ChangeType.ADD, "ou=test" + i + ",ou=system", ReplicaEventMessage.NO_REPLICA_ID, null );
+        }
+
+        ReplicaEventMessage fromPeer = log( ChangeType.MODIFY, "ou=test1,ou=system", 2, null );
+        log( ChangeType.ADD, "ou=other,ou=schema", ReplicaEventMessage.NO_REPLICA_ID, null );
+
+        // The messages are stored once for all the consumers
+        assertEquals( 252L, changeLog.count() );
+
+        ReplicaEventLog consumer1 = createConsumer( 1, "ou=system" );
+        ReplicaEventLog consumer2 = createConsumer( 2, "ou=system" );
+
+        List<ReplicaEventMessage> messages1 = read( consumer1, null );
+        List<ReplicaEventMessage> messages2 = read( consumer2, null );
+
+        assertEquals( 251, messages1.size() );
+        assertEquals( csn( fromPeer ), csn( messages1.get( 250 ) ) );
+
+        // The modification received from the replica 2 is not sent back to it
+        assertEquals( 250, messages2.size() );
+
+        // Start from a CSN
+        assertEquals( 50, read( consumer2, csn( messages2.get( 199 ) ) ).size() );
+
+        // Reading the log does not remove anything
+        assertEquals( 252L, changeLog.count() );
+    }
+
+
+    @Test
+    public void testMoveOutOfScope() throws Exception
+    {
+        log( ChangeType.MODDN, "ou=moved,ou=schema", ReplicaEventMessage.NO_REPLICA_ID, "ou=moved,ou=system" );
+        log( ChangeType.MODDN, "ou=renamed,ou=system", ReplicaEventMessage.NO_REPLICA_ID, "ou=test,ou=system" );
+
+        List<ReplicaEventMessage> messages = read( createConsumer( 1, "ou=system" ), null );
+
+        assertEquals( 2, messages.size() );
+
+        // The entry moved out of the consumer's base is deleted
+        assertEquals( ChangeType.DELETE, messages.get( 0 ).getChangeType() );
+        assertEquals( new Dn( schemaManager, "ou=moved,ou=system" ), messages.get( 0 ).getEntry().getDn() );
+
+        assertEquals( ChangeType.MODDN, messages.get( 1 ).getChangeType() );
+        assertEquals( new Dn( schemaManager, "ou=test,ou=system" ), messages.get( 1 ).getPreviousDn() );
+    }
+
+
+    @Test
+    public void testPendingMessages() throws Exception
+    {
+        log( ChangeType.ADD, "ou=test1,ou=system", ReplicaEventMessage.NO_REPLICA_ID, null );
+        log( ChangeType.ADD, "ou=test2,ou=system", ReplicaEventMessage.NO_REPLICA_ID, null );
+        log( ChangeType.ADD, "ou=test3,ou=system", 1, null );
+        log( ChangeType.ADD, "ou=other,ou=schema", ReplicaEventMessage.NO_REPLICA_ID, null );
+
+        // The log is only read when the consumer is loaded
+        ReplicaEventLog consumer = createConsumer( 1, "ou=system" );
+        consumer.countPendingMessages();
+        assertEquals( 2L, consumer.getPendingMessages() );
+
+        // Then the count follows the logged messages
+        consumer.messageLogged( log( ChangeType.ADD, "ou=test4,ou=system", ReplicaEventMessage.NO_REPLICA_ID, null ) );
+        consumer.messageLogged( log( ChangeType.ADD, "ou=test5,ou=system", 1, null ) );
+        consumer.messageLogged( log( ChangeType.ADD, "ou=other2,ou=schema", ReplicaEventMessage.NO_REPLICA_ID,
+            null ) );
+        assertEquals( 3L, consumer.getPendingMessages() );
+
+        // and the sent ones
+        for ( int i = 0; i < 4; i++ )
+        {
+            consumer.messageSent();
+        }
+
+        assertEquals( 0L, consumer.getPendingMessages() );
+    }
+
+
+    @Test
+    public void testPurge() throws Exception
+    {
+        List<ReplicaEventMessage> logged = new ArrayList<>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            logged.add( log( ChangeType.ADD, "ou=test" + i + ",ou=system", ReplicaEventMessage.NO_REPLICA_ID, null ) );
+        }
+
+        // Only the messages before the 5th one can be removed
+        assertEquals( 4L, changeLog.purge( csn( logged.get( 4 ) ), Long.MAX_VALUE ) );
+        assertEquals( 6L, changeLog.count() );
+
+        // Nothing is old enough
+        assertEquals( 0L, changeLog.purge( null, 0L ) );
+
+        List<ReplicaEventMessage> messages = read( createConsumer( 1, "ou=system" ), null );
+        assertEquals( csn( logged.get( 4 ) ), csn( messages.get( 0 ) ) );
+    }
+
+
+    @Test
+    public void testPin() throws Exception
+    {
+        assertNull( changeLog.getOldestPinnedCsn() );
+
+        String csn1 = csnFactory.newInstance().toString();
+        String csn2 = csnFactory.newInstance().toString();
+
+        changeLog.pin( csn2 );
+        changeLog.pin( csn1 );
+        assertEquals( csn1, changeLog.getOldestPinnedCsn() );
+
+        changeLog.unpin( csn1 );
+        assertEquals( csn2, changeLog.getOldestPinnedCsn() );
+
+        changeLog.unpin( csn2 );
+        assertNull( changeLog.getOldestPinnedCsn() );
+    }
+
+
+    @Test
+    public void testReopen() throws Exception
+    {
+        ReplicaEventMessage message = log( ChangeType.MODDN, "ou=renamed,ou=system", 3, "ou=test,ou=system" );
+        changeLog.stop();
+
+        changeLog = new ReplicaChangeLog( schemaManager, folder.getRoot() );
+        List<ReplicaEventMessage> messages = changeLog.fetch( null, 10 );
+
+        assertEquals( 1, messages.size() );
+        assertEquals( csn( message ), csn( messages.get( 0 ) ) );
+        assertEquals( 3, messages.get( 0 ).getReplicaId() );
+        assertEquals( new Dn( schemaManager, "ou=test,ou=system" ), messages.get( 0 ).getPreviousDn() );
+        assertTrue( changeLog.fetch( csn( message ), 10 ).isEmpty() );
+    }
+
+
+    @Test
+    public void testDelta() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: test",
+            "description: first",
+            "description: second",
+            "userPassword", new byte[]
+                { 0x01, 0x02, ( byte ) 0xAC },
+            "entryCSN", csnFactory.newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        List<Modification> modifications = new ArrayList<>();
+        modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            schemaManager.getAttributeType( "description" ), "second" ) );
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            schemaManager.getAttributeType( "userPassword" ), new byte[]
+                { 0x01, 0x02, ( byte ) 0xAC } ) );
+        modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            schemaManager.getAttributeType( "seeAlso" ) ) );
+
+        changeLog.log( ReplicaEventMessage.createDelta( schemaManager, entry, modifications ) );
+        changeLog.stop();
+
+        // The AttributeTypes ids must survive a restart
+        changeLog = new ReplicaChangeLog( schemaManager, folder.getRoot() );
+        List<ReplicaEventMessage> messages = changeLog.fetch( null, 10 );
+
+        assertEquals( 1, messages.size() );
+
+        ReplicaEventMessage message = messages.get( 0 );
+        Entry delta = message.getEntry();
+
+        assertTrue( message.isDelta() );
+        assertEquals( ChangeType.MODIFY, message.getChangeType() );
+        assertEquals( entry.getDn(), delta.getDn() );
+
+        // Only the entryUUID and the entryCSN
+        assertEquals( 2, delta.size() );
+        assertEquals( entry.get( "entryUUID" ), delta.get( "entryUUID" ) );
+        assertEquals( entry.get( "entryCSN" ), delta.get( "entryCSN" ) );
+
+        // The modifications only contain the modified values
+        List<Modification> stored = message.getModifications();
+        assertEquals( 3, stored.size() );
+
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, stored.get( 0 ).getOperation() );
+        assertEquals( 1, stored.get( 0 ).getAttribute().size() );
+        assertTrue( stored.get( 0 ).getAttribute().contains( "second" ) );
+
+        assertEquals( ModificationOperation.REPLACE_ATTRIBUTE, stored.get( 1 ).getOperation() );
+        assertTrue( stored.get( 1 ).getAttribute().contains( new byte[]
+            { 0x01, 0x02, ( byte ) 0xAC } ) );
+
+        assertEquals( ModificationOperation.REMOVE_ATTRIBUTE, stored.get( 2 ).getOperation() );
+        assertEquals( schemaManager.getAttributeType( "seeAlso" ), stored.get( 2 ).getAttribute().getAttributeType() );
+        assertEquals( 0, stored.get( 2 ).getAttribute().size() );
+
+        // The same modifications, sent as the value of the delta control
+        List<Modification> decoded = ReplicaEventMessage.decodeModifications( schemaManager,
+            ReplicaEventMessage.encodeModifications( stored ) );
+        assertEquals( stored, decoded );
+    }
+
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        String start = csn( log( ChangeType.ADD, "ou=start,ou=system", ReplicaEventMessage.NO_REPLICA_ID, null ) );
+
+        // Some modifications folded into a complete entry
+        String uuidA = UUID.randomUUID().toString();
+        logEntry( ChangeType.MODIFY, "ou=a,ou=system", uuidA, "1" );
+        logDelta( "ou=a,ou=system", uuidA,
+            modification( ModificationOperation.REPLACE_ATTRIBUTE, "description", "2" ) );
+        ReplicaEventMessage lastA = logDelta( "ou=a,ou=system", uuidA,
+            modification( ModificationOperation.ADD_ATTRIBUTE, "st", "x" ) );
+
+        // Some deltas folded into a delta
+        String uuidB = UUID.randomUUID().toString();
+        logDelta( "ou=b,ou=system", uuidB, modification( ModificationOperation.ADD_ATTRIBUTE, "description", "x" ) );
+        ReplicaEventMessage removal = logDelta( "ou=b,ou=system", uuidB,
+            modification( ModificationOperation.REMOVE_ATTRIBUTE, "seeAlso" ) );
+
+        // An entry added, modified and deleted
+        String uuidC = UUID.randomUUID().toString();
+        logEntry( ChangeType.ADD, "ou=c,ou=system", uuidC, "1" );
+        logEntry( ChangeType.MODIFY, "ou=c,ou=system", uuidC, "2" );
+        logEntry( ChangeType.DELETE, "ou=c,ou=system", uuidC, "2" );
+
+        // An entry added then modified : the ADD stays where it is
+        String uuidD = UUID.randomUUID().toString();
+        ReplicaEventMessage addD = logEntry( ChangeType.ADD, "ou=d,ou=system", uuidD, "1" );
+        logEntry( ChangeType.MODIFY, "ou=d,ou=system", uuidD, "2" );
+        logEntry( ChangeType.MODIFY, "ou=d,ou=system", uuidD, "3" );
+
+        // An entry modified then deleted
+        String uuidE = UUID.randomUUID().toString();
+        logEntry( ChangeType.MODIFY, "ou=e,ou=system", uuidE, "1" );
+        ReplicaEventMessage deleteE = logEntry( ChangeType.DELETE, "ou=e,ou=system", uuidE, "1" );
+
+        // An entry added then deleted, which ADD has been read by a consumer
+        String uuidF = UUID.randomUUID().toString();
+        ReplicaEventMessage addF = logEntry( ChangeType.ADD, "ou=f,ou=system", uuidF, "1" );
+        ReplicaEventMessage deleteF = logEntry( ChangeType.DELETE, "ou=f,ou=system", uuidF, "1" );
+
+        // An entry added then deleted, which has had a child meanwhile
+        String uuidG = UUID.randomUUID().toString();
+        String uuidChild = UUID.randomUUID().toString();
+        ReplicaEventMessage addG = logEntry( ChangeType.ADD, "ou=g,ou=system", uuidG, "1" );
+        logEntry( ChangeType.ADD, "ou=child,ou=g,ou=system", uuidChild, "1" );
+        logEntry( ChangeType.DELETE, "ou=child,ou=g,ou=system", uuidChild, "1" );
+        ReplicaEventMessage deleteG = logEntry( ChangeType.DELETE, "ou=g,ou=system", uuidG, "1" );
+
+        assertEquals( 20L, changeLog.count() );
+
+        List<String> consumerCsns = new ArrayList<>();
+        consumerCsns.add( start );
+        consumerCsns.add( csn( addF ) );
+
+        assertEquals( 11L, changeLog.compact( consumerCsns ) );
+        assertEquals( 9L, changeLog.count() );
+
+        List<ReplicaEventMessage> messages = changeLog.fetch( start, 20 );
+        assertEquals( 8, messages.size() );
+
+        ReplicaEventMessage a = messages.get( 0 );
+        assertEquals( csn( lastA ), csn( a ) );
+        assertEquals( ChangeType.MODIFY, a.getChangeType() );
+        assertFalse( a.isDelta() );
+        assertTrue( a.getEntry().contains( "ou", "a" ) );
+        assertTrue( a.getEntry().contains( "description", "2" ) );
+        assertFalse( a.getEntry().contains( "description", "1" ) );
+        assertTrue( a.getEntry().contains( "st", "x" ) );
+
+        ReplicaEventMessage b = messages.get( 1 );
+        assertEquals( csn( removal ), csn( b ) );
+        assertTrue( b.isDelta() );
+        assertEquals( 2, b.getEntry().size() );
+        assertEquals( 2, b.getModifications().size() );
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, b.getModifications().get( 0 ).getOperation() );
+        assertTrue( b.getModifications().get( 0 ).getAttribute().contains( "x" ) );
+        assertEquals( ModificationOperation.REMOVE_ATTRIBUTE, b.getModifications().get( 1 ).getOperation() );
+
+        // The ADD is kept, the modifications are folded
+        assertEquals( csn( addD ), csn( messages.get( 2 ) ) );
+        assertEquals( ChangeType.MODIFY, messages.get( 3 ).getChangeType() );
+        assertTrue( messages.get( 3 ).getEntry().contains( "description", "3" ) );
+
+        assertEquals( csn( deleteE ), csn( messages.get( 4 ) ) );
+
+        // The consumer which has read the ADD still needs the DELETE
+        assertEquals( csn( deleteF ), csn( messages.get( 5 ) ) );
+
+        // The child has been removed, but not its parent
+        assertEquals( csn( addG ), csn( messages.get( 6 ) ) );
+        assertEquals( csn( deleteG ), csn( messages.get( 7 ) ) );
+
+        // Now that its child is gone, the parent can be removed too
+        assertEquals( 2L, changeLog.compact( consumerCsns ) );
+        assertEquals( 0L, changeLog.compact( consumerCsns ) );
+        assertEquals( 7L, changeLog.count() );
+    }
+
+
+    @Test
+    public void testCompactKeepsReplicas() throws Exception
+    {
+        String start = csn( log( ChangeType.ADD, "ou=start,ou=system", ReplicaEventMessage.NO_REPLICA_ID, null ) );
+
+        // Modifications received from two replicas : only those of the same replica are folded
+        String uuidA = UUID.randomUUID().toString();
+        logEntry( ChangeType.MODIFY, "ou=a,ou=system", uuidA, "1", 2 );
+        ReplicaEventMessage fromReplica2 = logEntry( ChangeType.MODIFY, "ou=a,ou=system", uuidA, "2", 2 );
+        logEntry( ChangeType.MODIFY, "ou=a,ou=system", uuidA, "3", 3 );
+        ReplicaEventMessage fromReplica3 = logEntry( ChangeType.MODIFY, "ou=a,ou=system", uuidA, "4", 3 );
+
+        // An entry added by a replica and deleted locally : the replica needs the DELETE
+        String uuidB = UUID.randomUUID().toString();
+        ReplicaEventMessage addB = logEntry( ChangeType.ADD, "ou=b,ou=system", uuidB, "1", 2 );
+        ReplicaEventMessage deleteB = logEntry( ChangeType.DELETE, "ou=b,ou=system", uuidB, "1",
+            ReplicaEventMessage.NO_REPLICA_ID );
+
+        assertEquals( 7L, changeLog.count() );
+
+        List<String> consumerCsns = new ArrayList<String>();
+        consumerCsns.add( start );
+
+        assertEquals( 2L, changeLog.compact( consumerCsns ) );
+        assertEquals( 5L, changeLog.count() );
+
+        List<ReplicaEventMessage> messages = changeLog.fetch( start, 20 );
+        assertEquals( 4, messages.size() );
+
+        assertEquals( csn( fromReplica2 ), csn( messages.get( 0 ) ) );
+        assertEquals( 2, messages.get( 0 ).getReplicaId() );
+        assertTrue( messages.get( 0 ).getEntry().contains( "description", "2" ) );
+
+        assertEquals( csn( fromReplica3 ), csn( messages.get( 1 ) ) );
+        assertEquals( 3, messages.get( 1 ).getReplicaId() );
+        assertTrue( messages.get( 1 ).getEntry().contains( "description", "4" ) );
+
+        assertEquals( csn( addB ), csn( messages.get( 2 ) ) );
+        assertEquals( csn( deleteB ), csn( messages.get( 3 ) ) );
+    }
+}
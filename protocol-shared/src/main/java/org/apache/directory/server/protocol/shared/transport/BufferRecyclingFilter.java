@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.protocol.shared.transport;
+
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.executor.ExecutorFilter;
+
+
+/**
+ * A filter freeing the buffers once they have been used, so that the {@link PooledBufferAllocator}
+ * can recycle them. It must be the closest filter to the socket, before the SSL and codec filters,
+ * which copy what they keep of the received buffers, but after the {@link ExecutorFilter}s at the
+ * head of the chain : the received buffers are freed when the next filter returns, so it must
+ * process them synchronously. Use {@link #install(IoFilterChain)} to add it to a session chain.
+ * <ul>
+ * <li>a received buffer is freed when the next filters have consumed it</li>
+ * <li>a written buffer is freed when the next buffer of the same session has been sent, or when the
+ * session is closed, as MINA still restores its position after the messageSent event</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BufferRecyclingFilter extends IoFilterAdapter
+{
+    /** The name of this filter in the chains */
+    public static final String NAME = "bufferRecycler";
+
+    /** The session attribute holding the last sent buffer */
+    private static final AttributeKey SENT_BUFFER = new AttributeKey( BufferRecyclingFilter.class, "sentBuffer" );
+
+
+    /**
+     * Adds a BufferRecyclingFilter to a session chain, before the first filter which is not an
+     * {@link ExecutorFilter}. A buffer handed over to an executor would otherwise be freed while
+     * it's still waiting to be read by another thread.
+     *
+     * @param chain The session filter chain
+     */
+    public static void install( IoFilterChain chain )
+    {
+        for ( IoFilterChain.Entry entry : chain.getAll() )
+        {
+            if ( !( entry.getFilter() instanceof ExecutorFilter ) )
+            {
+                chain.addBefore( entry.getName(), NAME, new BufferRecyclingFilter() );
+
+                return;
+            }
+        }
+
+        chain.addLast( NAME, new BufferRecyclingFilter() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived( NextFilter nextFilter, IoSession session, Object message ) throws Exception
+    {
+        nextFilter.messageReceived( session, message );
+
+        // The buffer has been decoded or copied if it has been fully read
+        if ( ( message instanceof IoBuffer ) && !( ( IoBuffer ) message ).hasRemaining() )
+        {
+            ( ( IoBuffer ) message ).free();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageSent( NextFilter nextFilter, IoSession session, WriteRequest writeRequest ) throws Exception
+    {
+        Object message = writeRequest.getMessage();
+
+        if ( message instanceof IoBuffer )
+        {
+            IoBuffer previous = ( IoBuffer ) session.setAttribute( SENT_BUFFER, message );
+
+            if ( ( previous != null ) && ( previous != message ) )
+            {
+                previous.free();
+            }
+        }
+
+        nextFilter.messageSent( session, writeRequest );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionClosed( NextFilter nextFilter, IoSession session ) throws Exception
+    {
+        IoBuffer previous = ( IoBuffer ) session.removeAttribute( SENT_BUFFER );
+
+        if ( previous != null )
+        {
+            previous.free();
+        }
+
+        nextFilter.sessionClosed( session );
+    }
+}
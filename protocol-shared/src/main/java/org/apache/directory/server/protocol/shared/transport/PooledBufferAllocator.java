@@ -0,0 +1,394 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.protocol.shared.transport;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An {@link IoBufferAllocator} keeping the released buffers in pools, one per power of two
+ * capacity, shared by all the threads. The buffers are only released when {@link IoBuffer#free()}
+ * is called, which MINA does not do itself : the {@link BufferRecyclingFilter} frees the received
+ * buffers once they have been decoded, and the written buffers once they have been sent.
+ * <p>
+ * Only the buffers obtained through {@link #allocate(int, boolean)} are recycled, the wrapped
+ * ones are not, as they may be shared. The MINA allocator is global, so this allocator is used by
+ * all the transports of the JVM once it has been installed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PooledBufferAllocator implements IoBufferAllocator
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PooledBufferAllocator.class );
+
+    /** The default capacity of the biggest pooled buffers */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    /** The default maximum number of buffers kept for each capacity */
+    public static final int DEFAULT_MAX_POOL_SIZE = 256;
+
+    /** The capacity of the biggest pooled buffers */
+    private final int maxBufferSize;
+
+    /** The maximum number of buffers kept for each capacity */
+    private final int maxPoolSize;
+
+    /** The heap buffers pools, per power of two */
+    private final Pool[] heapPools = new Pool[32];
+
+    /** The direct buffers pools, per power of two */
+    private final Pool[] directPools = new Pool[32];
+
+    /** The number of allocated buffers */
+    private final AtomicLong nbAllocations = new AtomicLong();
+
+    /** The number of allocations served by a pooled buffer */
+    private final AtomicLong nbReused = new AtomicLong();
+
+
+    /**
+     * The released buffers of a given capacity
+     */
+    private static final class Pool
+    {
+        /** The buffers */
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /** The number of buffers, as the queue size is not constant time */
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+
+    /**
+     * Creates a new PooledBufferAllocator instance, with the default sizes
+     */
+    public PooledBufferAllocator()
+    {
+        this( DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOL_SIZE );
+    }
+
+
+    /**
+     * Creates a new PooledBufferAllocator instance
+     *
+     * @param maxBufferSize The capacity of the biggest pooled buffers. Bigger buffers are allocated
+     * for each request.
+     * @param maxPoolSize The maximum number of buffers kept for each capacity
+     */
+    public PooledBufferAllocator( int maxBufferSize, int maxPoolSize )
+    {
+        this.maxBufferSize = maxBufferSize;
+        this.maxPoolSize = maxPoolSize;
+
+        for ( int i = 0; i < heapPools.length; i++ )
+        {
+            heapPools[i] = new Pool();
+            directPools[i] = new Pool();
+        }
+    }
+
+
+    /**
+     * Installs a PooledBufferAllocator as the MINA allocator, unless one is already installed
+     *
+     * @return The installed allocator
+     */
+    public static synchronized PooledBufferAllocator install()
+    {
+        IoBufferAllocator allocator = IoBuffer.getAllocator();
+
+        if ( allocator instanceof PooledBufferAllocator )
+        {
+            return ( PooledBufferAllocator ) allocator;
+        }
+
+        PooledBufferAllocator pooledAllocator = new PooledBufferAllocator();
+        IoBuffer.setAllocator( pooledAllocator );
+        LOG.info( "Pooled IoBuffer allocator installed" );
+
+        return pooledAllocator;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IoBuffer allocate( int requestedCapacity, boolean direct )
+    {
+        int capacity = IoBuffer.normalizeCapacity( requestedCapacity );
+        ByteBuffer nioBuffer = null;
+        nbAllocations.incrementAndGet();
+
+        if ( capacity <= maxBufferSize )
+        {
+            Pool pool = getPool( capacity, direct );
+            nioBuffer = pool.buffers.poll();
+
+            if ( nioBuffer != null )
+            {
+                pool.size.decrementAndGet();
+                nbReused.incrementAndGet();
+                nioBuffer.clear();
+            }
+        }
+
+        if ( nioBuffer == null )
+        {
+            nioBuffer = direct ? ByteBuffer.allocateDirect( capacity ) : ByteBuffer.allocate( capacity );
+        }
+
+        PooledBuffer buffer = new PooledBuffer( nioBuffer, true );
+        buffer.limit( requestedCapacity );
+
+        return buffer;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer allocateNioBuffer( int capacity, boolean direct )
+    {
+        return allocate( capacity, direct ).buf();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IoBuffer wrap( ByteBuffer nioBuffer )
+    {
+        return new PooledBuffer( nioBuffer, false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void dispose()
+    {
+        for ( int i = 0; i < heapPools.length; i++ )
+        {
+            heapPools[i].buffers.clear();
+            heapPools[i].size.set( 0 );
+            directPools[i].buffers.clear();
+            directPools[i].size.set( 0 );
+        }
+    }
+
+
+    private Pool getPool( int capacity, boolean direct )
+    {
+        int index = Integer.numberOfTrailingZeros( capacity );
+
+        return direct ? directPools[index] : heapPools[index];
+    }
+
+
+    /**
+     * Puts a buffer back in its pool, if it has a pooled capacity and the pool is not full
+     */
+    private void release( ByteBuffer nioBuffer )
+    {
+        int capacity = nioBuffer.capacity();
+
+        if ( nioBuffer.isReadOnly() || ( capacity == 0 ) || ( capacity > maxBufferSize )
+            || ( Integer.bitCount( capacity ) != 1 ) )
+        {
+            return;
+        }
+
+        Pool pool = getPool( capacity, nioBuffer.isDirect() );
+
+        if ( pool.size.incrementAndGet() > maxPoolSize )
+        {
+            pool.size.decrementAndGet();
+
+            return;
+        }
+
+        nioBuffer.clear();
+        pool.buffers.offer( nioBuffer );
+    }
+
+
+    /**
+     * @return The number of allocated buffers
+     */
+    public long getNbAllocations()
+    {
+        return nbAllocations.get();
+    }
+
+
+    /**
+     * @return The number of allocations served by a pooled buffer
+     */
+    public long getNbReused()
+    {
+        return nbReused.get();
+    }
+
+
+    /**
+     * @return The number of buffers currently pooled
+     */
+    public int getPooledCount()
+    {
+        int count = 0;
+
+        for ( int i = 0; i < heapPools.length; i++ )
+        {
+            count += heapPools[i].size.get() + directPools[i].size.get();
+        }
+
+        return count;
+    }
+
+
+    /**
+     * An IoBuffer which gives its ByteBuffer back to the pool when it's freed, or when it
+     * is replaced by a bigger one. A buffer is no longer recycled once a duplicate, a slice
+     * or a read-only view has been derived from it, as they share its content.
+     */
+    private class PooledBuffer extends AbstractIoBuffer
+    {
+        /** The wrapped buffer */
+        private ByteBuffer buf;
+
+        /** Tells if the wrapped buffer can be recycled */
+        private boolean recyclable;
+
+
+        PooledBuffer( ByteBuffer buf, boolean recyclable )
+        {
+            super( PooledBufferAllocator.this, buf.capacity() );
+            this.buf = buf;
+            this.recyclable = recyclable;
+            buf.order( ByteOrder.BIG_ENDIAN );
+        }
+
+
+        PooledBuffer( PooledBuffer parent, ByteBuffer buf )
+        {
+            super( parent );
+            this.buf = buf;
+            this.recyclable = false;
+        }
+
+
+        @Override
+        public ByteBuffer buf()
+        {
+            if ( buf == null )
+            {
+                throw new IllegalStateException( "Buffer has been freed already." );
+            }
+
+            return buf;
+        }
+
+
+        @Override
+        protected void buf( ByteBuffer newBuf )
+        {
+            // The buffer has been expanded, the previous one can be recycled
+            ByteBuffer oldBuf = buf;
+            buf = newBuf;
+
+            if ( recyclable && ( oldBuf != null ) )
+            {
+                release( oldBuf );
+            }
+        }
+
+
+        @Override
+        protected IoBuffer duplicate0()
+        {
+            recyclable = false;
+
+            return new PooledBuffer( this, buf().duplicate() );
+        }
+
+
+        @Override
+        protected IoBuffer slice0()
+        {
+            recyclable = false;
+
+            return new PooledBuffer( this, buf().slice() );
+        }
+
+
+        @Override
+        protected IoBuffer asReadOnlyBuffer0()
+        {
+            recyclable = false;
+
+            return new PooledBuffer( this, buf().asReadOnlyBuffer() );
+        }
+
+
+        @Override
+        public byte[] array()
+        {
+            return buf().array();
+        }
+
+
+        @Override
+        public int arrayOffset()
+        {
+            return buf().arrayOffset();
+        }
+
+
+        @Override
+        public boolean hasArray()
+        {
+            return buf().hasArray();
+        }
+
+
+        @Override
+        public void free()
+        {
+            // Freeing a wrapped buffer does nothing, it may be shared
+            if ( recyclable && ( buf != null ) )
+            {
+                release( buf );
+                buf = null;
+            }
+        }
+    }
+}
@@ -23,7 +23,12 @@ import java.net.InetSocketAddress;
 import java.util.List;
 
 import org.apache.directory.api.util.Network;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.service.IoService;
+import org.apache.mina.core.service.IoServiceListener;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
 import org.apache.mina.transport.socket.SocketAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.slf4j.Logger;
@@ -49,6 +54,12 @@ public class TcpTransport extends AbstractTransport
     /** The list of enabled ciphers */
     private List<String> cipherSuite;
 
+    /** Tells if the buffers are allocated from a pool and recycled */
+    private boolean pooledBuffers;
+
+    /** Tells if the buffers are direct buffers */
+    private boolean directBuffers;
+
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( TcpTransport.class );
 
@@ -172,6 +183,45 @@ public class TcpTransport extends AbstractTransport
 
         acceptor.setDefaultLocalAddress( socketAddress );
 
+        // Recycle the buffers of each new session when the pooled buffers are enabled. This is done
+        // once the session is created, so that this filter comes before the SSL and codec filters,
+        // but after the executors the chain starts with.
+        acceptor.addListener( new IoServiceListener()
+        {
+            public void sessionCreated( IoSession session )
+            {
+                if ( pooledBuffers )
+                {
+                    BufferRecyclingFilter.install( session.getFilterChain() );
+                }
+            }
+
+
+            public void sessionClosed( IoSession session )
+            {
+            }
+
+
+            public void sessionDestroyed( IoSession session )
+            {
+            }
+
+
+            public void serviceActivated( IoService service )
+            {
+            }
+
+
+            public void serviceIdle( IoService service, IdleStatus idleStatus )
+            {
+            }
+
+
+            public void serviceDeactivated( IoService service )
+            {
+            }
+        } );
+
         return acceptor;
     }
 
@@ -270,6 +320,57 @@ public class TcpTransport extends AbstractTransport
     }
 
 
+    /**
+     * @return <code>true</code> if the buffers are allocated from a pool and recycled
+     */
+    public boolean isPooledBuffers()
+    {
+        return pooledBuffers;
+    }
+
+
+    /**
+     * Enables the buffer pooling : the buffers are allocated by a {@link PooledBufferAllocator},
+     * and each session recycles its buffers once they have been read or sent. As MINA uses a
+     * single allocator, the pooled allocator is used by all the transports once it has been enabled
+     * on one of them, but only the sessions of the transports with this flag set recycle their
+     * buffers. Must be set before the transport is bound.
+     *
+     * @param pooledBuffers <code>true</code> to pool the buffers
+     */
+    public void setPooledBuffers( boolean pooledBuffers )
+    {
+        this.pooledBuffers = pooledBuffers;
+
+        if ( pooledBuffers )
+        {
+            PooledBufferAllocator.install();
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the buffers are direct buffers
+     */
+    public boolean isDirectBuffers()
+    {
+        return directBuffers;
+    }
+
+
+    /**
+     * Tells MINA to allocate direct buffers, which saves a copy when reading from and writing to
+     * the socket. This is a global MINA setting, shared by all the transports.
+     *
+     * @param directBuffers <code>true</code> to use direct buffers
+     */
+    public void setDirectBuffers( boolean directBuffers )
+    {
+        this.directBuffers = directBuffers;
+        IoBuffer.setUseDirectBuffer( directBuffers );
+    }
+
+
     /**
      * @see Object#toString()
      */
@@ -0,0 +1,79 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.protocol.shared.transport;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.junit.Test;
+
+
+/**
+ * Tests the BufferRecyclingFilter class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BufferRecyclingFilterTest
+{
+    /** An executor which is never used */
+    private static final Executor EXECUTOR = new Executor()
+    {
+        public void execute( Runnable command )
+        {
+            command.run();
+        }
+    };
+
+
+    @Test
+    public void testInstalledAfterExecutors()
+    {
+        IoFilterChain chain = new DummySession().getFilterChain();
+        chain.addLast( "tlsExecutor", new ExecutorFilter( EXECUTOR ) );
+        chain.addLast( "sslFilter", new IoFilterAdapter() );
+        chain.addLast( "codec", new IoFilterAdapter() );
+
+        BufferRecyclingFilter.install( chain );
+
+        List<IoFilterChain.Entry> entries = chain.getAll();
+        assertEquals( "tlsExecutor", entries.get( 0 ).getName() );
+        assertEquals( BufferRecyclingFilter.NAME, entries.get( 1 ).getName() );
+        assertEquals( "sslFilter", entries.get( 2 ).getName() );
+    }
+
+
+    @Test
+    public void testInstalledFirst()
+    {
+        IoFilterChain chain = new DummySession().getFilterChain();
+        chain.addLast( "codec", new IoFilterAdapter() );
+
+        BufferRecyclingFilter.install( chain );
+
+        assertEquals( BufferRecyclingFilter.NAME, chain.getAll().get( 0 ).getName() );
+    }
+}
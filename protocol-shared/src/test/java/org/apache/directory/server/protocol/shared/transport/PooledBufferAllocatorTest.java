@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.protocol.shared.transport;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
+import org.junit.Test;
+
+
+/**
+ * Tests the PooledBufferAllocator class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PooledBufferAllocatorTest
+{
+    @Test
+    public void testRecycle()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+
+        IoBuffer buffer = allocator.allocate( 1000, false );
+        assertEquals( 1000, buffer.limit() );
+        assertEquals( 1024, buffer.capacity() );
+        ByteBuffer nioBuffer = buffer.buf();
+        buffer.free();
+
+        assertEquals( 1, allocator.getPooledCount() );
+
+        // The same capacity class gets the pooled buffer back, cleared
+        IoBuffer reused = allocator.allocate( 600, false );
+        assertSame( nioBuffer, reused.buf() );
+        assertEquals( 0, reused.position() );
+        assertEquals( 600, reused.limit() );
+        assertEquals( 1L, allocator.getNbReused() );
+
+        // Freeing twice does not pool the buffer twice
+        reused.free();
+        reused.free();
+        assertEquals( 1, allocator.getPooledCount() );
+    }
+
+
+    @Test
+    public void testExpandReleasesPreviousBuffer()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+
+        IoBuffer buffer = allocator.allocate( 16, false );
+        buffer.setAutoExpand( true );
+        ByteBuffer small = buffer.buf();
+        buffer.put( new byte[100] );
+
+        assertNotSame( small, buffer.buf() );
+        assertEquals( 1, allocator.getPooledCount() );
+    }
+
+
+    @Test
+    public void testWrappedNotRecycled()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+
+        IoBuffer wrapped = allocator.wrap( ByteBuffer.allocate( 256 ) );
+        wrapped.free();
+        wrapped.free();
+
+        // The wrapped buffer may be shared, it is still usable
+        assertEquals( 256, wrapped.capacity() );
+        assertEquals( 0, allocator.getPooledCount() );
+
+        // So are the derived buffers
+        IoBuffer buffer = allocator.allocate( 256, false );
+        buffer.duplicate().free();
+        assertEquals( 0, allocator.getPooledCount() );
+    }
+
+
+    @Test
+    public void testDerivedBufferStopsRecycling()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator();
+
+        // The slice shares the content of the buffer, which must not be reused
+        IoBuffer buffer = allocator.allocate( 256, false );
+        IoBuffer slice = buffer.slice();
+        buffer.free();
+        assertEquals( 0, allocator.getPooledCount() );
+        assertEquals( 256, slice.remaining() );
+
+        // Nor when it is replaced by a bigger one
+        buffer = allocator.allocate( 16, false );
+        buffer.setAutoExpand( true );
+        IoBuffer duplicate = buffer.duplicate();
+        buffer.put( new byte[100] );
+        assertEquals( 0, allocator.getPooledCount() );
+        assertEquals( 16, duplicate.capacity() );
+    }
+
+
+    @Test
+    public void testPoolBounded()
+    {
+        PooledBufferAllocator allocator = new PooledBufferAllocator( 1024, 2 );
+        IoBuffer[] buffers = new IoBuffer[5];
+
+        for ( int i = 0; i < buffers.length; i++ )
+        {
+            buffers[i] = allocator.allocate( 512, false );
+        }
+
+        for ( IoBuffer buffer : buffers )
+        {
+            buffer.free();
+        }
+
+        assertEquals( 2, allocator.getPooledCount() );
+
+        // Too big to be pooled
+        allocator.allocate( 4096, false ).free();
+        assertEquals( 2, allocator.getPooledCount() );
+    }
+
+
+    private long allocatedBytes( IoBufferAllocator allocator, int nbBuffers, int size )
+    {
+        com.sun.management.ThreadMXBean threadBean = ( com.sun.management.ThreadMXBean ) ManagementFactory
+            .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long start = threadBean.getThreadAllocatedBytes( threadId );
+
+        for ( int i = 0; i < nbBuffers; i++ )
+        {
+            IoBuffer buffer = allocator.allocate( size, false );
+            buffer.put( ( byte ) i );
+            buffer.free();
+        }
+
+        return threadBean.getThreadAllocatedBytes( threadId ) - start;
+    }
+
+
+    /**
+     * Compares the number of bytes allocated to read 10 000 PDUs in 64KB buffers, which is
+     * the LDAP read buffer size.
+     */
+    @Test
+    public void testAllocationRate()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue( threadBean instanceof com.sun.management.ThreadMXBean );
+
+        int nbBuffers = 10000;
+        int size = 64 * 1024;
+        IoBufferAllocator simpleAllocator = new SimpleBufferAllocator();
+        PooledBufferAllocator pooledAllocator = new PooledBufferAllocator();
+
+        // Warm up
+        allocatedBytes( simpleAllocator, 100, size );
+        allocatedBytes( pooledAllocator, 100, size );
+
+        long simpleBytes = allocatedBytes( simpleAllocator, nbBuffers, size );
+        long pooledBytes = allocatedBytes( pooledAllocator, nbBuffers, size );
+
+        System.out.println( "Allocated bytes for " + nbBuffers + " buffers of " + size + " bytes : simple = "
+            + simpleBytes + ", pooled = " + pooledBytes );
+
+        // The pooled allocator only allocates the IoBuffer wrappers
+        assertTrue( pooledBytes * 100 < simpleBytes );
+    }
+}
@@ -142,4 +142,20 @@ public @interface CreateConsumer
 
     /** the X509 certificate trust manager used, default value set to {@link NoVerificationTrustManager} */
     Class<?> trustManager() default NoVerificationTrustManager.class;
+
+
+    /** the number of received entries applied in a single transaction, default is 1 (no batching) */
+    int applyBatchSize() default 1;
+
+
+    /** the number of threads applying the changes done on disjoint subtrees, default is 1 */
+    int applyThreads() default 1;
+
+
+    /** tells if the initial content is requested over parallel streams, default is false */
+    boolean parallelRefresh() default false;
+
+
+    /** tells if a consumer without cookie starts from a snapshot of the provider's partition, default is false */
+    boolean snapshotBootstrap() default false;
 }
@@ -254,6 +254,10 @@ public final class ServerAnnotationProcessor
         config.setUseTls( createConsumer.useTls() );
         config.setBaseDn( createConsumer.baseDn() );
         config.setRefreshInterval( createConsumer.refreshInterval() );
+        config.setApplyBatchSize( createConsumer.applyBatchSize() );
+        config.setApplyThreads( createConsumer.applyThreads() );
+        config.setParallelRefresh( createConsumer.parallelRefresh() );
+        config.setSnapshotBootstrap( createConsumer.snapshotBootstrap() );
 
         consumer.setConfig( config );
 
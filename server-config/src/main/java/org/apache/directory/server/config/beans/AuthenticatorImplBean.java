@@ -35,6 +35,18 @@ public class AuthenticatorImplBean extends AuthenticatorBean
     @ConfigurationElement(attributeType = "ads-authenticatorClass")
     private String authenticatorClass;
 
+    /** The number of threads verifying the passwords, 0 for one per processor (simple authenticator only) */
+    @ConfigurationElement(attributeType = "ads-authenticatorVerifierThreads", isOptional = true, defaultValue = "0")
+    private int verifierThreads = 0;
+
+    /** The maximum number of pending password verifications (simple authenticator only) */
+    @ConfigurationElement(attributeType = "ads-authenticatorVerifierQueueSize", isOptional = true, defaultValue = "128")
+    private int verifierQueueSize = 128;
+
+    /** The maximum time a password verification can wait, in ms (simple authenticator only) */
+    @ConfigurationElement(attributeType = "ads-authenticatorVerifierTimeout", isOptional = true, defaultValue = "5000")
+    private long verifierTimeout = 5000L;
+
 
     /**
      * Creates a new instance of AuthenticatorImplBean.
@@ -62,12 +74,68 @@ public class AuthenticatorImplBean extends AuthenticatorBean
     }
 
 
+    /**
+     * @return the number of threads verifying the passwords, 0 for one per processor
+     */
+    public int getVerifierThreads()
+    {
+        return verifierThreads;
+    }
+
+
+    /**
+     * @param verifierThreads the number of threads verifying the passwords, 0 for one per processor
+     */
+    public void setVerifierThreads( int verifierThreads )
+    {
+        this.verifierThreads = verifierThreads;
+    }
+
+
+    /**
+     * @return the maximum number of pending password verifications
+     */
+    public int getVerifierQueueSize()
+    {
+        return verifierQueueSize;
+    }
+
+
+    /**
+     * @param verifierQueueSize the maximum number of pending password verifications
+     */
+    public void setVerifierQueueSize( int verifierQueueSize )
+    {
+        this.verifierQueueSize = verifierQueueSize;
+    }
+
+
+    /**
+     * @return the maximum time a password verification can wait, in ms
+     */
+    public long getVerifierTimeout()
+    {
+        return verifierTimeout;
+    }
+
+
+    /**
+     * @param verifierTimeout the maximum time a password verification can wait, in ms
+     */
+    public void setVerifierTimeout( long verifierTimeout )
+    {
+        this.verifierTimeout = verifierTimeout;
+    }
+
+
     /**
      * {@inheritDoc}
      */
     @Override
     public String toString()
     {
-        return "AuthenticatorImplBean [authenticatorClass=" + authenticatorClass + "]";
+        return "AuthenticatorImplBean [authenticatorClass=" + authenticatorClass + ", verifierThreads="
+            + verifierThreads + ", verifierQueueSize=" + verifierQueueSize + ", verifierTimeout=" + verifierTimeout
+            + "]";
     }
 }
@@ -44,6 +44,10 @@ public class JdbmIndexBean extends IndexBean
     @ConfigurationElement(attributeType = "ads-indexNumDupLimit", isOptional = true, defaultValue = "512")
     private int indexNumDupLimit = DEFAULT_DUPLICATE_LIMIT;
 
+    /** Tells if the duplicate entry UUIDs over the limit are stored in compressed posting lists */
+    @ConfigurationElement(attributeType = "ads-indexPostingLists", isOptional = true, defaultValue = "false")
+    private boolean indexPostingLists;
+
     /** The index file name */
     @ConfigurationElement(attributeType = "ads-indexFileName", isOptional = true)
     private String indexFileName;
@@ -107,6 +111,26 @@ public class JdbmIndexBean extends IndexBean
     }
 
 
+    /**
+     * @return <code>true</code> if the duplicate entry UUIDs over the limit are stored in
+     * compressed posting lists instead of a btree
+     */
+    public boolean isIndexPostingLists()
+    {
+        return indexPostingLists;
+    }
+
+
+    /**
+     * @param indexPostingLists <code>true</code> to store the duplicate entry UUIDs over the
+     * limit in compressed posting lists instead of a btree
+     */
+    public void setIndexPostingLists( boolean indexPostingLists )
+    {
+        this.indexPostingLists = indexPostingLists;
+    }
+
+
     /**
      * @return the indexFileName
      */
@@ -156,6 +180,7 @@ public class JdbmIndexBean extends IndexBean
         sb.append( toString( tabs, "  index working directory", indexWorkingDir ) );
         sb.append( toString( tabs, "  index cache size", indexCacheSize ) );
         sb.append( toString( tabs, "  index num dup limit", indexNumDupLimit ) );
+        sb.append( toString( tabs, "  index posting lists", indexPostingLists ) );
 
         return sb.toString();
     }
@@ -0,0 +1,236 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncStateValueDecorator;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Test the batches of entries applied by the replication consumer
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "ReplicationConsumerBatchIT")
+public class ReplicationConsumerBatchIT extends AbstractLdapTestUnit
+{
+    private static final CsnFactory CSN_FACTORY = new CsnFactory( 2 );
+
+    private static final String BASE_DN = "ou=replicated,ou=system";
+
+    private static final String CONFIG_DN = "cn=consumer,ou=system";
+
+    private SchemaManager schemaManager;
+
+    private CoreSession session;
+
+    private ReplicationConsumerImpl consumer;
+
+    private int messageId;
+
+
+    @Before
+    public void createConsumer() throws Exception
+    {
+        schemaManager = getService().getSchemaManager();
+        session = getService().getAdminSession();
+
+        // The entry the cookie is stored in
+        session.add( new DefaultEntry( schemaManager, CONFIG_DN,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: extensibleObject",
+            "cn: consumer",
+            "sn: consumer" ) );
+    }
+
+
+    @After
+    public void deleteEntries() throws Exception
+    {
+        if ( consumer != null )
+        {
+            consumer.stop();
+            consumer = null;
+        }
+
+        for ( String dn : new String[]
+            { "cn=b," + BASE_DN, "cn=a," + BASE_DN, BASE_DN, CONFIG_DN } )
+        {
+            if ( session.exists( dn ) )
+            {
+                session.delete( new Dn( schemaManager, dn ) );
+            }
+        }
+    }
+
+
+    private void startConsumer( int nbThreads ) throws Exception
+    {
+        SyncReplConfiguration config = new SyncReplConfiguration();
+        config.setReplicaId( 2 );
+        config.setRemoteHost( "localhost" );
+        config.setBaseDn( BASE_DN );
+        config.setConfigEntryDn( new Dn( schemaManager, CONFIG_DN ) );
+        config.setApplyBatchSize( 10 );
+        config.setApplyThreads( nbThreads );
+
+        consumer = new ReplicationConsumerImpl();
+        consumer.setConfig( config );
+        consumer.init( getService() );
+    }
+
+
+    private SearchResultEntry newAdd( String dn, String attributeType, String value ) throws Exception
+    {
+        String uuid = UUID.randomUUID().toString();
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            attributeType.equals( "ou" ) ? "objectClass: organizationalUnit" : "objectClass: person",
+            attributeType + ": " + value,
+            "entryUUID: " + uuid,
+            "entryCSN: " + CSN_FACTORY.newInstance() );
+
+        if ( !attributeType.equals( "ou" ) )
+        {
+            entry.add( "sn", value );
+        }
+
+        SyncStateValue syncState = new SyncStateValueDecorator( getService().getLdapCodecService() );
+        syncState.setSyncStateType( SyncStateTypeEnum.ADD );
+        syncState.setEntryUUID( Strings.uuidToBytes( uuid ) );
+
+        SearchResultEntry result = new SearchResultEntryImpl( ++messageId );
+        result.setEntry( entry );
+        result.setObjectName( entry.getDn() );
+        result.addControl( syncState );
+
+        return result;
+    }
+
+
+    private byte[] newCookie()
+    {
+        return LdapProtocolUtils.createCookie( 1, CSN_FACTORY.newInstance().toString() );
+    }
+
+
+    private String getStoredCookie() throws Exception
+    {
+        Attribute cookie = session.lookup( new Dn( schemaManager, CONFIG_DN ), SchemaConstants.ADS_REPL_COOKIE )
+            .get( SchemaConstants.ADS_REPL_COOKIE );
+
+        return ( cookie == null ) ? null : Strings.utf8ToString( cookie.getBytes() );
+    }
+
+
+    @Test
+    public void testBatchCommit() throws Exception
+    {
+        startConsumer( 1 );
+
+        List<SearchResultEntry> batch = new ArrayList<SearchResultEntry>();
+        batch.add( newAdd( BASE_DN, "ou", "replicated" ) );
+        batch.add( newAdd( "cn=a," + BASE_DN, "cn", "a" ) );
+        batch.add( newAdd( "cn=b," + BASE_DN, "cn", "b" ) );
+        byte[] cookie = newCookie();
+
+        assertTrue( consumer.applyBatch( batch, cookie ) );
+
+        assertTrue( session.exists( "cn=a," + BASE_DN ) );
+        assertTrue( session.exists( "cn=b," + BASE_DN ) );
+        assertEquals( Strings.utf8ToString( cookie ), getStoredCookie() );
+    }
+
+
+    @Test
+    public void testFailureMidBatch() throws Exception
+    {
+        startConsumer( 1 );
+
+        List<SearchResultEntry> batch = new ArrayList<SearchResultEntry>();
+        batch.add( newAdd( BASE_DN, "ou", "replicated" ) );
+        byte[] cookie = newCookie();
+
+        assertTrue( consumer.applyBatch( batch, cookie ) );
+
+        // The second entry has no parent
+        batch.clear();
+        batch.add( newAdd( "cn=a," + BASE_DN, "cn", "a" ) );
+        batch.add( newAdd( "cn=c,ou=missing,ou=system", "cn", "c" ) );
+        batch.add( newAdd( "cn=b," + BASE_DN, "cn", "b" ) );
+
+        assertFalse( consumer.applyBatch( batch, newCookie() ) );
+
+        // The whole batch has been rolled back, and the cookie has not moved
+        assertFalse( session.exists( "cn=a," + BASE_DN ) );
+        assertFalse( session.exists( "cn=b," + BASE_DN ) );
+        assertEquals( Strings.utf8ToString( cookie ), getStoredCookie() );
+    }
+
+
+    @Test
+    public void testCookieKeptOnParallelFailure() throws Exception
+    {
+        startConsumer( 2 );
+
+        List<SearchResultEntry> batch = new ArrayList<SearchResultEntry>();
+        batch.add( newAdd( BASE_DN, "ou", "replicated" ) );
+        batch.add( newAdd( "cn=a," + BASE_DN, "cn", "a" ) );
+        batch.add( newAdd( "cn=c,ou=missing,ou=system", "cn", "c" ) );
+
+        assertFalse( consumer.applyBatch( batch, newCookie() ) );
+
+        // The cookie is not stored past the failed entry
+        assertNull( getStoredCookie() );
+    }
+}
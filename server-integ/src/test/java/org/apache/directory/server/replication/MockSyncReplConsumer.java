@@ -68,6 +68,7 @@ import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
@@ -296,6 +297,11 @@ public class MockSyncReplConsumer implements ConnectionClosedEventListener, Repl
         searchRequest.setTypesOnly( false );
 
         searchRequest.addAttributes( config.getAttributes() );
+
+        if ( config.isParallelRefresh() )
+        {
+            searchRequest.addControl( new OpaqueControl( SyncReplConfiguration.PARALLEL_REFRESH_CONTROL_OID ) );
+        }
     }
 
 
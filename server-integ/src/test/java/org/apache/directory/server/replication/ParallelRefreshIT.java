@@ -0,0 +1,275 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.server.replication;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.Network;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the initial refresh of a client, when the provider sends the content over parallel streams
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelRefreshIT
+{
+    private static LdapServer providerServer;
+
+    private static SchemaManager schemaManager;
+
+    private static CoreSession providerSession;
+
+    private static final int NB_OUS = 4;
+
+    private static final int NB_USERS_PER_OU = 10;
+
+    /** The users, their OUs and the base entry */
+    private static final int TOTAL_COUNT = NB_OUS * ( NB_USERS_PER_OU + 1 ) + 1;
+
+    private static final int NB_STREAMS = 4;
+
+    private static File cookiesDir;
+
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        startProvider();
+
+        // Create a few subtrees, so that the content is split in many ranges
+        for ( int i = 0; i < NB_OUS; i++ )
+        {
+            String ouDn = "ou=ou" + i + ",dc=example,dc=com";
+
+            providerSession.add( new DefaultEntry( schemaManager, ouDn,
+                "objectClass", "organizationalUnit",
+                "ou", "ou" + i ) );
+
+            for ( int j = 0; j < NB_USERS_PER_OU; j++ )
+            {
+                String user = "user" + i + "-" + j;
+
+                providerSession.add( new DefaultEntry( schemaManager, "cn=" + user + "," + ouDn,
+                    "objectClass", "person",
+                    "cn", user,
+                    "sn", user ) );
+            }
+        }
+
+        cookiesDir = new File( FileUtils.getTempDirectory(), MockSyncReplConsumer.COOKIES_DIR_NAME );
+    }
+
+
+    @Before
+    @After
+    public void deleteCookies() throws IOException
+    {
+        if ( cookiesDir.exists() )
+        {
+            FileUtils.cleanDirectory( cookiesDir );
+        }
+    }
+
+
+    @AfterClass
+    public static void tearDown() throws Exception
+    {
+        providerServer.stop();
+        providerServer.getDirectoryService().shutdown();
+
+        FileUtils.deleteDirectory( providerServer.getDirectoryService().getInstanceLayout().getInstanceDirectory() );
+        FileUtils.deleteDirectory( cookiesDir );
+    }
+
+
+    @CreateDS(allowAnonAccess = true, name = "provider-parallel-refresh", partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com",
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "dc"),
+                        @CreateIndex(attribute = "ou")
+                },
+                contextEntry = @ContextEntry(entryLdif =
+                    "dn: dc=example,dc=com\n" +
+                        "objectClass: domain\n" +
+                        "dc: example"))
+    })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 16000, protocol = "LDAP") })
+    public static void startProvider() throws Exception
+    {
+        DirectoryService provDirService = DSAnnotationProcessor.getDirectoryService();
+
+        providerServer = ServerAnnotationProcessor.getLdapServer( provDirService );
+
+        SyncReplRequestHandler handler = new SyncReplRequestHandler();
+        handler.setRefreshStreams( NB_STREAMS );
+
+        providerServer.setReplicationReqHandler( handler );
+        providerServer.startReplicationProducer();
+
+        schemaManager = provDirService.getSchemaManager();
+        providerSession = provDirService.getAdminSession();
+    }
+
+
+    /**
+     * Wait for the expected number of entries to be added into the client
+     */
+    private boolean waitForSyncReplClient( MockSyncReplConsumer consumer, int expected ) throws Exception
+    {
+        for ( int i = 0; i < 50; i++ )
+        {
+            if ( consumer.getNbAdded() == expected )
+            {
+                return true;
+            }
+
+            Thread.sleep( 100 );
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Create a consumer asking for a parallel refresh, and start it in a separated thread.
+     */
+    private MockSyncReplConsumer createConsumer( int sizeLimit ) throws Exception
+    {
+        final MockSyncReplConsumer syncreplClient = new MockSyncReplConsumer();
+        final SyncReplConfiguration config = new SyncReplConfiguration();
+        config.setRemoteHost( Network.LOOPBACK_HOSTNAME );
+        config.setRemotePort( 16000 );
+        config.setReplUserDn( "uid=admin,ou=system" );
+        config.setReplUserPassword( "secret".getBytes() );
+        config.setUseTls( false );
+        config.setBaseDn( "dc=example,dc=com" );
+        config.setRefreshInterval( 1000 );
+        config.setSearchSizeLimit( sizeLimit );
+        config.setParallelRefresh( true );
+
+        syncreplClient.setConfig( config );
+
+        Runnable consumerTask = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    DirectoryService directoryService = new MockDirectoryService();
+                    directoryService.setSchemaManager( schemaManager );
+                    syncreplClient.init( directoryService );
+
+                    directoryService.setDnFactory( new DefaultDnFactory( schemaManager, null ) );
+                    syncreplClient.connect( true );
+                    syncreplClient.startSync();
+                }
+                catch ( Exception e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+        };
+
+        Thread consumerThread = new Thread( consumerTask );
+        consumerThread.setDaemon( true );
+        consumerThread.start();
+
+        return syncreplClient;
+    }
+
+
+    /**
+     * The consumer must get all the entries, whatever the stream they have been sent by
+     */
+    @Test
+    public void testParallelRefreshLoad() throws Exception
+    {
+        MockSyncReplConsumer consumer = createConsumer( 0 );
+
+        try
+        {
+            assertTrue( waitForSyncReplClient( consumer, TOTAL_COUNT ) );
+        }
+        finally
+        {
+            consumer.stop();
+        }
+    }
+
+
+    /**
+     * The size limit applies to the whole refresh, not to each of the ranges
+     */
+    @Test
+    public void testParallelRefreshSizeLimit() throws Exception
+    {
+        int sizeLimit = NB_USERS_PER_OU / 2;
+        MockSyncReplConsumer consumer = createConsumer( sizeLimit );
+
+        try
+        {
+            assertTrue( waitForSyncReplClient( consumer, sizeLimit ) );
+
+            // Let the other streams run : they must not send anything more
+            Thread.sleep( 1000 );
+            assertEquals( sizeLimit, consumer.getNbAdded() );
+        }
+        finally
+        {
+            consumer.stop();
+        }
+    }
+}
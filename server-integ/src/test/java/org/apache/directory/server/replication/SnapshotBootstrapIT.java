@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+
+package org.apache.directory.server.replication;
+
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.annotations.CreateConsumer;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.DSAnnotationProcessor;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+import org.apache.directory.server.factory.ServerAnnotationProcessor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.handlers.extended.ReplicaSnapshotHandler;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerImpl;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests a consumer started from a snapshot of the provider's partition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SnapshotBootstrapIT
+{
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    private static final int NB_ENTRIES = 20;
+
+    private static LdapServer providerServer;
+
+    private static LdapServer consumerServer;
+
+    private static SchemaManager schemaManager;
+
+    private static CoreSession providerSession;
+
+    private static CoreSession consumerSession;
+
+    /** The consumer's partition, before the snapshot is installed */
+    private static Partition initialPartition;
+
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        Class.forName( FrameworkRunner.class.getName() );
+
+        startProvider();
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            providerSession.add( createEntry( "user" + i ) );
+        }
+
+        startConsumer();
+    }
+
+
+    @AfterClass
+    public static void tearDown() throws Exception
+    {
+        consumerServer.stop();
+        consumerServer.getDirectoryService().shutdown();
+        providerServer.stop();
+        providerServer.getDirectoryService().shutdown();
+    }
+
+
+    private static Entry createEntry( String user ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=" + user + "," + BASE_DN,
+            "objectClass", "person",
+            "cn", user,
+            "sn", user );
+    }
+
+
+    /**
+     * Wait for an entry to be present on the consumer
+     */
+    private boolean waitForEntry( Dn dn ) throws Exception
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            if ( consumerSession.exists( dn ) )
+            {
+                return true;
+            }
+
+            Thread.sleep( 100 );
+        }
+
+        return false;
+    }
+
+
+    @CreateDS(
+        allowAnonAccess = true,
+        name = "provider-snapshot",
+        enableChangeLog = false,
+        partitions =
+            {
+                @CreatePartition(
+                    name = "example",
+                    suffix = BASE_DN,
+                    indexes =
+                        {
+                            @CreateIndex(attribute = "objectClass"),
+                            @CreateIndex(attribute = "dc"),
+                            @CreateIndex(attribute = "ou")
+                    },
+                    contextEntry = @ContextEntry(entryLdif =
+                        "dn: dc=example,dc=com\n" +
+                            "objectClass: domain\n" +
+                            "dc: example"))
+        })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 16000, protocol = "LDAP") },
+        extendedOpHandlers =
+        { ReplicaSnapshotHandler.class })
+    public static void startProvider() throws Exception
+    {
+        DirectoryService provDirService = DSAnnotationProcessor.getDirectoryService();
+
+        providerServer = ServerAnnotationProcessor.getLdapServer( provDirService );
+        providerServer.setReplicationReqHandler( new SyncReplRequestHandler() );
+        providerServer.startReplicationProducer();
+
+        schemaManager = provDirService.getSchemaManager();
+        providerSession = provDirService.getAdminSession();
+    }
+
+
+    @CreateDS(
+        allowAnonAccess = true,
+        enableChangeLog = false,
+        name = "consumer-snapshot",
+        partitions =
+            {
+                @CreatePartition(
+                    name = "example",
+                    suffix = BASE_DN,
+                    indexes =
+                        {
+                            @CreateIndex(attribute = "objectClass"),
+                            @CreateIndex(attribute = "dc"),
+                            @CreateIndex(attribute = "ou")
+                    },
+                    contextEntry = @ContextEntry(entryLdif =
+                        "dn: dc=example,dc=com\n" +
+                            "objectClass: domain\n" +
+                            "dc: example"))
+        })
+    @CreateLdapServer(transports =
+        { @CreateTransport(port = 17000, protocol = "LDAP") })
+    @CreateConsumer
+        (
+            remotePort = 16000,
+            replUserDn = "uid=admin,ou=system",
+            replUserPassword = "secret",
+            useTls = false,
+            baseDn = BASE_DN,
+            refreshInterval = 1000,
+            replicaId = 1,
+            snapshotBootstrap = true
+        )
+        public static void startConsumer() throws Exception
+    {
+        DirectoryService consDirService = DSAnnotationProcessor.getDirectoryService();
+        consumerServer = ServerAnnotationProcessor.getLdapServer( consDirService );
+
+        ReplicationConsumerImpl consumer = ( ReplicationConsumerImpl ) ServerAnnotationProcessor.createConsumer();
+
+        List<ReplicationConsumer> replConsumers = new ArrayList<ReplicationConsumer>();
+        replConsumers.add( consumer );
+
+        consumerServer.setReplConsumers( replConsumers );
+
+        Dn configDn = new Dn( consDirService.getSchemaManager(), "ads-replConsumerId=localhost,ou=system" );
+        consumer.getConfig().setConfigEntryDn( configDn );
+
+        Entry consumerConfigEntry = new DefaultEntry( consDirService.getSchemaManager(), configDn,
+            "objectClass: ads-replConsumer",
+            "ads-replConsumerId: localhost",
+            "ads-searchBaseDN", consumer.getConfig().getBaseDn(),
+            "ads-replProvHostName", consumer.getConfig().getRemoteHost(),
+            "ads-replProvPort", String.valueOf( consumer.getConfig().getRemotePort() ),
+            "ads-replRefreshInterval", String.valueOf( consumer.getConfig().getRefreshInterval() ),
+            "ads-replRefreshNPersist", String.valueOf( consumer.getConfig().isRefreshNPersist() ),
+            "ads-replSearchScope", consumer.getConfig().getSearchScope().getLdapUrlValue(),
+            "ads-replSearchFilter", consumer.getConfig().getFilter(),
+            "ads-replSearchSizeLimit", String.valueOf( consumer.getConfig().getSearchSizeLimit() ),
+            "ads-replSearchTimeOut", String.valueOf( consumer.getConfig().getSearchTimeout() ),
+            "ads-replUserDn", consumer.getConfig().getReplUserDn(),
+            "ads-replUserPassword", consumer.getConfig().getReplUserPassword() );
+
+        consumerConfigEntry.put( "ads-replAliasDerefMode", consumer.getConfig().getAliasDerefMode()
+            .getJndiValue() );
+        consumerConfigEntry.put( "ads-replAttributes", consumer.getConfig().getAttributes() );
+
+        consumerSession = consDirService.getAdminSession();
+        consumerSession.add( consumerConfigEntry );
+
+        initialPartition = consDirService.getPartitionNexus().getPartition(
+            new Dn( consDirService.getSchemaManager(), BASE_DN ) );
+
+        consumerServer.startReplicationConsumers();
+    }
+
+
+    /**
+     * The consumer gets the entries from the snapshot, then the modifications done since
+     * the snapshot from the cookie it got with it
+     */
+    @Test
+    public void testBootstrapFromSnapshot() throws Exception
+    {
+        Dn lastDn = new Dn( schemaManager, "cn=user" + ( NB_ENTRIES - 1 ) + "," + BASE_DN );
+        assertTrue( waitForEntry( lastDn ) );
+
+        // The partition has been replaced by a new one, opened on the snapshot files
+        Partition partition = consumerServer.getDirectoryService().getPartitionNexus().getPartition( lastDn );
+        assertNotSame( initialPartition, partition );
+        assertTrue( partition instanceof JdbmPartition );
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            assertTrue( consumerSession.exists( "cn=user" + i + "," + BASE_DN ) );
+        }
+
+        // The consumer keeps replicating from the cookie it got with the snapshot
+        Entry added = createEntry( "added" );
+        providerSession.add( added );
+
+        assertTrue( waitForEntry( added.getDn() ) );
+    }
+}
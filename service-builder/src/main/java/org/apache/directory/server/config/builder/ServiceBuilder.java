@@ -89,6 +89,7 @@ import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.authn.AuthenticationInterceptor;
 import org.apache.directory.server.core.authn.Authenticator;
 import org.apache.directory.server.core.authn.DelegatingAuthenticator;
+import org.apache.directory.server.core.authn.SimpleAuthenticator;
 import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
 import org.apache.directory.server.core.changelog.DefaultChangeLog;
 import org.apache.directory.server.core.journal.DefaultJournal;
@@ -536,7 +537,8 @@ public final class ServiceBuilder
         }
         else if ( authenticatorBean instanceof AuthenticatorImplBean )
         {
-            String fqcn = ( ( AuthenticatorImplBean ) authenticatorBean ).getAuthenticatorClass();
+            AuthenticatorImplBean authenticatorImplBean = ( AuthenticatorImplBean ) authenticatorBean;
+            String fqcn = authenticatorImplBean.getAuthenticatorClass();
 
             try
             {
@@ -550,6 +552,15 @@ public final class ServiceBuilder
                 LOG.warn( errorMsg );
                 throw new ConfigurationException( errorMsg, e );
             }
+
+            if ( authenticator instanceof SimpleAuthenticator )
+            {
+                // The password verification pool
+                SimpleAuthenticator simpleAuthenticator = ( SimpleAuthenticator ) authenticator;
+                simpleAuthenticator.setVerifierThreads( authenticatorImplBean.getVerifierThreads() );
+                simpleAuthenticator.setVerifierQueueSize( authenticatorImplBean.getVerifierQueueSize() );
+                simpleAuthenticator.setVerifierTimeout( authenticatorImplBean.getVerifierTimeout() );
+            }
         }
 
         return authenticator;
@@ -1251,6 +1262,9 @@ public final class ServiceBuilder
         else
         {
             index = new JdbmIndex<>( jdbmIndexBean.getIndexAttributeId(), hasReverse );
+
+            // The posting lists only apply to the user indexes, whose values are entry UUIDs
+            index.setPostingListsEnabled( jdbmIndexBean.isIndexPostingLists() );
         }
 
         index.setCacheSize( jdbmIndexBean.getIndexCacheSize() );
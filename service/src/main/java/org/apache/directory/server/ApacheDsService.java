@@ -37,6 +37,8 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
@@ -263,6 +265,30 @@ public class ApacheDsService
     }
 
 
+    /**
+     * Copies the files of an online partition into a backup directory
+     *
+     * @param partitionId The ID of the partition to backup
+     * @param backupDirectory The directory where the partition files will be copied
+     * @throws LdapException If the partition does not exist or can't be backed up
+     */
+    public void backup( String partitionId, File backupDirectory ) throws LdapException
+    {
+        for ( Partition partition : getDirectoryService().getPartitions() )
+        {
+            if ( partitionId.equalsIgnoreCase( partition.getId() ) )
+            {
+                LOG.info( "Backing up the partition {} in {}", partitionId, backupDirectory );
+                partition.backup( backupDirectory, getDirectoryService().getOperationManager().getRWLock() );
+
+                return;
+            }
+        }
+
+        throw new LdapNoSuchObjectException( "No partition with ID " + partitionId );
+    }
+
+
     /**
      * Initialize the schema Manager by loading the schema LDIF files
      * 
@@ -17,9 +17,12 @@
 package org.apache.directory.server;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.CharBuffer;
@@ -30,6 +33,7 @@ import java.util.UUID;
 
 import org.apache.directory.api.util.Network;
 import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.partition.PartitionHotCopy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +48,9 @@ public class UberjarMain
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( UberjarMain.class );
     
+    /** The command sent to the shutdown listener to backup a partition */
+    private static final String BACKUP_COMMAND = "backup";
+
     /** The key of the property use to specify the shutdown port */
     private static final String PROPERTY_SHUTDOWN_PORT = "apacheds.shutdown.port";
 
@@ -65,7 +72,7 @@ public class UberjarMain
         }
 
         String instanceDirectory = args[0];
-        Action action = ( args.length == 2 ) ? Action.fromString( args[1] ) : Action.START;
+        Action action = ( args.length >= 2 ) ? Action.fromString( args[1] ) : Action.START;
 
         UberjarMain instance = new UberjarMain();
         
@@ -89,6 +96,27 @@ public class UberjarMain
                 }
                 
                 break;
+
+            case BACKUP :
+                // Backups a partition of the running server : <instance> backup <partitionId> <directory>
+                checkPartitionArguments( args );
+                LOG.debug( "Backing up partition {}", args[2] );
+                System.out.println( requestBackup( new InstanceLayout( instanceDirectory ), args[2],
+                    new File( args[3] ).getAbsoluteFile() ) );
+
+                break;
+
+            case RESTORE :
+                // Restores a partition while the server is stopped : <instance> restore <partitionId> <directory>
+                checkPartitionArguments( args );
+                LOG.debug( "Restoring partition {}", args[2] );
+                File partitionDirectory = new File( new InstanceLayout( instanceDirectory ).getPartitionsDirectory(),
+                    args[2] );
+                File previous = PartitionHotCopy.restore( new File( args[3] ), partitionDirectory );
+                System.out.println( "Partition " + args[2] + " restored in " + partitionDirectory
+                    + ( previous == null ? "" : ", the previous files have been moved to " + previous ) );
+
+                break;
                 
             case REPAIR :
                 // Try to fix the JDBM database
@@ -105,6 +133,78 @@ public class UberjarMain
     }
 
     
+    private static void checkPartitionArguments( String[] args )
+    {
+        if ( args.length != 4 )
+        {
+            throw new IllegalArgumentException( "Expected arguments : <instance directory> " + args[1]
+                + " <partition ID> <backup directory>" );
+        }
+    }
+
+
+    /**
+     * Asks the running server to backup a partition, using the shutdown listener.
+     */
+    private static String requestBackup( InstanceLayout layout, String partitionId, File backupDirectory )
+        throws IOException
+    {
+        try ( Socket socket = new Socket( Network.LOOPBACK, readShutdownPort( layout ) ) )
+        {
+            PrintWriter writer = new PrintWriter( new OutputStreamWriter( socket.getOutputStream(),
+                Charset.forName( "utf-8" ) ) );
+            writer.print( readShutdownPassword( layout ) + '\n' + BACKUP_COMMAND + ' ' + partitionId + ' '
+                + backupDirectory.getPath() );
+            writer.flush();
+            socket.shutdownOutput();
+
+            return readFully( new InputStreamReader( socket.getInputStream(), Charset.forName( "utf-8" ) ) );
+        }
+    }
+
+
+    private static String readFully( InputStreamReader reader ) throws IOException
+    {
+        CharBuffer buffer = CharBuffer.allocate( 2048 );
+
+        while ( reader.read( buffer ) >= 0 )
+        {
+            // read till end of stream
+        }
+
+        buffer.flip();
+
+        return buffer.toString();
+    }
+
+
+    /**
+     * Executes a backup command received by the shutdown listener.
+     */
+    private String backup( String command )
+    {
+        String[] args = command.substring( BACKUP_COMMAND.length() ).trim().split( " ", 2 );
+
+        if ( args.length != 2 )
+        {
+            return "Invalid backup command : " + command;
+        }
+
+        try
+        {
+            service.backup( args[0], new File( args[1] ) );
+
+            return "Partition " + args[0] + " backed up in " + args[1];
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "Failed to backup the partition {}", args[0], e );
+
+            return "Failed to backup the partition " + args[0] + " : " + e.getMessage();
+        }
+    }
+
+
     private int getShutdownPort()
     {
         int shutdownPort = Integer.parseInt( System.getProperty( PROPERTY_SHUTDOWN_PORT, "0" ) );
@@ -260,26 +360,38 @@ public class UberjarMain
                         {
                             try
                             {
-                                InputStreamReader reader = new InputStreamReader( socket.getInputStream() );
-                                
-                                CharBuffer buffer = CharBuffer.allocate( 2048 );
-                                while ( reader.read( buffer ) >= 0 )
+                                InputStreamReader reader = new InputStreamReader( socket.getInputStream(),
+                                    Charset.forName( "utf-8" ) );
+                                String password = readFully( reader );
+                                String command = null;
+
+                                // A command may follow the password, on its own line
+                                int pos = password.indexOf( '\n' );
+
+                                if ( pos >= 0 )
                                 {
-                                    // read till end of stream
+                                    command = password.substring( pos + 1 );
+                                    password = password.substring( 0, pos );
                                 }
-                                buffer.flip();
-                                String password = buffer.toString();
-                                
-                                reader.close();
-                                
-                                if ( shutdownPassword.equals( password ) )
+
+                                if ( !shutdownPassword.equals( password ) )
                                 {
-                                    stop();
-                                    break;
+                                    LOG.warn( "Illegal attempt to shutdown, incorrect password {}", password );
+                                    reader.close();
+                                }
+                                else if ( ( command != null ) && command.startsWith( BACKUP_COMMAND ) )
+                                {
+                                    try ( Writer writer = new OutputStreamWriter( socket.getOutputStream(),
+                                        Charset.forName( "utf-8" ) ) )
+                                    {
+                                        writer.write( backup( command ) );
+                                    }
                                 }
                                 else
                                 {
-                                    LOG.warn( "Illegal attempt to shutdown, incorrect password {}", password );
+                                    reader.close();
+                                    stop();
+                                    break;
                                 }
                             }
                             catch ( IOException e )
@@ -320,7 +432,7 @@ public class UberjarMain
     
     private enum Action
     {
-        START, STOP, REPAIR;
+        START, STOP, REPAIR, BACKUP, RESTORE;
 
         public static Action fromString( String actionString )
         {
@@ -20,18 +20,53 @@
 package org.apache.directory.server.core.partition.impl.avl;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.Normalizer;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartitionJournal.JournalRecord;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
 import org.apache.directory.server.xdbm.impl.avl.AvlMasterTable;
 import org.apache.directory.server.xdbm.impl.avl.AvlRdnIndex;
@@ -46,6 +81,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * An XDBM Partition backed by in memory AVL Trees.
+ * <br>
+ * The partition is volatile by default. If a journal directory is configured, every
+ * change is appended to a write-ahead journal, and a binary snapshot of the whole
+ * partition is written every <em>snapshotThreshold</em> journalized changes and when
+ * the partition is destroyed. On startup, the snapshot is reloaded, the journal is
+ * replayed and the indexes are rebuilt in parallel (see {@link AvlPartitionJournal}).
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -54,6 +95,24 @@ public class AvlPartition extends AbstractBTreePartition
     /** static logger */
     private static final Logger LOG = LoggerFactory.getLogger( AvlPartition.class );
 
+    /** The default number of journalized changes before a new snapshot is written */
+    public static final long DEFAULT_SNAPSHOT_THRESHOLD = 100000L;
+
+    /** The directory containing the snapshot and the journal. If null, the partition is volatile */
+    private File journalDirectory;
+
+    /** Tells if the journal is synced on disk after each change */
+    private boolean journalSyncOnWrite = false;
+
+    /** The number of journalized changes before a new snapshot is written */
+    private long snapshotThreshold = DEFAULT_SNAPSHOT_THRESHOLD;
+
+    /** The journal, if the partition is persistent */
+    private AvlPartitionJournal journal;
+
+    /** A lock used to exclude the modifications while a snapshot is written */
+    private ReadWriteLock journalLock = new ReentrantReadWriteLock();
+
 
     /**
      * Creates a store based on AVL Trees.
@@ -120,7 +179,676 @@ public class AvlPartition extends AbstractBTreePartition
             master = new AvlMasterTable( id, UuidComparator.INSTANCE, null, false );
 
             super.doInit();
+
+            if ( journalDirectory != null )
+            {
+                recover();
+            }
+        }
+    }
+
+
+    /**
+     * Reloads the last snapshot, replays the journal on top of it and opens the journal
+     * for the coming changes.
+     */
+    private void recover() throws LdapException
+    {
+        if ( !journalDirectory.exists() && !journalDirectory.mkdirs() )
+        {
+            throw new LdapOtherException( "Cannot create the journal directory " + journalDirectory );
+        }
+
+        journal = new AvlPartitionJournal( journalDirectory, id, schemaManager );
+        journal.setSyncOnWrite( journalSyncOnWrite );
+
+        try
+        {
+            long t0 = System.currentTimeMillis();
+            Map<String, JournalRecord> records = journal.recover();
+
+            if ( !records.isEmpty() )
+            {
+                try ( PartitionTxn partitionTxn = beginWriteTransaction() )
+                {
+                    load( partitionTxn, records );
+                    partitionTxn.commit();
+                }
+            }
+
+            journal.open();
+
+            LOG.info( "Reloaded {} entries in partition {} in {} ms", records.size(), id,
+                System.currentTimeMillis() - t0 );
+
+            // Compact the replayed journal in a new snapshot, so that it does not grow across restarts
+            if ( journal.getJournalSize() > 0 )
+            {
+                snapshot();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Loads the recovered entries into the master table, then rebuilds the indexes. The
+     * RDN index is built first, with the children and descendant counters computed
+     * upfront, then the other indexes are built in parallel, one task per index.
+     */
+    @SuppressWarnings("unchecked")
+    private void load( final PartitionTxn partitionTxn, Map<String, JournalRecord> records ) throws LdapException
+    {
+        final Collection<JournalRecord> loaded = records.values();
+
+        // Compute the number of children and descendants of each entry
+        Map<String, int[]> counters = new HashMap<>();
+
+        for ( JournalRecord record : loaded )
+        {
+            String parentId = record.getParentIdAndRdn().getParentId();
+            boolean isFirst = true;
+
+            while ( !Partition.ROOT_ID.equals( parentId ) )
+            {
+                int[] counter = counters.get( parentId );
+
+                if ( counter == null )
+                {
+                    counter = new int[2];
+                    counters.put( parentId, counter );
+                }
+
+                if ( isFirst )
+                {
+                    counter[0]++;
+                    isFirst = false;
+                }
+
+                counter[1]++;
+
+                JournalRecord parent = records.get( parentId );
+
+                if ( parent == null )
+                {
+                    throw new LdapOtherException( "Orphan entry " + record.getId() + " found in the journal" );
+                }
+
+                parentId = parent.getParentIdAndRdn().getParentId();
+            }
+        }
+
+        for ( JournalRecord record : loaded )
+        {
+            String id = record.getId();
+            Entry entry = record.getEntry();
+            ParentIdAndRdn parentIdAndRdn = record.getParentIdAndRdn();
+            int[] counter = counters.get( id );
+
+            if ( counter != null )
+            {
+                parentIdAndRdn.setNbChildren( counter[0] );
+                parentIdAndRdn.setNbDescendants( counter[1] );
+            }
+
+            master.put( partitionTxn, id, entry );
+            rdnIdx.add( partitionTxn, parentIdAndRdn, id );
+        }
+
+        // Now, the other indexes, in parallel
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        final Normalizer objectClassNormalizer = objectClassAT.getEquality().getNormalizer();
+        final Value topValue = new Value( objectClassAT, SchemaConstants.TOP_OC_OID );
+
+        tasks.add( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws LdapException
+            {
+                for ( JournalRecord record : loaded )
+                {
+                    for ( Value value : record.getEntry().get( objectClassAT ) )
+                    {
+                        if ( !value.equals( topValue ) )
+                        {
+                            objectClassIdx.add( partitionTxn, objectClassNormalizer.normalize( value.getValue() ),
+                                record.getId() );
+                        }
+                    }
+                }
+
+                return null;
+            }
+        } );
+
+        tasks.add( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws LdapException
+            {
+                for ( JournalRecord record : loaded )
+                {
+                    entryCsnIdx.add( partitionTxn, record.getEntry().get( entryCsnAT ).getString(), record.getId() );
+                }
+
+                return null;
+            }
+        } );
+
+        // The presence index is fed by the AdministrativeRole index and all the user indexes
+        tasks.add( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws LdapException
+            {
+                for ( JournalRecord record : loaded )
+                {
+                    Entry entry = record.getEntry();
+
+                    if ( entry.containsAttribute( administrativeRoleAT ) )
+                    {
+                        presenceIdx.add( partitionTxn, administrativeRoleAT.getOid(), record.getId() );
+                    }
+
+                    for ( Attribute attribute : entry )
+                    {
+                        if ( hasUserIndexOn( attribute.getAttributeType() ) )
+                        {
+                            presenceIdx.add( partitionTxn, attribute.getAttributeType().getOid(), record.getId() );
+                        }
+                    }
+                }
+
+                return null;
+            }
+        } );
+
+        tasks.add( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws LdapException
+            {
+                for ( JournalRecord record : loaded )
+                {
+                    Attribute adminRoles = record.getEntry().get( administrativeRoleAT );
+
+                    if ( adminRoles != null )
+                    {
+                        for ( Value value : adminRoles )
+                        {
+                            adminRoleIdx.add( partitionTxn, value.getValue(), record.getId() );
+                        }
+                    }
+                }
+
+                return null;
+            }
+        } );
+
+        Iterator<String> userIndices = getUserIndices();
+
+        while ( userIndices.hasNext() )
+        {
+            final AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( userIndices.next() );
+            final Index<Object, String> userIndex;
+
+            try
+            {
+                userIndex = ( Index<Object, String> ) getUserIndex( attributeType );
+            }
+            catch ( IndexNotFoundException infe )
+            {
+                throw new LdapOtherException( infe.getMessage(), infe );
+            }
+
+            tasks.add( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws LdapException
+                {
+                    for ( JournalRecord record : loaded )
+                    {
+                        Attribute attribute = record.getEntry().get( attributeType );
+
+                        if ( attribute != null )
+                        {
+                            for ( Value value : attribute )
+                            {
+                                userIndex.add( partitionTxn, value.getNormalized(), record.getId() );
+                            }
+                        }
+                    }
+
+                    return null;
+                }
+            } );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min( tasks.size(), Runtime.getRuntime().availableProcessors() ) );
+
+        try
+        {
+            for ( Future<Void> future : executor.invokeAll( tasks ) )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new LdapOtherException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new LdapOtherException( ee.getCause().getMessage(), ee.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // The alias indexes need the RDN index to be complete, and to read the aliases targets.
+        // This also loads the context CSN
+        loadContextCsn( partitionTxn );
+
+        for ( JournalRecord record : loaded )
+        {
+            Entry entry = record.getEntry();
+
+            if ( entry.get( objectClassAT ).contains( SchemaConstants.ALIAS_OC ) )
+            {
+                Dn aliasDn = getEntryDn( records, record.getId() );
+                Dn aliasTarget = new Dn( schemaManager, entry.get( aliasedObjectNameAT ).getString() );
+                addAliasIndices( partitionTxn, record.getId(), aliasDn, aliasTarget );
+            }
+        }
+    }
+
+
+    /**
+     * Builds the DN of a recovered entry, walking up its ancestors
+     */
+    private Dn getEntryDn( Map<String, JournalRecord> records, String id ) throws LdapException
+    {
+        List<Rdn> rdns = new ArrayList<>();
+        String currentId = id;
+
+        while ( !Partition.ROOT_ID.equals( currentId ) )
+        {
+            ParentIdAndRdn parentIdAndRdn = records.get( currentId ).getParentIdAndRdn();
+
+            for ( Rdn rdn : parentIdAndRdn.getRdns() )
+            {
+                rdns.add( rdn );
+            }
+
+            currentId = parentIdAndRdn.getParentId();
+        }
+
+        return new Dn( schemaManager, rdns.toArray( new Rdn[rdns.size()] ) );
+    }
+
+
+    /**
+     * Writes a snapshot of the partition and empties the journal. The modifications
+     * are suspended while the snapshot is written. This is a no-op if the partition
+     * has no journal.
+     *
+     * @throws LdapException If the snapshot can't be written
+     */
+    public void snapshot() throws LdapException
+    {
+        if ( journal == null )
+        {
+            return;
+        }
+
+        journalLock.writeLock().lock();
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            List<JournalRecord> records = new ArrayList<>();
+
+            Cursor<Tuple<String, Entry>> cursor = master.cursor();
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    Tuple<String, Entry> tuple = cursor.get();
+                    String entryId = tuple.getKey();
+
+                    records.add( new JournalRecord( entryId, rdnIdx.reverseLookup( partitionTxn, entryId ),
+                        tuple.getValue() ) );
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            journal.writeSnapshot( records );
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            journalLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Appends the current state of an entry in the journal
+     */
+    private void journalPut( PartitionTxn partitionTxn, String entryId ) throws LdapException
+    {
+        try
+        {
+            journal.logPut( entryId, rdnIdx.reverseLookup( partitionTxn, entryId ), master.get( partitionTxn, entryId ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Writes a new snapshot if the journal has grown over the configured threshold
+     */
+    private void checkSnapshot() throws LdapException
+    {
+        if ( journal.getJournalSize() >= snapshotThreshold )
+        {
+            snapshot();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add( AddOperationContext addContext ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.add( addContext );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            super.add( addContext );
+
+            PartitionTxn partitionTxn = addContext.getTransaction();
+            journalPut( partitionTxn, getEntryId( partitionTxn, addContext.getDn() ) );
         }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry delete( PartitionTxn partitionTxn, String id ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            return super.delete( partitionTxn, id );
+        }
+
+        Entry deletedEntry;
+        journalLock.readLock().lock();
+
+        try
+        {
+            deletedEntry = super.delete( partitionTxn, id );
+
+            journal.logRemove( id );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+
+        return deletedEntry;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modify( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.modify( modifyContext );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            // The modified entry is journalized by entryModified()
+            super.modify( modifyContext );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+    }
+
+
+    /**
+     * Journalizes the modified entry. This is also called when the entry is modified
+     * directly through the {@link #modify(PartitionTxn, Dn, org.apache.directory.api.ldap.model.entry.Modification...)}
+     * method, so that such a change is not lost on recovery.
+     */
+    @Override
+    protected void entryModified( PartitionTxn partitionTxn, String id ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            journalPut( partitionTxn, id );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.rename( renameContext );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            super.rename( renameContext );
+
+            PartitionTxn partitionTxn = renameContext.getTransaction();
+            journalPut( partitionTxn, getEntryId( partitionTxn, renameContext.getNewDn() ) );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.move( moveContext );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            super.move( moveContext );
+
+            // Only the moved entry is modified, its descendants keep the same parent
+            PartitionTxn partitionTxn = moveContext.getTransaction();
+            journalPut( partitionTxn, getEntryId( partitionTxn, moveContext.getNewDn() ) );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.moveAndRename( moveAndRenameContext );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            super.moveAndRename( moveAndRenameContext );
+
+            PartitionTxn partitionTxn = moveAndRenameContext.getTransaction();
+            journalPut( partitionTxn, getEntryId( partitionTxn, moveAndRenameContext.getNewDn() ) );
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+
+        checkSnapshot();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveContextCsn( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( journal == null )
+        {
+            super.saveContextCsn( partitionTxn );
+
+            return;
+        }
+
+        journalLock.readLock().lock();
+
+        try
+        {
+            super.saveContextCsn( partitionTxn );
+
+            String contextEntryId = getEntryId( partitionTxn, getSuffixDn() );
+
+            if ( contextEntryId != null )
+            {
+                journalPut( partitionTxn, contextEntryId );
+            }
+        }
+        finally
+        {
+            journalLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doDestroy( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( ( journal != null ) && initialized )
+        {
+            try
+            {
+                snapshot();
+                journal.close();
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+            finally
+            {
+                journal = null;
+            }
+        }
+
+        super.doDestroy( partitionTxn );
     }
 
 
@@ -142,6 +870,67 @@ public class AvlPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * @return The directory where the snapshot and the journal are stored, or null if
+     * the partition is volatile
+     */
+    public File getJournalDirectory()
+    {
+        return journalDirectory;
+    }
+
+
+    /**
+     * Sets the directory where the snapshot and the journal are stored. When null (the
+     * default), the partition content is lost on shutdown.
+     *
+     * @param journalDirectory The journal directory
+     */
+    public void setJournalDirectory( File journalDirectory )
+    {
+        checkInitialized( "journalDirectory" );
+        this.journalDirectory = journalDirectory;
+    }
+
+
+    /**
+     * @return true if the journal is synced on disk after each change
+     */
+    public boolean isJournalSyncOnWrite()
+    {
+        return journalSyncOnWrite;
+    }
+
+
+    /**
+     * @param journalSyncOnWrite If true, the journal is synced on disk after each change
+     */
+    public void setJournalSyncOnWrite( boolean journalSyncOnWrite )
+    {
+        checkInitialized( "journalSyncOnWrite" );
+        this.journalSyncOnWrite = journalSyncOnWrite;
+    }
+
+
+    /**
+     * @return The number of journalized changes before a new snapshot is written
+     */
+    public long getSnapshotThreshold()
+    {
+        return snapshotThreshold;
+    }
+
+
+    /**
+     * @param snapshotThreshold The number of journalized changes before a new snapshot is written
+     */
+    public void setSnapshotThreshold( long snapshotThreshold )
+    {
+        checkInitialized( "snapshotThreshold" );
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+
     /**
      * always returns false, cause this is a in-memory store
      */
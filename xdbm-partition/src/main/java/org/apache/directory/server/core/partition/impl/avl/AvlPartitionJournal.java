@@ -0,0 +1,703 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.avl;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The durability layer of an {@link AvlPartition}. It manages two files in a
+ * given directory :
+ * <ul>
+ *   <li>a snapshot file, containing a binary image of all the entries of the partition,
+ *   as they were when the snapshot was taken</li>
+ *   <li>a write-ahead journal, in which every entry modified or removed since the last
+ *   snapshot is appended</li>
+ * </ul>
+ * Both files share the same record format :
+ * <pre>
+ *   [type (byte)][payload length (int)][payload][CRC32 of the payload (long)]
+ * </pre>
+ * A PUT payload contains the entry ID, its parent ID, its RDNs and its attributes (stored
+ * as OID + value, like the JDBM EntrySerializer does). A REMOVE payload only contains
+ * the entry ID. Records are self-contained, so the snapshot can be decoded in parallel
+ * on reload. A torn record at the end of the journal (crash while writing) is ignored
+ * and truncated.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AvlPartitionJournal implements Closeable
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( AvlPartitionJournal.class );
+
+    /** The snapshot file extension */
+    public static final String SNAPSHOT_FILE_EXTN = ".snapshot";
+
+    /** The journal file extension */
+    public static final String JOURNAL_FILE_EXTN = ".journal";
+
+    /** The magic number starting a snapshot file */
+    private static final int SNAPSHOT_MAGIC = 0x41564C53;
+
+    /** The magic number starting a journal file */
+    private static final int JOURNAL_MAGIC = 0x41564C4A;
+
+    /** The record type for an added or modified entry */
+    private static final byte PUT = 1;
+
+    /** The record type for a removed entry */
+    private static final byte REMOVE = 2;
+
+    /** The size of the file header (the magic number) */
+    private static final int HEADER_SIZE = 4;
+
+    /** The directory containing the files */
+    private File directory;
+
+    /** The base name for the files */
+    private String name;
+
+    /** The SchemaManager instance */
+    private SchemaManager schemaManager;
+
+    /** The journal stream we write into */
+    private DataOutputStream journalOut;
+
+    /** The file stream under the journal, used to sync on disk */
+    private FileOutputStream journalFile;
+
+    /** Tells if we flush the journal on disk after each record */
+    private boolean syncOnWrite;
+
+    /** The number of records in the journal since the last snapshot */
+    private long journalSize;
+
+    /** The number of threads used to decode a snapshot */
+    private int nbDecoderThreads = Runtime.getRuntime().availableProcessors();
+
+
+    /**
+     * A journalized element : the entry, its ID and its position in the tree. The entry
+     * is null for a removal.
+     */
+    public static class JournalRecord
+    {
+        /** The entry ID */
+        private String id;
+
+        /** The parent ID and RDN of this entry */
+        private ParentIdAndRdn parentIdAndRdn;
+
+        /** The entry */
+        private Entry entry;
+
+
+        /**
+         * Creates a new JournalRecord instance
+         *
+         * @param id The entry ID
+         * @param parentIdAndRdn The entry's parent ID and RDN
+         * @param entry The entry
+         */
+        public JournalRecord( String id, ParentIdAndRdn parentIdAndRdn, Entry entry )
+        {
+            this.id = id;
+            this.parentIdAndRdn = parentIdAndRdn;
+            this.entry = entry;
+        }
+
+
+        /**
+         * @return The entry ID
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+
+        /**
+         * @return The entry's parent ID and RDN
+         */
+        public ParentIdAndRdn getParentIdAndRdn()
+        {
+            return parentIdAndRdn;
+        }
+
+
+        /**
+         * @return The entry, or null if the record is a removal
+         */
+        public Entry getEntry()
+        {
+            return entry;
+        }
+    }
+
+
+    /**
+     * Creates a new AvlPartitionJournal instance.
+     *
+     * @param directory The directory where the snapshot and journal are stored
+     * @param name The files base name, usually the partition ID
+     * @param schemaManager The SchemaManager instance
+     */
+    public AvlPartitionJournal( File directory, String name, SchemaManager schemaManager )
+    {
+        this.directory = directory;
+        this.name = name;
+        this.schemaManager = schemaManager;
+    }
+
+
+    /**
+     * @return The snapshot file
+     */
+    public File getSnapshotFile()
+    {
+        return new File( directory, name + SNAPSHOT_FILE_EXTN );
+    }
+
+
+    /**
+     * @return The journal file
+     */
+    public File getJournalFile()
+    {
+        return new File( directory, name + JOURNAL_FILE_EXTN );
+    }
+
+
+    /**
+     * @return true if the journal is flushed on disk after each record
+     */
+    public boolean isSyncOnWrite()
+    {
+        return syncOnWrite;
+    }
+
+
+    /**
+     * @param syncOnWrite If true, the journal is flushed on disk after each record
+     */
+    public void setSyncOnWrite( boolean syncOnWrite )
+    {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+
+    /**
+     * @param nbDecoderThreads The number of threads used to decode the snapshot on reload
+     */
+    public void setNbDecoderThreads( int nbDecoderThreads )
+    {
+        this.nbDecoderThreads = Math.max( 1, nbDecoderThreads );
+    }
+
+
+    /**
+     * @return The number of records written in the journal since the last snapshot
+     */
+    public synchronized long getJournalSize()
+    {
+        return journalSize;
+    }
+
+
+    /**
+     * Reads the snapshot and replays the journal on top of it.
+     *
+     * @return The entries to load in the partition, in the order they have been added
+     * @throws IOException If the files can't be read
+     */
+    public synchronized Map<String, JournalRecord> recover() throws IOException
+    {
+        Map<String, JournalRecord> records = new LinkedHashMap<>();
+
+        File snapshotFile = getSnapshotFile();
+
+        if ( snapshotFile.exists() )
+        {
+            List<byte[]> payloads = new ArrayList<>();
+            readFile( snapshotFile, SNAPSHOT_MAGIC, payloads, null );
+
+            for ( JournalRecord record : decodeAll( payloads ) )
+            {
+                records.put( record.getId(), record );
+            }
+
+            LOG.debug( "Read {} entries from snapshot {}", records.size(), snapshotFile );
+        }
+
+        File journalFile = getJournalFile();
+
+        if ( journalFile.exists() )
+        {
+            List<Byte> types = new ArrayList<>();
+            List<byte[]> payloads = new ArrayList<>();
+            long validLength = readFile( journalFile, JOURNAL_MAGIC, payloads, types );
+
+            for ( int i = 0; i < payloads.size(); i++ )
+            {
+                if ( types.get( i ) == REMOVE )
+                {
+                    records.remove( decodeId( payloads.get( i ) ) );
+                }
+                else
+                {
+                    JournalRecord record = decode( payloads.get( i ) );
+
+                    // Keep the insertion order : a re-added entry goes at the end
+                    records.remove( record.getId() );
+                    records.put( record.getId(), record );
+                }
+            }
+
+            journalSize = payloads.size();
+
+            if ( validLength < journalFile.length() )
+            {
+                LOG.warn( "Truncating the torn tail of the journal {} at position {}", journalFile, validLength );
+
+                try ( RandomAccessFile raf = new RandomAccessFile( journalFile, "rw" ) )
+                {
+                    raf.setLength( validLength );
+                }
+            }
+
+            LOG.debug( "Replayed {} records from journal {}", journalSize, journalFile );
+        }
+
+        return records;
+    }
+
+
+    /**
+     * Opens the journal for append. It's created if it does not exist.
+     *
+     * @throws IOException If the journal can't be opened
+     */
+    public synchronized void open() throws IOException
+    {
+        File journal = getJournalFile();
+        boolean exists = journal.exists() && ( journal.length() >= HEADER_SIZE );
+
+        journalFile = new FileOutputStream( journal, exists );
+        journalOut = new DataOutputStream( new BufferedOutputStream( journalFile ) );
+
+        if ( !exists )
+        {
+            journalOut.writeInt( JOURNAL_MAGIC );
+            journalOut.flush();
+            journalSize = 0L;
+        }
+    }
+
+
+    /**
+     * Appends an added or modified entry in the journal
+     *
+     * @param id The entry ID
+     * @param parentIdAndRdn The entry's parent ID and RDN
+     * @param entry The entry
+     * @throws IOException If the record can't be written
+     */
+    public synchronized void logPut( String id, ParentIdAndRdn parentIdAndRdn, Entry entry ) throws IOException
+    {
+        writeRecord( journalOut, PUT, encode( id, parentIdAndRdn, entry ) );
+        commit();
+    }
+
+
+    /**
+     * Appends a removed entry in the journal
+     *
+     * @param id The removed entry ID
+     * @throws IOException If the record can't be written
+     */
+    public synchronized void logRemove( String id ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream( baos ) )
+        {
+            out.writeUTF( id );
+        }
+
+        writeRecord( journalOut, REMOVE, baos.toByteArray() );
+        commit();
+    }
+
+
+    /**
+     * Writes a new snapshot containing the given records, then empties the journal. The
+     * snapshot is first written in a temporary file, which replaces the previous snapshot
+     * only once it has been synced on disk. The caller must make sure that no
+     * modification is done on the partition while the snapshot is written.
+     *
+     * @param records The records to store in the snapshot
+     * @throws IOException If the snapshot can't be written
+     */
+    public synchronized void writeSnapshot( Iterable<JournalRecord> records ) throws IOException
+    {
+        File snapshotFile = getSnapshotFile();
+        File tmpFile = new File( directory, name + SNAPSHOT_FILE_EXTN + ".tmp" );
+        long nbRecords = 0L;
+
+        try ( FileOutputStream fos = new FileOutputStream( tmpFile ) )
+        {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos, 64 * 1024 ) );
+            out.writeInt( SNAPSHOT_MAGIC );
+
+            for ( JournalRecord record : records )
+            {
+                writeRecord( out, PUT, encode( record.getId(), record.getParentIdAndRdn(), record.getEntry() ) );
+                nbRecords++;
+            }
+
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move( tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE );
+
+        // The journal content is now in the snapshot : restart it from scratch
+        closeJournal();
+        getJournalFile().delete();
+        open();
+
+        LOG.debug( "Wrote a snapshot of {} entries in {}", nbRecords, snapshotFile );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        closeJournal();
+    }
+
+
+    private void closeJournal() throws IOException
+    {
+        if ( journalOut != null )
+        {
+            journalOut.flush();
+            journalFile.getFD().sync();
+            journalOut.close();
+            journalOut = null;
+            journalFile = null;
+        }
+    }
+
+
+    private void commit() throws IOException
+    {
+        journalOut.flush();
+        journalSize++;
+
+        if ( syncOnWrite )
+        {
+            journalFile.getFD().sync();
+        }
+    }
+
+
+    private void writeRecord( DataOutputStream out, byte type, byte[] payload ) throws IOException
+    {
+        if ( out == null )
+        {
+            throw new IOException( "The journal " + getJournalFile() + " is not opened" );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( payload, 0, payload.length );
+
+        out.writeByte( type );
+        out.writeInt( payload.length );
+        out.write( payload );
+        out.writeLong( crc.getValue() );
+    }
+
+
+    /**
+     * Reads all the valid records of a file.
+     *
+     * @return The position right after the last valid record
+     */
+    private long readFile( File file, int magic, List<byte[]> payloads, List<Byte> types ) throws IOException
+    {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ),
+            64 * 1024 ) ) )
+        {
+            long fileLength = file.length();
+
+            if ( fileLength < HEADER_SIZE )
+            {
+                return 0L;
+            }
+
+            if ( in.readInt() != magic )
+            {
+                throw new IOException( "The file " + file + " is not a valid AVL partition file" );
+            }
+
+            long position = HEADER_SIZE;
+
+            while ( true )
+            {
+                try
+                {
+                    byte type = in.readByte();
+                    int length = in.readInt();
+
+                    if ( ( ( type != PUT ) && ( type != REMOVE ) ) || ( length < 0 )
+                        || ( length > fileLength - position ) )
+                    {
+                        LOG.warn( "Invalid record found in {} at position {}", file, position );
+                        return position;
+                    }
+
+                    byte[] payload = new byte[length];
+                    in.readFully( payload );
+                    long expectedCrc = in.readLong();
+
+                    CRC32 crc = new CRC32();
+                    crc.update( payload, 0, length );
+
+                    if ( crc.getValue() != expectedCrc )
+                    {
+                        LOG.warn( "Corrupted record found in {} at position {}", file, position );
+                        return position;
+                    }
+
+                    payloads.add( payload );
+
+                    if ( types != null )
+                    {
+                        types.add( type );
+                    }
+
+                    position += 1 + 4 + length + 8;
+                }
+                catch ( EOFException eofe )
+                {
+                    return position;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Decodes the snapshot payloads using a pool of threads, each one of them
+     * processing a contiguous slice of the payloads.
+     */
+    private List<JournalRecord> decodeAll( final List<byte[]> payloads ) throws IOException
+    {
+        final JournalRecord[] decoded = new JournalRecord[payloads.size()];
+        int nbThreads = Math.min( nbDecoderThreads, Math.max( 1, payloads.size() / 1024 ) );
+
+        if ( nbThreads == 1 )
+        {
+            for ( int i = 0; i < decoded.length; i++ )
+            {
+                decoded[i] = decode( payloads.get( i ) );
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool( nbThreads );
+            List<Future<Void>> futures = new ArrayList<>();
+            int sliceSize = ( decoded.length + nbThreads - 1 ) / nbThreads;
+
+            try
+            {
+                for ( int start = 0; start < decoded.length; start += sliceSize )
+                {
+                    final int from = start;
+                    final int to = Math.min( start + sliceSize, decoded.length );
+
+                    futures.add( executor.submit( new Callable<Void>()
+                    {
+                        @Override
+                        public Void call() throws IOException
+                        {
+                            for ( int i = from; i < to; i++ )
+                            {
+                                decoded[i] = decode( payloads.get( i ) );
+                            }
+
+                            return null;
+                        }
+                    } ) );
+                }
+
+                for ( Future<Void> future : futures )
+                {
+                    future.get();
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( ie.getMessage(), ie );
+            }
+            catch ( ExecutionException ee )
+            {
+                throw new IOException( ee.getCause().getMessage(), ee.getCause() );
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        List<JournalRecord> records = new ArrayList<>( decoded.length );
+
+        for ( JournalRecord record : decoded )
+        {
+            records.add( record );
+        }
+
+        return records;
+    }
+
+
+    private byte[] encode( String id, ParentIdAndRdn parentIdAndRdn, Entry entry ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream( baos ) )
+        {
+            out.writeUTF( id );
+            out.writeUTF( parentIdAndRdn.getParentId() );
+
+            Rdn[] rdns = parentIdAndRdn.getRdns();
+            out.writeInt( rdns.length );
+
+            for ( Rdn rdn : rdns )
+            {
+                rdn.writeExternal( out );
+            }
+
+            out.writeInt( entry.size() );
+
+            for ( Attribute attribute : entry )
+            {
+                out.writeUTF( attribute.getAttributeType().getOid() );
+                attribute.writeExternal( out );
+            }
+        }
+
+        return baos.toByteArray();
+    }
+
+
+    private String decodeId( byte[] payload ) throws IOException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( payload ) ) )
+        {
+            return in.readUTF();
+        }
+    }
+
+
+    private JournalRecord decode( byte[] payload ) throws IOException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( payload ) ) )
+        {
+            String id = in.readUTF();
+            String parentId = in.readUTF();
+            int nbRdns = in.readInt();
+            Rdn[] rdns = new Rdn[nbRdns];
+
+            for ( int i = 0; i < nbRdns; i++ )
+            {
+                rdns[i] = new Rdn( schemaManager );
+                rdns[i].readExternal( in );
+            }
+
+            Entry entry = new DefaultEntry( schemaManager );
+            entry.setDn( new Dn( schemaManager, rdns ) );
+
+            int nbAttributes = in.readInt();
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                String oid = in.readUTF();
+                AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( oid );
+                Attribute attribute = new DefaultAttribute( attributeType );
+                attribute.readExternal( in );
+                entry.add( attribute );
+            }
+
+            return new JournalRecord( id, new ParentIdAndRdn( parentId, rdns ), entry );
+        }
+        catch ( LdapException | ClassNotFoundException e )
+        {
+            throw new IOException( e.getMessage(), e );
+        }
+    }
+}
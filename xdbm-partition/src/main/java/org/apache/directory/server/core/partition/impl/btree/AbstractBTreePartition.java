@@ -20,6 +20,7 @@
 package org.apache.directory.server.core.partition.impl.btree;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
@@ -32,6 +33,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -88,6 +90,7 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionHotCopy;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.api.partition.Subordinates;
@@ -521,6 +524,28 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     // ------------------------------------------------------------------------
     // Partition Interface Method Implementations
     // ------------------------------------------------------------------------
+    /**
+     * Clears the caches, when some changes they may contain have been rolled back
+     */
+    protected void clearCaches()
+    {
+        if ( entryDnCache != null )
+        {
+            entryDnCache.removeAll();
+        }
+
+        if ( aliasCache != null )
+        {
+            aliasCache.removeAll();
+        }
+
+        if ( piarCache != null )
+        {
+            piarCache.removeAll();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1370,6 +1395,48 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEntryCsn( PartitionTxn partitionTxn, String id ) throws LdapException
+    {
+        try
+        {
+            Entry entry = lookupCache( id );
+
+            if ( entry == null )
+            {
+                // Keep the lock we take : the rwLock field may be replaced meanwhile
+                Lock readLock = getOrCreateRWLock().readLock();
+                readLock.lock();
+
+                try
+                {
+                    entry = master.get( partitionTxn, id );
+                }
+                finally
+                {
+                    readLock.unlock();
+                }
+            }
+
+            if ( entry == null )
+            {
+                return null;
+            }
+
+            Attribute entryCsn = entry.get( entryCsnAT );
+
+            return ( entryCsn == null ) ? null : entryCsn.getString();
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOperationErrorException( e.getMessage(), e );
+        }
+    }
+
+
     //---------------------------------------------------------------------------------------------
     // The Modify operation
     //---------------------------------------------------------------------------------------------
@@ -1451,10 +1518,26 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         
         master.put( partitionTxn, id, entry );
 
+        entryModified( partitionTxn, id );
+
         return entry;
     }
 
 
+    /**
+     * Called once an entry has been modified and stored back in the master table. This
+     * does nothing by default, it allows a sub-class to record the modified entry.
+     *
+     * @param partitionTxn The transaction in use
+     * @param id the modified entry's ID
+     * @throws LdapException If the modification can't be recorded
+     */
+    protected void entryModified( PartitionTxn partitionTxn, String id ) throws LdapException
+    {
+        // Nothing to do
+    }
+
+
     /**
      * Adds a set of attribute values while affecting the appropriate userIndices.
      * The entry is not persisted: it is only changed in anticipation for a put
@@ -3588,6 +3671,22 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Return the ReadWrite lock we use to protect the backend, creating it if no operation
+     * has been done on this partition yet
+     */
+    private synchronized ReadWriteLock getOrCreateRWLock()
+    {
+        if ( rwLock == null )
+        {
+            // Create a ReadWrite lock from scratch
+            rwLock = new ReentrantReadWriteLock();
+        }
+
+        return rwLock;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -3597,6 +3696,55 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         return rwLock;
     }
 
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The files are first copied without any lock, then the writers are blocked while the partition
+     * is flushed and the blocks modified during the first copy are copied again. Searches are never
+     * blocked.
+     */
+    @Override
+    public void backup( File backupDirectory, ReadWriteLock operationLock ) throws LdapException
+    {
+        if ( partitionPath == null )
+        {
+            // In memory partition
+            super.backup( backupDirectory, operationLock );
+
+            return;
+        }
+
+        PartitionHotCopy hotCopy = new PartitionHotCopy( new File( partitionPath ), backupDirectory );
+
+        try
+        {
+            long t0 = System.currentTimeMillis();
+            hotCopy.copy();
+
+            // The writers hold the write lock while modifying the partition. We can't rely on the
+            // rwLock field, it's only set once an operation has been done on this partition.
+            operationLock.readLock().lock();
+
+            try
+            {
+                sync();
+                long nbBlocks = hotCopy.copyChanges();
+
+                LOG.info( "Partition {} backed up in {} ({} blocks copied while writes were blocked, {}ms)",
+                    id, backupDirectory, nbBlocks, System.currentTimeMillis() - t0 );
+            }
+            finally
+            {
+                operationLock.readLock().unlock();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
     
     /**
      * {@inheritDoc}
@@ -358,6 +358,18 @@ public interface Store
     Entry fetch( PartitionTxn partitionTxn, String id, Dn dn ) throws LdapException;
 
 
+    /**
+     * Gets the entryCSN of an entry knowing its UUID. The entry DN is not built, this is
+     * a single lookup in the master table, used by the replication to discard the outdated
+     * modifications.
+     *
+     * @param id The Entry UUID
+     * @return The entryCSN of the entry, or null if there is no such entry
+     * @throws LdapException If the lookup failed for any reason (except a not found entry)
+     */
+    String getEntryCsn( PartitionTxn partitionTxn, String id ) throws LdapException;
+
+
     /**
      * Gets the count of immediate children of the given entry UUID.
      *
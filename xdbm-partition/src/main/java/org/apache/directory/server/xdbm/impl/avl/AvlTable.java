@@ -32,8 +32,8 @@ import org.apache.directory.server.core.avltree.AvlSingletonOrOrderedSetCursor;
 import org.apache.directory.server.core.avltree.AvlTree;
 import org.apache.directory.server.core.avltree.AvlTreeCursor;
 import org.apache.directory.server.core.avltree.AvlTreeMap;
-import org.apache.directory.server.core.avltree.AvlTreeMapImpl;
 import org.apache.directory.server.core.avltree.AvlTreeMapNoDupsWrapperCursor;
+import org.apache.directory.server.core.avltree.BPlusTreeMap;
 import org.apache.directory.server.core.avltree.KeyTupleAvlCursor;
 import org.apache.directory.server.core.avltree.LinkedAvlMapNode;
 import org.apache.directory.server.core.avltree.SingletonOrOrderedSet;
@@ -41,7 +41,7 @@ import org.apache.directory.server.xdbm.AbstractTable;
 
 
 /**
- * A Table implementation backed by in memory AVL tree.
+ * A Table implementation backed by an in memory B+tree.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,7 +55,7 @@ public class AvlTable<K, V> extends AbstractTable<K, V>
         boolean dupsEnabled )
     {
         super( null, name, keyComparator, valueComparator );
-        this.avl = new AvlTreeMapImpl<>( keyComparator, valueComparator, dupsEnabled );
+        this.avl = new BPlusTreeMap<>( keyComparator, valueComparator, dupsEnabled );
         allowsDuplicates = this.avl.isDupsAllowed();
         this.keyOnlytupleComparator = new Comparator<Tuple<K, V>>()
         {
@@ -73,7 +73,7 @@ public class AvlTable<K, V> extends AbstractTable<K, V>
     @Override
     public void close( PartitionTxn transaction ) throws LdapException
     {
-        ( ( AvlTreeMapImpl<K, V> ) avl ).removeAll();
+        ( ( BPlusTreeMap<K, V> ) avl ).removeAll();
     }
 
 
@@ -0,0 +1,273 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.impl.avl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.OperationEnum;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionBulkImporter;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the PartitionBulkImporter, loading an AvlPartition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AvlPartitionBulkImportTest
+{
+    private static final CsnFactory CSN_FACTORY = new CsnFactory( 0 );
+
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+    private AvlPartition partition;
+    private MockDirectoryService directoryService;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String path = System.getProperty( "workingDirectory" );
+
+        if ( path == null )
+        {
+            path = AvlPartitionBulkImportTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            path = path.substring( 0, targetPos + 6 );
+        }
+
+        File workingDirectory = new File( path );
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( workingDirectory );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createPartition() throws Exception
+    {
+        partition = new AvlPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        partition.setCacheService( cacheService );
+        partition.addIndex( new AvlIndex<String>( SchemaConstants.UID_AT_OID ) );
+        partition.initialize();
+
+        directoryService = new MockDirectoryService()
+        {
+            private CoreSession adminSession;
+
+
+            @Override
+            public CoreSession getAdminSession()
+            {
+                if ( adminSession == null )
+                {
+                    try
+                    {
+                        adminSession = new MockCoreSession( new LdapPrincipal( schemaManager,
+                            new Dn( schemaManager, "uid=admin,ou=system" ), AuthenticationLevel.STRONG ), this );
+                    }
+                    catch ( Exception e )
+                    {
+                        throw new RuntimeException( e );
+                    }
+                }
+
+                return adminSession;
+            }
+
+
+            @Override
+            public Csn getCSN()
+            {
+                return CSN_FACTORY.newInstance();
+            }
+
+
+            @Override
+            public List<String> getInterceptors( OperationEnum operation )
+            {
+                return Collections.<String> emptyList();
+            }
+        };
+
+        directoryService.setSchemaManager( schemaManager );
+    }
+
+
+    @After
+    public void destroyPartition() throws Exception
+    {
+        partition.destroy( partition.beginReadTransaction() );
+    }
+
+
+    private Entry lookup( String dn ) throws Exception
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( null, new Dn( schemaManager, dn ) );
+        lookupContext.setTransaction( partition.beginReadTransaction() );
+
+        return partition.lookup( lookupContext );
+    }
+
+
+    private String ldif( int nbUsers )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        // The users come before their parent
+        for ( int i = 0; i < nbUsers; i++ )
+        {
+            sb.append( "dn: uid=user" ).append( i ).append( ",ou=people,dc=example,dc=com\n" );
+            sb.append( "objectClass: account\n" );
+            sb.append( "uid: user" ).append( i ).append( "\n\n" );
+        }
+
+        sb.append( "dn: ou=people,dc=example,dc=com\n" );
+        sb.append( "objectClass: organizationalUnit\n" );
+        sb.append( "ou: people\n\n" );
+        sb.append( "dn: dc=example,dc=com\n" );
+        sb.append( "objectClass: domain\n" );
+        sb.append( "dc: example\n\n" );
+
+        return sb.toString();
+    }
+
+
+    @Test
+    public void testImport() throws Exception
+    {
+        PartitionBulkImporter importer = new PartitionBulkImporter( directoryService, partition );
+        importer.setNbThreads( 2 );
+        importer.setBatchSize( 7 );
+
+        assertEquals( 52L, importer.importLdif( new StringReader( ldif( 50 ) ) ) );
+
+        PartitionTxn txn = partition.beginReadTransaction();
+        assertEquals( 52L, partition.count( txn ) );
+
+        Entry user = lookup( "uid=user42,ou=people,dc=example,dc=com" );
+        assertNotNull( user );
+        assertNotNull( user.get( SchemaConstants.ENTRY_UUID_AT ) );
+        assertNotNull( user.get( SchemaConstants.ENTRY_CSN_AT ) );
+        assertNotNull( user.get( SchemaConstants.CREATE_TIMESTAMP_AT ) );
+    }
+
+
+    @Test( expected = LdapUnwillingToPerformException.class )
+    public void testImportNotEmpty() throws Exception
+    {
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif( 1 ) ) );
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif( 1 ) ) );
+    }
+
+
+    @Test( expected = LdapSchemaViolationException.class )
+    public void testImportMissingMust() throws Exception
+    {
+        String ldif = "dn: dc=example,dc=com\nobjectClass: domain\ndc: example\n\n"
+            + "dn: cn=john,dc=example,dc=com\nobjectClass: person\ncn: john\n\n";
+
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif ) );
+    }
+
+
+    @Test( expected = LdapSchemaViolationException.class )
+    public void testImportAttributeNotAllowed() throws Exception
+    {
+        // The mail attribute is neither a MUST nor a MAY of the domain ObjectClass
+        String ldif = "dn: dc=example,dc=com\nobjectClass: domain\ndc: example\nmail: admin@example.com\n\n";
+
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif ) );
+    }
+
+
+    @Test( expected = LdapInvalidAttributeValueException.class )
+    public void testImportSingleValuedAttribute() throws Exception
+    {
+        // The dc attribute is single valued
+        String ldif = "dn: dc=example,dc=com\nobjectClass: domain\ndc: example\ndc: other\n\n";
+
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif ) );
+    }
+
+
+    @Test( expected = LdapNoSuchObjectException.class )
+    public void testImportMissingParent() throws Exception
+    {
+        String ldif = "dn: dc=example,dc=com\nobjectClass: domain\ndc: example\n\n"
+            + "dn: uid=john,ou=people,dc=example,dc=com\nobjectClass: account\nuid: john\n\n";
+
+        new PartitionBulkImporter( directoryService, partition ).importLdif( new StringReader( ldif ) );
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.impl.avl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the snapshot and journal of the AvlPartition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AvlPartitionJournalTest
+{
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+    private static File workingDirectory;
+
+    /** The OU AttributeType instance */
+    private static AttributeType OU_AT;
+
+    private File journalDirectory;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String path = System.getProperty( "workingDirectory" );
+
+        if ( path == null )
+        {
+            path = AvlPartitionJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            path = path.substring( 0, targetPos + 6 );
+        }
+
+        workingDirectory = new File( path );
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( workingDirectory );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        OU_AT = schemaManager.getAttributeType( "ou" );
+    }
+
+
+    @Before
+    public void createJournalDirectory() throws Exception
+    {
+        StoreUtils.createdExtraAttributes( schemaManager );
+        journalDirectory = new File( workingDirectory, "avl-journal" );
+        deleteJournal();
+    }
+
+
+    @After
+    public void deleteJournalDirectory() throws Exception
+    {
+        deleteJournal();
+    }
+
+
+    private void deleteJournal()
+    {
+        if ( journalDirectory.exists() )
+        {
+            for ( File file : journalDirectory.listFiles() )
+            {
+                file.delete();
+            }
+
+            journalDirectory.delete();
+        }
+    }
+
+
+    private AvlPartition createPartition() throws Exception
+    {
+        return createPartition( AvlPartition.DEFAULT_SNAPSHOT_THRESHOLD );
+    }
+
+
+    private AvlPartition createPartition( long snapshotThreshold ) throws Exception
+    {
+        AvlPartition partition = new AvlPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setSyncOnWrite( false );
+        partition.setJournalDirectory( journalDirectory );
+        partition.setSnapshotThreshold( snapshotThreshold );
+
+        partition.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        partition.addIndex( new AvlIndex<String>( SchemaConstants.UID_AT_OID ) );
+        partition.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+
+        partition.setCacheService( cacheService );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    @Test
+    public void testReplayJournal() throws Exception
+    {
+        AvlPartition partition = createPartition();
+        StoreUtils.loadExampleData( partition, schemaManager );
+        PartitionTxn txn = partition.beginReadTransaction();
+
+        // Delete 'cn=Jack Daniels,ou=Engineering,o=Good Times Co.'
+        partition.delete( txn, Strings.getUUID( 8L ) );
+        long ouCount = partition.getUserIndex( OU_AT ).count( txn );
+
+        assertEquals( 10, partition.count( txn ) );
+        assertTrue( new File( journalDirectory, "example.journal" ).exists() );
+
+        // Simulate a crash : the partition is not destroyed, the journal is replayed
+        AvlPartition recovered = createPartition();
+        txn = recovered.beginReadTransaction();
+
+        assertEquals( 10, recovered.count( txn ) );
+        assertEquals( ouCount, recovered.getUserIndex( OU_AT ).count( txn ) );
+        assertEquals( Strings.getUUID( 1L ), recovered.getEntryId( txn, new Dn( schemaManager, "o=Good Times Co." ) ) );
+        assertEquals( Strings.getUUID( 7L ), recovered.getEntryId( txn,
+            new Dn( schemaManager, "ou=Apache,ou=Board of Directors,o=Good Times Co." ) ) );
+        assertNull( recovered.getEntryId( txn,
+            new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." ) ) );
+        assertEquals( 3, recovered.getChildCount( txn, Strings.getUUID( 1L ) ) );
+        assertNotNull( recovered.getAliasIndex().reverseLookup( txn, Strings.getUUID( 9L ) ) );
+
+        // The replayed journal has been compacted into a snapshot
+        assertTrue( new File( journalDirectory, "example.snapshot" ).exists() );
+
+        recovered.destroy( txn );
+    }
+
+
+    @Test
+    public void testReloadSnapshot() throws Exception
+    {
+        AvlPartition partition = createPartition( 5 );
+        StoreUtils.loadExampleData( partition, schemaManager );
+        PartitionTxn txn = partition.beginReadTransaction();
+        partition.destroy( txn );
+
+        AvlPartition reloaded = createPartition();
+        txn = reloaded.beginReadTransaction();
+
+        assertEquals( 11, reloaded.count( txn ) );
+        assertEquals( Strings.getUUID( 5L ), reloaded.getEntryId( txn,
+            new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." ) ) );
+        assertEquals( 2, reloaded.getChildCount( txn, Strings.getUUID( 2L ) ) );
+
+        reloaded.destroy( txn );
+    }
+
+
+    @Test
+    public void testReplayDirectModify() throws Exception
+    {
+        AvlPartition partition = createPartition();
+        StoreUtils.loadExampleData( partition, schemaManager );
+        PartitionTxn txn = partition.beginWriteTransaction();
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+
+        // The modification does not go through a ModifyOperationContext, it must be journalized anyway
+        partition.modify( txn, dn, new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, OU_AT, "Recovered" ) );
+        txn.commit();
+
+        // Simulate a crash : the partition is not destroyed, the journal is replayed
+        AvlPartition recovered = createPartition();
+        txn = recovered.beginReadTransaction();
+
+        assertTrue( recovered.fetch( txn, Strings.getUUID( 5L ) ).contains( OU_AT, "Recovered" ) );
+
+        recovered.destroy( txn );
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetSnapshotThresholdOnInitializedPartition() throws Exception
+    {
+        AvlPartition partition = createPartition();
+
+        try
+        {
+            partition.setSnapshotThreshold( 5 );
+        }
+        finally
+        {
+            partition.destroy( partition.beginReadTransaction() );
+        }
+    }
+}
@@ -652,4 +652,28 @@ public class AvlPartitionTest
         lookedup = partition.modify( txn, dn, add );
         assertEquals( attribVal, lookedup.get( "ou" ).get().getValue() );
     }
+
+
+    @Test
+    public void testGetEntryCsn() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Tim C,ou=Sales,o=Good Times Co." );
+        String csn = new CsnFactory( 1 ).newInstance().toString();
+        String uuid = UUID.randomUUID().toString();
+        DefaultEntry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "organizationalPerson" );
+        entry.add( "cn", "Tim C" );
+        entry.add( "sn", "C" );
+        entry.add( "entryCSN", csn );
+        entry.add( "entryUUID", uuid );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addContext );
+
+        assertEquals( csn, partition.getEntryCsn( txn, uuid ) );
+        assertNull( partition.getEntryCsn( txn, UUID.randomUUID().toString() ) );
+    }
 }
@@ -35,6 +35,8 @@ import com.mycila.junit.concurrent.ConcurrentJunitRunner;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.avltree.AvlSingletonOrOrderedSetCursor;
+import org.apache.directory.server.core.avltree.SingletonOrOrderedSet;
 import org.apache.directory.server.xdbm.MockPartitionReadTxn;
 import org.junit.Before;
 import org.junit.Test;
@@ -308,6 +310,44 @@ public class AvlTableTest
     }
 
 
+    /**
+     * Checks that a cursor positioned on a key sees the values added to this key afterward.
+     */
+    @Test
+    public void testCursorSeesUpdatedValue() throws Exception
+    {
+        dups.put( txn, 5, 1 );
+
+        AvlSingletonOrOrderedSetCursor<Integer, Integer> cursor =
+            new AvlSingletonOrOrderedSetCursor<Integer, Integer>( dups.getAvlTreeMap() );
+
+        assertTrue( cursor.first() );
+        SingletonOrOrderedSet<Integer> values = cursor.get().getValue();
+        assertTrue( values.isSingleton() );
+        assertEquals( 1, values.getSingleton().intValue() );
+
+        // Add a value to the key the cursor is positioned on
+        dups.put( txn, 5, 2 );
+
+        values = cursor.get().getValue();
+        assertTrue( values.isOrderedSet() );
+        assertEquals( 2, values.getOrderedSet().getSize() );
+        cursor.close();
+
+        // And the same with a value replaced on a table without duplicates
+        nodups.put( txn, 5, 1 );
+        Cursor<Tuple<Integer, Integer>> nodupsCursor = nodups.cursor();
+
+        assertTrue( nodupsCursor.first() );
+        assertEquals( 1, nodupsCursor.get().getValue().intValue() );
+
+        nodups.put( txn, 5, 3 );
+
+        assertEquals( 3, nodupsCursor.get().getValue().intValue() );
+        nodupsCursor.close();
+    }
+
+
     /**
      * Tests the put() and get() methods on an AvlTable.
      */
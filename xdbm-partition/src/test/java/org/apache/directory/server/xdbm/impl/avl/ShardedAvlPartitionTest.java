@@ -0,0 +1,289 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.impl.avl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapContextNotEmptyException;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.core.shared.partition.ShardedPartition;
+import org.apache.directory.server.core.shared.partition.ShardedPartitionReadTxn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the ShardedPartition, using AvlPartitions as shards
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ShardedAvlPartitionTest
+{
+    private static final CsnFactory CSN_FACTORY = new CsnFactory( 0 );
+    private static final int NB_USERS = 20;
+
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+
+    private ShardedPartition partition;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String path = System.getProperty( "workingDirectory" );
+
+        if ( path == null )
+        {
+            path = ShardedAvlPartitionTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            path = path.substring( 0, targetPos + 6 );
+        }
+
+        File workingDirectory = new File( path );
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( workingDirectory );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @Before
+    public void createPartition() throws Exception
+    {
+        partition = new ShardedPartition();
+        partition.setId( "example" );
+        partition.setSchemaManager( schemaManager );
+        partition.setCacheService( cacheService );
+        partition.setSuffixDn( new Dn( schemaManager, "dc=example,dc=com" ) );
+        partition.setShardingDepth( 2 );
+        partition.setSearchThreads( 2 );
+        partition.addBranch( new Dn( schemaManager, "uid=admin,ou=people,dc=example,dc=com" ), 2 );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            AvlPartition shard = new AvlPartition( schemaManager, dnFactory );
+            shard.setId( "example-" + i );
+            shard.addIndex( new AvlIndex<String>( SchemaConstants.UID_AT_OID ) );
+            partition.addShard( shard );
+        }
+
+        partition.initialize();
+
+        PartitionTxn txn = partition.beginWriteTransaction();
+
+        add( txn, "dc=example,dc=com", "objectClass: domain", "dc: example" );
+        add( txn, "ou=people,dc=example,dc=com", "objectClass: organizationalUnit", "ou: people" );
+        add( txn, "uid=admin,ou=people,dc=example,dc=com", "objectClass: account", "uid: admin" );
+
+        for ( int i = 0; i < NB_USERS; i++ )
+        {
+            add( txn, "uid=user" + i + ",ou=people,dc=example,dc=com", "objectClass: account", "uid: user" + i );
+        }
+
+        txn.commit();
+    }
+
+
+    @After
+    public void destroyPartition() throws Exception
+    {
+        partition.destroy( partition.beginReadTransaction() );
+    }
+
+
+    private void add( PartitionTxn txn, String dn, String... attributes ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn, attributes );
+        entry.add( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, CSN_FACTORY.newInstance().toString() );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setTransaction( txn );
+        partition.add( addContext );
+    }
+
+
+    private Set<String> search( String base, SearchScope scope ) throws Exception
+    {
+        SearchOperationContext searchContext = new SearchOperationContext( null, new Dn( schemaManager, base ),
+            scope, new PresenceNode( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT ) ), "*" );
+        searchContext.setTransaction( partition.beginReadTransaction() );
+        EntryFilteringCursor cursor = partition.search( searchContext );
+        Set<String> dns = new HashSet<String>();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                assertTrue( dns.add( cursor.get().getDn().getNormName() ) );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return dns;
+    }
+
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        long total = 0L;
+
+        for ( Partition shard : partition.getShards() )
+        {
+            AvlPartition avlShard = ( AvlPartition ) shard;
+            PartitionTxn txn = avlShard.beginReadTransaction();
+
+            // The suffix and ou=people are stored in all the shards
+            assertNotNull( avlShard.getEntryId( txn, new Dn( schemaManager, "ou=people,dc=example,dc=com" ) ) );
+            total += avlShard.count( txn ) - 2;
+        }
+
+        assertEquals( NB_USERS + 1, total );
+        assertEquals( 2, partition.getShardIndex( new Dn( schemaManager, "uid=admin,ou=people,dc=example,dc=com" ) ) );
+        assertEquals( ShardedPartition.REPLICATED, partition.getShardIndex(
+            new Dn( schemaManager, "ou=people,dc=example,dc=com" ) ) );
+
+        Dn userDn = new Dn( schemaManager, "uid=user7,ou=people,dc=example,dc=com" );
+        LookupOperationContext lookupContext = new LookupOperationContext( null, userDn );
+        lookupContext.setTransaction( partition.beginReadTransaction() );
+        Entry user = partition.lookup( lookupContext );
+
+        assertNotNull( user );
+        assertTrue( user.contains( "uid", "user7" ) );
+    }
+
+
+    @Test
+    public void testReadTransaction() throws Exception
+    {
+        PartitionTxn txn = partition.beginReadTransaction();
+        assertTrue( txn instanceof ShardedPartitionReadTxn );
+
+        // The users are spread over the shards, each shard gets its own read transaction
+        for ( int i = 0; i < NB_USERS; i++ )
+        {
+            Dn userDn = new Dn( schemaManager, "uid=user" + i + ",ou=people,dc=example,dc=com" );
+            LookupOperationContext lookupContext = new LookupOperationContext( null, userDn );
+            lookupContext.setTransaction( txn );
+
+            assertNotNull( partition.lookup( lookupContext ) );
+            assertSame( txn, lookupContext.getTransaction() );
+        }
+
+        txn.close();
+        assertTrue( txn.isClosed() );
+    }
+
+
+    @Test
+    public void testSearch() throws Exception
+    {
+        assertEquals( NB_USERS + 3, search( "dc=example,dc=com", SearchScope.SUBTREE ).size() );
+        assertEquals( NB_USERS + 1, search( "ou=people,dc=example,dc=com", SearchScope.ONELEVEL ).size() );
+        assertEquals( 1, search( "dc=example,dc=com", SearchScope.ONELEVEL ).size() );
+        assertEquals( 1, search( "uid=user3,ou=people,dc=example,dc=com", SearchScope.SUBTREE ).size() );
+    }
+
+
+    @Test
+    public void testSubordinates() throws Exception
+    {
+        PartitionTxn txn = partition.beginReadTransaction();
+        Dn peopleDn = new Dn( schemaManager, "ou=people,dc=example,dc=com" );
+        LookupOperationContext lookupContext = new LookupOperationContext( null, peopleDn );
+        lookupContext.setTransaction( txn );
+        Entry people = partition.lookup( lookupContext );
+
+        assertEquals( NB_USERS + 1, partition.getSubordinates( txn, people ).getNbChildren() );
+
+        // A replicated entry can't be deleted while one of the shards has some children
+        PartitionTxn writeTxn = partition.beginWriteTransaction();
+        DeleteOperationContext deleteContext = new DeleteOperationContext( null, peopleDn );
+        deleteContext.setTransaction( writeTxn );
+
+        try
+        {
+            partition.delete( deleteContext );
+            fail();
+        }
+        catch ( LdapContextNotEmptyException lcnee )
+        {
+            // Expected
+        }
+        finally
+        {
+            writeTxn.abort();
+        }
+    }
+}